@@ -0,0 +1,194 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ericsson.eniq.events.server.datasource.loadbalancing.LatencyAwareLoadBalancingPolicy;
+import com.ericsson.eniq.events.server.datasource.loadbalancing.LeastOutstandingConnectionsLoadBalancingPolicy;
+import com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicy;
+import com.ericsson.eniq.events.server.datasource.loadbalancing.PowerOfTwoChoicesLoadBalancingPolicy;
+import com.ericsson.eniq.events.server.datasource.loadbalancing.RoundRobinLoadBalancingPolicy;
+import com.ericsson.eniq.events.server.datasource.loadbalancing.WeightedRoundRobinLoadBalancingPolicy;
+import com.ericsson.eniq.events.server.utils.config.AMXPropertyReader;
+
+/**
+ * Cost of DataSourceManager.getConnection() and closing the connection again, against data sources that hand out
+ * connections instantly - so this is the overhead the data source layer adds to every query
+ *
+ * The data sources are set up through JNDI and AMX as on the server, with a stubbed JNDI context and AMX reader
+ *
+ * Run with mvn -P benchmark verify, see the benchmark profile in the pom
+ *
+ * @author eemecoy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataSourceManagerBenchmark {
+
+    @Param({ "roundRobin", "weightedRoundRobin", "leastOutstandingConnections", "powerOfTwoChoices", "latencyAware" })
+    public String policy;
+
+    @Param({ "1", "2", "4", "8", "16", "32" })
+    public int dataSources;
+
+    @Param({ StubDataSources.UNIFORM_WEIGHTS, StubDataSources.SKEWED_WEIGHTS })
+    public String weights;
+
+    private DataSourceManager dataSourceManager;
+
+    private LoadBalancingPolicy loadBalancingPolicy;
+
+    @Setup
+    public void setUp() throws DataSourceConfigurationException {
+        final List<EniqDataSource> stubDataSources = StubDataSources.createDataSources(dataSources, weights);
+        final StringBuilder additionalDataSources = new StringBuilder();
+        for (int i = 1; i < dataSources; i++) {
+            if (i > 1) {
+                additionalDataSources.append(DataSourceManager.DATA_SOURCES_LIST_DELIMITER);
+            }
+            additionalDataSources.append(stubDataSources.get(i).getPoolName());
+        }
+        final Properties eniqEventsProperties = new Properties();
+        eniqEventsProperties.setProperty(DataSourceManager.DEFAULT_ENIQ_DATA_SOURCE_PROPERTY_NAME, stubDataSources
+                .get(0).getPoolName());
+        eniqEventsProperties.setProperty(DataSourceManager.ENIQ_EVENTS_ADDITIONAL_DATA_SOURCES_PROPERTY_NAME,
+                additionalDataSources.toString());
+        // the health monitor isn't started, so there's nothing to warm the pools up on
+        eniqEventsProperties.setProperty(DataSourceHealthMonitor.WARM_UP_SHARE_PROPERTY_NAME, "0");
+
+        dataSourceManager = new DataSourceManager() {
+            @Override
+            InitialContext createInitialContext() throws NamingException {
+                return new StubInitialContext(stubDataSources);
+            }
+        };
+        dataSourceManager.setEniqEventsProperties(eniqEventsProperties);
+        dataSourceManager.setAmxPropertyReader(new StubAMXPropertyReader(stubDataSources));
+        dataSourceManager.setDataSourceHealthMonitor(new DataSourceHealthMonitor());
+        dataSourceManager.setUpDataSources();
+        loadBalancingPolicy = createPolicy();
+    }
+
+    private LoadBalancingPolicy createPolicy() {
+        if ("weightedRoundRobin".equals(policy)) {
+            return new WeightedRoundRobinLoadBalancingPolicy();
+        }
+        if ("leastOutstandingConnections".equals(policy)) {
+            return new LeastOutstandingConnectionsLoadBalancingPolicy();
+        }
+        if ("powerOfTwoChoices".equals(policy)) {
+            return new PowerOfTwoChoicesLoadBalancingPolicy();
+        }
+        if ("latencyAware".equals(policy)) {
+            return new LatencyAwareLoadBalancingPolicy();
+        }
+        return new RoundRobinLoadBalancingPolicy();
+    }
+
+    private Connection getAndCloseConnection() throws SQLException, DataSourceConfigurationException {
+        final Connection connection = dataSourceManager.getConnection(loadBalancingPolicy);
+        connection.close();
+        return connection;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Connection getConnection1Thread() throws SQLException, DataSourceConfigurationException {
+        return getAndCloseConnection();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Connection getConnection4Threads() throws SQLException, DataSourceConfigurationException {
+        return getAndCloseConnection();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Connection getConnection16Threads() throws SQLException, DataSourceConfigurationException {
+        return getAndCloseConnection();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Connection getConnection64Threads() throws SQLException, DataSourceConfigurationException {
+        return getAndCloseConnection();
+    }
+
+    /**
+     * JNDI context holding the data sources behind the stub data sources, by pool name
+     */
+    private static class StubInitialContext extends InitialContext {
+
+        private final List<EniqDataSource> dataSources;
+
+        StubInitialContext(final List<EniqDataSource> dataSources) throws NamingException {
+            super(true);
+            this.dataSources = dataSources;
+        }
+
+        @Override
+        public Object lookup(final String name) throws NamingException {
+            for (final EniqDataSource dataSource : dataSources) {
+                if (dataSource.getPoolName().equals(name)) {
+                    return new StubDataSources.InstantDataSource();
+                }
+            }
+            throw new NamingException(name + " not found");
+        }
+    }
+
+    /**
+     * AMX reader that gives each stub data source a max pool size (and so a weight) of its benchmark weight
+     */
+    private static class StubAMXPropertyReader extends AMXPropertyReader {
+
+        private final List<EniqDataSource> dataSources;
+
+        StubAMXPropertyReader(final List<EniqDataSource> dataSources) {
+            this.dataSources = dataSources;
+        }
+
+        @Override
+        public String getAttribute(final String type, final String name, final String attribute) {
+            if ("jdbc-resource".equals(type)) {
+                return name;
+            }
+            for (final EniqDataSource dataSource : dataSources) {
+                if (dataSource.getPoolName().equals(name)) {
+                    return String.valueOf(dataSource.getWeight());
+                }
+            }
+            return String.valueOf(StubDataSources.UNIFORM_WEIGHT);
+        }
+    }
+}
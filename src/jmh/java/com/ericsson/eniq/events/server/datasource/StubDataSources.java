@@ -0,0 +1,142 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Data sources for the benchmarks - getConnection() returns instantly, so the benchmarks measure only the
+ * selection and bookkeeping overhead of the data source layer
+ *
+ * @author eemecoy
+ *
+ */
+public final class StubDataSources {
+
+    /**
+     * All data sources have the same weight
+     */
+    public static final String UNIFORM_WEIGHTS = "uniform";
+
+    /**
+     * Weights fall off as 64/n, so the first data source has a weight of 64 and the last few a weight of 1 or 2
+     */
+    public static final String SKEWED_WEIGHTS = "skewed";
+
+    static final int UNIFORM_WEIGHT = 3;
+
+    private static final Connection CONNECTION = (Connection) Proxy.newProxyInstance(
+            StubDataSources.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    if ("isClosed".equals(method.getName())) {
+                        return Boolean.FALSE;
+                    }
+                    return null;
+                }
+            });
+
+    private StubDataSources() {
+    }
+
+    /**
+     * Get the weight of the data source at this position in the list
+     * @param weights UNIFORM_WEIGHTS or SKEWED_WEIGHTS
+     * @param index
+     * @return
+     */
+    public static int getWeight(final String weights, final int index) {
+        if (SKEWED_WEIGHTS.equals(weights)) {
+            return Math.max(64 / (index + 1), 1);
+        }
+        return UNIFORM_WEIGHT;
+    }
+
+    /**
+     * Create a list of data sources, wrapped as EniqDataSourceImpls as the DataSourceManager would
+     * @param numberOfDataSources
+     * @param weights UNIFORM_WEIGHTS or SKEWED_WEIGHTS
+     * @return
+     */
+    public static List<EniqDataSource> createDataSources(final int numberOfDataSources, final String weights) {
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        for (int i = 0; i < numberOfDataSources; i++) {
+            dataSources.add(new EniqDataSourceImpl(new InstantDataSource(), "eniqPool" + i, getWeight(weights, i)));
+        }
+        return dataSources;
+    }
+
+    /**
+     * Create the topology snapshot the DataSourceManager would publish for these data sources
+     * @param numberOfDataSources
+     * @param weights UNIFORM_WEIGHTS or SKEWED_WEIGHTS
+     * @return
+     */
+    public static DataSourceTopology createTopology(final int numberOfDataSources, final String weights) {
+        return new DataSourceTopology(createDataSources(numberOfDataSources, weights));
+    }
+
+    /**
+     * DataSource that hands out the same do-nothing connection every time
+     */
+    static class InstantDataSource implements DataSource {
+
+        @Override
+        public Connection getConnection() {
+            return CONNECTION;
+        }
+
+        @Override
+        public Connection getConnection(final String username, final String password) {
+            return CONNECTION;
+        }
+
+        @Override
+        public PrintWriter getLogWriter() {
+            return null;
+        }
+
+        @Override
+        public void setLogWriter(final PrintWriter out) {
+        }
+
+        @Override
+        public void setLoginTimeout(final int seconds) {
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(final Class<T> iface) throws SQLException {
+            throw new SQLException("Not a wrapper");
+        }
+
+        @Override
+        public boolean isWrapperFor(final Class<?> iface) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ericsson.eniq.events.server.datasource.DataSourceTopology;
+import com.ericsson.eniq.events.server.datasource.StubDataSources;
+
+/**
+ * Cost of selecting a data source with each load balancing policy, from the topology snapshot that the
+ * DataSourceManager hands the policies
+ *
+ * The policies are taken from a LoadBalancingPolicyFactoryImpl wired up as the container would, so the keyed
+ * policies include the cost of creating the per query policy - sharedKeyAffinity passes the key to the shared key
+ * affinity selector instead. The same benchmark is run at 1, 4, 16 and 64 threads
+ * to show contention on any state shared between queries
+ *
+ * Run with mvn -P benchmark verify, see the benchmark profile in the pom
+ *
+ * @author eemecoy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBalancingPolicyBenchmark {
+
+    private static final int NUMBER_OF_KEYS = 1024;
+
+    @Param({ "roundRobin", "weightedRoundRobin", "leastOutstandingConnections", "powerOfTwoChoices", "latencyAware",
+            "imsi", "consistentHashImsi", "keyAffinity", "sharedKeyAffinity" })
+    public String policy;
+
+    @Param({ "1", "2", "4", "8", "16", "32" })
+    public int dataSources;
+
+    @Param({ StubDataSources.UNIFORM_WEIGHTS, StubDataSources.SKEWED_WEIGHTS })
+    public String weights;
+
+    private LoadBalancingPolicyFactory loadBalancingPolicyFactory;
+
+    private DataSourceTopology topology;
+
+    /**
+     * Set for the policies that are the same for every query, null for the keyed policies
+     */
+    private LoadBalancingPolicy sharedPolicy;
+
+    /**
+     * Set for sharedKeyAffinity only
+     */
+    private KeyAffinitySelector keyAffinitySelector;
+
+    @Setup
+    public void setUp() {
+        final LoadBalancingPolicyFactoryImpl factory = new LoadBalancingPolicyFactoryImpl();
+        factory.setRoundRobinLoadBalancingPolicy(new RoundRobinLoadBalancingPolicy());
+        factory.setNoLoadBalancingPolicy(new NoLoadBalancingPolicy());
+        factory.setWeightedRoundRobinLoadBalancingPolicy(new WeightedRoundRobinLoadBalancingPolicy());
+        factory.setLeastOutstandingConnectionsLoadBalancingPolicy(new LeastOutstandingConnectionsLoadBalancingPolicy());
+        factory.setPowerOfTwoChoicesLoadBalancingPolicy(new PowerOfTwoChoicesLoadBalancingPolicy());
+        factory.setLatencyAwareLoadBalancingPolicy(new LatencyAwareLoadBalancingPolicy());
+        loadBalancingPolicyFactory = factory;
+        topology = StubDataSources.createTopology(dataSources, weights);
+        sharedPolicy = getSharedPolicy();
+        if ("sharedKeyAffinity".equals(policy)) {
+            keyAffinitySelector = loadBalancingPolicyFactory.getKeyAffinitySelector();
+        }
+    }
+
+    private LoadBalancingPolicy getSharedPolicy() {
+        if ("roundRobin".equals(policy)) {
+            return loadBalancingPolicyFactory.getRoundRobinLoadBalancingPolicy();
+        }
+        if ("weightedRoundRobin".equals(policy)) {
+            return loadBalancingPolicyFactory.getWeightedRoundRobinLoadBalancingPolicy();
+        }
+        if ("leastOutstandingConnections".equals(policy)) {
+            return loadBalancingPolicyFactory.getLeastOutstandingConnectionsLoadBalancingPolicy();
+        }
+        if ("powerOfTwoChoices".equals(policy)) {
+            return loadBalancingPolicyFactory.getPowerOfTwoChoicesLoadBalancingPolicy();
+        }
+        if ("latencyAware".equals(policy)) {
+            return loadBalancingPolicyFactory.getLatencyAwareLoadBalancingPolicy();
+        }
+        return null;
+    }
+
+    private LoadBalancingPolicy getKeyedPolicy(final String key) {
+        if ("imsi".equals(policy)) {
+            return loadBalancingPolicyFactory.getImsiLoadBalancingPolicy(key);
+        }
+        if ("consistentHashImsi".equals(policy)) {
+            return loadBalancingPolicyFactory.getConsistentHashImsiLoadBalancingPolicy(key);
+        }
+        return loadBalancingPolicyFactory.getKeyAffinityLoadBalancingPolicy(key);
+    }
+
+    private DataSource select(final Keys keys) {
+        if (keyAffinitySelector != null) {
+            return keyAffinitySelector.selectDataSource(topology, keys.next());
+        }
+        final LoadBalancingPolicy policyForThisQuery = sharedPolicy != null ? sharedPolicy : getKeyedPolicy(keys
+                .next());
+        return policyForThisQuery.selectDataSource(topology);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public DataSource selectDataSource1Thread(final Keys keys) {
+        return select(keys);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public DataSource selectDataSource4Threads(final Keys keys) {
+        return select(keys);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public DataSource selectDataSource16Threads(final Keys keys) {
+        return select(keys);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public DataSource selectDataSource64Threads(final Keys keys) {
+        return select(keys);
+    }
+
+    /**
+     * IMSIs for the keyed policies, created up front so that building the key isn't part of the measurement
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+
+        private final String[] imsis = new String[NUMBER_OF_KEYS];
+
+        private int index;
+
+        @Setup
+        public void setUp() {
+            for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+                imsis[i] = String.valueOf(240010000000000L + i * 7919L);
+            }
+        }
+
+        String next() {
+            index = (index + 1) & (NUMBER_OF_KEYS - 1);
+            return imsis[index];
+        }
+    }
+}
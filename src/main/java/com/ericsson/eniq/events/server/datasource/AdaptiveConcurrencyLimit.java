@@ -0,0 +1,221 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit on the number of connections in use from one data source at once (AIMD)
+ *
+ * The limit starts at the pool's MaxPoolSize, and is adjusted as each connection is closed, using the time it was
+ * held (ie the query time) as the signal:
+ * - if the query took longer than the latency tolerance times the baseline (a slow moving average of query times),
+ * or the connection couldn't be got at all, IQ is taken to be queueing, and the limit is cut by the backoff ratio.
+ * After a cut, further slow queries are ignored for one limit's worth of queries, so one burst only cuts once
+ * - otherwise, if at least half the limit was in use, the limit grows by 1/limit - ie by about one per limit's worth
+ * of queries
+ * The limit stays between the minimum limit and MaxPoolSize
+ *
+ * Requests over the limit wait here, in the application, for up to the queue timeout, rather than queueing in IQ
+ *
+ * Releasing a place is lock free - the limit is moved with a compare and set, and the lock is only taken to wake
+ * requests waiting for a place, when there are any
+ *
+ * @author eemecoy
+ *
+ */
+public final class AdaptiveConcurrencyLimit {
+
+    static final int DEFAULT_MINIMUM_LIMIT = 1;
+
+    static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+    static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+
+    static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * smoothing factor for the baseline query time - slow, so that the baseline reflects the normal query mix
+     */
+    static final double BASELINE_SMOOTHING_FACTOR = 0.01;
+
+    private final int minimumLimit;
+
+    private final int maximumLimit;
+
+    private final double backoffRatio;
+
+    private final double latencyTolerance;
+
+    private final long queueTimeoutNanos;
+
+    private final ExponentiallyWeightedMovingAverage baselineLatency = new ExponentiallyWeightedMovingAverage(
+            BASELINE_SMOOTHING_FACTOR);
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition capacityFreed = lock.newCondition();
+
+    private final AtomicReference<LimitState> state;
+
+    /**
+     * @param maximumLimit upper bound on the limit, and its starting value - the pool's MaxPoolSize
+     * @param minimumLimit lower bound on the limit
+     * @param backoffRatio the limit is multiplied by this (between 0 and 1) when IQ is found to be queueing
+     * @param latencyTolerance query times above this multiple of the baseline count as queueing
+     * @param queueTimeoutMillis how long a request over the limit waits for a connection to be closed
+     */
+    public AdaptiveConcurrencyLimit(final int maximumLimit, final int minimumLimit, final double backoffRatio,
+            final double latencyTolerance, final long queueTimeoutMillis) {
+        this.maximumLimit = Math.max(maximumLimit, 1);
+        this.minimumLimit = Math.min(Math.max(minimumLimit, 1), this.maximumLimit);
+        this.backoffRatio = Math.min(Math.max(backoffRatio, 0), 1);
+        this.latencyTolerance = Math.max(latencyTolerance, 1);
+        queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(queueTimeoutMillis, 0));
+        state = new AtomicReference<LimitState>(new LimitState(this.maximumLimit, 0));
+    }
+
+    /**
+     * Take a place under the limit, waiting up to the queue timeout if the limit has been reached
+     * @return true if a place was taken - it must be given back with onRelease()
+     * @throws InterruptedException
+     */
+    public boolean tryAcquire() throws InterruptedException {
+        if (tryAcquireWithoutWaiting()) {
+            return true;
+        }
+        long remainingNanos = queueTimeoutNanos;
+        if (remainingNanos <= 0) {
+            return false;
+        }
+        lock.lockInterruptibly();
+        waiting.incrementAndGet();
+        try {
+            while (!tryAcquireWithoutWaiting()) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = capacityFreed.awaitNanos(remainingNanos);
+            }
+            return true;
+        } finally {
+            waiting.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    private boolean tryAcquireWithoutWaiting() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= getLimit()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a place taken by tryAcquire(), and adjust the limit
+     * @param latencyNanos time the connection was held for
+     * @param dropped true if the connection couldn't be got - always counts as queueing
+     */
+    public void onRelease(final long latencyNanos, final boolean dropped) {
+        final int inFlightBeforeRelease = inFlight.getAndDecrement();
+        final double baseline = baselineLatency.getAverage();
+        final boolean queueing = dropped || baseline > 0 && latencyNanos > baseline * latencyTolerance;
+        while (true) {
+            final LimitState currentState = state.get();
+            if (state.compareAndSet(currentState, currentState.next(queueing, inFlightBeforeRelease))) {
+                break;
+            }
+        }
+        if (!dropped) {
+            baselineLatency.update(latencyNanos);
+        }
+        signalWaiting();
+    }
+
+    /**
+     * Give back a place taken by tryAcquire() without using it (eg the circuit breaker turned the request down) - the
+     * limit isn't adjusted, as no query was run
+     */
+    public void cancel() {
+        inFlight.decrementAndGet();
+        signalWaiting();
+    }
+
+    /**
+     * Wake any requests waiting for a place - a waiter counts itself in before its last check for a place, so if
+     * none is counted here, any that arrives will see the place just freed
+     */
+    private void signalWaiting() {
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                capacityFreed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the current limit, rounded down
+     */
+    public int getLimit() {
+        return (int) state.get().limit;
+    }
+
+    /**
+     * @return the number of places currently taken
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * The limit, and the number of samples left before a slow query can cut it again - replaced as a whole, so that
+     * the two are always moved together
+     */
+    private final class LimitState {
+
+        final double limit;
+
+        final int samplesUntilNextDecrease;
+
+        LimitState(final double limit, final int samplesUntilNextDecrease) {
+            this.limit = limit;
+            this.samplesUntilNextDecrease = samplesUntilNextDecrease;
+        }
+
+        LimitState next(final boolean queueing, final int inFlightBeforeRelease) {
+            double nextLimit = limit;
+            int nextSamplesUntilNextDecrease = samplesUntilNextDecrease;
+            if (queueing) {
+                if (nextSamplesUntilNextDecrease <= 0) {
+                    nextLimit = Math.max(limit * backoffRatio, minimumLimit);
+                    nextSamplesUntilNextDecrease = (int) Math.ceil(nextLimit);
+                }
+            } else if (inFlightBeforeRelease * 2 >= limit) {
+                nextLimit = Math.min(limit + 1 / limit, maximumLimit);
+            }
+            if (nextSamplesUntilNextDecrease > 0) {
+                nextSamplesUntilNextDecrease--;
+            }
+            return new LimitState(nextLimit, nextSamplesUntilNextDecrease);
+        }
+    }
+}
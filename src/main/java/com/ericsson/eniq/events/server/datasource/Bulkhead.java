@@ -0,0 +1,156 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of connections held at once by each class of query
+ *
+ * A query takes a permit for its class before asking for a connection, and gives it back when the connection is
+ * closed. If no permit is free, the query waits for up to ENIQ_EVENTS_DATA_SOURCE_BULKHEAD_QUEUE_TIMEOUT_MILLIS
+ * (by default it doesn't wait at all) and is then rejected. Waiting queries get permits in the order they asked
+ *
+ * The limits are read when the bulkhead is created, and again whenever it's resized - see QueryClass for the limit
+ * properties. Resizing keeps the permits held: a lowered limit takes effect as queries over it give their permits
+ * back, and a class whose limit is removed stops taking permits at once
+ *
+ * @author eemecoy
+ *
+ */
+final class Bulkhead {
+
+    static final String QUEUE_TIMEOUT_MILLIS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_BULKHEAD_QUEUE_TIMEOUT_MILLIS";
+
+    static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 0;
+
+    private final Map<QueryClass, Compartment> permits = new EnumMap<QueryClass, Compartment>(QueryClass.class);
+
+    private volatile long queueTimeoutNanos;
+
+    /**
+     * @param properties ENIQ Events properties holding the limits
+     */
+    Bulkhead(final Properties properties) {
+        for (final QueryClass queryClass : QueryClass.values()) {
+            permits.put(queryClass, new Compartment());
+        }
+        resize(properties);
+    }
+
+    /**
+     * Apply the limits and queue timeout in these properties
+     * @param properties ENIQ Events properties holding the limits
+     */
+    synchronized void resize(final Properties properties) {
+        for (final QueryClass queryClass : QueryClass.values()) {
+            permits.get(queryClass).resize(
+                    DataSourceProperties.getInt(properties, queryClass.getLimitPropertyName(), 0));
+        }
+        queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(DataSourceProperties.getLong(properties,
+                QUEUE_TIMEOUT_MILLIS_PROPERTY_NAME, DEFAULT_QUEUE_TIMEOUT_MILLIS), 0));
+    }
+
+    /**
+     * Take a permit for this class of query
+     * @param queryClass
+     * @return the permit, to be run when the connection is closed - or null if the class has no limit
+     * @throws SQLException if no permit became free within the queue timeout
+     */
+    Runnable acquire(final QueryClass queryClass) throws SQLException {
+        final Compartment semaphore = permits.get(queryClass);
+        if (!semaphore.limited) {
+            return null;
+        }
+        final long queueTimeoutNanos = this.queueTimeoutNanos;
+        final boolean acquired;
+        try {
+            acquired = queueTimeoutNanos == 0 ? semaphore.tryAcquire() : semaphore.tryAcquire(queueTimeoutNanos,
+                    TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting to run a " + queryClass + " query", e);
+        }
+        if (!acquired) {
+            throw new SQLException("Too many " + queryClass + " queries running, query rejected");
+        }
+        return new Permit(semaphore);
+    }
+
+    /**
+     * @param queryClass
+     * @return number of permits free for this class, or -1 if the class has no limit
+     */
+    int getAvailablePermits(final QueryClass queryClass) {
+        final Compartment semaphore = permits.get(queryClass);
+        return semaphore.limited ? Math.max(semaphore.availablePermits(), 0) : -1;
+    }
+
+    /**
+     * The permits for one class of query
+     * 
+     * The semaphore always holds the last limit set, less the permits held - removing the limit only stops
+     * queries taking permits, so those still held can be given back, and a limit set later starts from the right
+     * count. A lowered limit takes the difference away at once, so the count may go negative until enough permits
+     * are given back
+     */
+    private static final class Compartment extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * guarded by the Bulkhead
+         */
+        private int limit;
+
+        private volatile boolean limited;
+
+        Compartment() {
+            super(0, true);
+        }
+
+        void resize(final int newLimit) {
+            if (newLimit <= 0) {
+                limited = false;
+                return;
+            }
+            if (newLimit > limit) {
+                release(newLimit - limit);
+            } else if (newLimit < limit) {
+                reducePermits(limit - newLimit);
+            }
+            limit = newLimit;
+            limited = true;
+        }
+    }
+
+    /**
+     * Gives the permit back to its semaphore - only the first run has any effect
+     */
+    private static final class Permit implements Runnable {
+
+        private final Semaphore semaphore;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        Permit(final Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void run() {
+            if (released.compareAndSet(false, true)) {
+                semaphore.release();
+            }
+        }
+    }
+}
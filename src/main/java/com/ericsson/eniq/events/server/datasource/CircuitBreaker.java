@@ -0,0 +1,238 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker around getting connections from one data source
+ *
+ * CLOSED - connections are requested as normal, and the outcome of each request is counted. A request fails if it
+ * throws an exception, or takes longer than the slow call threshold (ie the pool is timing out). Outcomes are counted
+ * in windows of a fixed number of requests - if the failures in a window reach the failure rate threshold, the
+ * breaker trips to OPEN
+ * OPEN - requests fail fast without touching the pool, and the data source isn't offered to the load balancing
+ * policies. Once the open duration has passed, the next request is let through as a trial
+ * HALF_OPEN - the trial request is in progress, the data source isn't offered to the load balancing policies, and all
+ * other requests fail fast. If the trial succeeds, the breaker closes, otherwise it opens again for another open
+ * duration
+ *
+ * Each change of state starts a new generation. tryAcquirePermission() returns the generation the request runs in,
+ * and the request reports its outcome with it - outcomes from an earlier generation are ignored, so a request that
+ * started before the breaker tripped can't push the open window back or close the breaker in the middle of a trial.
+ * A request that gives up without an outcome (eg it couldn't get under the concurrency limit) must give its
+ * permission back with releasePermission(), so that a trial isn't left HALF_OPEN for good
+ *
+ * @author eemecoy
+ *
+ */
+public class CircuitBreaker {
+
+    /**
+     * States of the circuit breaker
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * returned by tryAcquirePermission() when the request should fail fast
+     */
+    public static final long NOT_PERMITTED = -1;
+
+    static final int DEFAULT_WINDOW_SIZE = 20;
+
+    static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+
+    static final long DEFAULT_SLOW_CALL_THRESHOLD_MILLIS = 10000;
+
+    static final long DEFAULT_OPEN_DURATION_MILLIS = 30000;
+
+    private final int windowSize;
+
+    private final int failuresToTrip;
+
+    private final long slowCallThresholdNanos;
+
+    private final long openDurationNanos;
+
+    /**
+     * replaced (never changed) on each change of state, so the state, generation and open time are read and
+     * changed together
+     */
+    private final AtomicReference<Phase> phase = new AtomicReference<Phase>(new Phase(State.CLOSED, 0, 0));
+
+    private final AtomicInteger callsInWindow = new AtomicInteger(0);
+
+    private final AtomicInteger failuresInWindow = new AtomicInteger(0);
+
+    /**
+     * Create a circuit breaker with the default settings
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_SLOW_CALL_THRESHOLD_MILLIS,
+                DEFAULT_OPEN_DURATION_MILLIS);
+    }
+
+    /**
+     * @param windowSize number of requests over which the failure rate is measured
+     * @param failureRateThreshold share of failed requests in a window (between 0 and 1) that trips the breaker
+     * @param slowCallThresholdMillis a request that takes longer than this to get a connection counts as a failure
+     * @param openDurationMillis how long the breaker stays open before letting a trial request through
+     */
+    public CircuitBreaker(final int windowSize, final double failureRateThreshold,
+            final long slowCallThresholdMillis, final long openDurationMillis) {
+        this.windowSize = Math.max(windowSize, 1);
+        failuresToTrip = Math.max((int) Math.ceil(this.windowSize * failureRateThreshold), 1);
+        slowCallThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowCallThresholdMillis);
+        openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+    }
+
+    /**
+     * Check if a request may go ahead - if the breaker is open and the open duration has passed,
+     * this moves the breaker to HALF_OPEN and lets this one request through as the trial
+     * @return the generation to report the outcome with, or NOT_PERMITTED if the request should fail fast
+     */
+    public long tryAcquirePermission() {
+        final Phase currentPhase = phase.get();
+        if (currentPhase.state == State.CLOSED) {
+            return currentPhase.generation;
+        }
+        if (currentPhase.state == State.OPEN && openDurationHasPassed(currentPhase)) {
+            final Phase trial = currentPhase.next(State.HALF_OPEN, currentPhase.openedAtNanos);
+            if (phase.compareAndSet(currentPhase, trial)) {
+                return trial.generation;
+            }
+        }
+        return NOT_PERMITTED;
+    }
+
+    /**
+     * Check, without changing state, if a request would be let through - used to keep data sources with an
+     * open breaker, or with a trial in progress, out of load balancing
+     * @return
+     */
+    public boolean isCallPermitted() {
+        final Phase currentPhase = phase.get();
+        return currentPhase.state == State.CLOSED || currentPhase.state == State.OPEN
+                && openDurationHasPassed(currentPhase);
+    }
+
+    /**
+     * Record a request that got a connection
+     * @param generation returned by tryAcquirePermission() for the request
+     * @param durationNanos time taken to get the connection
+     */
+    public void onSuccess(final long generation, final long durationNanos) {
+        if (durationNanos > slowCallThresholdNanos) {
+            onFailure(generation);
+            return;
+        }
+        final Phase currentPhase = phase.get();
+        if (currentPhase.generation != generation) {
+            return;
+        }
+        if (currentPhase.state == State.HALF_OPEN) {
+            if (phase.compareAndSet(currentPhase, currentPhase.next(State.CLOSED, 0))) {
+                resetWindow();
+            }
+            return;
+        }
+        if (callsInWindow.incrementAndGet() >= windowSize) {
+            resetWindow();
+        }
+    }
+
+    /**
+     * Record a request that failed to get a connection
+     * @param generation returned by tryAcquirePermission() for the request
+     */
+    public void onFailure(final long generation) {
+        final Phase currentPhase = phase.get();
+        if (currentPhase.generation != generation) {
+            return;
+        }
+        if (currentPhase.state == State.HALF_OPEN) {
+            trip(currentPhase);
+            return;
+        }
+        final int failures = failuresInWindow.incrementAndGet();
+        final int calls = callsInWindow.incrementAndGet();
+        if (failures >= failuresToTrip) {
+            trip(currentPhase);
+        } else if (calls >= windowSize) {
+            resetWindow();
+        }
+    }
+
+    /**
+     * Give back a permission for a request that gave up before asking for a connection - if it was the trial, the
+     * breaker goes back to OPEN with the open duration already passed, so the next request becomes the trial
+     * @param generation returned by tryAcquirePermission() for the request
+     */
+    public void releasePermission(final long generation) {
+        final Phase currentPhase = phase.get();
+        if (currentPhase.generation == generation && currentPhase.state == State.HALF_OPEN) {
+            phase.compareAndSet(currentPhase, currentPhase.next(State.OPEN, currentPhase.openedAtNanos));
+        }
+    }
+
+    /**
+     * @return the current state
+     */
+    public State getState() {
+        return phase.get().state;
+    }
+
+    /**
+     * the open time is only set by the request that actually trips the breaker
+     */
+    private void trip(final Phase expectedPhase) {
+        if (phase.compareAndSet(expectedPhase, expectedPhase.next(State.OPEN, currentTimeNanos()))) {
+            resetWindow();
+        }
+    }
+
+    private void resetWindow() {
+        callsInWindow.set(0);
+        failuresInWindow.set(0);
+    }
+
+    private boolean openDurationHasPassed(final Phase currentPhase) {
+        return currentTimeNanos() - currentPhase.openedAtNanos >= openDurationNanos;
+    }
+
+    /**
+     * overridden in unit tests
+     */
+    long currentTimeNanos() {
+        return System.nanoTime();
+    }
+
+    /**
+     * One state of the breaker, from a change of state to the next
+     */
+    private static final class Phase {
+
+        private final State state;
+
+        private final long generation;
+
+        private final long openedAtNanos;
+
+        private Phase(final State state, final long generation, final long openedAtNanos) {
+            this.state = state;
+            this.generation = generation;
+            this.openedAtNanos = openedAtNanos;
+        }
+
+        private Phase next(final State nextState, final long nextOpenedAtNanos) {
+            return new Phase(nextState, generation + 1, nextOpenedAtNanos);
+        }
+    }
+}
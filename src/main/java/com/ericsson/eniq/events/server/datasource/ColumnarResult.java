@@ -0,0 +1,565 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Immutable copy of a result set, held column by column for the query result cache
+ *
+ * Integer, BIGINT and floating point columns are held in primitive arrays (with a bit set marking the nulls), and all
+ * other columns as arrays of the objects read with getObject() - so a KPI or ranking result of a few thousand rows of
+ * counters takes a fraction of the memory of a row of boxed values per row
+ *
+ * createResultSet() gives a read only, forward only, ResultSet over the copy - each call gives an independent cursor,
+ * so the same cached result can be read by any number of callers at once. The getters convert the values held as a
+ * JDBC driver would, eg getDate() on a TIMESTAMP column or getInt() on a numeric VARCHAR (see Cursor.convert())
+ *
+ * @author eemecoy
+ *
+ */
+final class ColumnarResult {
+
+    private static final Class<?>[] RESULT_SET_INTERFACES = new Class<?>[] { ResultSet.class };
+
+    private static final Class<?>[] META_DATA_INTERFACES = new Class<?>[] { ResultSetMetaData.class };
+
+    private static final int INITIAL_ROWS = 16;
+
+    private static final int OBJECT_OVERHEAD_BYTES = 16;
+
+    private static final int REFERENCE_BYTES = 8;
+
+    private final String[] columnLabels;
+
+    private final int[] columnTypes;
+
+    private final Object[] columns;
+
+    private final BitSet[] nulls;
+
+    private final int rowCount;
+
+    private final long sizeInBytes;
+
+    private ColumnarResult(final String[] columnLabels, final int[] columnTypes, final Object[] columns,
+            final BitSet[] nulls, final int rowCount, final long sizeInBytes) {
+        this.columnLabels = columnLabels;
+        this.columnTypes = columnTypes;
+        this.columns = columns;
+        this.nulls = nulls;
+        this.rowCount = rowCount;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Read the rest of the result set into a columnar copy - the result set isn't closed
+     * @param resultSet
+     * @return
+     * @throws SQLException
+     */
+    static ColumnarResult copyOf(final ResultSet resultSet) throws SQLException {
+        final Copier copier = new Copier(resultSet);
+        copier.copyRows(Long.MAX_VALUE);
+        return copier.getResult();
+    }
+
+    /**
+     * @return a new read only cursor over the rows, positioned before the first row
+     */
+    ResultSet createResultSet() {
+        return createResultSet(null);
+    }
+
+    /**
+     * Get a cursor over the rows of a copy that was given up part way through (see Copier), followed by the rows
+     * left in the result set being copied - closing the cursor doesn't close the result set
+     * @param remainder the result set being copied, or null
+     * @return a new read only cursor, positioned before the first row
+     */
+    ResultSet createResultSet(final ResultSet remainder) {
+        return (ResultSet) Proxy.newProxyInstance(ColumnarResult.class.getClassLoader(), RESULT_SET_INTERFACES,
+                new Cursor(remainder));
+    }
+
+    /**
+     * Read the copy with an extractor, through a cursor of its own
+     * @param extractor
+     * @return the result read by the extractor
+     * @throws SQLException
+     */
+    <T> T read(final ResultSetExtractor<T> extractor) throws SQLException {
+        final ResultSet resultSet = createResultSet();
+        try {
+            return extractor.extractData(resultSet);
+        } finally {
+            resultSet.close();
+        }
+    }
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return estimate of the memory held by the copy
+     */
+    long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    private static Object createColumn(final int columnType, final int rows) {
+        switch (columnType) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+            return new int[rows];
+        case Types.BIGINT:
+            return new long[rows];
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+            return new double[rows];
+        default:
+            return new Object[rows];
+        }
+    }
+
+    private static Object ensureCapacity(final Object column, final int rows) {
+        if (column instanceof int[]) {
+            final int[] values = (int[]) column;
+            return values.length >= rows ? values : Arrays.copyOf(values, values.length * 2);
+        }
+        if (column instanceof long[]) {
+            final long[] values = (long[]) column;
+            return values.length >= rows ? values : Arrays.copyOf(values, values.length * 2);
+        }
+        if (column instanceof double[]) {
+            final double[] values = (double[]) column;
+            return values.length >= rows ? values : Arrays.copyOf(values, values.length * 2);
+        }
+        final Object[] values = (Object[]) column;
+        return values.length >= rows ? values : Arrays.copyOf(values, values.length * 2);
+    }
+
+    private static Object trim(final Object column, final int rows) {
+        if (column instanceof int[]) {
+            return Arrays.copyOf((int[]) column, rows);
+        }
+        if (column instanceof long[]) {
+            return Arrays.copyOf((long[]) column, rows);
+        }
+        if (column instanceof double[]) {
+            return Arrays.copyOf((double[]) column, rows);
+        }
+        return Arrays.copyOf((Object[]) column, rows);
+    }
+
+    /**
+     * Read one value into its column
+     * @return estimated bytes held by the value beyond its slot in the column array
+     */
+    private static long readValue(final ResultSet resultSet, final int columnIndex, final Object column,
+            final BitSet nulls, final int row) throws SQLException {
+        if (column instanceof int[]) {
+            ((int[]) column)[row] = resultSet.getInt(columnIndex);
+        } else if (column instanceof long[]) {
+            ((long[]) column)[row] = resultSet.getLong(columnIndex);
+        } else if (column instanceof double[]) {
+            ((double[]) column)[row] = resultSet.getDouble(columnIndex);
+        } else {
+            final Object value = resultSet.getObject(columnIndex);
+            ((Object[]) column)[row] = value;
+            if (value == null) {
+                nulls.set(row);
+                return 0;
+            }
+            return value instanceof String ? estimateStringBytes((String) value) : OBJECT_OVERHEAD_BYTES
+                    + REFERENCE_BYTES;
+        }
+        if (resultSet.wasNull()) {
+            nulls.set(row);
+        }
+        return 0;
+    }
+
+    private static long estimateArrayBytes(final Object column, final int rows) {
+        if (column instanceof int[]) {
+            return OBJECT_OVERHEAD_BYTES + (long) rows * 4;
+        }
+        return OBJECT_OVERHEAD_BYTES + (long) rows * 8;
+    }
+
+    private static long estimateStringBytes(final String value) {
+        return value == null ? 0 : 2 * OBJECT_OVERHEAD_BYTES + 2L * value.length();
+    }
+
+    /**
+     * Copies a result set a row at a time, so that a copy that is getting too big can be given up part way through
+     * and the rest of the rows read straight from the result set instead (see createResultSet(ResultSet))
+     */
+    static final class Copier {
+
+        private final ResultSet resultSet;
+
+        private final String[] columnLabels;
+
+        private final int[] columnTypes;
+
+        private final Object[] columns;
+
+        private final BitSet[] nulls;
+
+        private int rowCount;
+
+        private long objectBytes;
+
+        private boolean complete;
+
+        /**
+         * @param resultSet result set to copy - it isn't closed
+         * @throws SQLException
+         */
+        Copier(final ResultSet resultSet) throws SQLException {
+            this.resultSet = resultSet;
+            final ResultSetMetaData metaData = resultSet.getMetaData();
+            final int columnCount = metaData.getColumnCount();
+            columnLabels = new String[columnCount];
+            columnTypes = new int[columnCount];
+            columns = new Object[columnCount];
+            nulls = new BitSet[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columnLabels[i] = metaData.getColumnLabel(i + 1);
+                columnTypes[i] = metaData.getColumnType(i + 1);
+                columns[i] = createColumn(columnTypes[i], INITIAL_ROWS);
+                nulls[i] = new BitSet();
+            }
+        }
+
+        /**
+         * Copy rows until the result set is used up, or the estimated size of the copy is over maximumBytes
+         * @param maximumBytes
+         * @return true if the result set has been copied to the end
+         * @throws SQLException
+         */
+        boolean copyRows(final long maximumBytes) throws SQLException {
+            while (!complete && getSizeInBytes() <= maximumBytes) {
+                if (!resultSet.next()) {
+                    complete = true;
+                    break;
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = ensureCapacity(columns[i], rowCount + 1);
+                    objectBytes += readValue(resultSet, i + 1, columns[i], nulls[i], rowCount);
+                }
+                rowCount++;
+            }
+            return complete;
+        }
+
+        /**
+         * @return the rows copied so far - the copier mustn't be used after this
+         */
+        ColumnarResult getResult() {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = trim(columns[i], rowCount);
+            }
+            return new ColumnarResult(columnLabels, columnTypes, columns, nulls, rowCount, getSizeInBytes());
+        }
+
+        long getSizeInBytes() {
+            long sizeInBytes = OBJECT_OVERHEAD_BYTES + objectBytes;
+            for (int i = 0; i < columns.length; i++) {
+                sizeInBytes += estimateArrayBytes(columns[i], rowCount) + rowCount / Byte.SIZE
+                        + estimateStringBytes(columnLabels[i]);
+            }
+            return sizeInBytes;
+        }
+    }
+
+    /**
+     * A read only, forward only, cursor over the rows
+     */
+    private final class Cursor implements InvocationHandler {
+
+        private final ResultSet remainder;
+
+        private boolean onRemainder;
+
+        private int row = -1;
+
+        private boolean lastValueWasNull;
+
+        private boolean closed;
+
+        Cursor(final ResultSet remainder) {
+            this.remainder = remainder;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+         */
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final String methodName = method.getName();
+            if ("equals".equals(methodName) && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(methodName) && args == null) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(methodName) && args == null) {
+                return "Cached result of " + rowCount + " rows";
+            }
+            if ("close".equals(methodName)) {
+                closed = true;
+                return null;
+            }
+            if ("isClosed".equals(methodName)) {
+                return closed;
+            }
+            if (closed) {
+                throw new SQLException("Result set is closed");
+            }
+            if ("next".equals(methodName)) {
+                return next();
+            }
+            if (onRemainder && ("wasNull".equals(methodName) || "getRow".equals(methodName)
+                    || methodName.startsWith("get") && args != null && args.length == 1)) {
+                try {
+                    return method.invoke(remainder, args);
+                } catch (final InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+            if ("wasNull".equals(methodName)) {
+                return lastValueWasNull;
+            }
+            if ("getRow".equals(methodName)) {
+                return row >= 0 && row < rowCount ? row + 1 : 0;
+            }
+            if ("getMetaData".equals(methodName)) {
+                return Proxy.newProxyInstance(ColumnarResult.class.getClassLoader(), META_DATA_INTERFACES,
+                        new MetaData());
+            }
+            if ("findColumn".equals(methodName)) {
+                return findColumn((String) args[0]) + 1;
+            }
+            if ("getType".equals(methodName)) {
+                return ResultSet.TYPE_FORWARD_ONLY;
+            }
+            if ("getConcurrency".equals(methodName)) {
+                return ResultSet.CONCUR_READ_ONLY;
+            }
+            if ("getWarnings".equals(methodName)) {
+                return null;
+            }
+            if ("clearWarnings".equals(methodName)) {
+                return null;
+            }
+            if (methodName.startsWith("get") && args != null && args.length == 1) {
+                final int columnIndex = args[0] instanceof String ? findColumn((String) args[0])
+                        : (Integer) args[0] - 1;
+                return convert(getValue(columnIndex), method.getReturnType());
+            }
+            throw new SQLFeatureNotSupportedException(methodName + " is not supported on a cached result");
+        }
+
+        private boolean next() throws SQLException {
+            if (onRemainder) {
+                return remainder.next();
+            }
+            if (row < rowCount) {
+                row++;
+            }
+            if (row < rowCount) {
+                return true;
+            }
+            if (remainder == null) {
+                return false;
+            }
+            onRemainder = true;
+            return remainder.next();
+        }
+
+        private Object getValue(final int columnIndex) throws SQLException {
+            if (row < 0 || row >= rowCount) {
+                throw new SQLException("The cursor is not on a row");
+            }
+            if (columnIndex < 0 || columnIndex >= columns.length) {
+                throw new SQLException("Invalid column index " + (columnIndex + 1));
+            }
+            lastValueWasNull = nulls[columnIndex].get(row);
+            if (lastValueWasNull) {
+                return null;
+            }
+            final Object column = columns[columnIndex];
+            if (column instanceof int[]) {
+                return ((int[]) column)[row];
+            }
+            if (column instanceof long[]) {
+                return ((long[]) column)[row];
+            }
+            if (column instanceof double[]) {
+                return ((double[]) column)[row];
+            }
+            return ((Object[]) column)[row];
+        }
+
+        private int findColumn(final String columnLabel) throws SQLException {
+            for (int i = 0; i < columnLabels.length; i++) {
+                if (columnLabels[i].equalsIgnoreCase(columnLabel)) {
+                    return i;
+                }
+            }
+            throw new SQLException("No column " + columnLabel + " in the cached result");
+        }
+
+        /**
+         * Convert a value to the type of the getter that read it, with the conversions a JDBC driver makes for
+         * the getters in common use - any value as a String, numbers and numeric strings as numbers, and dates,
+         * times and timestamps (or their JDBC escape strings) as each other
+         */
+        private Object convert(final Object value, final Class<?> type) throws SQLException {
+            if (type == Object.class) {
+                return value;
+            }
+            if (type.isPrimitive()) {
+                return convertToPrimitive(value, type);
+            }
+            if (value == null || type.isInstance(value)) {
+                return value;
+            }
+            if (type == String.class) {
+                return value.toString();
+            }
+            try {
+                if (type == BigDecimal.class && (value instanceof Number || value instanceof String)) {
+                    return new BigDecimal(value.toString().trim());
+                }
+                if (value instanceof java.util.Date) {
+                    return convertDate(new Timestamp(((java.util.Date) value).getTime()), type);
+                }
+                if (value instanceof String && type == Date.class) {
+                    return Date.valueOf(((String) value).trim());
+                }
+                if (value instanceof String && type == Time.class) {
+                    return Time.valueOf(((String) value).trim());
+                }
+                if (value instanceof String && type == Timestamp.class) {
+                    return Timestamp.valueOf(((String) value).trim());
+                }
+            } catch (final IllegalArgumentException e) {
+                // NumberFormatException, or not in the JDBC escape format
+                throw new SQLException("Cannot read " + value + " as " + type.getName(), e);
+            }
+            throw new SQLException("Cannot read a " + value.getClass().getName() + " value as " + type.getName());
+        }
+
+        private Object convertDate(final Timestamp timestamp, final Class<?> type) throws SQLException {
+            if (type == Date.class) {
+                return Date.valueOf(timestamp.toLocalDateTime().toLocalDate());
+            }
+            if (type == Time.class) {
+                return Time.valueOf(timestamp.toLocalDateTime().toLocalTime());
+            }
+            if (type == Timestamp.class) {
+                return timestamp;
+            }
+            throw new SQLException("Cannot read a date or time as " + type.getName());
+        }
+
+        private Object convertToPrimitive(final Object value, final Class<?> type) throws SQLException {
+            if (type == boolean.class) {
+                if (value instanceof Boolean) {
+                    return value;
+                }
+                if (value instanceof String) {
+                    final String trimmed = ((String) value).trim();
+                    return "1".equals(trimmed) || Boolean.parseBoolean(trimmed);
+                }
+                return value instanceof Number && ((Number) value).intValue() != 0;
+            }
+            Number number;
+            if (value == null) {
+                number = 0;
+            } else if (value instanceof Number) {
+                number = (Number) value;
+            } else if (value instanceof Boolean) {
+                number = (Boolean) value ? 1 : 0;
+            } else {
+                try {
+                    number = new BigDecimal(value.toString().trim());
+                } catch (final NumberFormatException e) {
+                    throw new SQLException("Cannot read " + value + " as " + type.getName(), e);
+                }
+            }
+            if (type == int.class) {
+                return number.intValue();
+            }
+            if (type == long.class) {
+                return number.longValue();
+            }
+            if (type == double.class) {
+                return number.doubleValue();
+            }
+            if (type == float.class) {
+                return number.floatValue();
+            }
+            if (type == short.class) {
+                return number.shortValue();
+            }
+            if (type == byte.class) {
+                return number.byteValue();
+            }
+            throw new SQLException("Cannot read a value as " + type.getName());
+        }
+    }
+
+    /**
+     * Column labels and types of the cached result
+     */
+    private final class MetaData implements InvocationHandler {
+
+        /* (non-Javadoc)
+         * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+         */
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final String methodName = method.getName();
+            if ("equals".equals(methodName) && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(methodName) && args == null) {
+                return System.identityHashCode(proxy);
+            }
+            if ("getColumnCount".equals(methodName)) {
+                return columnLabels.length;
+            }
+            if ("getColumnLabel".equals(methodName) || "getColumnName".equals(methodName)) {
+                return columnLabels[(Integer) args[0] - 1];
+            }
+            if ("getColumnType".equals(methodName)) {
+                return columnTypes[(Integer) args[0] - 1];
+            }
+            throw new SQLFeatureNotSupportedException(methodName + " is not supported on a cached result");
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tracks a connection handed out by an EniqDataSourceImpl until the caller closes it
+ *
+ * The connection returned to the caller is a proxy on the pooled connection - all calls are passed through
+ * to the pooled connection, and the first call to close() returns the lease to the owning data source
+ *
+ * A release action can also be attached to the lease, to be run when the connection is closed - the
+ * DataSourceManager uses this to give back bulkhead permits
+ *
+ * The owning data source keeps its open leases, so that leases held for too long can be reported as possible leaks
+ * (see DataSourceHealthMonitor). Each lease records the thread that took it, and a sample of leases also record
+ * the call site - filling in a stack trace costs microseconds, which isn't worth paying on every lease. A connection
+ * taken on one thread for another (eg a hedged request) is handed over, to record the thread that will use it
+ *
+ * @author eemecoy
+ *
+ */
+final class ConnectionLease implements InvocationHandler {
+
+    private static final Class<?>[] PROXIED_INTERFACES = new Class<?>[] { Connection.class };
+
+    private final Connection connection;
+
+    private final EniqDataSourceImpl owner;
+
+    private final long leasedAtNanos;
+
+    private volatile String threadName;
+
+    /**
+     * where the connection was leased from, or null if the call site wasn't sampled
+     */
+    private volatile Throwable callSite;
+
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private final AtomicBoolean reportedAsLeak = new AtomicBoolean(false);
+
+    private volatile Runnable releaseAction;
+
+    private ConnectionLease(final Connection connection, final EniqDataSourceImpl owner, final boolean recordCallSite) {
+        this.connection = connection;
+        this.owner = owner;
+        leasedAtNanos = System.nanoTime();
+        threadName = Thread.currentThread().getName();
+        callSite = recordCallSite ? new Throwable("Connection leased by thread " + threadName) : null;
+    }
+
+    /**
+     * Wrap the pooled connection in a proxy which returns the lease to the owning data source on close()
+     *
+     * @param connection pooled connection
+     * @param owner data source the connection was leased from
+     * @param recordCallSite true to record the stack trace of the caller
+     * @return the lease - getConnection() is the connection to hand out to the caller
+     */
+    static ConnectionLease lease(final Connection connection, final EniqDataSourceImpl owner,
+            final boolean recordCallSite) {
+        return new ConnectionLease(connection, owner, recordCallSite);
+    }
+
+    /**
+     * @return connection to hand out to the caller
+     */
+    Connection getConnection() {
+        return (Connection) Proxy.newProxyInstance(ConnectionLease.class.getClassLoader(), PROXIED_INTERFACES, this);
+    }
+
+    /**
+     * Run this action when the connection is closed - replaces any action already attached
+     * If the connection isn't a leased connection (ie it's from a data source other than an EniqDataSourceImpl),
+     * it's wrapped in a lease with no owning data source, to run the action on close()
+     *
+     * @param connection connection to hand out to the caller
+     * @param action
+     * @return connection to hand out to the caller in place of the connection given
+     */
+    static Connection releaseWhenClosed(final Connection connection, final Runnable action) {
+        ConnectionLease lease = getLease(connection);
+        Connection leasedConnection = connection;
+        if (lease == null) {
+            lease = new ConnectionLease(connection, null, false);
+            leasedConnection = (Connection) Proxy.newProxyInstance(ConnectionLease.class.getClassLoader(),
+                    PROXIED_INTERFACES, lease);
+        }
+        lease.releaseAction = action;
+        return leasedConnection;
+    }
+
+    /**
+     * Record the current thread, and its call site if the lease's was sampled, as the holder of a connection leased
+     * on another thread
+     * @param connection connection handed out to the caller - nothing is recorded if it isn't a leased connection
+     */
+    static void handOverToCurrentThread(final Connection connection) {
+        final ConnectionLease lease = getLease(connection);
+        if (lease != null) {
+            lease.threadName = Thread.currentThread().getName();
+            if (lease.callSite != null) {
+                lease.callSite = new Throwable("Connection leased by thread " + lease.threadName);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        final String methodName = method.getName();
+        if ("close".equals(methodName) && args == null) {
+            try {
+                connection.close();
+            } finally {
+                release();
+            }
+            return null;
+        }
+        if ("equals".equals(methodName) && args != null && args.length == 1) {
+            return connection.equals(unwrapLease(args[0]));
+        }
+        if ("hashCode".equals(methodName) && args == null) {
+            return connection.hashCode();
+        }
+        try {
+            return method.invoke(connection, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Return the lease to the owning data source, and run the release action - only the first call has any effect
+     */
+    void release() {
+        if (released.compareAndSet(false, true)) {
+            try {
+                if (owner != null) {
+                    owner.leaseReleased(this, System.nanoTime() - leasedAtNanos);
+                }
+            } finally {
+                final Runnable action = releaseAction;
+                if (action != null) {
+                    action.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param nowNanos current System.nanoTime()
+     * @return how long the connection has been held
+     */
+    long getHeldNanos(final long nowNanos) {
+        return nowNanos - leasedAtNanos;
+    }
+
+    /**
+     * @return name of the thread that leased the connection
+     */
+    String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * @return stack trace of the caller that leased the connection, or null if it wasn't sampled
+     */
+    Throwable getCallSite() {
+        return callSite;
+    }
+
+    /**
+     * Mark the lease as reported as a possible leak
+     * @return false if it had already been reported
+     */
+    boolean reportAsLeak() {
+        return reportedAsLeak.compareAndSet(false, true);
+    }
+
+    @Override
+    public String toString() {
+        return "Connection from " + (owner == null ? "unknown data source" : owner.getPoolName()) + " held for "
+                + TimeUnit.NANOSECONDS.toSeconds(getHeldNanos(System.nanoTime())) + " seconds by thread "
+                + threadName + (callSite == null ? " (call site not sampled)" : "");
+    }
+
+    /**
+     * If the object is a leased connection, return the pooled connection behind it
+     */
+    private static Object unwrapLease(final Object object) {
+        final ConnectionLease lease = getLease(object);
+        return lease == null ? object : lease.connection;
+    }
+
+    /**
+     * @return the lease behind this object, or null if it isn't a leased connection
+     */
+    private static ConnectionLease getLease(final Object object) {
+        if (object != null && Proxy.isProxyClass(object.getClass())) {
+            final InvocationHandler handler = Proxy.getInvocationHandler(object);
+            if (handler instanceof ConnectionLease) {
+                return (ConnectionLease) handler;
+            }
+        }
+        return null;
+    }
+}
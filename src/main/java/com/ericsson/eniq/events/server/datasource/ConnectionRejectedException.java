@@ -0,0 +1,36 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Thrown when a data source turns down a request for a connection without asking its pool - its circuit breaker
+ * is open or has a trial in progress, or its concurrency limit has been reached
+ * IQ hasn't been touched, so the request can go straight to another data source
+ *
+ * @author eemecoy
+ *
+ */
+public class ConnectionRejectedException extends SQLTransientConnectionException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param reason
+     */
+    public ConnectionRejectedException(final String reason) {
+        super(reason);
+    }
+
+    /**
+     * @param reason
+     * @param cause
+     */
+    public ConnectionRejectedException(final String reason, final Throwable cause) {
+        super(reason, cause);
+    }
+}
@@ -6,9 +6,18 @@
 package com.ericsson.eniq.events.server.datasource;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.EJB;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
@@ -16,11 +25,22 @@ import javax.ejb.TransactionManagement;
 import javax.ejb.TransactionManagementType;
 import javax.sql.DataSource;
 
+import com.ericsson.eniq.events.server.common.ApplicationConfigConstants;
+import com.ericsson.eniq.events.server.datasource.loadbalancing.KeyAffinitySelector;
 import com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicy;
 
 /**
  * Database connection class for different data source
  * 
+ * The small dwhrep repository lookups (topology tables, counter and techpack metadata) that are repeated on every
+ * services request can be run through queryDwhrep(), which serves them from a read through cache with a time to
+ * live and a size bound - see ENIQ_EVENTS_DWHREP_CACHE_TTL_SECONDS and ENIQ_EVENTS_DWHREP_CACHE_MAXIMUM_SIZE
+ * Each caller names the cache namespace its results are kept in, so two extractors that read the same query
+ * differently never get each other's results
+ * 
+ * The cache settings are read from the properties the DataSourceManager's data sources were last published with, so
+ * the cache is recreated with the new settings when the data sources are reloaded
+ * 
  * @author ehaoswa
  * @author edeccox
  * 
@@ -34,6 +54,11 @@ import com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPol
  * 2.This Managed Connection is not valid as the physical connection is not usable
  */
 @TransactionManagement(TransactionManagementType.BEAN)
+/*Reason to use @ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+ * The container's default write lock would serialise every connection request, and every dwhrep cache lookup -
+ * this bean only delegates, and the dwhrep cache does its own locking
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class DBConnectionManager {
 
     /**
@@ -41,8 +66,27 @@ public class DBConnectionManager {
     */
     public static final String DWHREP_DATA_SOURCE_NAME = "dwhrep/jdbc/eniqPool";
 
+    static final String DWHREP_CACHE_TTL_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_DWHREP_CACHE_TTL_SECONDS";
+
+    static final String DWHREP_CACHE_MAXIMUM_SIZE_PROPERTY_NAME = "ENIQ_EVENTS_DWHREP_CACHE_MAXIMUM_SIZE";
+
+    static final int DEFAULT_DWHREP_CACHE_TTL_SECONDS = 60;
+
+    static final int DEFAULT_DWHREP_CACHE_MAXIMUM_SIZE = 1000;
+
     private DataSource dwhrepDataSource;
 
+    /**
+     * only read if there's no DataSourceManager - see getEniqEventsProperties()
+     */
+    @Resource(name = ApplicationConfigConstants.ENIQ_EVENT_PROPERTIES)
+    private volatile Properties eniqEventsProperties;
+
+    /**
+     * created with the configured settings on first use, null until then - recreated if the settings are reloaded
+     */
+    private final AtomicReference<DwhrepCache> dwhrepCache = new AtomicReference<DwhrepCache>();
+
     @EJB
     private DataSourceManager dataSourceManager;
 
@@ -75,6 +119,73 @@ public class DBConnectionManager {
         return dataSourceManager.getConnection(loadBalancingPolicy);
     }
 
+    /**
+     * Get the database connection from the data source for this routing key - see
+     * DataSourceManager.getConnection(KeyAffinitySelector, String)
+     * @param keyAffinitySelector the shared key affinity selector
+     * @param routingKey key identifying the subject of the query, eg IMSI, MSISDN, cell ID or APN
+     * @return {@link Connection <tt>Connection</tt>}
+     * @throws SQLException Database connection errors
+     * @throws DataSourceConfigurationException
+     */
+    public Connection getConnection(final KeyAffinitySelector keyAffinitySelector, final String routingKey)
+            throws SQLException, DataSourceConfigurationException {
+        return dataSourceManager.getConnection(keyAffinitySelector, routingKey);
+    }
+
+    /**
+     * Get the database connection for this class of query
+     * @param loadBalancingPolicy load balancing policy to use when determining data source connection
+     * @param queryClass class of query the connection is for - see DataSourceManager's bulkhead
+     * @return {@link Connection <tt>Connection</tt>}
+     * @throws SQLException Database connection errors, or if the query class is at its limit
+     * @throws DataSourceConfigurationException 
+     */
+    public Connection getConnection(final LoadBalancingPolicy loadBalancingPolicy, final QueryClass queryClass)
+            throws SQLException, DataSourceConfigurationException {
+        return dataSourceManager.getConnection(loadBalancingPolicy, queryClass);
+    }
+
+    /**
+     * Run a query and read its result, sharing the result with identical queries if allowed - see
+     * DataSourceManager.query()
+     * @param loadBalancingPolicy load balancing policy to use when determining data source connection
+     * @param queryClass class of query the connection is for
+     * @param sql query to run
+     * @param extractor reads the result
+     * @param shareResult false to always run the query for this call, bypassing the query result cache
+     * @param parameters values for the query's ? placeholders, in order
+     * @return the result read by the extractor
+     * @throws SQLException Database connection errors
+     * @throws DataSourceConfigurationException 
+     */
+    public <T> T query(final LoadBalancingPolicy loadBalancingPolicy, final QueryClass queryClass, final String sql,
+            final ResultSetExtractor<T> extractor, final boolean shareResult, final Object... parameters)
+            throws SQLException, DataSourceConfigurationException {
+        return dataSourceManager.query(loadBalancingPolicy, queryClass, sql, extractor, shareResult, parameters);
+    }
+
+    /**
+     * Get the database connection without blocking the calling thread - see DataSourceManager.getConnectionAsync()
+     * @param loadBalancingPolicy load balancing policy to use when determining data source connection
+     * @return future for the {@link Connection <tt>Connection</tt>}, which completes exceptionally with the
+     * SQLException or DataSourceConfigurationException if a connection can't be got
+     */
+    public CompletableFuture<Connection> getConnectionAsync(final LoadBalancingPolicy loadBalancingPolicy) {
+        return dataSourceManager.getConnectionAsync(loadBalancingPolicy);
+    }
+
+    /**
+     * Get the database connection for CSV stream, from the CSV data sources, balanced with the CSV load balancing
+     * policy - see DataSourceManager.getCSVConnection()
+     * @return {@link Connection <tt>Connection</tt>}
+     * @throws SQLException Database connection errors
+     * @throws DataSourceConfigurationException 
+     */
+    public Connection getCSVConnection() throws SQLException, DataSourceConfigurationException {
+        return dataSourceManager.getCSVConnection();
+    }
+
     /**
      * Get the database connection for CSV stream
      * @param loadBalancingPolicy load balancing policy to use when determining data source connection
@@ -96,6 +207,132 @@ public class DBConnectionManager {
         return dwhrepDataSource.getConnection();
     }
 
+    /**
+     * Run a query on dwhrep, or get its result from the dwhrep cache if the same query (ie the same SQL and
+     * parameters) has been run in the same namespace within the cache's time to live
+     * 
+     * The result is shared with every caller that runs the same query in the namespace until it expires, so it
+     * mustn't be modified - the extractor should return an immutable result. A null result isn't cached
+     * 
+     * @param namespace names what the extractor reads - eg the calling class and the result type. Every caller using
+     * a namespace must read the same result from the query, so an extractor whose result depends on its own state
+     * needs a namespace of its own for each state
+     * @param sql query to run - a repository lookup whose result doesn't change between requests
+     * @param extractor reads the result from the result set
+     * @param parameters values for the query's ? placeholders, in order
+     * @return the result read by the extractor
+     * @throws SQLException Database errors - nothing is cached
+     */
+    public <T> T queryDwhrep(final String namespace, final String sql, final ResultSetExtractor<T> extractor,
+            final Object... parameters) throws SQLException {
+        final DwhrepCache cache = getDwhrepCache();
+        if (cache.entries == null) {
+            return runQueryKey(sql, extractor, parameters);
+        }
+        final DwhrepKey key = new DwhrepKey(namespace, new QueryKey(sql, parameters));
+        @SuppressWarnings("unchecked")
+        final T cachedResult = (T) cache.entries.get(key);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+        final long generationBeforeQuery = cache.generation.get();
+        final T result = runQueryKey(sql, extractor, parameters);
+        if (result != null) {
+            cache.put(key, result, generationBeforeQuery);
+        }
+        return result;
+    }
+
+    /**
+     * Remove the cached result of one dwhrep query, eg after the repository data it reads has been changed
+     * @param namespace
+     * @param sql
+     * @param parameters
+     */
+    public void invalidateDwhrepCache(final String namespace, final String sql, final Object... parameters) {
+        final DwhrepCache cache = dwhrepCache.get();
+        if (cache != null && cache.entries != null) {
+            cache.generation.incrementAndGet();
+            cache.entries.invalidate(new DwhrepKey(namespace, new QueryKey(sql, parameters)));
+        }
+    }
+
+    /**
+     * Remove all cached dwhrep results, eg after a techpack has been installed or upgraded
+     * The cache settings are re-read from the ENIQ Events properties on next use
+     */
+    public void invalidateDwhrepCache() {
+        final DwhrepCache cache = dwhrepCache.getAndSet(null);
+        if (cache != null && cache.entries != null) {
+            cache.generation.incrementAndGet();
+            cache.entries.invalidateAll();
+        }
+    }
+
+    private <T> T runQueryKey(final String sql, final ResultSetExtractor<T> extractor, final Object... parameters)
+            throws SQLException {
+        final Connection connection = getDwhrepConnection();
+        try {
+            final PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                for (int i = 0; i < parameters.length; i++) {
+                    statement.setObject(i + 1, parameters[i]);
+                }
+                final ResultSet resultSet = statement.executeQuery();
+                try {
+                    return extractor.extractData(resultSet);
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Get the dwhrep cache, creating it with the configured settings on first use, or if the properties have been
+     * reloaded since it was created - the results cached under the old settings are dropped
+     * @return the cache - its entries are null if caching is turned off
+     */
+    private DwhrepCache getDwhrepCache() {
+        final Properties properties = getEniqEventsProperties();
+        final DwhrepCache cache = dwhrepCache.get();
+        if (cache != null && cache.properties == properties) {
+            return cache;
+        }
+        final int timeToLiveSeconds = DataSourceProperties.getInt(properties, DWHREP_CACHE_TTL_SECONDS_PROPERTY_NAME,
+                DEFAULT_DWHREP_CACHE_TTL_SECONDS);
+        ExpiringLruCache<DwhrepKey, Object> entries = null;
+        if (timeToLiveSeconds > 0) {
+            final int maximumSize = DataSourceProperties.getInt(properties, DWHREP_CACHE_MAXIMUM_SIZE_PROPERTY_NAME,
+                    DEFAULT_DWHREP_CACHE_MAXIMUM_SIZE);
+            entries = new ExpiringLruCache<DwhrepKey, Object>(maximumSize,
+                    TimeUnit.SECONDS.toMillis(timeToLiveSeconds));
+        }
+        final DwhrepCache newCache = new DwhrepCache(properties, entries);
+        return dwhrepCache.compareAndSet(cache, newCache) ? newCache : getDwhrepCache();
+    }
+
+    /**
+     * @return the properties the DataSourceManager's data sources were published with, or the injected properties
+     * if there's no DataSourceManager
+     */
+    private Properties getEniqEventsProperties() {
+        final DataSourceManager manager = dataSourceManager;
+        return manager == null ? eniqEventsProperties : manager.getEniqEventsProperties();
+    }
+
+    /**
+     * added to get under test
+     * @param eniqEventsProperties the eniqEventsProperties to set
+     */
+    public void setEniqEventsProperties(final Properties eniqEventsProperties) {
+        this.eniqEventsProperties = eniqEventsProperties;
+    }
+
     /**
      * added for test classes
      * 
@@ -104,4 +341,80 @@ public class DBConnectionManager {
     public DataSource getDwhrepDataSource() {
         return dwhrepDataSource;
     }
+
+    /**
+     * The dwhrep cache as configured - published as one reference, so that invalidating the cache can't be lost
+     * between reading the settings and publishing the cache built from them
+     * 
+     * Each invalidation moves the cache on a generation, as for the QueryResultCache - a result read while anything
+     * was invalidated may predate the change that caused the invalidation, so it isn't cached
+     */
+    private static final class DwhrepCache {
+
+        /**
+         * the properties the settings were read from
+         */
+        private final Properties properties;
+
+        /**
+         * null if the cache is turned off (a time to live of 0)
+         */
+        private final ExpiringLruCache<DwhrepKey, Object> entries;
+
+        private final AtomicLong generation = new AtomicLong();
+
+        DwhrepCache(final Properties properties, final ExpiringLruCache<DwhrepKey, Object> entries) {
+            this.properties = properties;
+            this.entries = entries;
+        }
+
+        /**
+         * Cache the result of the query, unless anything was invalidated since the query was run
+         * @param key
+         * @param result
+         * @param generationBeforeQuery the generation, read before running the query
+         */
+        void put(final DwhrepKey key, final Object result, final long generationBeforeQuery) {
+            if (generation.get() != generationBeforeQuery) {
+                return;
+            }
+            entries.put(key, result);
+            if (generation.get() != generationBeforeQuery) {
+                // invalidated while it was being put - the invalidation may have missed it
+                entries.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * A dwhrep query in the namespace of the callers that read its result the same way
+     */
+    private static final class DwhrepKey {
+
+        private final String namespace;
+
+        private final QueryKey query;
+
+        DwhrepKey(final String namespace, final QueryKey query) {
+            if (namespace == null) {
+                throw new IllegalArgumentException("A cache namespace is needed for dwhrep queries");
+            }
+            this.namespace = namespace;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (!(object instanceof DwhrepKey)) {
+                return false;
+            }
+            final DwhrepKey other = (DwhrepKey) object;
+            return namespace.equals(other.namespace) && query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * namespace.hashCode() + query.hashCode();
+        }
+    }
 }
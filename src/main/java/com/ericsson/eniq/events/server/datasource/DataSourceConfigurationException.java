@@ -38,4 +38,12 @@ public class DataSourceConfigurationException extends Exception {
         super(details, rootException);
     }
 
+    /**
+     * @param details
+     * @param rootException
+     */
+    public DataSourceConfigurationException(final String details, final Throwable rootException) {
+        super(details, rootException);
+    }
+
 }
@@ -0,0 +1,110 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+/**
+ * Health of a data source, as determined by the DataSourceHealthMonitor's probes
+ * A healthy data source is ejected after a number of consecutive failed probes, and re-admitted
+ * after a number of consecutive successful probes
+ * 
+ * A data source is also held back while its pool is warmed up - a re-admitted data source is marked as warming up
+ * in the same step that re-admits it, so it's never offered for selection cold
+ *
+ * @author eemecoy
+ *
+ */
+class DataSourceHealth {
+
+    private volatile boolean healthy = true;
+
+    private volatile boolean warmingUp;
+
+    private int consecutiveFailures;
+
+    private int consecutiveSuccesses;
+
+    /**
+     * @return true if the data source should be offered to the load balancing policies
+     */
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return true if the data source is healthy and isn't being warmed up
+     */
+    boolean isReady() {
+        // healthy is read first - it's set after warmingUp on re-admission
+        return healthy && !warmingUp;
+    }
+
+    /**
+     * @return true if the pool is being warmed up
+     */
+    boolean isWarmingUp() {
+        return warmingUp;
+    }
+
+    /**
+     * Mark the data source as warming up
+     * @return false if a warm up is already in progress
+     */
+    synchronized boolean startWarmUp() {
+        if (warmingUp) {
+            return false;
+        }
+        warmingUp = true;
+        return true;
+    }
+
+    /**
+     * Mark the warm up as finished
+     */
+    synchronized void finishWarmUp() {
+        warmingUp = false;
+    }
+
+    /**
+     * Record a successful probe
+     * @param successesToReadmit number of consecutive successful probes needed to re-admit an ejected data source
+     * @param warmUpOnReadmit true to mark the data source as warming up if this probe re-admits it
+     * @return true if this probe re-admitted the data source and started its warm up - false if it didn't re-admit
+     * it, or re-admitted it without a warm up (warmUpOnReadmit is false, or a warm up is already in progress)
+     */
+    synchronized boolean recordProbeSuccess(final int successesToReadmit, final boolean warmUpOnReadmit) {
+        consecutiveFailures = 0;
+        if (healthy) {
+            return false;
+        }
+        consecutiveSuccesses++;
+        if (consecutiveSuccesses >= successesToReadmit) {
+            final boolean warmUpStarted = warmUpOnReadmit && startWarmUp();
+            healthy = true;
+            consecutiveSuccesses = 0;
+            return warmUpStarted;
+        }
+        return false;
+    }
+
+    /**
+     * Record a failed probe
+     * @param failuresToEject number of consecutive failed probes needed to eject a healthy data source
+     * @return true if this probe ejected the data source
+     */
+    synchronized boolean recordProbeFailure(final int failuresToEject) {
+        consecutiveSuccesses = 0;
+        if (!healthy) {
+            return false;
+        }
+        consecutiveFailures++;
+        if (consecutiveFailures >= failuresToEject) {
+            healthy = false;
+            consecutiveFailures = 0;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,566 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.NoSuchObjectLocalException;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionManagement;
+import javax.ejb.TransactionManagementType;
+
+import com.ericsson.eniq.events.server.common.ApplicationConfigConstants;
+import com.ericsson.eniq.events.server.logging.ServicesLogger;
+
+/**
+ * Background health monitor for the ENIQ data sources
+ *
+ * On a schedule, every monitored data source is probed in parallel with a cheap validation query. A data source that
+ * fails a number of consecutive probes is ejected - it is no longer offered to the load balancing policies, so
+ * requests stop hanging on a dead IQ reader until the pool timeout. It is re-admitted after a number of consecutive
+ * successful probes
+ *
+ * A probe that doesn't complete within the probe timeout counts as a failure, and the data source isn't probed again
+ * until that probe has returned, so a hung reader can't tie up more than one probe thread
+ *
+ * Before a data source is first offered to the load balancing policies, and again when it's re-admitted, its pool is
+ * warmed up - a share of its connections (its weight, ie the pool's MaxPoolSize, times the warm up share) are opened
+ * and validated in parallel, so that queries don't pay the IQ login cost for each new connection. See DataSourceWarmUp
+ *
+ * On a schedule of their own, connections held for longer than the leak threshold are reported once each as possible
+ * leaks, with the thread that took the connection and, if it was sampled, the call site - see ConnectionLease. The leak
+ * scan has its own timer so that it isn't held up by a probe round waiting on a hung reader
+ *
+ * Probes and warm ups run on separate pools of daemon threads, each with a fixed number of threads, so a burst of
+ * warm ups can't delay the probes. The pools are stopped when the bean is destroyed
+ *
+ * All settings are optional properties in the ENIQ Events JNDI properties - see the property name constants. The
+ * DataSourceManager passes the properties on with the data sources each time it publishes them, so settings reloaded
+ * with the data sources take effect straight away - the timers are rescheduled and the pools resized if need be
+ *
+ * @author eemecoy
+ *
+ */
+@Singleton
+@Startup
+/*Reason to use @TransactionManagement(TransactionManagementType.BEAN)
+ * Avoid two exceptions:
+ * 1.Local transaction already has 1 non-XA Resource: cannot add more resources.
+ * 2.This Managed Connection is not valid as the physical connection is not usable
+ */
+@TransactionManagement(TransactionManagementType.BEAN)
+/*Reason to use @ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+ * a probe round can take up to the probe timeout - the container's default write lock would block
+ * the DataSourceManager registering data sources for that long
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class DataSourceHealthMonitor {
+
+    static final String HEALTH_CHECK_INTERVAL_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_HEALTH_CHECK_INTERVAL_SECONDS";
+
+    static final String HEALTH_CHECK_TIMEOUT_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_HEALTH_CHECK_TIMEOUT_SECONDS";
+
+    static final String HEALTH_CHECK_QUERY_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_HEALTH_CHECK_QUERY";
+
+    static final String FAILURES_TO_EJECT_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_HEALTH_CHECK_FAILURES_TO_EJECT";
+
+    static final String SUCCESSES_TO_READMIT_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_HEALTH_CHECK_SUCCESSES_TO_READMIT";
+
+    static final String WARM_UP_SHARE_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_WARM_UP_SHARE";
+
+    static final String WARM_UP_PARALLELISM_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_WARM_UP_PARALLELISM";
+
+    static final String WARM_UP_TIMEOUT_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_WARM_UP_TIMEOUT_SECONDS";
+
+    static final String LEAK_THRESHOLD_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_CONNECTION_LEAK_THRESHOLD_SECONDS";
+
+    static final String CALL_SITE_SAMPLE_INTERVAL_PROPERTY_NAME = "ENIQ_EVENTS_CONNECTION_LEAK_CALL_SITE_SAMPLE_INTERVAL";
+
+    static final String LEAK_SCAN_INTERVAL_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_CONNECTION_LEAK_SCAN_INTERVAL_SECONDS";
+
+    static final String HEALTH_CHECK_THREADS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_HEALTH_CHECK_THREADS";
+
+    static final int DEFAULT_HEALTH_CHECK_INTERVAL_SECONDS = 10;
+
+    static final int DEFAULT_HEALTH_CHECK_TIMEOUT_SECONDS = 5;
+
+    static final String DEFAULT_HEALTH_CHECK_QUERY = "SELECT 1";
+
+    static final int DEFAULT_FAILURES_TO_EJECT = 2;
+
+    static final int DEFAULT_SUCCESSES_TO_READMIT = 3;
+
+    static final double DEFAULT_WARM_UP_SHARE = 0.25;
+
+    static final int DEFAULT_WARM_UP_PARALLELISM = 8;
+
+    static final int DEFAULT_WARM_UP_TIMEOUT_SECONDS = 60;
+
+    static final int DEFAULT_LEAK_THRESHOLD_SECONDS = 300;
+
+    static final int DEFAULT_LEAK_SCAN_INTERVAL_SECONDS = 60;
+
+    static final int DEFAULT_HEALTH_CHECK_THREADS = 8;
+
+    static final String LEAK_SCAN_TIMER = "DataSourceLeakScan";
+
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private static final long MILLISECONDS_PER_SECOND = 1000L;
+
+    /**
+     * the injected properties until the data sources are first published, then those they were published with
+     */
+    @Resource(name = ApplicationConfigConstants.ENIQ_EVENT_PROPERTIES)
+    private volatile Properties eniqEventsProperties;
+
+    @Resource
+    private TimerService timerService;
+
+    private final Map<String, List<EniqDataSourceImpl>> monitoredGroups = new LinkedHashMap<String, List<EniqDataSourceImpl>>();
+
+    private volatile List<EniqDataSourceImpl> monitoredDataSources = Collections.emptyList();
+
+    private final Map<EniqDataSourceImpl, Future<Void>> probesInProgress = new HashMap<EniqDataSourceImpl, Future<Void>>();
+
+    private ExecutorService probeExecutor;
+
+    private ExecutorService warmUpExecutor;
+
+    private final Object timerLock = new Object();
+
+    /**
+     * guarded by timerLock - null until the health checks are started
+     */
+    private Timer probeTimer;
+
+    /**
+     * guarded by timerLock - null if there's no leak scan
+     */
+    private Timer leakScanTimer;
+
+    /**
+     * guarded by timerLock - the intervals the timers were created with
+     */
+    private long probeIntervalMillis;
+
+    private long leakScanIntervalMillis;
+
+    /**
+     * Create the probe and warm up threads, and start the probe and leak scan timers, at the configured intervals
+     */
+    @PostConstruct
+    public void startHealthChecks() {
+        probeExecutor = createExecutor(getHealthCheckThreads(), "DataSourceHealthMonitor-");
+        warmUpExecutor = createExecutor(getWarmUpParallelism(), "DataSourceWarmUp-");
+        synchronized (timerLock) {
+            scheduleTimers();
+        }
+    }
+
+    /**
+     * Apply the settings of newly published properties to the thread pools and timers, once the health checks are
+     * started - a pool is resized in place, and a timer is only recreated if its interval has changed
+     */
+    private void applySettings() {
+        synchronized (timerLock) {
+            if (probeTimer == null) {
+                return;
+            }
+            scheduleTimers();
+        }
+        resizeExecutor(probeExecutor, getHealthCheckThreads());
+        resizeExecutor(warmUpExecutor, getWarmUpParallelism());
+    }
+
+    /**
+     * (Re)create the probe and leak scan timers at the configured intervals, leaving a timer already running at its
+     * configured interval as it is - guarded by timerLock
+     */
+    private void scheduleTimers() {
+        final long intervalMillis = getHealthCheckIntervalSeconds() * MILLISECONDS_PER_SECOND;
+        if (probeTimer == null || intervalMillis != probeIntervalMillis) {
+            cancelQuietly(probeTimer);
+            probeTimer = timerService.createIntervalTimer(intervalMillis, intervalMillis, new TimerConfig(getClass()
+                    .getSimpleName(), false));
+            probeIntervalMillis = intervalMillis;
+        }
+        long newLeakScanIntervalMillis = 0;
+        if (DataSourceProperties.getInt(eniqEventsProperties, LEAK_THRESHOLD_SECONDS_PROPERTY_NAME,
+                DEFAULT_LEAK_THRESHOLD_SECONDS) > 0) {
+            newLeakScanIntervalMillis = Math.max(DataSourceProperties.getInt(eniqEventsProperties,
+                    LEAK_SCAN_INTERVAL_SECONDS_PROPERTY_NAME, DEFAULT_LEAK_SCAN_INTERVAL_SECONDS), 1)
+                    * MILLISECONDS_PER_SECOND;
+        }
+        if (newLeakScanIntervalMillis != leakScanIntervalMillis) {
+            cancelQuietly(leakScanTimer);
+            leakScanTimer = null;
+            if (newLeakScanIntervalMillis > 0) {
+                leakScanTimer = timerService.createIntervalTimer(newLeakScanIntervalMillis, newLeakScanIntervalMillis,
+                        new TimerConfig(LEAK_SCAN_TIMER, false));
+            }
+            leakScanIntervalMillis = newLeakScanIntervalMillis;
+        }
+    }
+
+    private static void cancelQuietly(final Timer timer) {
+        if (timer == null) {
+            return;
+        }
+        try {
+            timer.cancel();
+        } catch (final NoSuchObjectLocalException e) {
+            // already expired or cancelled
+        }
+    }
+
+    /**
+     * Stop the probe and warm up threads - probes and warm ups in progress are abandoned
+     */
+    @PreDestroy
+    public void stopHealthChecks() {
+        if (probeExecutor != null) {
+            probeExecutor.shutdownNow();
+        }
+        if (warmUpExecutor != null) {
+            warmUpExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Create a pool of a fixed number of daemon threads, which stop when idle
+     * Each data source has at most one probe, and each warm up at most its parallelism of connection openers, waiting
+     * for a thread, so the queue is bounded by the data sources monitored
+     * @param threads
+     * @param threadNamePrefix
+     * @return
+     */
+    private static ExecutorService createExecutor(final int threads, final String threadNamePrefix) {
+        final int poolSize = Math.max(threads, 1);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, IDLE_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new MonitorThreadFactory(threadNamePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Change the number of threads in a pool created by createExecutor() - threads above a lower number stop once
+     * they've finished their current task
+     * @param executor
+     * @param threads
+     */
+    private static void resizeExecutor(final ExecutorService executor, final int threads) {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        final int poolSize = Math.max(threads, 1);
+        if (poolSize > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(poolSize);
+            pool.setCorePoolSize(poolSize);
+        } else {
+            pool.setCorePoolSize(poolSize);
+            pool.setMaximumPoolSize(poolSize);
+        }
+    }
+
+    /**
+     * Called by the container when either timer expires - a probe round, or a leak scan
+     * @param timer
+     */
+    @Timeout
+    public void timeout(final Timer timer) {
+        if (LEAK_SCAN_TIMER.equals(timer.getInfo())) {
+            reportSuspectedLeaks(monitoredDataSources);
+        } else {
+            probeDataSources();
+        }
+    }
+
+    /**
+     * Set the data sources to monitor in a group (eg the data sources used for queries, or those used for CSV
+     * exports) - replaces any data sources previously monitored in that group, and leaves the other groups as they are
+     * Data sources that weren't already monitored are warmed up
+     * 
+     * The properties the data sources were published with replace those read so far, for every group
+     * @param group
+     * @param dataSources
+     * @param properties the ENIQ Events JNDI properties the data sources were published with - null leaves the
+     * properties read so far as they are
+     */
+    public void monitor(final String group, final List<EniqDataSource> dataSources, final Properties properties) {
+        if (properties != null) {
+            eniqEventsProperties = properties;
+            applySettings();
+        }
+        final int callSiteSampleInterval = DataSourceProperties.getInt(eniqEventsProperties,
+                CALL_SITE_SAMPLE_INTERVAL_PROPERTY_NAME, EniqDataSourceImpl.DEFAULT_CALL_SITE_SAMPLE_INTERVAL);
+        final List<EniqDataSourceImpl> dataSourcesToWarmUp = new ArrayList<EniqDataSourceImpl>();
+        synchronized (monitoredGroups) {
+            final List<EniqDataSourceImpl> previouslyMonitoredDataSources = monitoredDataSources;
+            final List<EniqDataSourceImpl> dataSourcesInGroup = new ArrayList<EniqDataSourceImpl>();
+            for (final EniqDataSource dataSource : dataSources) {
+                if (dataSource instanceof EniqDataSourceImpl) {
+                    ((EniqDataSourceImpl) dataSource).setCallSiteSampleInterval(callSiteSampleInterval);
+                    dataSourcesInGroup.add((EniqDataSourceImpl) dataSource);
+                }
+            }
+            monitoredGroups.put(group, dataSourcesInGroup);
+            final List<EniqDataSourceImpl> dataSourcesToMonitor = new ArrayList<EniqDataSourceImpl>();
+            for (final List<EniqDataSourceImpl> dataSourcesInAnyGroup : monitoredGroups.values()) {
+                dataSourcesToMonitor.addAll(dataSourcesInAnyGroup);
+            }
+            monitoredDataSources = Collections.unmodifiableList(dataSourcesToMonitor);
+            for (final EniqDataSourceImpl dataSource : dataSourcesInGroup) {
+                if (!previouslyMonitoredDataSources.contains(dataSource)) {
+                    dataSourcesToWarmUp.add(dataSource);
+                }
+            }
+        }
+        for (final EniqDataSourceImpl dataSource : dataSourcesToWarmUp) {
+            warmUp(dataSource);
+        }
+    }
+
+    /**
+     * Warm up the data source's pool in the background - the data source isn't eligible for selection until
+     * the warm up has finished
+     * @param dataSource
+     */
+    private void warmUp(final EniqDataSourceImpl dataSource) {
+        final int connectionsToOpen = getConnectionsToWarmUp(dataSource);
+        if (connectionsToOpen > 0 && dataSource.startWarmUp()) {
+            submitWarmUp(dataSource, connectionsToOpen);
+        }
+    }
+
+    /**
+     * @param dataSource
+     * @return the number of connections to open to warm up the data source's pool - its weight times the warm up share
+     */
+    private int getConnectionsToWarmUp(final EniqDataSourceImpl dataSource) {
+        final double warmUpShare = DataSourceProperties.getDouble(eniqEventsProperties, WARM_UP_SHARE_PROPERTY_NAME,
+                DEFAULT_WARM_UP_SHARE);
+        return (int) Math.ceil(Math.max(dataSource.getWeight(), 0) * Math.min(Math.max(warmUpShare, 0), 1));
+    }
+
+    /**
+     * Hand the warm up of a data source already marked as warming up to the warm up threads
+     * @param dataSource
+     * @param connectionsToOpen
+     */
+    private void submitWarmUp(final EniqDataSourceImpl dataSource, final int connectionsToOpen) {
+        final int parallelism = getWarmUpParallelism();
+        final int timeoutSeconds = DataSourceProperties.getInt(eniqEventsProperties,
+                HEALTH_CHECK_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_HEALTH_CHECK_TIMEOUT_SECONDS);
+        final String validationQuery = DataSourceProperties.getString(eniqEventsProperties,
+                HEALTH_CHECK_QUERY_PROPERTY_NAME, DEFAULT_HEALTH_CHECK_QUERY);
+        final int warmUpTimeoutSeconds = DataSourceProperties.getInt(eniqEventsProperties,
+                WARM_UP_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_WARM_UP_TIMEOUT_SECONDS);
+        try {
+            warmUpExecutor.execute(new DataSourceWarmUp(dataSource, connectionsToOpen, parallelism, validationQuery,
+                    timeoutSeconds, warmUpTimeoutSeconds, warmUpExecutor));
+        } catch (final RejectedExecutionException e) {
+            dataSource.finishWarmUp();
+            ServicesLogger.warn(getClass().getName(), "warmUp", "Could not warm up data source "
+                    + dataSource.getPoolName(), e);
+        }
+    }
+
+    /**
+     * Probe each monitored data source, and eject or re-admit data sources based on the results
+     * Called at the configured interval
+     */
+    public synchronized void probeDataSources() {
+        final List<EniqDataSourceImpl> dataSources = monitoredDataSources;
+        final int timeoutSeconds = DataSourceProperties.getInt(eniqEventsProperties,
+                HEALTH_CHECK_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_HEALTH_CHECK_TIMEOUT_SECONDS);
+        final String validationQuery = DataSourceProperties.getString(eniqEventsProperties,
+                HEALTH_CHECK_QUERY_PROPERTY_NAME, DEFAULT_HEALTH_CHECK_QUERY);
+        for (final EniqDataSourceImpl dataSource : dataSources) {
+            final Future<Void> previousProbe = probesInProgress.get(dataSource);
+            if (previousProbe == null || previousProbe.isDone()) {
+                try {
+                    probesInProgress.put(dataSource, probeExecutor.submit(new Probe(dataSource, validationQuery,
+                            timeoutSeconds)));
+                } catch (final RejectedExecutionException e) {
+                    // shutting down
+                    probesInProgress.remove(dataSource);
+                }
+            }
+        }
+        probesInProgress.keySet().retainAll(dataSources);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        for (final EniqDataSourceImpl dataSource : dataSources) {
+            final Future<Void> probe = probesInProgress.get(dataSource);
+            if (probe == null) {
+                continue;
+            }
+            try {
+                probe.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                recordProbeSuccess(dataSource);
+            } catch (final Exception e) {
+                recordProbeFailure(dataSource, e);
+            }
+        }
+    }
+
+    /**
+     * Log each connection newly found to be held for longer than the leak threshold - the call site, if sampled, is
+     * logged as the stack trace
+     */
+    void reportSuspectedLeaks(final List<EniqDataSourceImpl> dataSources) {
+        final int leakThresholdSeconds = DataSourceProperties.getInt(eniqEventsProperties,
+                LEAK_THRESHOLD_SECONDS_PROPERTY_NAME, DEFAULT_LEAK_THRESHOLD_SECONDS);
+        if (leakThresholdSeconds <= 0) {
+            return;
+        }
+        for (final EniqDataSourceImpl dataSource : dataSources) {
+            for (final ConnectionLease lease : dataSource.findSuspectedLeaks(TimeUnit.SECONDS
+                    .toNanos(leakThresholdSeconds))) {
+                ServicesLogger.warn(getClass().getName(), "reportSuspectedLeaks", lease
+                        + ", longer than the leak threshold of " + leakThresholdSeconds
+                        + " seconds - it may not have been closed", lease.getCallSite());
+            }
+        }
+    }
+
+    private void recordProbeSuccess(final EniqDataSourceImpl dataSource) {
+        final int successesToReadmit = DataSourceProperties.getInt(eniqEventsProperties,
+                SUCCESSES_TO_READMIT_PROPERTY_NAME, DEFAULT_SUCCESSES_TO_READMIT);
+        final int connectionsToOpen = getConnectionsToWarmUp(dataSource);
+        final DataSourceHealth health = dataSource.getHealth();
+        final boolean wasHealthy = health.isHealthy();
+        // marked as warming up as it's re-admitted, so it's never offered cold
+        if (health.recordProbeSuccess(successesToReadmit, connectionsToOpen > 0)) {
+            ServicesLogger.detailed(getClass().getName(), "probeDataSources",
+                    "Data source passed health checks, re-admitting it once warmed up", dataSource.getPoolName());
+            submitWarmUp(dataSource, connectionsToOpen);
+        } else if (!wasHealthy && health.isHealthy()) {
+            ServicesLogger.detailed(getClass().getName(), "probeDataSources",
+                    "Data source passed health checks, re-admitting it", dataSource.getPoolName());
+        }
+    }
+
+    private void recordProbeFailure(final EniqDataSourceImpl dataSource, final Exception cause) {
+        final int failuresToEject = DataSourceProperties.getInt(eniqEventsProperties, FAILURES_TO_EJECT_PROPERTY_NAME,
+                DEFAULT_FAILURES_TO_EJECT);
+        if (dataSource.getHealth().recordProbeFailure(failuresToEject)) {
+            ServicesLogger.warn(getClass().getName(), "probeDataSources", "Data source " + dataSource.getPoolName()
+                    + " failed health checks, it will not be used until it passes them again", cause);
+        }
+    }
+
+    private int getHealthCheckThreads() {
+        return DataSourceProperties.getInt(eniqEventsProperties, HEALTH_CHECK_THREADS_PROPERTY_NAME,
+                DEFAULT_HEALTH_CHECK_THREADS);
+    }
+
+    private int getWarmUpParallelism() {
+        return DataSourceProperties.getInt(eniqEventsProperties, WARM_UP_PARALLELISM_PROPERTY_NAME,
+                DEFAULT_WARM_UP_PARALLELISM);
+    }
+
+    private int getHealthCheckIntervalSeconds() {
+        return Math.max(DataSourceProperties.getInt(eniqEventsProperties, HEALTH_CHECK_INTERVAL_SECONDS_PROPERTY_NAME,
+                DEFAULT_HEALTH_CHECK_INTERVAL_SECONDS), 1);
+    }
+
+    /**
+     * added to get under test
+     * @param eniqEventsProperties the eniqEventsProperties to set
+     */
+    public void setEniqEventsProperties(final Properties eniqEventsProperties) {
+        this.eniqEventsProperties = eniqEventsProperties;
+    }
+
+    /**
+     * exposed for unit test
+     * @param probeExecutor
+     */
+    void setProbeExecutor(final ExecutorService probeExecutor) {
+        this.probeExecutor = probeExecutor;
+    }
+
+    /**
+     * exposed for unit test
+     * @param warmUpExecutor
+     */
+    void setWarmUpExecutor(final ExecutorService warmUpExecutor) {
+        this.warmUpExecutor = warmUpExecutor;
+    }
+
+    /**
+     * Runs the validation query on one data source
+     */
+    private static class Probe implements Callable<Void> {
+
+        private final EniqDataSourceImpl dataSource;
+
+        private final String validationQuery;
+
+        private final int timeoutSeconds;
+
+        Probe(final EniqDataSourceImpl dataSource, final String validationQuery, final int timeoutSeconds) {
+            this.dataSource = dataSource;
+            this.validationQuery = validationQuery;
+            this.timeoutSeconds = timeoutSeconds;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            dataSource.probe(validationQuery, timeoutSeconds);
+            return null;
+        }
+    }
+
+    /**
+     * Probe and warm up threads are daemon threads, named for what they do
+     */
+    private static class MonitorThreadFactory implements ThreadFactory {
+
+        private final String threadNamePrefix;
+
+        private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+        MonitorThreadFactory(final String threadNamePrefix) {
+            this.threadNamePrefix = threadNamePrefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, threadNamePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
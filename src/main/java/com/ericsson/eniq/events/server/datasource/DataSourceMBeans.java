@@ -0,0 +1,232 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogger;
+
+/**
+ * Registers the MXBeans for the DataSourceManager:
+ * a DataSourceManagerMXBean for managing the data sources, under
+ *   com.ericsson.eniq.events.server.datasource:type=DataSourceManager
+ * and a DataSourceMetricsMXBean for each data source set up by the DataSourceManager, under
+ *   com.ericsson.eniq.events.server.datasource:type=DataSourceMetrics,group=<group>,name=<pool name>
+ * where the group is "query" for the data sources used for queries, and "csv" for the CSV export data source
+ *
+ * Failing to register an MXBean is logged, and doesn't stop the data sources being used
+ *
+ * @author eemecoy
+ *
+ */
+final class DataSourceMBeans {
+
+    static final String DOMAIN = "com.ericsson.eniq.events.server.datasource";
+
+    static final String QUERY_GROUP = "query";
+
+    static final String CSV_GROUP = "csv";
+
+    private final MBeanServer mBeanServer;
+
+    private final Map<String, List<ObjectName>> registeredNamesByGroup = new HashMap<String, List<ObjectName>>();
+
+    private ObjectName managerName;
+
+    DataSourceMBeans(final MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+    }
+
+    /**
+     * Register the MXBean for managing the data sources
+     * @param manager
+     */
+    synchronized void registerManager(final DataSourceManagerMXBean manager) {
+        try {
+            final ObjectName name = new ObjectName(DOMAIN + ":type=DataSourceManager");
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(manager, name);
+            managerName = name;
+        } catch (final JMException e) {
+            ServicesLogger.warn(getClass().getName(), "registerManager", "Could not register data source manager MXBean",
+                    e);
+        }
+    }
+
+    /**
+     * Register MXBeans for this group of data sources, replacing those previously registered for the group
+     * @param group
+     * @param dataSources
+     */
+    synchronized void register(final String group, final List<EniqDataSource> dataSources) {
+        unregister(group);
+        final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+        for (final EniqDataSource dataSource : dataSources) {
+            if (dataSource instanceof EniqDataSourceImpl) {
+                try {
+                    final ObjectName name = getObjectName(group, dataSource.getPoolName());
+                    if (mBeanServer.isRegistered(name)) {
+                        mBeanServer.unregisterMBean(name);
+                    }
+                    mBeanServer.registerMBean(new DataSourceMetricsView((EniqDataSourceImpl) dataSource), name);
+                    registeredNames.add(name);
+                } catch (final JMException e) {
+                    ServicesLogger.warn(getClass().getName(), "register", "Could not register metrics MXBean for data source "
+                            + dataSource.getPoolName(), e);
+                }
+            }
+        }
+        registeredNamesByGroup.put(group, registeredNames);
+    }
+
+    /**
+     * Unregister all MXBeans registered by this object
+     */
+    synchronized void unregisterAll() {
+        for (final String group : new ArrayList<String>(registeredNamesByGroup.keySet())) {
+            unregister(group);
+        }
+        if (managerName != null) {
+            unregister(managerName);
+            managerName = null;
+        }
+    }
+
+    private void unregister(final String group) {
+        final List<ObjectName> registeredNames = registeredNamesByGroup.remove(group);
+        if (registeredNames == null) {
+            return;
+        }
+        for (final ObjectName name : registeredNames) {
+            unregister(name);
+        }
+    }
+
+    private void unregister(final ObjectName name) {
+        try {
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+        } catch (final JMException e) {
+            ServicesLogger.warn(getClass().getName(), "unregister", "Could not unregister MXBean " + name, e);
+        }
+    }
+
+    static ObjectName getObjectName(final String group, final String poolName) throws JMException {
+        return new ObjectName(DOMAIN + ":type=DataSourceMetrics,group=" + group + ",name=" + ObjectName.quote(poolName));
+    }
+
+    /**
+     * MXBean reading each attribute from a fresh snapshot of the data source's metrics
+     */
+    private static class DataSourceMetricsView implements DataSourceMetricsMXBean {
+
+        private final EniqDataSourceImpl dataSource;
+
+        DataSourceMetricsView(final EniqDataSourceImpl dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        public String getPoolName() {
+            return dataSource.getPoolName();
+        }
+
+        @Override
+        public int getWeight() {
+            return dataSource.getWeight();
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return dataSource.isAvailable();
+        }
+
+        @Override
+        public int getLeasedConnectionCount() {
+            return dataSource.getLeasedConnectionCount();
+        }
+
+        @Override
+        public int getConcurrencyLimit() {
+            return dataSource.getConcurrencyLimit();
+        }
+
+        @Override
+        public long getAcquireCount() {
+            return dataSource.getMetricsSnapshot().getAcquireCount();
+        }
+
+        @Override
+        public long getAcquireFailureCount() {
+            return dataSource.getMetricsSnapshot().getAcquireFailureCount();
+        }
+
+        @Override
+        public long getRejectedCount() {
+            return dataSource.getMetricsSnapshot().getRejectedCount();
+        }
+
+        @Override
+        public double getAcquireTimeMillisMedian() {
+            return dataSource.getMetricsSnapshot().getAcquireTimeMillisMedian();
+        }
+
+        @Override
+        public double getAcquireTimeMillis99thPercentile() {
+            return dataSource.getMetricsSnapshot().getAcquireTimeMillis99thPercentile();
+        }
+
+        @Override
+        public long[] getAcquireTimeHistogram() {
+            return dataSource.getMetricsSnapshot().getAcquireTimeHistogram();
+        }
+
+        @Override
+        public long getLeaseCount() {
+            return dataSource.getMetricsSnapshot().getLeaseCount();
+        }
+
+        @Override
+        public double getLeaseTimeMillisMedian() {
+            return dataSource.getMetricsSnapshot().getLeaseTimeMillisMedian();
+        }
+
+        @Override
+        public double getLeaseTimeMillis99thPercentile() {
+            return dataSource.getMetricsSnapshot().getLeaseTimeMillis99thPercentile();
+        }
+
+        @Override
+        public long[] getLeaseTimeHistogram() {
+            return dataSource.getMetricsSnapshot().getLeaseTimeHistogram();
+        }
+
+        @Override
+        public long getSuspectedLeakCount() {
+            return dataSource.getMetricsSnapshot().getSuspectedLeakCount();
+        }
+
+        @Override
+        public double getLongestHeldLeaseMillis() {
+            return dataSource.getMetricsSnapshot().getLongestHeldLeaseMillis();
+        }
+
+        @Override
+        public Map<String, Long> getSelectionCounts() {
+            return dataSource.getMetricsSnapshot().getSelectionCounts();
+        }
+    }
+}
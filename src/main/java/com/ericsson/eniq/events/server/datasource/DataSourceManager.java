@@ -7,14 +7,45 @@ package com.ericsson.eniq.events.server.datasource;
 
 import static com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceThreadLocalHolder.*;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.EJB;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
@@ -26,6 +57,7 @@ import javax.naming.NamingException;
 import javax.sql.DataSource;
 
 import com.ericsson.eniq.events.server.common.ApplicationConfigConstants;
+import com.ericsson.eniq.events.server.datasource.loadbalancing.KeyAffinitySelector;
 import com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicy;
 import com.ericsson.eniq.events.server.logging.ServicesLogger;
 import com.ericsson.eniq.events.server.utils.config.AMXPropertyReader;
@@ -43,6 +75,43 @@ import com.ericsson.eniq.events.server.utils.config.CannotReadAMXPropertyExcepti
  * that may be configured by the operator
  *  
  * 
+ * The data sources are held in immutable DataSourceTopology snapshots, published through atomic references - a
+ * query reads the current snapshot without any locking, and only the first query (which sets up the data sources)
+ * takes a lock
+ * 
+ * Each data source records metrics on the connections it hands out, and which policies selected it - these are
+ * available from getMetricsSnapshots(), and as one DataSourceMetricsMXBean per data source over JMX
+ * 
+ * getConnectionAsync() waits for the connection on a bounded pool of acquisition threads, rather than on the
+ * caller's thread, so callers can fan a query out to several data sources and compose the results
+ * 
+ * Connection requests can be hedged (ENIQ_EVENTS_DATA_SOURCE_HEDGE_PERCENTILE) - if the selected data source is
+ * slower than usual to give a connection, a second request is sent to another data source, and the first connection
+ * to arrive is used - see getHedgedConnection(). The request that loses closes its connection when it arrives
+ * 
+ * With ENIQ_EVENTS_DATA_SOURCE_ADAPTIVE_LIMIT set, each data source also has an adaptive concurrency limit (see
+ * AdaptiveConcurrencyLimit) in place of its static MaxPoolSize
+ * 
+ * If the selected data source fails to give a connection, the request fails over to the next data source chosen by
+ * the same policy, within a retry budget shared by all queries and with a jittered backoff - see RetryBudget and
+ * failOver()
+ * 
+ * Each connection is taken for a class of query (see QueryClass) - a bulkhead limits the connections held by each
+ * class at once, so that, for example, a burst of CSV exports can't starve the UI's drill downs. The permit is given
+ * back when the connection is closed
+ * 
+ * CSV exports have their own set of data sources (ENIQ_EVENTS_EXPORT_CSV_DATA_SOURCE, a comma separated list), kept
+ * apart from the data sources used for queries - they are discovered at startup along with the query data sources,
+ * health checked by the DataSourceHealthMonitor, and balanced with their own load balancing policy (see
+ * getCSVConnection())
+ * 
+ * query() runs a query and reads its result, and can share small results (eg the KPI and ranking queries that
+ * dashboards refresh for many users at once) between callers - from a result cache (see QueryResultCache), and by
+ * running identical queries that arrive at the same time only once (see QueryCoalescer)
+ * 
+ * scatterGather() runs one query on several data sources at once, for queries over partitioned tables that can be
+ * split across the reader nodes
+ * 
  * Not letting this class implement DataSource at the moment as that brings six or seven unnecessary methods
  * along with getConnection()
  * 
@@ -57,6 +126,11 @@ import com.ericsson.eniq.events.server.utils.config.CannotReadAMXPropertyExcepti
  * 2.This Managed Connection is not valid as the physical connection is not usable
  */
 @TransactionManagement(TransactionManagementType.BEAN)
+/*Reason to use @ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+ * The container's default write lock would serialise every getConnection() call, including the wait for a
+ * pooled connection - the data source snapshots are thread safe, so no container locking is needed
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class DataSourceManager {
 
     static final String ENIQ_EVENTS_ADDITIONAL_DATA_SOURCES_PROPERTY_NAME = "ENIQ_EVENTS_ADDITIONAL_DATA_SOURCES";
@@ -69,122 +143,1376 @@ public class DataSourceManager {
 
     static final String DEFAULT_DATA_SOURCE_WEIGHT = "3";
 
+    static final String DISCOVERY_TIMEOUT_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_DISCOVERY_TIMEOUT_SECONDS";
+
+    static final int DEFAULT_DISCOVERY_TIMEOUT_SECONDS = 10;
+
+    static final int MAXIMUM_DISCOVERY_THREADS = 8;
+
+    static final String ASYNC_ACQUISITION_THREADS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_ASYNC_ACQUISITION_THREADS";
+
+    static final int DEFAULT_ASYNC_ACQUISITION_THREADS = 32;
+
+    static final String ASYNC_ACQUISITION_QUEUE_SIZE_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_ASYNC_ACQUISITION_QUEUE_SIZE";
+
+    static final int DEFAULT_ASYNC_ACQUISITION_QUEUE_SIZE = 1024;
+
+    static final String SCATTER_GATHER_PARALLELISM_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_SCATTER_GATHER_PARALLELISM";
+
+    static final int DEFAULT_SCATTER_GATHER_PARALLELISM = 8;
+
+    static final String SCATTER_GATHER_QUEUE_SIZE_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_SCATTER_GATHER_QUEUE_SIZE";
+
+    static final int DEFAULT_SCATTER_GATHER_QUEUE_SIZE = 256;
+
+    static final String SCATTER_GATHER_TIMEOUT_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_SCATTER_GATHER_TIMEOUT_SECONDS";
+
+    static final int DEFAULT_SCATTER_GATHER_TIMEOUT_SECONDS = 60;
+
+    static final String SHARED_QUERY_TIMEOUT_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_SHARED_QUERY_TIMEOUT_SECONDS";
+
+    static final int DEFAULT_SHARED_QUERY_TIMEOUT_SECONDS = 60;
+
+    static final String HEDGE_PERCENTILE_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_HEDGE_PERCENTILE";
+
+    static final String HEDGE_MINIMUM_SAMPLES_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_HEDGE_MINIMUM_SAMPLES";
+
+    static final long DEFAULT_HEDGE_MINIMUM_SAMPLES = 100;
+
+    static final String HEDGE_TIMEOUT_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_HEDGE_TIMEOUT_SECONDS";
+
+    static final int DEFAULT_HEDGE_TIMEOUT_SECONDS = 60;
+
+    static final String ADAPTIVE_LIMIT_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_ADAPTIVE_LIMIT";
+
+    static final String ADAPTIVE_LIMIT_MINIMUM_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_ADAPTIVE_LIMIT_MINIMUM";
+
+    static final String ADAPTIVE_LIMIT_BACKOFF_RATIO_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_ADAPTIVE_LIMIT_BACKOFF_RATIO";
+
+    static final String ADAPTIVE_LIMIT_LATENCY_TOLERANCE_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_ADAPTIVE_LIMIT_LATENCY_TOLERANCE";
+
+    static final String ADAPTIVE_LIMIT_QUEUE_TIMEOUT_MILLIS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_ADAPTIVE_LIMIT_QUEUE_TIMEOUT_MILLIS";
+
+    static final String CIRCUIT_BREAKER_WINDOW_SIZE_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_CIRCUIT_BREAKER_WINDOW_SIZE";
+
+    static final String CIRCUIT_BREAKER_FAILURE_RATE_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_CIRCUIT_BREAKER_FAILURE_RATE";
+
+    static final String CIRCUIT_BREAKER_SLOW_CALL_MILLIS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_CIRCUIT_BREAKER_SLOW_CALL_MILLIS";
+
+    static final String CIRCUIT_BREAKER_OPEN_MILLIS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_CIRCUIT_BREAKER_OPEN_MILLIS";
+
+    static final String NO_POLICY_NAME = "None";
+
+    /**
+     * names selections made by KeyAffinitySelector, as the policies it binds to a key are named
+     */
+    static final String KEY_AFFINITY_POLICY_NAME = "KeyAffinity";
+
+    private static final String POLICY_CLASS_SUFFIX = "LoadBalancingPolicy";
+
+    private static final String NO_DATA_SOURCE_AVAILABLE = "No data source is available - they are all being warmed up";
+
+    /**
+     * names the load balancing policies in the selection metrics, worked out once per policy class
+     * The container may hand out a proxy for a singleton policy, so anything from a '$' on is dropped from the
+     * class name, as is the LoadBalancingPolicy suffix - eg RoundRobinLoadBalancingPolicy is counted as RoundRobin
+     */
+    private static final ClassValue<String> POLICY_NAMES = new ClassValue<String>() {
+        @Override
+        protected String computeValue(final Class<?> policyClass) {
+            String policyName = policyClass.getSimpleName();
+            if (policyName.isEmpty()) {
+                // anonymous policy
+                policyName = policyClass.getName().substring(policyClass.getName().lastIndexOf('.') + 1);
+            }
+            final int proxySuffix = policyName.indexOf('$');
+            if (proxySuffix > 0) {
+                policyName = policyName.substring(0, proxySuffix);
+            }
+            if (policyName.endsWith(POLICY_CLASS_SUFFIX) && policyName.length() > POLICY_CLASS_SUFFIX.length()) {
+                policyName = policyName.substring(0, policyName.length() - POLICY_CLASS_SUFFIX.length());
+            }
+            return policyName;
+        }
+    };
+
     @Resource(name = ApplicationConfigConstants.ENIQ_EVENT_PROPERTIES)
     private Properties eniqEventsProperties;
 
-    List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+    private final AtomicReference<DataSourceTopology> availableDataSources = new AtomicReference<DataSourceTopology>();
+
+    private final AtomicReference<DataSourceTopology> csvDataSources = new AtomicReference<DataSourceTopology>();
+
+    /**
+     * percentile of the selected data source's acquire times after which a hedged request is sent - 0 if hedging
+     * is off. Read from the properties whenever the data sources are set up, to keep it off the query path
+     */
+    private volatile double hedgePercentile;
+
+    private volatile int sharedQueryTimeoutSeconds = DEFAULT_SHARED_QUERY_TIMEOUT_SECONDS;
+
+    private volatile long hedgeMinimumSamples = DEFAULT_HEDGE_MINIMUM_SAMPLES;
+
+    private volatile int hedgeTimeoutSeconds = DEFAULT_HEDGE_TIMEOUT_SECONDS;
+
+    private final AtomicReference<Bulkhead> bulkhead = new AtomicReference<Bulkhead>();
+
+    private final AtomicReference<RetryBudget> retryBudget = new AtomicReference<RetryBudget>();
+
+    private final AtomicLong connectionRetries = new AtomicLong(0);
+
+    private final AtomicLong connectionRetriesRefused = new AtomicLong(0);
+
+    private final AtomicReference<QueryResultCache> queryResultCache = new AtomicReference<QueryResultCache>();
+
+    private final QueryCoalescer queryCoalescer = new QueryCoalescer();
+
+    private final AtomicReference<ExecutorService> acquisitionExecutor = new AtomicReference<ExecutorService>();
+
+    private final AtomicReference<ExecutorService> scatterGatherExecutor = new AtomicReference<ExecutorService>();
+
+    private final DataSourceMBeans mBeans = new DataSourceMBeans(ManagementFactory.getPlatformMBeanServer());
+
+    @EJB
+    private AMXPropertyReader amxPropertyReader;
+
+    @EJB
+    private DataSourceHealthMonitor dataSourceHealthMonitor;
+
+    /**
+     * policy used to balance CSV exports across the CSV data sources - exports hold their connections for a long and
+     * widely varying time, so they go to the data source with the fewest connections leased
+     */
+    @EJB(beanName = "LeastOutstandingConnectionsLoadBalancingPolicy")
+    private LoadBalancingPolicy csvLoadBalancingPolicy;
+
+    /**
+     * Register the MXBean for managing the data sources, and set up the data sources
+     */
+    @PostConstruct
+    public void startUp() {
+        mBeans.registerManager(new DataSourceManagerControl());
+        discoverDataSourcesAtStartup();
+    }
+
+    /**
+     * Set up the data sources (and the CSV data sources, if any are configured) eagerly, as the bean is created at
+     * deployment, so that the first query doesn't have to wait for the JNDI and AMX lookups
+     * On a Glassfish restart AMX may not be available yet (see checkDataSourcesSetUp()) - if any lookup can't be
+     * completed, the data sources are left to be set up on the first query, as before
+     */
+    public void discoverDataSourcesAtStartup() {
+        synchronized (availableDataSources) {
+            if (availableDataSources.get() == null) {
+                try {
+                    publishDataSources(discoverDataSources(eniqEventsProperties, false), eniqEventsProperties);
+                } catch (final DataSourceConfigurationException e) {
+                    ServicesLogger.warn(getClass().getName(), "discoverDataSourcesAtStartup",
+                            "Could not set up the data sources at startup, they will be set up on the first query", e);
+                }
+            }
+        }
+        synchronized (csvDataSources) {
+            final Properties properties = getEniqEventsProperties();
+            if (csvDataSources.get() == null && !getCSVDataSourcesConfigured(properties).isEmpty()) {
+                try {
+                    publishCSVDataSources(discoverCSVDataSources(properties, false), properties);
+                } catch (final DataSourceConfigurationException e) {
+                    ServicesLogger.warn(getClass().getName(), "discoverDataSourcesAtStartup",
+                            "Could not set up the CSV data sources at startup, they will be set up on the first "
+                                    + "CSV export", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * checks if the default data source is present
+     * If not, an exception is thrown
+     * Also checks for the presence of any additional data sources
+     * that may be configured by the operators
+     * Note, if these additional data sources don't exist, an exception isn't thrown, just logged
+     */
+    public void setUpDataSources() throws DataSourceConfigurationException {
+        publishDataSources(discoverDataSources(eniqEventsProperties, true), eniqEventsProperties);
+    }
+
+    /**
+     * Re-read the data source properties (ENIQ_EVENTS_DEFAULT_DATA_SOURCE, ENIQ_EVENTS_ADDITIONAL_DATA_SOURCES and
+     * the other optional properties) from the ENIQ Events JNDI properties, and the pool sizes from AMX, and publish
+     * a new snapshot of the data sources - so reader nodes can be added or removed, or pools resized, without a
+     * redeploy
+     * 
+     * Data sources whose JNDI name and weight haven't changed are carried over as they are, keeping their health,
+     * circuit breaker and metrics. Connections leased from data sources that have been dropped or replaced stay
+     * valid, and go back to their pools as the callers close them - only new queries see the new snapshot
+     * 
+     * The properties read are published along with the new snapshot (see getEniqEventsProperties()), and passed on
+     * to the health monitor - the injected properties are left as they were. The bulkhead limits and retry budget
+     * settings are applied to the current bulkhead and retry budget, so queries already holding permits or waiting
+     * for them aren't disturbed
+     * 
+     * If the CSV data sources have been set up, they're reloaded too, and the query result cache is emptied and
+     * recreated with the current settings
+     * 
+     * @throws DataSourceConfigurationException if the default data source can't be found - the current data sources
+     * remain in use
+     */
+    public void reloadDataSources() throws DataSourceConfigurationException {
+        synchronized (availableDataSources) {
+            final Properties properties = lookUpEniqEventsProperties();
+            publishDataSources(carryOverUnchangedDataSources(discoverDataSources(properties, true),
+                    availableDataSources.get()), properties);
+            // results read from the previous data sources are dropped along with the old cache settings
+            queryResultCache.set(new QueryResultCache(properties));
+        }
+        synchronized (csvDataSources) {
+            if (csvDataSources.get() != null) {
+                final Properties properties = getEniqEventsProperties();
+                publishCSVDataSources(discoverCSVDataSources(properties, true), properties);
+            }
+        }
+        ServicesLogger.detailed(getClass().getName(), "reloadDataSources", "Data sources reloaded",
+                getPoolNames(availableDataSources.get()));
+    }
+
+    /**
+     * Get the current ENIQ Events JNDI properties - falls back to the properties in use if they can't be looked up
+     * @return
+     */
+    private Properties lookUpEniqEventsProperties() {
+        try {
+            final Object properties = createInitialContext().lookup(ApplicationConfigConstants.ENIQ_EVENT_PROPERTIES);
+            if (properties instanceof Properties) {
+                return (Properties) properties;
+            }
+            ServicesLogger.detailed(getClass().getName(), "lookUpEniqEventsProperties",
+                    "ENIQ Events JNDI properties not found, reloading with the current properties", properties);
+        } catch (final NamingException e) {
+            ServicesLogger.warn(getClass().getName(), "lookUpEniqEventsProperties",
+                    "Could not look up the ENIQ Events JNDI properties, reloading with the current properties", e);
+        }
+        return getEniqEventsProperties();
+    }
+
+    /**
+     * Get the ENIQ Events properties in use - those published with the current data sources, or the injected
+     * properties if the data sources haven't been set up yet
+     * Also read by the DBConnectionManager, for the dwhrep cache settings
+     * @return
+     */
+    public Properties getEniqEventsProperties() {
+        final DataSourceTopology topology = availableDataSources.get();
+        return topology == null || topology.getProperties() == null ? eniqEventsProperties : topology
+                .getProperties();
+    }
+
+    /**
+     * Replace each newly discovered data source with the current data source of the same JNDI name and weight,
+     * if there is one
+     * @param discoveredDataSources
+     * @param currentDataSources current data sources, or null if there are none
+     * @return
+     */
+    private List<EniqDataSource> carryOverUnchangedDataSources(final List<EniqDataSource> discoveredDataSources,
+            final List<EniqDataSource> currentDataSources) {
+        if (currentDataSources == null) {
+            return discoveredDataSources;
+        }
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        for (final EniqDataSource discoveredDataSource : discoveredDataSources) {
+            EniqDataSource dataSourceToUse = discoveredDataSource;
+            for (final EniqDataSource currentDataSource : currentDataSources) {
+                if (currentDataSource.getPoolName().equals(discoveredDataSource.getPoolName())
+                        && currentDataSource.getWeight() == discoveredDataSource.getWeight()) {
+                    dataSourceToUse = currentDataSource;
+                    break;
+                }
+            }
+            dataSources.add(dataSourceToUse);
+        }
+        return dataSources;
+    }
+
+    private static List<String> getPoolNames(final List<EniqDataSource> dataSources) {
+        final List<String> poolNames = new ArrayList<String>();
+        if (dataSources != null) {
+            for (final EniqDataSource dataSource : dataSources) {
+                poolNames.add(dataSource.getPoolName());
+            }
+        }
+        return poolNames;
+    }
+
+    /**
+     * Publish a new snapshot of the data sources, along with the properties they were set up with, and start
+     * monitoring them
+     * @param dataSources
+     * @param properties ENIQ Events properties to publish
+     */
+    private void publishDataSources(final List<EniqDataSource> dataSources, final Properties properties) {
+        final DataSourceTopology topology = new DataSourceTopology(dataSources, properties);
+        hedgePercentile = Math.min(DataSourceProperties.getDouble(properties, HEDGE_PERCENTILE_PROPERTY_NAME, 0), 100);
+        hedgeMinimumSamples = DataSourceProperties.getLong(properties, HEDGE_MINIMUM_SAMPLES_PROPERTY_NAME,
+                DEFAULT_HEDGE_MINIMUM_SAMPLES);
+        hedgeTimeoutSeconds = Math.max(DataSourceProperties.getInt(properties, HEDGE_TIMEOUT_SECONDS_PROPERTY_NAME,
+                DEFAULT_HEDGE_TIMEOUT_SECONDS), 1);
+        sharedQueryTimeoutSeconds = Math.max(DataSourceProperties.getInt(properties,
+                SHARED_QUERY_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_SHARED_QUERY_TIMEOUT_SECONDS), 1);
+        getBulkhead().resize(properties);
+        getRetryBudget().configure(properties);
+        dataSourceHealthMonitor.monitor(DataSourceMBeans.QUERY_GROUP, topology, properties);
+        availableDataSources.set(topology);
+        mBeans.register(DataSourceMBeans.QUERY_GROUP, topology);
+    }
+
+    /**
+     * Unregister the MXBeans for managing and monitoring the data sources, and stop the acquisition threads and the
+     * scatter-gather threads - any requests still waiting for a thread are abandoned
+     */
+    @PreDestroy
+    public void shutDown() {
+        mBeans.unregisterAll();
+        final ExecutorService executor = acquisitionExecutor.getAndSet(null);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        final ExecutorService queryExecutor = scatterGatherExecutor.getAndSet(null);
+        if (queryExecutor != null) {
+            queryExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Look up the default data source and any additional data sources configured
+     * 
+     * The lookups are run in parallel, and given a shared deadline of the discovery timeout - so the time taken is that
+     * of the slowest lookup, not the sum of all lookups, and a hung or missing additional data source doesn't hold up
+     * the others (it's logged, and left out)
+     * 
+     * @param useDefaultWeightIfAMXUnavailable true to fall back to the default weight if a data source's pool
+     * size can't be read from AMX, false to fail the discovery instead
+     * @return the data sources found - the default data source is first in the list, followed by the additional data
+     * sources in the order configured
+     * @throws DataSourceConfigurationException if the default data source can't be found, or (if
+     * useDefaultWeightIfAMXUnavailable is false) any pool size can't be read from AMX
+     */
+    private List<EniqDataSource> discoverDataSources(final Properties properties,
+            final boolean useDefaultWeightIfAMXUnavailable) throws DataSourceConfigurationException {
+        final String defaultEniqDataSourceName = (String) properties.get(DEFAULT_ENIQ_DATA_SOURCE_PROPERTY_NAME);
+        final List<String> additionalDataSourceNames = getExtraDataSourcesConfigured(properties);
+        final ExecutorService discoveryExecutor = createDiscoveryExecutor(additionalDataSourceNames.size() + 1);
+        try {
+            final Future<EniqDataSource> defaultDataSourceLookup = discoveryExecutor.submit(new DataSourceLookup(
+                    defaultEniqDataSourceName, properties, useDefaultWeightIfAMXUnavailable));
+            final List<Future<EniqDataSource>> additionalDataSourceLookups = new ArrayList<Future<EniqDataSource>>();
+            for (final String additionalDataSourceName : additionalDataSourceNames) {
+                additionalDataSourceLookups.add(discoveryExecutor.submit(new DataSourceLookup(additionalDataSourceName,
+                        properties, useDefaultWeightIfAMXUnavailable)));
+            }
+            final long deadline = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(DataSourceProperties.getInt(properties,
+                            DISCOVERY_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_DISCOVERY_TIMEOUT_SECONDS));
+
+            final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+            //important for some policies - the default data source must be first in the list       
+            dataSources.add(getDefaultDataSource(defaultEniqDataSourceName, defaultDataSourceLookup, deadline));
+            for (int i = 0; i < additionalDataSourceNames.size(); i++) {
+                final EniqDataSource additionalDataSource = getAdditionalDataSource(additionalDataSourceNames.get(i),
+                        additionalDataSourceLookups.get(i), deadline);
+                if (additionalDataSource != null) {
+                    dataSources.add(additionalDataSource);
+                }
+            }
+            return dataSources;
+        } finally {
+            discoveryExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait for the lookup of the default ENIQ data source
+     * @return
+     * @throws DataSourceConfigurationException - if default ENIQ data source doesn't exist, or can't be looked up
+     * before the deadline
+     */
+    private EniqDataSource getDefaultDataSource(final String defaultEniqDataSourceName,
+            final Future<EniqDataSource> lookup, final long deadline) throws DataSourceConfigurationException {
+        try {
+            return waitForLookup(lookup, deadline);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof NamingException) {
+                throw new DataSourceConfigurationException("The ENIQ Events default data source "
+                        + defaultEniqDataSourceName + " could not be found in Glassfish", (NamingException) cause);
+            }
+            throw new DataSourceConfigurationException("Could not look up the ENIQ Events default data source "
+                    + defaultEniqDataSourceName, cause);
+        } catch (final TimeoutException e) {
+            throw new DataSourceConfigurationException("Lookup of the ENIQ Events default data source "
+                    + defaultEniqDataSourceName + " did not complete in time", e);
+        }
+    }
+
+    /**
+     * Wait for the lookup of an additional data source
+     * Note, if the additional data source doesn't exist, or can't be looked up before the deadline, an exception
+     * isn't thrown, just logged
+     * @return the data source, or null if it couldn't be looked up
+     * @throws DataSourceConfigurationException if the data source's pool size can't be read from AMX, and the
+     * lookup wasn't to fall back to the default weight
+     */
+    private EniqDataSource getAdditionalDataSource(final String additionalDataSourceName,
+            final Future<EniqDataSource> lookup, final long deadline) throws DataSourceConfigurationException {
+        try {
+            final EniqDataSource additionalDataSource = waitForLookup(lookup, deadline);
+            ServicesLogger.detailed(getClass().getName(), "", "Additional data source found",
+                    additionalDataSourceName, additionalDataSource);
+            return additionalDataSource;
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof CannotReadAMXPropertyException) {
+                throw new DataSourceConfigurationException("Could not read the pool size of additional data source "
+                        + additionalDataSourceName + " from AMX", e.getCause());
+            }
+            ServicesLogger.warn(getClass().getName(), "getAdditionalDataSources",
+                    "Problem accessing additional configured data source " + additionalDataSourceName, e.getCause());
+        } catch (final TimeoutException e) {
+            ServicesLogger.warn(getClass().getName(), "getAdditionalDataSources",
+                    "Lookup of additional configured data source " + additionalDataSourceName
+                            + " did not complete in time, it will not be used", e);
+        }
+        return null;
+    }
+
+    private EniqDataSource waitForLookup(final Future<EniqDataSource> lookup, final long deadline)
+            throws ExecutionException, TimeoutException, DataSourceConfigurationException {
+        try {
+            return lookup.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataSourceConfigurationException("Interrupted while looking up data sources", e);
+        } finally {
+            lookup.cancel(true);
+        }
+    }
+
+    /**
+     * Look up the CSV data sources configured, in parallel, as for discoverDataSources()
+     * Note, if some of the CSV data sources don't exist, an exception isn't thrown, just logged - the CSV exports
+     * are spread over those that do
+     * 
+     * @param useDefaultWeightIfAMXUnavailable see discoverDataSources()
+     * @return the CSV data sources found, in the order configured
+     * @throws DataSourceConfigurationException if none of the CSV data sources can be found, or (if
+     * useDefaultWeightIfAMXUnavailable is false) any pool size can't be read from AMX
+     */
+    private List<EniqDataSource> discoverCSVDataSources(final Properties properties,
+            final boolean useDefaultWeightIfAMXUnavailable) throws DataSourceConfigurationException {
+        final List<String> csvDataSourceNames = getCSVDataSourcesConfigured(properties);
+        if (csvDataSourceNames.isEmpty()) {
+            throw new DataSourceConfigurationException("No ENIQ Events CSV data source is configured in "
+                    + EXPORT_CSV_ENIQ_DATA_SOURCE_PROPERTY_NAME);
+        }
+        final ExecutorService discoveryExecutor = createDiscoveryExecutor(csvDataSourceNames.size());
+        try {
+            final List<Future<EniqDataSource>> csvDataSourceLookups = new ArrayList<Future<EniqDataSource>>();
+            for (final String csvDataSourceName : csvDataSourceNames) {
+                csvDataSourceLookups.add(discoveryExecutor.submit(new DataSourceLookup(csvDataSourceName, properties,
+                        useDefaultWeightIfAMXUnavailable)));
+            }
+            final long deadline = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(DataSourceProperties.getInt(properties,
+                            DISCOVERY_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_DISCOVERY_TIMEOUT_SECONDS));
+
+            final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+            for (int i = 0; i < csvDataSourceNames.size(); i++) {
+                final EniqDataSource csvDataSource = getAdditionalDataSource(csvDataSourceNames.get(i),
+                        csvDataSourceLookups.get(i), deadline);
+                if (csvDataSource != null) {
+                    dataSources.add(csvDataSource);
+                }
+            }
+            if (dataSources.isEmpty()) {
+                throw new DataSourceConfigurationException("None of the ENIQ Events CSV data sources "
+                        + csvDataSourceNames + " could be found in Glassfish");
+            }
+            return dataSources;
+        } finally {
+            discoveryExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Publish a new snapshot of the CSV data sources, and start monitoring them - CSV data sources that haven't
+     * changed are carried over, as for reloadDataSources()
+     * @param discoveredDataSources
+     * @param properties the ENIQ Events JNDI properties the data sources were discovered with
+     */
+    private void publishCSVDataSources(final List<EniqDataSource> discoveredDataSources,
+            final Properties properties) {
+        final DataSourceTopology topology = new DataSourceTopology(carryOverUnchangedDataSources(
+                discoveredDataSources, csvDataSources.get()));
+        dataSourceHealthMonitor.monitor(DataSourceMBeans.CSV_GROUP, topology, properties);
+        csvDataSources.set(topology);
+        mBeans.register(DataSourceMBeans.CSV_GROUP, topology);
+    }
 
-    List<EniqDataSource> csvDataSource = new ArrayList<EniqDataSource>();
+    /**
+     * Get a database connection
+     * 
+     *  Get a data source from the selection of data sources available
+     * If there is just one data source, this is returned
+     * Otherwise, the load balancing policy is used to select a data source
+     * 
+     * If hedging is on, and there's more than one data source to choose from, the request may be hedged - see
+     * getHedgedConnection()
+     * 
+     * The connection is taken for an INTERACTIVE query
+     * 
+     * @param loadBalancingPolicy               load balancing policy to use when selecting data source 
+     * @return
+     * @return {@link Connection <tt>Connection</tt>}
+     * @throws SQLException Database connection errors
+     * @throws DataSourceConfigurationException 
+     */
+    public Connection getConnection(final LoadBalancingPolicy loadBalancingPolicy) throws SQLException,
+            DataSourceConfigurationException {
+        return getConnection(loadBalancingPolicy, QueryClass.INTERACTIVE);
+    }
+
+    /**
+     * Get a database connection for this class of query - as getConnection(LoadBalancingPolicy), but the connection
+     * counts against the bulkhead limit of the query class given
+     * 
+     * @param loadBalancingPolicy               load balancing policy to use when selecting data source 
+     * @param queryClass class of query the connection is for
+     * @return {@link Connection <tt>Connection</tt>}
+     * @throws SQLException Database connection errors, or if the query class is at its limit
+     * @throws DataSourceConfigurationException 
+     */
+    public Connection getConnection(final LoadBalancingPolicy loadBalancingPolicy, final QueryClass queryClass)
+            throws SQLException, DataSourceConfigurationException {
+        return getConnection(loadBalancingPolicy, queryClass, true);
+    }
+
+    private Connection getConnection(final LoadBalancingPolicy loadBalancingPolicy, final QueryClass queryClass,
+            final boolean hedgingAllowed) throws SQLException, DataSourceConfigurationException {
+        final Runnable permit = getBulkhead().acquire(queryClass);
+        boolean admitted = false;
+        try {
+            final Connection connection = releasePermitWhenClosed(selectAndGetConnection(loadBalancingPolicy,
+                    hedgingAllowed), permit);
+            admitted = true;
+            return connection;
+        } finally {
+            if (!admitted) {
+                releasePermit(permit);
+            }
+        }
+    }
+
+    private Connection selectAndGetConnection(final LoadBalancingPolicy loadBalancingPolicy,
+            final boolean hedgingAllowed) throws SQLException, DataSourceConfigurationException {
+
+        final DataSourceTopology topology = checkDataSourcesSetUp();
+
+        final List<EniqDataSource> dataSourcesToChooseFrom = getDataSourcesAvailableForSelection(topology);
+        final DataSource dataSourceToUse = selectDataSource(loadBalancingPolicy, dataSourcesToChooseFrom);
+        HedgedRequest hedgedRequest = null;
+        try {
+            if (hedgingAllowed && isHedged(dataSourceToUse, dataSourcesToChooseFrom)) {
+                hedgedRequest = new HedgedRequest(hedgeTimeoutSeconds);
+                return getHedgedConnection(hedgedRequest, (EniqDataSourceImpl) dataSourceToUse,
+                        dataSourcesToChooseFrom, loadBalancingPolicy);
+            }
+            return getConnectionFrom(dataSourceToUse);
+        } catch (final SQLException e) {
+            return failOver(loadBalancingPolicy, dataSourcesToChooseFrom, dataSourceToUse,
+                    getHedgeDataSource(hedgedRequest), e);
+        }
+    }
+
+    /**
+     * Get a database connection from the data source for this routing key - all queries for the same key go to the
+     * same IQ reader while it's available (see KeyAffinitySelector)
+     * 
+     * The key is passed to the shared selector along with the data sources, so unlike a policy bound to the key
+     * (see LoadBalancingPolicyFactory.getKeyAffinityLoadBalancingPolicy(String)) nothing is allocated per query to
+     * select the data source - a policy is only bound to the key if the request is hedged, or fails over
+     * 
+     * The connection is taken for an INTERACTIVE query
+     * 
+     * @param keyAffinitySelector the shared selector - see LoadBalancingPolicyFactory.getKeyAffinitySelector()
+     * @param routingKey key identifying the subject of the query, eg IMSI, MSISDN, cell ID or APN
+     * @return {@link Connection <tt>Connection</tt>}
+     * @throws SQLException Database connection errors
+     * @throws DataSourceConfigurationException
+     * @throws IllegalArgumentException if routingKey is null
+     */
+    public Connection getConnection(final KeyAffinitySelector keyAffinitySelector, final String routingKey)
+            throws SQLException, DataSourceConfigurationException {
+        final Runnable permit = getBulkhead().acquire(QueryClass.INTERACTIVE);
+        boolean admitted = false;
+        try {
+            final Connection connection = releasePermitWhenClosed(selectAndGetConnection(keyAffinitySelector,
+                    routingKey), permit);
+            admitted = true;
+            return connection;
+        } finally {
+            if (!admitted) {
+                releasePermit(permit);
+            }
+        }
+    }
+
+    private Connection selectAndGetConnection(final KeyAffinitySelector keyAffinitySelector, final String routingKey)
+            throws SQLException, DataSourceConfigurationException {
+
+        final DataSourceTopology topology = checkDataSourcesSetUp();
+
+        final List<EniqDataSource> dataSourcesToChooseFrom = getDataSourcesAvailableForSelection(topology);
+        if (dataSourcesToChooseFrom.isEmpty()) {
+            throw new ConnectionRejectedException(NO_DATA_SOURCE_AVAILABLE);
+        }
+        final DataSource dataSourceToUse = keyAffinitySelector.selectDataSource(dataSourcesToChooseFrom, routingKey);
+        recordSelection(dataSourceToUse, KEY_AFFINITY_POLICY_NAME);
+        HedgedRequest hedgedRequest = null;
+        try {
+            if (isHedged(dataSourceToUse, dataSourcesToChooseFrom)) {
+                hedgedRequest = new HedgedRequest(hedgeTimeoutSeconds);
+                return getHedgedConnection(hedgedRequest, (EniqDataSourceImpl) dataSourceToUse,
+                        dataSourcesToChooseFrom, keyAffinitySelector.forRoutingKey(routingKey));
+            }
+            return getConnectionFrom(dataSourceToUse);
+        } catch (final SQLException e) {
+            return failOver(keyAffinitySelector.forRoutingKey(routingKey), dataSourcesToChooseFrom, dataSourceToUse,
+                    getHedgeDataSource(hedgedRequest), e);
+        }
+    }
+
+    /**
+     * @param hedgedRequest null if the request wasn't hedged
+     * @return the data source the request was hedged to, or null if no hedge was sent
+     */
+    private static EniqDataSource getHedgeDataSource(final HedgedRequest hedgedRequest) {
+        return hedgedRequest == null ? null : hedgedRequest.getHedgeDataSource();
+    }
+
+    private boolean isHedged(final DataSource dataSourceToUse, final List<EniqDataSource> dataSourcesToChooseFrom) {
+        return hedgePercentile > 0 && dataSourcesToChooseFrom.size() > 1
+                && dataSourceToUse instanceof EniqDataSourceImpl;
+    }
+
+    /**
+     * Select a data source with the load balancing policy, and count the selection against it
+     * @throws ConnectionRejectedException if there's no data source to choose from - they're all being warmed up
+     */
+    private DataSource selectDataSource(final LoadBalancingPolicy loadBalancingPolicy,
+            final List<EniqDataSource> dataSourcesToChooseFrom) throws ConnectionRejectedException {
+        DataSource dataSourceToUse;
+        if (dataSourcesToChooseFrom.isEmpty()) {
+            throw new ConnectionRejectedException(NO_DATA_SOURCE_AVAILABLE);
+        }
+        if (dataSourcesToChooseFrom.size() == 1) {
+            dataSourceToUse = dataSourcesToChooseFrom.get(0);
+        } else {
+            dataSourceToUse = loadBalancingPolicy.selectDataSource(dataSourcesToChooseFrom);
+        }
+        recordSelection(dataSourceToUse, loadBalancingPolicy);
+        return dataSourceToUse;
+    }
+
+    private Connection getConnectionFrom(final DataSource dataSourceToUse) throws SQLException {
+        final String poolName = ((EniqDataSource) dataSourceToUse).getPoolName();
+        setPoolName(poolName);
+        return dataSourceToUse.getConnection();
+    }
+
+    /**
+     * Retry a failed request for a connection on the other data sources
+     * 
+     * Each retry goes to a data source not tried yet for this request, chosen by the same load balancing policy from
+     * those still available - a data source is never retried, so with one data source there is no retry. Each retry
+     * takes a token from the retry budget, and backs off first (see RetryBudget) - if the budget is used up, or
+     * retrying is off, the failure is thrown straight away
+     * 
+     * If the request was hedged, the data source it was hedged to has failed too (or not answered in time), so it
+     * isn't retried either
+     * 
+     * A data source that turned the request down without asking its pool (ConnectionRejectedException - eg another
+     * request took its circuit breaker's trial between selection and the request) cost IQ nothing, so the request
+     * goes straight to another data source, without backing off or taking from the budget
+     * 
+     * @param loadBalancingPolicy
+     * @param dataSourcesToChooseFrom data sources the failed data source was selected from
+     * @param failedDataSource
+     * @param hedgeDataSource data source the request was hedged to, or null if it wasn't hedged
+     * @param failure
+     * @return connection from one of the other data sources
+     * @throws SQLException the last failure, with any earlier failures added as suppressed exceptions
+     */
+    private Connection failOver(final LoadBalancingPolicy loadBalancingPolicy,
+            final List<EniqDataSource> dataSourcesToChooseFrom, final DataSource failedDataSource,
+            final EniqDataSource hedgeDataSource, final SQLException failure) throws SQLException {
+        final RetryBudget currentRetryBudget = getRetryBudget();
+        final List<EniqDataSource> untriedDataSources = new ArrayList<EniqDataSource>(dataSourcesToChooseFrom);
+        untriedDataSources.remove(failedDataSource);
+        if (hedgeDataSource != null) {
+            untriedDataSources.remove(hedgeDataSource);
+        }
+        SQLException lastFailure = failure;
+        int retries = 0;
+        while (!untriedDataSources.isEmpty()) {
+            final List<EniqDataSource> retryCandidates = getDataSourcesAvailableForSelection(untriedDataSources);
+            if (retryCandidates.isEmpty()) {
+                // the rest are being warmed up
+                break;
+            }
+            if (!(lastFailure instanceof ConnectionRejectedException)) {
+                if (++retries > currentRetryBudget.getMaximumRetries()) {
+                    break;
+                }
+                if (!currentRetryBudget.tryAcquire()) {
+                    connectionRetriesRefused.incrementAndGet();
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(currentRetryBudget.getBackoffNanos(retries));
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            connectionRetries.incrementAndGet();
+            final DataSource retryDataSource = selectDataSource(loadBalancingPolicy, retryCandidates);
+            untriedDataSources.remove(retryDataSource);
+            ServicesLogger.detailed(getClass().getName(), "failOver", "Retrying on another data source",
+                    ((EniqDataSource) retryDataSource).getPoolName(), lastFailure.getMessage());
+            try {
+                return getConnectionFrom(retryDataSource);
+            } catch (final SQLException e) {
+                e.addSuppressed(lastFailure);
+                lastFailure = e;
+            }
+        }
+        throw lastFailure;
+    }
+
+    /**
+     * Get the bulkhead, creating it from the current properties on first use - it's resized when the data sources
+     * are published
+     * @return
+     */
+    private Bulkhead getBulkhead() {
+        Bulkhead currentBulkhead = bulkhead.get();
+        if (currentBulkhead == null) {
+            bulkhead.compareAndSet(null, new Bulkhead(getEniqEventsProperties()));
+            currentBulkhead = bulkhead.get();
+        }
+        return currentBulkhead;
+    }
+
+    /**
+     * Get the retry budget, creating it from the current properties on first use - it's reconfigured when the data
+     * sources are published
+     * @return
+     */
+    private RetryBudget getRetryBudget() {
+        RetryBudget currentRetryBudget = retryBudget.get();
+        if (currentRetryBudget == null) {
+            retryBudget.compareAndSet(null, new RetryBudget(getEniqEventsProperties()));
+            currentRetryBudget = retryBudget.get();
+        }
+        return currentRetryBudget;
+    }
+
+    /**
+     * Get the query result cache, creating it from the current properties on first use - it's replaced when the data
+     * sources are reloaded
+     * @return
+     */
+    private QueryResultCache getQueryResultCache() {
+        QueryResultCache currentCache = queryResultCache.get();
+        if (currentCache == null) {
+            queryResultCache.compareAndSet(null, new QueryResultCache(getEniqEventsProperties()));
+            currentCache = queryResultCache.get();
+        }
+        return currentCache;
+    }
+
+    private static Connection releasePermitWhenClosed(final Connection connection, final Runnable permit) {
+        return permit == null ? connection : ConnectionLease.releaseWhenClosed(connection, permit);
+    }
+
+    private static void releasePermit(final Runnable permit) {
+        if (permit != null) {
+            permit.run();
+        }
+    }
+
+    /**
+     * Get a connection from the selected data source, hedging the request if it's slow
+     * 
+     * The request to the selected data source is made on an acquisition thread, and the calling thread waits for it.
+     * If no connection has arrived after the selected data source's ENIQ_EVENTS_DATA_SOURCE_HEDGE_PERCENTILE recent
+     * acquire time (read from its windowed acquire time histogram, so rounded up to a power of two), a second request
+     * is sent to another data source, chosen by the same policy. The first connection to arrive is returned, and the
+     * other request closes its connection when it arrives. If the selected data source fails, the hedge is waited for.
+     * The calling thread waits no longer than ENIQ_EVENTS_DATA_SOURCE_HEDGE_TIMEOUT_SECONDS in all
+     * 
+     * The request isn't hedged until the data source has given ENIQ_EVENTS_DATA_SOURCE_HEDGE_MINIMUM_SAMPLES
+     * connections in the last minute or two, or if the acquisition threads are all busy - it's then made on the
+     * calling thread
+     * 
+     * @param request the request, not yet sent - it records the data source it's hedged to, if it is
+     * @param selectedDataSource
+     * @param dataSourcesToChooseFrom
+     * @param loadBalancingPolicy
+     * @return the first connection to arrive
+     * @throws SQLException if the selected data source fails, and the hedge (if one was sent) fails too
+     * @throws SQLTimeoutException if no connection arrived within the hedge timeout
+     */
+    private Connection getHedgedConnection(final HedgedRequest request, final EniqDataSourceImpl selectedDataSource,
+            final List<EniqDataSource> dataSourcesToChooseFrom, final LoadBalancingPolicy loadBalancingPolicy)
+            throws SQLException {
+        final WindowedLatencyHistogram acquireTimes = selectedDataSource.getMetrics().getRecentAcquireTimes();
+        if (acquireTimes.getCount() < hedgeMinimumSamples) {
+            return getConnectionFrom(selectedDataSource);
+        }
+        if (!request.send(selectedDataSource)) {
+            return getConnectionFrom(selectedDataSource);
+        }
+        if (!request.awaitFirstArrival(acquireTimes.getValueAtPercentile(hedgePercentile))) {
+            final List<EniqDataSource> otherDataSources = new ArrayList<EniqDataSource>(dataSourcesToChooseFrom);
+            otherDataSources.remove(selectedDataSource);
+            final EniqDataSource hedgeDataSource = (EniqDataSource) loadBalancingPolicy
+                    .selectDataSource(otherDataSources);
+            if (request.sendHedge(hedgeDataSource)) {
+                recordSelection(hedgeDataSource, loadBalancingPolicy);
+            }
+        }
+        return request.awaitConnection();
+    }
+
+    /**
+     * Get a database connection without blocking the calling thread
+     * 
+     * The data source is selected, and the connection got, as for getConnection(), but on one of the acquisition
+     * threads - the future completes with the connection, or exceptionally with the SQLException or
+     * DataSourceConfigurationException that getConnection() would have thrown
+     * 
+     * The acquisition threads, and the number of requests that can wait for one, are bounded
+     * (ENIQ_EVENTS_DATA_SOURCE_ASYNC_ACQUISITION_THREADS and ENIQ_EVENTS_DATA_SOURCE_ASYNC_ACQUISITION_QUEUE_SIZE) -
+     * if too many requests are waiting, the future completes exceptionally with an SQLException straight away
+     * 
+     * The caller must close the connection. If the future is cancelled before the connection is got, the connection
+     * is closed once it arrives
+     * 
+     * The connection is taken for an INTERACTIVE query
+     * 
+     * @param loadBalancingPolicy               load balancing policy to use when selecting data source 
+     * @return future for the connection
+     */
+    public CompletableFuture<Connection> getConnectionAsync(final LoadBalancingPolicy loadBalancingPolicy) {
+        return getConnectionAsync(loadBalancingPolicy, QueryClass.INTERACTIVE);
+    }
+
+    /**
+     * Get a database connection for this class of query without blocking the calling thread - see
+     * getConnectionAsync(LoadBalancingPolicy) and getConnection(LoadBalancingPolicy, QueryClass)
+     * 
+     * @param loadBalancingPolicy               load balancing policy to use when selecting data source 
+     * @param queryClass class of query the connection is for
+     * @return future for the connection
+     */
+    public CompletableFuture<Connection> getConnectionAsync(final LoadBalancingPolicy loadBalancingPolicy,
+            final QueryClass queryClass) {
+        final CompletableFuture<Connection> connection = new CompletableFuture<Connection>();
+        try {
+            getAcquisitionExecutor().execute(new ConnectionAcquisition(loadBalancingPolicy, queryClass, null,
+                    connection));
+        } catch (final RejectedExecutionException e) {
+            connection.completeExceptionally(new SQLException("Too many connection requests waiting, request rejected",
+                    e));
+        }
+        return connection;
+    }
+
+    /**
+     * Request a connection from this data source on an acquisition thread
+     * @param dataSource
+     * @return future for the connection, or null if the acquisition threads are all busy
+     */
+    private CompletableFuture<Connection> submitAcquisition(final DataSource dataSource) {
+        final CompletableFuture<Connection> connection = new CompletableFuture<Connection>();
+        try {
+            getAcquisitionExecutor().execute(new ConnectionAcquisition(null, null, dataSource, connection));
+            return connection;
+        } catch (final RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run a query on a data source selected by the load balancing policy, and read its result
+     * 
+     * If shareResult is true, the result may be shared with other callers running the same query (ie the same SQL
+     * and parameters):
+     * - if the query result cache is on (see QueryResultCache), a result cached by an earlier call is read instead of
+     * running the query on IQ, and otherwise the result read from IQ is cached (if it's small enough)
+     * - if the same query is already running for another caller, this call waits for that run and shares its result,
+     * rather than running the query again - see QueryCoalescer
+     * A shared result is copied out of IQ's result set before the extractor reads it - so sharing is meant for queries
+     * with small results. Pass false for a query that must see the latest data, or whose result is large
+     * A shared query is run with a query timeout of ENIQ_EVENTS_SHARED_QUERY_TIMEOUT_SECONDS, and a caller waits no
+     * longer than that for an identical query to share its result - it then fails with an SQLTimeoutException
+     * The result is only copied as far as the cache would keep it (not at all if the cache is off) unless another
+     * caller has joined the run - otherwise the extractor reads the rows copied so far followed by the rest of IQ's
+     * result set, and nothing is cached
+     * 
+     * The extractor always reads its own cursor over the result, so it may read the result set as it would read one
+     * from IQ (forward only, by column index or label)
+     * 
+     * @param loadBalancingPolicy load balancing policy to use when selecting the data source
+     * @param queryClass class of query the connection is taken for
+     * @param sql query to run
+     * @param extractor reads the result
+     * @param shareResult false to always run the query for this call, bypassing the query result cache
+     * @param parameters values for the query's ? placeholders, in order
+     * @return the result read by the extractor
+     * @throws SQLException Database errors, or if the query class is at its limit - nothing is cached
+     * @throws DataSourceConfigurationException
+     */
+    public <T> T query(final LoadBalancingPolicy loadBalancingPolicy, final QueryClass queryClass, final String sql,
+            final ResultSetExtractor<T> extractor, final boolean shareResult, final Object... parameters)
+            throws SQLException, DataSourceConfigurationException {
+        if (!shareResult) {
+            return runQuery(loadBalancingPolicy, queryClass, sql, extractor, 0, parameters);
+        }
+        final QueryKey key = new QueryKey(sql, parameters);
+        final QueryResultCache cache = getQueryResultCache();
+        final ColumnarResult cachedResult = cache.get(key);
+        if (cachedResult != null) {
+            return cachedResult.read(extractor);
+        }
+        final int timeoutSeconds = sharedQueryTimeoutSeconds;
+        return queryCoalescer.run(key, new QueryCoalescer.SharedQuery<T>() {
+            @Override
+            public T run(final QueryCoalescer.Run run) throws SQLException, DataSourceConfigurationException {
+                final long cacheGeneration = cache.getGeneration();
+                return runQuery(loadBalancingPolicy, queryClass, sql, new ResultSetExtractor<T>() {
+                    @Override
+                    public T extractData(final ResultSet resultSet) throws SQLException {
+                        return readSharedResult(resultSet, run, key, cache, cacheGeneration, extractor);
+                    }
+                }, timeoutSeconds, parameters);
+            }
+        }, extractor, timeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Read the result of a query run that may be shared - see query()
+     * @param cacheGeneration the cache's generation before the query was run - nothing is cached if it has moved on
+     */
+    private static <T> T readSharedResult(final ResultSet resultSet, final QueryCoalescer.Run run,
+            final QueryKey key, final QueryResultCache cache, final long cacheGeneration,
+            final ResultSetExtractor<T> extractor) throws SQLException {
+        final ColumnarResult.Copier copier = new ColumnarResult.Copier(resultSet);
+        if (!copier.copyRows(cache.getMaximumEntryBytes()) && run.closeToFollowers()) {
+            final ResultSet rows = copier.getResult().createResultSet(resultSet);
+            try {
+                return extractor.extractData(rows);
+            } finally {
+                rows.close();
+            }
+        }
+        copier.copyRows(Long.MAX_VALUE);
+        final ColumnarResult result = copier.getResult();
+        run.share(result);
+        cache.put(key, result, cacheGeneration);
+        return result.read(extractor);
+    }
+
+    /**
+     * @param timeoutSeconds query timeout, or 0 for none
+     */
+    private <T> T runQuery(final LoadBalancingPolicy loadBalancingPolicy, final QueryClass queryClass,
+            final String sql, final ResultSetExtractor<T> extractor, final int timeoutSeconds,
+            final Object... parameters) throws SQLException, DataSourceConfigurationException {
+        final Connection connection = getConnection(loadBalancingPolicy, queryClass);
+        try {
+            final PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                if (timeoutSeconds > 0) {
+                    statement.setQueryTimeout(timeoutSeconds);
+                }
+                for (int i = 0; i < parameters.length; i++) {
+                    statement.setObject(i + 1, parameters[i]);
+                }
+                final ResultSet resultSet = statement.executeQuery();
+                try {
+                    return extractor.extractData(resultSet);
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Remove the cached result of one query from the query result cache
+     * @param sql
+     * @param parameters
+     */
+    public void invalidateCachedResult(final String sql, final Object... parameters) {
+        getQueryResultCache().invalidate(new QueryKey(sql, parameters));
+    }
+
+    /**
+     * Remove the cached results of every query with this bind parameter from the query result cache - eg for an IMSI,
+     * once new events for that subscriber have been loaded
+     * @param parameterValue
+     */
+    public void invalidateCachedResultsWithParameter(final Object parameterValue) {
+        getQueryResultCache().invalidateQueriesWithParameter(parameterValue);
+    }
+
+    /**
+     * Remove all the results from the query result cache
+     */
+    public void invalidateCachedResults() {
+        getQueryResultCache().invalidateAll();
+    }
+
+    /**
+     * Run a query on every data source available for selection, in parallel - see
+     * scatterGather(String, ResultSetExtractor, Collection, QueryClass)
+     * 
+     * The queries are INTERACTIVE queries
+     * 
+     * @param sql query to run on each data source
+     * @param extractor reads the result set from each data source
+     * @return results from the data sources that succeeded, and the failures from those that didn't
+     * @throws DataSourceConfigurationException if the data sources can't be set up
+     */
+    public <T> ScatterGatherResult<T> scatterGather(final String sql, final ResultSetExtractor<T> extractor)
+            throws DataSourceConfigurationException {
+        return scatterGather(sql, extractor, null, QueryClass.INTERACTIVE);
+    }
+
+    /**
+     * Run an INTERACTIVE query on each of the chosen data sources in parallel - see
+     * scatterGather(String, ResultSetExtractor, Collection, QueryClass)
+     * 
+     * @param sql query to run on each data source
+     * @param extractor reads the result set from each data source
+     * @param poolNames pool names of the data sources to run the query on, or null for every data source available
+     * for selection
+     * @return results from the data sources that succeeded, and the failures from those that didn't
+     * @throws DataSourceConfigurationException if the data sources can't be set up
+     */
+    public <T> ScatterGatherResult<T> scatterGather(final String sql, final ResultSetExtractor<T> extractor,
+            final Collection<String> poolNames) throws DataSourceConfigurationException {
+        return scatterGather(sql, extractor, poolNames, QueryClass.INTERACTIVE);
+    }
+
+    /**
+     * Run a query on each of the chosen data sources in parallel, and gather the results
+     * 
+     * The queries of every scatterGather() call share ENIQ_EVENTS_DATA_SOURCE_SCATTER_GATHER_PARALLELISM threads,
+     * with up to ENIQ_EVENTS_DATA_SOURCE_SCATTER_GATHER_QUEUE_SIZE queries waiting for a thread - a query that
+     * can't be queued is recorded as a failure
+     * 
+     * The call has one deadline, ENIQ_EVENTS_DATA_SOURCE_SCATTER_GATHER_TIMEOUT_SECONDS after it starts, however
+     * long its queries wait for a thread - each query's timeout is the time left when it starts. A data source that
+     * fails, or hasn't answered by the deadline, is recorded as a failure in the result, and the results of the other
+     * data sources are still returned
+     * 
+     * Each query takes its own bulkhead permit for the query class, on its thread, so a scatter-gather counts
+     * against the class's limit once for each data source it's querying at the time
+     * 
+     * The extractor is called on each data source's own thread, as soon as its query returns - see
+     * ResultSetExtractor
+     * 
+     * @param sql query to run on each data source
+     * @param extractor reads the result set from each data source
+     * @param poolNames pool names of the data sources to run the query on, or null for every data source available
+     * for selection - a data source that isn't currently available is recorded as a failure
+     * @param queryClass class of query - see QueryClass
+     * @return results from the data sources that succeeded, and the failures from those that didn't
+     * @throws DataSourceConfigurationException if the data sources can't be set up
+     */
+    public <T> ScatterGatherResult<T> scatterGather(final String sql, final ResultSetExtractor<T> extractor,
+            final Collection<String> poolNames, final QueryClass queryClass) throws DataSourceConfigurationException {
+        final List<EniqDataSource> dataSourcesAvailable = getDataSourcesAvailableForSelection(checkDataSourcesSetUp());
+        final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+        final List<EniqDataSource> dataSourcesToQuery = new ArrayList<EniqDataSource>();
+        if (poolNames == null) {
+            dataSourcesToQuery.addAll(dataSourcesAvailable);
+        } else {
+            for (final String poolName : poolNames) {
+                final EniqDataSource dataSource = findDataSource(dataSourcesAvailable, poolName);
+                if (dataSource == null) {
+                    failures.put(poolName, new DataSourceConfigurationException("Data source " + poolName
+                            + " is not available"));
+                } else {
+                    dataSourcesToQuery.add(dataSource);
+                }
+            }
+        }
+
+        final Map<String, T> results = new LinkedHashMap<String, T>();
+        if (dataSourcesToQuery.isEmpty()) {
+            return new ScatterGatherResult<T>(results, failures);
+        }
+        final int timeoutSeconds = DataSourceProperties.getInt(getEniqEventsProperties(),
+                SCATTER_GATHER_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_SCATTER_GATHER_TIMEOUT_SECONDS);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        final ExecutorService executor = getScatterGatherExecutor();
+        final Bulkhead currentBulkhead = getBulkhead();
+        final List<Future<T>> queries = new ArrayList<Future<T>>();
+        for (final EniqDataSource dataSource : dataSourcesToQuery) {
+            try {
+                queries.add(executor.submit(new DataSourceQuery<T>(dataSource, sql, extractor, currentBulkhead,
+                        queryClass, deadline)));
+            } catch (final RejectedExecutionException e) {
+                queries.add(null);
+                failures.put(dataSource.getPoolName(), e);
+            }
+        }
+        for (int i = 0; i < dataSourcesToQuery.size(); i++) {
+            final String poolName = dataSourcesToQuery.get(i).getPoolName();
+            final Future<T> query = queries.get(i);
+            if (query == null) {
+                continue;
+            }
+            try {
+                results.put(poolName, query.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS));
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                failures.put(poolName, cause instanceof Exception ? (Exception) cause : e);
+            } catch (final TimeoutException e) {
+                query.cancel(true);
+                failures.put(poolName, e);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                query.cancel(true);
+                failures.put(poolName, e);
+            }
+        }
+        if (!failures.isEmpty()) {
+            ServicesLogger.detailed(getClass().getName(), "scatterGather", "Query failed on some data sources",
+                    failures.keySet());
+        }
+        return new ScatterGatherResult<T>(results, failures);
+    }
+
+    private static EniqDataSource findDataSource(final List<EniqDataSource> dataSources, final String poolName) {
+        for (final EniqDataSource dataSource : dataSources) {
+            if (dataSource.getPoolName().equals(poolName)) {
+                return dataSource;
+            }
+        }
+        return null;
+    }
 
-    @EJB
-    private AMXPropertyReader amxPropertyReader;
+    /**
+     * Get the executor for asynchronous connection requests, creating it on first use
+     * @return
+     */
+    private ExecutorService getAcquisitionExecutor() {
+        ExecutorService executor = acquisitionExecutor.get();
+        if (executor == null) {
+            final Properties properties = getEniqEventsProperties();
+            final ExecutorService newExecutor = createAcquisitionExecutor(DataSourceProperties.getInt(properties,
+                    ASYNC_ACQUISITION_THREADS_PROPERTY_NAME, DEFAULT_ASYNC_ACQUISITION_THREADS),
+                    DataSourceProperties.getInt(properties, ASYNC_ACQUISITION_QUEUE_SIZE_PROPERTY_NAME,
+                            DEFAULT_ASYNC_ACQUISITION_QUEUE_SIZE));
+            if (acquisitionExecutor.compareAndSet(null, newExecutor)) {
+                executor = newExecutor;
+            } else {
+                newExecutor.shutdownNow();
+                executor = acquisitionExecutor.get();
+            }
+        }
+        return executor;
+    }
 
-    private boolean dataSourcesSetUp;
+    /**
+     * Get the executor for scatterGather() queries, creating it on first use
+     * @return
+     */
+    private ExecutorService getScatterGatherExecutor() {
+        ExecutorService executor = scatterGatherExecutor.get();
+        if (executor == null) {
+            final Properties properties = getEniqEventsProperties();
+            final ExecutorService newExecutor = createScatterGatherExecutor(DataSourceProperties.getInt(properties,
+                    SCATTER_GATHER_PARALLELISM_PROPERTY_NAME, DEFAULT_SCATTER_GATHER_PARALLELISM),
+                    DataSourceProperties.getInt(properties, SCATTER_GATHER_QUEUE_SIZE_PROPERTY_NAME,
+                            DEFAULT_SCATTER_GATHER_QUEUE_SIZE));
+            if (scatterGatherExecutor.compareAndSet(null, newExecutor)) {
+                executor = newExecutor;
+            } else {
+                newExecutor.shutdownNow();
+                executor = scatterGatherExecutor.get();
+            }
+        }
+        return executor;
+    }
 
     /**
-     * checks if the default data source is present
-     * If not, an exception is thrown
-     * Also checks for the presence of any additional data sources
-     * that may be configured by the operators
-     * Note, if these additional data sources don't exist, an exception isn't thrown, just logged
+     * Count the selection of this data source against the policy, in the data source's metrics
+     * @param dataSource
+     * @param loadBalancingPolicy may be null if there is only one data source to choose from
      */
-    public void setUpDataSources() throws DataSourceConfigurationException {
-        //important for some policies - the default data source must be first in the list       
-        availableDataSources.add(getDefaultDataSource());
-        availableDataSources.addAll(getAdditionalDataSources());
+    private void recordSelection(final DataSource dataSource, final LoadBalancingPolicy loadBalancingPolicy) {
+        recordSelection(dataSource,
+                loadBalancingPolicy == null ? NO_POLICY_NAME : POLICY_NAMES.get(loadBalancingPolicy.getClass()));
+    }
+
+    private void recordSelection(final DataSource dataSource, final String policyName) {
+        if (dataSource instanceof EniqDataSourceImpl) {
+            ((EniqDataSourceImpl) dataSource).getMetrics().recordSelection(policyName);
+        }
     }
 
     /**
-     * Looks up the default ENIQ data source in JNDI
+     * Get a point in time copy of the metrics of each data source - the data sources used for queries first,
+     * followed by the CSV data sources
+     * Data sources that haven't been set up yet (ie before the first query) are not included
      * @return
-     * @throws DataSourceConfigurationException - if default ENIQ data source doesn't exist
      */
-    private EniqDataSource getDefaultDataSource() throws DataSourceConfigurationException {
-        final String defaultEniqDataSourceName = (String) eniqEventsProperties
-                .get(DEFAULT_ENIQ_DATA_SOURCE_PROPERTY_NAME);
-        try {
-            final Context context = createInitialContext();
-            return lookUpDataSourceInJNDI(context, defaultEniqDataSourceName);
-        } catch (final NamingException e) {
-            throw new DataSourceConfigurationException("The ENIQ Events default data source "
-                    + defaultEniqDataSourceName + " could not be found in Glassfish", e);
+    public List<DataSourceMetricsSnapshot> getMetricsSnapshots() {
+        final List<DataSourceMetricsSnapshot> snapshots = new ArrayList<DataSourceMetricsSnapshot>();
+        addMetricsSnapshots(availableDataSources.get(), snapshots);
+        addMetricsSnapshots(csvDataSources.get(), snapshots);
+        return snapshots;
+    }
+
+    private void addMetricsSnapshots(final DataSourceTopology topology, final List<DataSourceMetricsSnapshot> snapshots) {
+        if (topology == null) {
+            return;
+        }
+        for (final EniqDataSource dataSource : topology) {
+            if (dataSource instanceof EniqDataSourceImpl) {
+                snapshots.add(((EniqDataSourceImpl) dataSource).getMetricsSnapshot());
+            }
         }
     }
 
     /**
-     * Looks up the CSV ENIQ data source in JNDI
+     * Leave out any data sources that have been ejected by the health monitor, are being warmed up, or whose circuit
+     * breaker is open, and any that are at their adaptive concurrency limit - a request sent to one of those would
+     * wait for a connection to be closed, while another data source has room for it
+     * In the normal case where all data sources are available and have room, the list is returned as is, without
+     * copying
+     * If every available data source is at its limit, all the available ones are returned, and the request waits in
+     * the limit of the one selected
+     * If no data source is available, those not being warmed up are returned - trying a data source that's failing
+     * its health checks is better than failing every query outright, but a cold pool is never offered. So if every
+     * data source is being warmed up (eg at startup), the list returned is empty
+     * 
+     * @param dataSources
      * @return
-     * @throws DataSourceConfigurationException - if default ENIQ data source doesn't exist
      */
-    private void configureCSVDataSource() throws DataSourceConfigurationException {
-        final String csvEniqDataSourceName = (String) eniqEventsProperties
-                .get(EXPORT_CSV_ENIQ_DATA_SOURCE_PROPERTY_NAME);
-        try {
-            final Context context = createInitialContext();
-            final EniqDataSource dataSource = lookUpDataSourceInJNDI(context, csvEniqDataSourceName);
-            csvDataSource.add(dataSource);
-        } catch (final NamingException e) {
-            throw new DataSourceConfigurationException("The ENIQ Events CSV data source " + csvEniqDataSourceName
-                    + " could not be found in Glassfish", e);
+    List<EniqDataSource> getDataSourcesAvailableForSelection(final List<EniqDataSource> dataSources) {
+        final int numberOfDataSources = dataSources.size();
+        int numberAvailable = 0;
+        int numberWithRoom = 0;
+        for (int i = 0; i < numberOfDataSources; i++) {
+            final EniqDataSource dataSource = dataSources.get(i);
+            if (dataSource.isAvailable()) {
+                numberAvailable++;
+                if (!isAtConcurrencyLimit(dataSource)) {
+                    numberWithRoom++;
+                }
+            }
+        }
+        if (numberWithRoom == numberOfDataSources) {
+            return dataSources;
+        }
+        final List<EniqDataSource> availableForSelection = new ArrayList<EniqDataSource>(numberAvailable);
+        for (int i = 0; i < numberOfDataSources; i++) {
+            final EniqDataSource dataSource = dataSources.get(i);
+            final boolean offered;
+            if (numberWithRoom > 0) {
+                offered = dataSource.isAvailable() && !isAtConcurrencyLimit(dataSource);
+            } else if (numberAvailable > 0) {
+                offered = dataSource.isAvailable();
+            } else {
+                offered = !isWarmingUp(dataSource);
+            }
+            if (offered) {
+                availableForSelection.add(dataSource);
+            }
         }
+        return availableForSelection;
+    }
+
+    private static boolean isAtConcurrencyLimit(final EniqDataSource dataSource) {
+        return dataSource instanceof EniqDataSourceImpl && ((EniqDataSourceImpl) dataSource).isAtConcurrencyLimit();
+    }
+
+    private static boolean isWarmingUp(final EniqDataSource dataSource) {
+        return dataSource instanceof EniqDataSourceImpl && ((EniqDataSourceImpl) dataSource).isWarmingUp();
     }
 
     /**
-     * Get a database connection
+     * Get a database connection for CSV data stream, from the CSV data sources
      * 
-     *  Get a data source from the selection of data sources available
+     * Get a data source from the CSV data sources that haven't been ejected by the health monitor
      * If there is just one data source, this is returned
-     * Otherwise, the load balancing policy is used to select a data source
+     * Otherwise, the CSV load balancing policy (least outstanding connections) is used to select a data source
+     * 
+     * The connection is taken for a CSV_EXPORT query
      * 
-     * @param loadBalancingPolicy               load balancing policy to use when selecting data source 
-     * @return
      * @return {@link Connection <tt>Connection</tt>}
-     * @throws SQLException Database connection errors
+     * @throws SQLException Database connection errors, or if too many CSV exports are running
      * @throws DataSourceConfigurationException 
      */
-    public Connection getConnection(final LoadBalancingPolicy loadBalancingPolicy) throws SQLException,
-            DataSourceConfigurationException {
-
-        checkDataSourcesSetUp();
-
-        DataSource dataSourceToUse;
-        if (availableDataSources.size() == 1) {
-            dataSourceToUse = availableDataSources.get(0);
-        } else {
-            dataSourceToUse = loadBalancingPolicy.selectDataSource(availableDataSources);
-        }
-        final String poolName = ((EniqDataSource) dataSourceToUse).getPoolName();
-        setPoolName(poolName);
-        return dataSourceToUse.getConnection();
+    public Connection getCSVConnection() throws SQLException, DataSourceConfigurationException {
+        return getCSVConnection(csvLoadBalancingPolicy);
     }
 
     /**
-     * Get a database connection for CSV data stream
-     * 
-     * Get a data source from the selection of data sources available
-     * If there is just one data source, this is returned
-     * Otherwise, the load balancing policy is used to select a data source
+     * As for getCSVConnection(), using the load balancing policy given to select the CSV data source
      * 
      * @param loadBalancingPolicy               load balancing policy to use when selecting data source 
      * @return {@link Connection <tt>Connection</tt>}
-     * @throws SQLException Database connection errors
+     * @throws SQLException Database connection errors, or if too many CSV exports are running
      * @throws DataSourceConfigurationException 
      */
     public Connection getCSVConnection(final LoadBalancingPolicy loadBalancingPolicy) throws SQLException,
             DataSourceConfigurationException {
-
-        if (csvDataSource.isEmpty()) {
-            configureCSVDataSource();
+        final Runnable permit = getBulkhead().acquire(QueryClass.CSV_EXPORT);
+        boolean admitted = false;
+        try {
+            final Connection connection = releasePermitWhenClosed(selectAndGetCSVConnection(loadBalancingPolicy),
+                    permit);
+            admitted = true;
+            return connection;
+        } finally {
+            if (!admitted) {
+                releasePermit(permit);
+            }
         }
-        DataSource dataSourceToUse;
-        if (csvDataSource.size() == 1) {
-            dataSourceToUse = csvDataSource.get(0);
-        } else {
-            dataSourceToUse = loadBalancingPolicy.selectDataSource(csvDataSource);
+    }
+
+    private Connection selectAndGetCSVConnection(final LoadBalancingPolicy loadBalancingPolicy) throws SQLException,
+            DataSourceConfigurationException {
+
+        final List<EniqDataSource> dataSourcesToChooseFrom = getDataSourcesAvailableForSelection(
+                checkCSVDataSourceSetUp());
+        final DataSource dataSourceToUse = selectDataSource(loadBalancingPolicy, dataSourcesToChooseFrom);
+        try {
+            return getConnectionFrom(dataSourceToUse);
+        } catch (final SQLException e) {
+            return failOver(loadBalancingPolicy, dataSourcesToChooseFrom, dataSourceToUse, null, e);
         }
-        final String poolName = ((EniqDataSource) dataSourceToUse).getPoolName();
-        setPoolName(poolName);
-        return dataSourceToUse.getConnection();
     }
 
     /**
@@ -192,41 +1520,64 @@ public class DataSourceManager {
      * the setUpDataSources() method, which mean this method was called on deployment or glassfish restart
      * However, it seems that AMX/JMX (whith the setUpDataSources() method uses) isn't set up prior to 
      * war redeployment on a glassfish restart - see https://glassfish.dev.java.net/issues/show_bug.cgi?id=12796 
+     * 
+     * discoverDataSourcesAtStartup() now tries at deployment anyway, and leaves the data sources to be set up here
+     * if AMX isn't ready
+     * 
+     * Once set up, this is a single read of the current snapshot - only concurrent first calls contend for the lock,
+     * and only one of them sets up the data sources
+     * @return the current data sources
      * @throws DataSourceConfigurationException
      */
-    private void checkDataSourcesSetUp() throws DataSourceConfigurationException {
-        if (!dataSourcesSetUp) {
-            setUpDataSources();
-            dataSourcesSetUp = true;
+    private DataSourceTopology checkDataSourcesSetUp() throws DataSourceConfigurationException {
+        DataSourceTopology topology = availableDataSources.get();
+        if (topology == null) {
+            synchronized (availableDataSources) {
+                topology = availableDataSources.get();
+                if (topology == null) {
+                    setUpDataSources();
+                    topology = availableDataSources.get();
+                }
+            }
         }
+        return topology;
     }
 
     /**
-     * 
-     * get any additional data sources configured      
-     * 
-     * Note, if these additional data sources don't exist, an exception isn't thrown, just logged
-     * @return 
-     * @throws NamingException 
-    
-     */
-    private List<EniqDataSource> getAdditionalDataSources() {
-        final List<String> additionalDataSourceNames = getExtraDataSourcesConfigured();
-        final List<EniqDataSource> additionalDataSources = new ArrayList<EniqDataSource>();
-        Context context;
-        try {
-            context = createInitialContext();
-            for (final String additionalDataSourceName : additionalDataSourceNames) {
-                final EniqDataSource additionalDataSource = lookUpDataSourceInJNDI(context, additionalDataSourceName);
-                ServicesLogger.detailed(getClass().getName(), "", "Additional data source found",
-                        additionalDataSourceName, additionalDataSource);
-                additionalDataSources.add(additionalDataSource);
+     * As for checkDataSourcesSetUp(), for the CSV data sources - they're normally set up at startup, by
+     * discoverDataSourcesAtStartup()
+     * @return the current CSV data sources
+     * @throws DataSourceConfigurationException
+     */
+    private DataSourceTopology checkCSVDataSourceSetUp() throws DataSourceConfigurationException {
+        DataSourceTopology topology = csvDataSources.get();
+        if (topology == null) {
+            synchronized (csvDataSources) {
+                topology = csvDataSources.get();
+                if (topology == null) {
+                    final Properties properties = getEniqEventsProperties();
+                    publishCSVDataSources(discoverCSVDataSources(properties, true), properties);
+                    topology = csvDataSources.get();
+                }
             }
-        } catch (final NamingException e) {
-            ServicesLogger.warn(getClass().getName(), "getAdditionalDataSources",
-                    "Problem accessing additional configured data source ", e);
         }
-        return additionalDataSources;
+        return topology;
+    }
+
+    /**
+     * exposed for unit test
+     * @return the current snapshot of the data sources, or null if they haven't been set up yet
+     */
+    DataSourceTopology getTopology() {
+        return availableDataSources.get();
+    }
+
+    /**
+     * exposed for unit test
+     * @return the current snapshot of the CSV data sources, or null if they haven't been set up yet
+     */
+    DataSourceTopology getCSVTopology() {
+        return csvDataSources.get();
     }
 
     /**
@@ -234,11 +1585,16 @@ public class DataSourceManager {
      * 
      * @param context
      * @param availableJDBCResourceName
+     * @param properties ENIQ Events properties to set the data source up with
+     * @param useDefaultWeightIfAMXUnavailable true to fall back to the default weight if the pool size can't be read
+     * from AMX, false to throw the exception
      * @return
      * @throws NamingException
+     * @throws CannotReadAMXPropertyException only if useDefaultWeightIfAMXUnavailable is false
      */
-    private EniqDataSource lookUpDataSourceInJNDI(final Context context, final String availableJDBCResourceName)
-            throws NamingException {
+    private EniqDataSource lookUpDataSourceInJNDI(final Context context, final String availableJDBCResourceName,
+            final Properties properties, final boolean useDefaultWeightIfAMXUnavailable) throws NamingException,
+            CannotReadAMXPropertyException {
 
         String poolName;
         String maxPoolSize;
@@ -246,13 +1602,61 @@ public class DataSourceManager {
             poolName = amxPropertyReader.getAttribute("jdbc-resource", availableJDBCResourceName, "PoolName");
             maxPoolSize = amxPropertyReader.getAttribute("jdbc-connection-pool", poolName, "MaxPoolSize");
         } catch (final CannotReadAMXPropertyException e) {
+            if (!useDefaultWeightIfAMXUnavailable) {
+                throw e;
+            }
             ServicesLogger.warn(getClass().getName(), "lookUpDataSourceInJNDI",
                     "Exception accessing properties of data source " + availableJDBCResourceName + ", will default to "
                             + DEFAULT_DATA_SOURCE_WEIGHT, e);
             maxPoolSize = DEFAULT_DATA_SOURCE_WEIGHT;
         }
+        final int weight = Integer.parseInt(maxPoolSize);
         return new EniqDataSourceImpl((DataSource) context.lookup(availableJDBCResourceName),
-                availableJDBCResourceName, Integer.parseInt(maxPoolSize));
+                availableJDBCResourceName, weight, createCircuitBreaker(properties), createConcurrencyLimit(properties,
+                        weight));
+    }
+
+    /**
+     * Create the adaptive concurrency limit for a data source, if ENIQ_EVENTS_DATA_SOURCE_ADAPTIVE_LIMIT is true
+     * The limit starts at, and never goes above, the pool's MaxPoolSize
+     * @param properties
+     * @param maxPoolSize
+     * @return the limit, or null if adaptive limits are off, or the pool size isn't known
+     */
+    private AdaptiveConcurrencyLimit createConcurrencyLimit(final Properties properties, final int maxPoolSize) {
+        if (maxPoolSize <= 0
+                || !Boolean.parseBoolean(DataSourceProperties.getString(properties,
+                        ADAPTIVE_LIMIT_PROPERTY_NAME, Boolean.FALSE.toString()))) {
+            return null;
+        }
+        final int minimumLimit = DataSourceProperties.getInt(properties,
+                ADAPTIVE_LIMIT_MINIMUM_PROPERTY_NAME, AdaptiveConcurrencyLimit.DEFAULT_MINIMUM_LIMIT);
+        final double backoffRatio = DataSourceProperties.getDouble(properties,
+                ADAPTIVE_LIMIT_BACKOFF_RATIO_PROPERTY_NAME, AdaptiveConcurrencyLimit.DEFAULT_BACKOFF_RATIO);
+        final double latencyTolerance = DataSourceProperties.getDouble(properties,
+                ADAPTIVE_LIMIT_LATENCY_TOLERANCE_PROPERTY_NAME, AdaptiveConcurrencyLimit.DEFAULT_LATENCY_TOLERANCE);
+        final long queueTimeoutMillis = DataSourceProperties.getLong(properties,
+                ADAPTIVE_LIMIT_QUEUE_TIMEOUT_MILLIS_PROPERTY_NAME, AdaptiveConcurrencyLimit.DEFAULT_QUEUE_TIMEOUT_MILLIS);
+        return new AdaptiveConcurrencyLimit(maxPoolSize, minimumLimit, backoffRatio, latencyTolerance,
+                queueTimeoutMillis);
+    }
+
+    /**
+     * Create a circuit breaker for a data source, with the settings configured in the ENIQ Events JNDI properties
+     * (or the defaults, for any settings not configured)
+     * @param properties
+     * @return
+     */
+    private CircuitBreaker createCircuitBreaker(final Properties properties) {
+        final int windowSize = DataSourceProperties.getInt(properties,
+                CIRCUIT_BREAKER_WINDOW_SIZE_PROPERTY_NAME, CircuitBreaker.DEFAULT_WINDOW_SIZE);
+        final double failureRateThreshold = DataSourceProperties.getDouble(properties,
+                CIRCUIT_BREAKER_FAILURE_RATE_PROPERTY_NAME, CircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD);
+        final long slowCallThresholdMillis = DataSourceProperties.getLong(properties,
+                CIRCUIT_BREAKER_SLOW_CALL_MILLIS_PROPERTY_NAME, CircuitBreaker.DEFAULT_SLOW_CALL_THRESHOLD_MILLIS);
+        final long openDurationMillis = DataSourceProperties.getLong(properties,
+                CIRCUIT_BREAKER_OPEN_MILLIS_PROPERTY_NAME, CircuitBreaker.DEFAULT_OPEN_DURATION_MILLIS);
+        return new CircuitBreaker(windowSize, failureRateThreshold, slowCallThresholdMillis, openDurationMillis);
     }
 
     /**
@@ -262,9 +1666,13 @@ public class DataSourceManager {
      * 
      * @return
      */
-    private List<String> getExtraDataSourcesConfigured() {
-        final String resourcesAsOneString = eniqEventsProperties
-                .getProperty(ENIQ_EVENTS_ADDITIONAL_DATA_SOURCES_PROPERTY_NAME);
+    private List<String> getExtraDataSourcesConfigured(final Properties properties) {
+        final String resourcesAsOneString = properties.getProperty(ENIQ_EVENTS_ADDITIONAL_DATA_SOURCES_PROPERTY_NAME);
+        return parseStringAndReturnElements(resourcesAsOneString, DATA_SOURCES_LIST_DELIMITER);
+    }
+
+    private List<String> getCSVDataSourcesConfigured(final Properties properties) {
+        final String resourcesAsOneString = properties.getProperty(EXPORT_CSV_ENIQ_DATA_SOURCE_PROPERTY_NAME);
         return parseStringAndReturnElements(resourcesAsOneString, DATA_SOURCES_LIST_DELIMITER);
     }
 
@@ -277,6 +1685,48 @@ public class DataSourceManager {
         return new InitialContext();
     }
 
+    /**
+     * Create the executor to run the data source lookups on - one daemon thread per lookup, up to
+     * MAXIMUM_DISCOVERY_THREADS
+     * extracted out to get under unit test
+     * @param numberOfLookups
+     * @return
+     */
+    ExecutorService createDiscoveryExecutor(final int numberOfLookups) {
+        return Executors.newFixedThreadPool(Math.min(numberOfLookups, MAXIMUM_DISCOVERY_THREADS),
+                new DaemonThreadFactory("DataSourceDiscovery-"));
+    }
+
+    /**
+     * Create the executor shared by the queries of every scatterGather() call - a fixed number of daemon threads,
+     * with a bounded queue of queries waiting for a thread
+     * extracted out to get under unit test
+     * @param threads number of data sources to query at once
+     * @param queueSize
+     * @return
+     */
+    ExecutorService createScatterGatherExecutor(final int threads, final int queueSize) {
+        final int poolSize = Math.max(threads, 1);
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)), new DaemonThreadFactory(
+                        "DataSourceScatterGather-"));
+    }
+
+    /**
+     * Create the executor to get connections on for getConnectionAsync() - a fixed number of daemon threads, with a
+     * bounded queue of requests waiting for a thread
+     * extracted out to get under unit test
+     * @param threads
+     * @param queueSize
+     * @return
+     */
+    ExecutorService createAcquisitionExecutor(final int threads, final int queueSize) {
+        final int poolSize = Math.max(threads, 1);
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)), new DaemonThreadFactory(
+                        "DataSourceAcquisition-"));
+    }
+
     /**
      * parse the string and return elements - returns an empty list if string is null
      * @param resourcesAsOneString
@@ -311,4 +1761,422 @@ public class DataSourceManager {
         this.amxPropertyReader = amxPropertyReader;
     }
 
+    /**
+     * exposed for unit test
+     * @param dataSourceHealthMonitor
+     */
+    public void setDataSourceHealthMonitor(final DataSourceHealthMonitor dataSourceHealthMonitor) {
+        this.dataSourceHealthMonitor = dataSourceHealthMonitor;
+    }
+
+    /**
+     * added to get under test
+     * @param csvLoadBalancingPolicy the csvLoadBalancingPolicy to set
+     */
+    public void setCsvLoadBalancingPolicy(final LoadBalancingPolicy csvLoadBalancingPolicy) {
+        this.csvLoadBalancingPolicy = csvLoadBalancingPolicy;
+    }
+
+    /**
+     * Looks up one data source in JNDI, and its pool size in AMX
+     */
+    private class DataSourceLookup implements Callable<EniqDataSource> {
+
+        private final String jdbcResourceName;
+
+        private final Properties properties;
+
+        private final boolean useDefaultWeightIfAMXUnavailable;
+
+        DataSourceLookup(final String jdbcResourceName, final Properties properties,
+                final boolean useDefaultWeightIfAMXUnavailable) {
+            this.jdbcResourceName = jdbcResourceName;
+            this.properties = properties;
+            this.useDefaultWeightIfAMXUnavailable = useDefaultWeightIfAMXUnavailable;
+        }
+
+        @Override
+        public EniqDataSource call() throws NamingException, CannotReadAMXPropertyException {
+            return lookUpDataSourceInJNDI(createInitialContext(), jdbcResourceName, properties,
+                    useDefaultWeightIfAMXUnavailable);
+        }
+    }
+
+    /**
+     * Gets a connection for getConnectionAsync(), or for the hedge of a hedged request, and completes the future
+     * with it
+     * Requests from getConnectionAsync() aren't themselves hedged, as the hedged attempts would queue for the same
+     * acquisition threads
+     */
+    private class ConnectionAcquisition implements Runnable {
+
+        private final LoadBalancingPolicy loadBalancingPolicy;
+
+        private final QueryClass queryClass;
+
+        private final DataSource dataSource;
+
+        private final CompletableFuture<Connection> connection;
+
+        /**
+         * @param loadBalancingPolicy policy to select the data source with - used if dataSource is null
+         * @param queryClass class of query the connection is for - used if dataSource is null
+         * @param dataSource data source to get the connection from, or null to select one with the policy
+         * @param connection future to complete
+         */
+        ConnectionAcquisition(final LoadBalancingPolicy loadBalancingPolicy, final QueryClass queryClass,
+                final DataSource dataSource, final CompletableFuture<Connection> connection) {
+            this.loadBalancingPolicy = loadBalancingPolicy;
+            this.queryClass = queryClass;
+            this.dataSource = dataSource;
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            if (connection.isDone()) {
+                // cancelled while waiting for a thread
+                return;
+            }
+            try {
+                final Connection acquiredConnection = dataSource == null ? getConnection(loadBalancingPolicy, queryClass,
+                        false)
+                        : dataSource.getConnection();
+                if (!connection.complete(acquiredConnection)) {
+                    acquiredConnection.close();
+                }
+            } catch (final SQLException e) {
+                connection.completeExceptionally(e);
+            } catch (final DataSourceConfigurationException e) {
+                connection.completeExceptionally(e);
+            } catch (final RuntimeException e) {
+                connection.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * A connection request sent to one or more data sources, each on an acquisition thread - see
+     * getHedgedConnection()
+     * 
+     * The first connection to arrive wins, and requests that lose close their connections as they arrive - nothing
+     * is interrupted. The request fails once every data source it was sent to has failed, or when the calling thread
+     * gives up waiting, at the deadline
+     */
+    private class HedgedRequest {
+
+        private final CompletableFuture<Arrival> firstArrival = new CompletableFuture<Arrival>();
+
+        private final AtomicInteger requestsOutstanding = new AtomicInteger(0);
+
+        private final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+
+        private final long timeoutSeconds;
+
+        private final long deadlineNanos;
+
+        /**
+         * only used by the calling thread
+         */
+        private EniqDataSource hedgeDataSource;
+
+        HedgedRequest(final int timeoutSeconds) {
+            this.timeoutSeconds = timeoutSeconds;
+            deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        }
+
+        /**
+         * Send the request to this data source too, unless it's already settled
+         * @param dataSource
+         * @return false if the request is settled, or the acquisition threads are all busy - it wasn't sent
+         */
+        boolean send(final EniqDataSource dataSource) {
+            requestsOutstanding.incrementAndGet();
+            final CompletableFuture<Connection> connection = firstArrival.isDone() ? null
+                    : submitAcquisition(dataSource);
+            if (connection == null) {
+                requestFinished(null);
+                return false;
+            }
+            connection.whenComplete(new BiConsumer<Connection, Throwable>() {
+                @Override
+                public void accept(final Connection acquiredConnection, final Throwable failure) {
+                    if (failure != null) {
+                        requestFinished(failure);
+                    } else if (!firstArrival.complete(new Arrival(dataSource, acquiredConnection))) {
+                        closeQuietly(acquiredConnection);
+                    }
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Send the request to a second data source, as a hedge - see send()
+         * @param dataSource
+         * @return false if it wasn't sent
+         */
+        boolean sendHedge(final EniqDataSource dataSource) {
+            if (!send(dataSource)) {
+                return false;
+            }
+            hedgeDataSource = dataSource;
+            return true;
+        }
+
+        /**
+         * @return the data source the request was hedged to, or null if no hedge was sent
+         */
+        EniqDataSource getHedgeDataSource() {
+            return hedgeDataSource;
+        }
+
+        /**
+         * Wait for the request to be settled, by a connection arriving or every data source failing
+         * @param timeoutNanos longest time to wait - cut short at the deadline
+         * @return false if it wasn't settled in time
+         */
+        boolean awaitFirstArrival(final long timeoutNanos) {
+            try {
+                firstArrival.get(Math.min(timeoutNanos, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (final TimeoutException e) {
+                return false;
+            } catch (final ExecutionException e) {
+                // read by awaitConnection()
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                firstArrival.completeExceptionally(new SQLException("Interrupted while waiting for a connection", e));
+            }
+            return true;
+        }
+
+        /**
+         * Wait, up to the deadline, for the first connection to arrive
+         * @return the connection, handed over to the calling thread
+         * @throws SQLException the first failure, with the others added as suppressed exceptions, if every data source
+         * failed - or an SQLTimeoutException at the deadline
+         */
+        Connection awaitConnection() throws SQLException {
+            try {
+                firstArrival.get(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (final TimeoutException e) {
+                firstArrival.completeExceptionally(new SQLTimeoutException("Timed out after " + timeoutSeconds
+                        + " seconds waiting for a connection", e));
+            } catch (final ExecutionException e) {
+                // thrown below
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                firstArrival.completeExceptionally(new SQLException("Interrupted while waiting for a connection", e));
+            }
+            final Arrival arrival;
+            try {
+                arrival = firstArrival.join();
+            } catch (final CompletionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new SQLException("Connection request failed", e.getCause());
+            }
+            ConnectionLease.handOverToCurrentThread(arrival.connection);
+            setPoolName(arrival.dataSource.getPoolName());
+            return arrival.connection;
+        }
+
+        /**
+         * A request has failed, or wasn't sent - once none are outstanding, the request as a whole has failed
+         * @param failure null if the request wasn't sent
+         */
+        private void requestFinished(final Throwable failure) {
+            if (failure != null) {
+                failures.add(failure);
+            }
+            if (requestsOutstanding.decrementAndGet() == 0) {
+                Throwable firstFailure = null;
+                for (final Throwable eachFailure : failures) {
+                    if (firstFailure == null) {
+                        firstFailure = eachFailure;
+                    } else {
+                        firstFailure.addSuppressed(eachFailure);
+                    }
+                }
+                firstArrival.completeExceptionally(firstFailure == null ? new SQLException(
+                        "No connection request could be sent") : firstFailure);
+            }
+        }
+
+        private void closeQuietly(final Connection unusedConnection) {
+            try {
+                unusedConnection.close();
+            } catch (final SQLException e) {
+                ServicesLogger.warn(getClass().getName(), "closeQuietly",
+                        "Could not close connection from losing request of a hedged request", e);
+            }
+        }
+    }
+
+    /**
+     * The first connection to arrive for a hedged request, and the data source it came from
+     */
+    private static final class Arrival {
+
+        private final EniqDataSource dataSource;
+
+        private final Connection connection;
+
+        Arrival(final EniqDataSource dataSource, final Connection connection) {
+            this.dataSource = dataSource;
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Runs the query of a scatterGather() call on one data source, under a bulkhead permit, with the time left
+     * before the call's deadline as its query timeout
+     */
+    private static class DataSourceQuery<T> implements Callable<T> {
+
+        private final EniqDataSource dataSource;
+
+        private final String sql;
+
+        private final ResultSetExtractor<T> extractor;
+
+        private final Bulkhead bulkhead;
+
+        private final QueryClass queryClass;
+
+        private final long deadlineNanos;
+
+        DataSourceQuery(final EniqDataSource dataSource, final String sql, final ResultSetExtractor<T> extractor,
+                final Bulkhead bulkhead, final QueryClass queryClass, final long deadlineNanos) {
+            this.dataSource = dataSource;
+            this.sql = sql;
+            this.extractor = extractor;
+            this.bulkhead = bulkhead;
+            this.queryClass = queryClass;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public T call() throws SQLException {
+            final long nanosLeft = deadlineNanos - System.nanoTime();
+            if (nanosLeft <= 0) {
+                throw new SQLTimeoutException("Scatter-gather timed out before querying " + dataSource.getPoolName());
+            }
+            final Runnable permit = bulkhead.acquire(queryClass);
+            final Connection connection;
+            try {
+                connection = dataSource.getConnection();
+            } catch (final SQLException e) {
+                releasePermit(permit);
+                throw e;
+            } catch (final RuntimeException e) {
+                releasePermit(permit);
+                throw e;
+            }
+            try {
+                final Statement statement = connection.createStatement();
+                try {
+                    // rounded up, as a query timeout of 0 is no timeout at all
+                    statement.setQueryTimeout((int) TimeUnit.NANOSECONDS.toSeconds(nanosLeft - 1) + 1);
+                    final ResultSet resultSet = statement.executeQuery(sql);
+                    try {
+                        return extractor.extractData(resultSet);
+                    } finally {
+                        resultSet.close();
+                    }
+                } finally {
+                    statement.close();
+                }
+            } finally {
+                try {
+                    connection.close();
+                } finally {
+                    releasePermit(permit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Discovery, acquisition and scatter-gather threads are daemon threads, named after what they're for
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+
+        private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+        DaemonThreadFactory(final String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * MXBean for managing the data sources
+     */
+    private class DataSourceManagerControl implements DataSourceManagerMXBean {
+
+        @Override
+        public List<String> getDataSourceNames() {
+            return getPoolNames(availableDataSources.get());
+        }
+
+        @Override
+        public long getQueryResultCacheHitCount() {
+            return getQueryResultCache().getHitCount();
+        }
+
+        @Override
+        public long getQueryResultCacheMissCount() {
+            return getQueryResultCache().getMissCount();
+        }
+
+        @Override
+        public long getQueryResultCacheSizeInBytes() {
+            return getQueryResultCache().getSizeInBytes();
+        }
+
+        @Override
+        public long getCoalescedQueryCount() {
+            return queryCoalescer.getCoalescedCount();
+        }
+
+        @Override
+        public long getConnectionRetryCount() {
+            return connectionRetries.get();
+        }
+
+        @Override
+        public long getConnectionRetriesRefusedCount() {
+            return connectionRetriesRefused.get();
+        }
+
+        @Override
+        public void invalidateQueryResultCache() {
+            invalidateCachedResults();
+        }
+
+        @Override
+        public void reloadDataSources() {
+            try {
+                DataSourceManager.this.reloadDataSources();
+            } catch (final DataSourceConfigurationException e) {
+                ServicesLogger.warn(getClass().getName(), "reloadDataSources",
+                        "Could not reload the data sources, the current data sources remain in use", e);
+                // JMX clients won't have the exception class, so pass the message only
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+    }
 }
@@ -0,0 +1,67 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.List;
+
+/**
+ * JMX operations for managing the data sources of the DataSourceManager - see DataSourceMBeans for the object name
+ *
+ * @author eemecoy
+ *
+ */
+public interface DataSourceManagerMXBean {
+
+    /**
+     * @return pool names of the data sources currently used for queries, default data source first - empty if
+     * they haven't been set up yet
+     */
+    List<String> getDataSourceNames();
+
+    /**
+     * @return number of query() calls served from the query result cache
+     */
+    long getQueryResultCacheHitCount();
+
+    /**
+     * @return number of query() calls that looked in the query result cache, and had to run the query on IQ
+     */
+    long getQueryResultCacheMissCount();
+
+    /**
+     * @return estimated memory held by the query result cache
+     */
+    long getQueryResultCacheSizeInBytes();
+
+    /**
+     * @return number of query() calls that shared the result of an identical query already running, instead of
+     * running their own
+     */
+    long getCoalescedQueryCount();
+
+    /**
+     * @return number of failed connection requests retried on another data source
+     */
+    long getConnectionRetryCount();
+
+    /**
+     * @return number of failed connection requests not retried, as the retry budget was used up
+     */
+    long getConnectionRetriesRefusedCount();
+
+    /**
+     * Remove all the results from the query result cache
+     */
+    void invalidateQueryResultCache();
+
+    /**
+     * Re-read the data source properties from the ENIQ Events JNDI properties and the pool sizes from AMX, and
+     * switch queries over to the new set of data sources
+     * See DataSourceManager.reloadDataSources()
+     * @throws IllegalStateException if the data sources can't be reloaded - the current data sources remain in use
+     */
+    void reloadDataSources();
+}
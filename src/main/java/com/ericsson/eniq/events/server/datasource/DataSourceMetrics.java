@@ -0,0 +1,132 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the connections handed out by one EniqDataSourceImpl
+ * Everything is recorded lock free, on the query path
+ *
+ * @author eemecoy
+ *
+ */
+final class DataSourceMetrics {
+
+    /**
+     * length of the windows of recent acquire times that hedging reads
+     */
+    static final long RECENT_ACQUIRE_TIMES_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final LatencyHistogram acquireTimes = new LatencyHistogram();
+
+    private final WindowedLatencyHistogram recentAcquireTimes = new WindowedLatencyHistogram(
+            RECENT_ACQUIRE_TIMES_WINDOW_NANOS);
+
+    private final LatencyHistogram leaseTimes = new LatencyHistogram();
+
+    private final AtomicLong acquireFailures = new AtomicLong(0);
+
+    private final AtomicLong rejectedRequests = new AtomicLong(0);
+
+    private final AtomicLong suspectedLeaks = new AtomicLong(0);
+
+    private final ConcurrentMap<String, AtomicLong> selectionsByPolicy = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @param acquireTimeNanos time taken to get a connection from the pool
+     */
+    void recordAcquire(final long acquireTimeNanos) {
+        acquireTimes.record(acquireTimeNanos);
+        recentAcquireTimes.record(acquireTimeNanos);
+    }
+
+    /**
+     * The pool failed to hand out a connection
+     */
+    void recordAcquireFailure() {
+        acquireFailures.incrementAndGet();
+    }
+
+    /**
+     * A request failed fast, without going to the pool
+     */
+    void recordRejected() {
+        rejectedRequests.incrementAndGet();
+    }
+
+    /**
+     * @param leaseTimeNanos time a connection was held before being closed
+     */
+    void recordLease(final long leaseTimeNanos) {
+        leaseTimes.record(leaseTimeNanos);
+    }
+
+    /**
+     * A connection has been held for longer than the leak threshold
+     */
+    void recordSuspectedLeak() {
+        suspectedLeaks.incrementAndGet();
+    }
+
+    /**
+     * @param policyName name of the load balancing policy that selected this data source for a query
+     */
+    void recordSelection(final String policyName) {
+        AtomicLong selections = selectionsByPolicy.get(policyName);
+        if (selections == null) {
+            final AtomicLong newSelections = new AtomicLong(0);
+            selections = selectionsByPolicy.putIfAbsent(policyName, newSelections);
+            if (selections == null) {
+                selections = newSelections;
+            }
+        }
+        selections.incrementAndGet();
+    }
+
+    LatencyHistogram getAcquireTimes() {
+        return acquireTimes;
+    }
+
+    /**
+     * @return acquire times of the last minute or two - see WindowedLatencyHistogram
+     */
+    WindowedLatencyHistogram getRecentAcquireTimes() {
+        return recentAcquireTimes;
+    }
+
+    LatencyHistogram getLeaseTimes() {
+        return leaseTimes;
+    }
+
+    long getAcquireFailureCount() {
+        return acquireFailures.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedRequests.get();
+    }
+
+    long getSuspectedLeakCount() {
+        return suspectedLeaks.get();
+    }
+
+    /**
+     * @return copy of the number of selections of this data source, by policy name
+     */
+    Map<String, Long> getSelectionCounts() {
+        final Map<String, Long> selectionCounts = new HashMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> entry : selectionsByPolicy.entrySet()) {
+            selectionCounts.put(entry.getKey(), entry.getValue().get());
+        }
+        return selectionCounts;
+    }
+}
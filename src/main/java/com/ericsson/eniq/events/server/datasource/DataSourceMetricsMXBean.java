@@ -0,0 +1,55 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics for one data source - one MXBean is registered per data source, see
+ * DataSourceMBeans for the object names
+ * Each attribute is read from a fresh DataSourceMetricsSnapshot, see there for details
+ *
+ * @author eemecoy
+ *
+ */
+public interface DataSourceMetricsMXBean {
+
+    String getPoolName();
+
+    int getWeight();
+
+    boolean isAvailable();
+
+    int getLeasedConnectionCount();
+
+    int getConcurrencyLimit();
+
+    long getAcquireCount();
+
+    long getAcquireFailureCount();
+
+    long getRejectedCount();
+
+    double getAcquireTimeMillisMedian();
+
+    double getAcquireTimeMillis99thPercentile();
+
+    long[] getAcquireTimeHistogram();
+
+    long getLeaseCount();
+
+    double getLeaseTimeMillisMedian();
+
+    double getLeaseTimeMillis99thPercentile();
+
+    long[] getLeaseTimeHistogram();
+
+    long getSuspectedLeakCount();
+
+    double getLongestHeldLeaseMillis();
+
+    Map<String, Long> getSelectionCounts();
+}
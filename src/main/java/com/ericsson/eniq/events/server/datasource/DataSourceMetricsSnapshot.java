@@ -0,0 +1,187 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Point in time copy of the metrics for one data source
+ * Latency percentiles are read from power of two histograms, so are accurate to within a factor of two
+ *
+ * @author eemecoy
+ *
+ */
+public final class DataSourceMetricsSnapshot {
+
+    private static final double MEDIAN = 50;
+
+    private static final double NINETY_NINTH_PERCENTILE = 99;
+
+    private static final double NANOS_PER_MILLISECOND = 1000000.0;
+
+    private final String poolName;
+
+    private final int weight;
+
+    private final boolean available;
+
+    private final int leasedConnectionCount;
+
+    private final int concurrencyLimit;
+
+    private final long[] acquireTimeHistogram;
+
+    private final long acquireFailureCount;
+
+    private final long rejectedCount;
+
+    private final long[] leaseTimeHistogram;
+
+    private final long suspectedLeakCount;
+
+    private final long longestHeldLeaseNanos;
+
+    private final Map<String, Long> selectionCounts;
+
+    private final long snapshotTimeMillis;
+
+    DataSourceMetricsSnapshot(final EniqDataSourceImpl dataSource, final DataSourceMetrics metrics) {
+        poolName = dataSource.getPoolName();
+        weight = dataSource.getWeight();
+        available = dataSource.isAvailable();
+        leasedConnectionCount = dataSource.getLeasedConnectionCount();
+        concurrencyLimit = dataSource.getConcurrencyLimit();
+        acquireTimeHistogram = metrics.getAcquireTimes().getBucketCounts();
+        acquireFailureCount = metrics.getAcquireFailureCount();
+        rejectedCount = metrics.getRejectedCount();
+        leaseTimeHistogram = metrics.getLeaseTimes().getBucketCounts();
+        suspectedLeakCount = metrics.getSuspectedLeakCount();
+        longestHeldLeaseNanos = dataSource.getLongestHeldLeaseNanos();
+        selectionCounts = Collections.unmodifiableMap(metrics.getSelectionCounts());
+        snapshotTimeMillis = System.currentTimeMillis();
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return false if the data source has been ejected by the health monitor or its circuit breaker is open
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * @return connections handed out and not yet closed
+     */
+    public int getLeasedConnectionCount() {
+        return leasedConnectionCount;
+    }
+
+    /**
+     * @return connections that may be leased at once - the adaptive limit, or the weight if there isn't one
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * @return connections successfully got from the pool
+     */
+    public long getAcquireCount() {
+        return sum(acquireTimeHistogram);
+    }
+
+    /**
+     * @return requests for a connection that the pool failed
+     */
+    public long getAcquireFailureCount() {
+        return acquireFailureCount;
+    }
+
+    /**
+     * @return requests for a connection that failed fast without going to the pool, as the circuit breaker was open
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public double getAcquireTimeMillisMedian() {
+        return LatencyHistogram.getMillisAtPercentile(acquireTimeHistogram, MEDIAN);
+    }
+
+    public double getAcquireTimeMillis99thPercentile() {
+        return LatencyHistogram.getMillisAtPercentile(acquireTimeHistogram, NINETY_NINTH_PERCENTILE);
+    }
+
+    /**
+     * @return count of connection acquire times in each bucket - see LatencyHistogram for the bucket bounds
+     */
+    public long[] getAcquireTimeHistogram() {
+        return acquireTimeHistogram.clone();
+    }
+
+    /**
+     * @return connections handed out and since closed
+     */
+    public long getLeaseCount() {
+        return sum(leaseTimeHistogram);
+    }
+
+    public double getLeaseTimeMillisMedian() {
+        return LatencyHistogram.getMillisAtPercentile(leaseTimeHistogram, MEDIAN);
+    }
+
+    public double getLeaseTimeMillis99thPercentile() {
+        return LatencyHistogram.getMillisAtPercentile(leaseTimeHistogram, NINETY_NINTH_PERCENTILE);
+    }
+
+    /**
+     * @return count of connection hold times in each bucket - see LatencyHistogram for the bucket bounds
+     */
+    public long[] getLeaseTimeHistogram() {
+        return leaseTimeHistogram.clone();
+    }
+
+    /**
+     * @return connections that have been held for longer than the leak threshold - see DataSourceHealthMonitor
+     */
+    public long getSuspectedLeakCount() {
+        return suspectedLeakCount;
+    }
+
+    /**
+     * @return how long the longest held open connection has been held, 0 if none are open
+     */
+    public double getLongestHeldLeaseMillis() {
+        return longestHeldLeaseNanos / NANOS_PER_MILLISECOND;
+    }
+
+    /**
+     * @return number of times each load balancing policy has selected this data source, by policy name
+     */
+    public Map<String, Long> getSelectionCounts() {
+        return selectionCounts;
+    }
+
+    public long getSnapshotTimeMillis() {
+        return snapshotTimeMillis;
+    }
+
+    private static long sum(final long[] bucketCounts) {
+        long count = 0;
+        for (final long bucketCount : bucketCounts) {
+            count += bucketCount;
+        }
+        return count;
+    }
+}
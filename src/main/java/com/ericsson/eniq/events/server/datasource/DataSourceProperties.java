@@ -0,0 +1,73 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.Properties;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogger;
+
+/**
+ * Reads the optional data source tuning properties from the ENIQ Events JNDI properties
+ * If a property isn't set (or can't be parsed), the default value is used
+ *
+ * @author eemecoy
+ *
+ */
+final class DataSourceProperties {
+
+    private DataSourceProperties() {
+    }
+
+    static String getString(final Properties properties, final String propertyName, final String defaultValue) {
+        if (properties == null) {
+            return defaultValue;
+        }
+        final String value = properties.getProperty(propertyName);
+        return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+    }
+
+    static int getInt(final Properties properties, final String propertyName, final int defaultValue) {
+        final String value = getString(properties, propertyName, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            ServicesLogger.warn(DataSourceProperties.class.getName(), "getInt", "Invalid value " + value
+                    + " for property " + propertyName + ", will default to " + defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    static long getLong(final Properties properties, final String propertyName, final long defaultValue) {
+        final String value = getString(properties, propertyName, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            ServicesLogger.warn(DataSourceProperties.class.getName(), "getLong", "Invalid value " + value
+                    + " for property " + propertyName + ", will default to " + defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    static double getDouble(final Properties properties, final String propertyName, final double defaultValue) {
+        final String value = getString(properties, propertyName, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (final NumberFormatException e) {
+            ServicesLogger.warn(DataSourceProperties.class.getName(), "getDouble", "Invalid value " + value
+                    + " for property " + propertyName + ", will default to " + defaultValue, e);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Properties;
+import java.util.RandomAccess;
+
+import com.ericsson.eniq.events.server.datasource.loadbalancing.ConsistentHashRing;
+import com.ericsson.eniq.events.server.datasource.loadbalancing.RendezvousHashTable;
+import com.ericsson.eniq.events.server.datasource.loadbalancing.WeightedSchedule;
+
+/**
+ * Immutable snapshot of a set of data sources, as handed to the load balancing policies
+ *
+ * The DataSourceManager publishes a new snapshot whenever the data sources change, so readers always see a
+ * consistent list without any locking. The snapshot is itself the list passed to LoadBalancingPolicy.selectDataSource(),
+ * and also carries values that the policies would otherwise recompute on every query - policies check whether the
+ * list they are given is a DataSourceTopology, and use the precomputed values if it is
+ *
+ * The snapshot also carries the ENIQ Events properties the data sources were set up with, so that a reload
+ * publishes the data sources and their settings together
+ *
+ * @author eemecoy
+ *
+ */
+public final class DataSourceTopology extends AbstractList<EniqDataSource> implements RandomAccess {
+
+    private final EniqDataSource[] dataSources;
+
+    private final int maximumWeight;
+
+    private final int greatestCommonDivisor;
+
+    private final Properties properties;
+
+    private volatile ConsistentHashRing hashRing;
+
+    private volatile WeightedSchedule weightedSchedule;
+
+    private volatile RendezvousHashTable rendezvousHashTable;
+
+    /**
+     * @param dataSources data sources in the snapshot, in selection order (the default data source first) -
+     * the list is copied
+     */
+    public DataSourceTopology(final List<EniqDataSource> dataSources) {
+        this(dataSources, null);
+    }
+
+    /**
+     * @param dataSources data sources in the snapshot, in selection order (the default data source first) -
+     * the list is copied
+     * @param properties ENIQ Events properties the data sources were set up with
+     */
+    public DataSourceTopology(final List<EniqDataSource> dataSources, final Properties properties) {
+        this.properties = properties;
+        this.dataSources = dataSources.toArray(new EniqDataSource[dataSources.size()]);
+        int maxWeight = 0;
+        int gcd = 0;
+        for (final EniqDataSource dataSource : this.dataSources) {
+            final int weight = dataSource.getWeight();
+            maxWeight = Math.max(maxWeight, weight);
+            gcd = calculateGreatestCommonDivisor(gcd, weight);
+        }
+        maximumWeight = maxWeight;
+        greatestCommonDivisor = gcd;
+    }
+
+    @Override
+    public EniqDataSource get(final int index) {
+        return dataSources[index];
+    }
+
+    @Override
+    public int size() {
+        return dataSources.length;
+    }
+
+    /**
+     * @return the highest weight of any data source in the snapshot
+     */
+    public int getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * @return the greatest common divisor of the weights of the data sources in the snapshot
+     */
+    public int getGreatestCommonDivisor() {
+        return greatestCommonDivisor;
+    }
+
+    /**
+     * @return the ENIQ Events properties the data sources were set up with, or null if none were given
+     */
+    public Properties getProperties() {
+        return properties;
+    }
+
+    /**
+     * Get the consistent hash ring over the data sources in this snapshot - built on first use
+     * @return
+     */
+    public ConsistentHashRing getHashRing() {
+        ConsistentHashRing ring = hashRing;
+        if (ring == null) {
+            ring = new ConsistentHashRing(this);
+            hashRing = ring;
+        }
+        return ring;
+    }
+
+    /**
+     * Get the weighted round robin schedule over the data sources in this snapshot - built on first use
+     * @return
+     */
+    public WeightedSchedule getWeightedSchedule() {
+        WeightedSchedule schedule = weightedSchedule;
+        if (schedule == null) {
+            schedule = new WeightedSchedule(this, greatestCommonDivisor);
+            weightedSchedule = schedule;
+        }
+        return schedule;
+    }
+
+    /**
+     * Get the pool name hashes and weights of the data sources in this snapshot, for key affinity load balancing -
+     * built on first use
+     * @return
+     */
+    public RendezvousHashTable getRendezvousHashTable() {
+        RendezvousHashTable table = rendezvousHashTable;
+        if (table == null) {
+            table = new RendezvousHashTable(this);
+            rendezvousHashTable = table;
+        }
+        return table;
+    }
+
+    private static int calculateGreatestCommonDivisor(final int a, final int b) {
+        if (b == 0) {
+            return a;
+        }
+        return calculateGreatestCommonDivisor(b, a % b);
+    }
+}
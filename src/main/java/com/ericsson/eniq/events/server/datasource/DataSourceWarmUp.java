@@ -0,0 +1,190 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogger;
+
+/**
+ * Warms up the pool of one data source, by opening and validating a number of connections in parallel
+ *
+ * All the connections are held open until the required number have been opened, so the pool has to create that
+ * many physical connections (and pay the IQ login cost for each) - they're then all closed, back into the pool.
+ * The data source is not offered to the load balancing policies until the warm up has finished
+ *
+ * The warm up finishes early if a connection can't be opened (the health checks deal with a data source that
+ * isn't working), or if the warm up timeout is reached
+ *
+ * The thread running the warm up opens connections alongside the openers it submits, and only waits for openers that
+ * have started - so a warm up still finishes if its openers are queued behind other work on a bounded executor
+ *
+ * @author eemecoy
+ *
+ */
+final class DataSourceWarmUp implements Runnable {
+
+    private final EniqDataSourceImpl dataSource;
+
+    private final int connectionsToOpen;
+
+    private final int parallelism;
+
+    private final String validationQuery;
+
+    private final int validationTimeoutSeconds;
+
+    private final long warmUpTimeoutNanos;
+
+    private final ExecutorService executor;
+
+    private final AtomicInteger connectionsStillToOpen;
+
+    private final Queue<Connection> openedConnections = new ConcurrentLinkedQueue<Connection>();
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private final AtomicInteger openersRunning = new AtomicInteger(0);
+
+    /**
+     * @param dataSource data source to warm up - must already be marked as warming up
+     * @param connectionsToOpen
+     * @param parallelism maximum number of connections to open at once
+     * @param validationQuery query run on each connection opened
+     * @param validationTimeoutSeconds query timeout for the validation query
+     * @param warmUpTimeoutSeconds time after which to give up on the warm up
+     * @param executor executor to open the connections on
+     */
+    DataSourceWarmUp(final EniqDataSourceImpl dataSource, final int connectionsToOpen, final int parallelism,
+            final String validationQuery, final int validationTimeoutSeconds, final int warmUpTimeoutSeconds,
+            final ExecutorService executor) {
+        this.dataSource = dataSource;
+        this.connectionsToOpen = connectionsToOpen;
+        this.parallelism = Math.max(Math.min(parallelism, connectionsToOpen), 1);
+        this.validationQuery = validationQuery;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        warmUpTimeoutNanos = TimeUnit.SECONDS.toNanos(warmUpTimeoutSeconds);
+        this.executor = executor;
+        connectionsStillToOpen = new AtomicInteger(connectionsToOpen);
+    }
+
+    @Override
+    public void run() {
+        final long startTime = System.nanoTime();
+        final long deadline = startTime + warmUpTimeoutNanos;
+        final List<Future<?>> openers = new ArrayList<Future<?>>();
+        try {
+            try {
+                for (int i = 1; i < parallelism; i++) {
+                    openers.add(executor.submit(new ConnectionOpener(deadline)));
+                }
+            } catch (final RejectedExecutionException e) {
+                // open the rest with the openers already submitted
+            }
+            new ConnectionOpener(deadline).run();
+            awaitRunningOpeners(deadline);
+        } finally {
+            // openers that haven't started have nothing left to open, those still running have passed the deadline
+            for (final Future<?> opener : openers) {
+                opener.cancel(true);
+            }
+            finished.set(true);
+            final int connectionsOpened = closeOpenedConnections();
+            dataSource.finishWarmUp();
+            ServicesLogger.detailed(getClass().getName(), "run", "Data source warmed up", dataSource.getPoolName(),
+                    connectionsOpened + " of " + connectionsToOpen + " connections",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + "ms");
+        }
+    }
+
+    private void awaitRunningOpeners(final long deadline) {
+        synchronized (openersRunning) {
+            long timeLeft = deadline - System.nanoTime();
+            while (openersRunning.get() > 0 && timeLeft > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(openersRunning, timeLeft);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                timeLeft = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    private int closeOpenedConnections() {
+        int connectionsClosed = 0;
+        Connection connection = openedConnections.poll();
+        while (connection != null) {
+            try {
+                connection.close();
+            } catch (final SQLException e) {
+                ServicesLogger.warn(getClass().getName(), "closeOpenedConnections",
+                        "Could not close warm up connection for data source " + dataSource.getPoolName(), e);
+            }
+            connectionsClosed++;
+            connection = openedConnections.poll();
+        }
+        return connectionsClosed;
+    }
+
+    /**
+     * Opens connections until the required number have been opened between all the openers
+     * A connection that is opened after the warm up has given up is closed straight away
+     */
+    private class ConnectionOpener implements Runnable {
+
+        private final long deadline;
+
+        ConnectionOpener(final long deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            openersRunning.incrementAndGet();
+            try {
+                openConnections();
+            } finally {
+                if (openersRunning.decrementAndGet() == 0) {
+                    synchronized (openersRunning) {
+                        openersRunning.notifyAll();
+                    }
+                }
+            }
+        }
+
+        private void openConnections() {
+            while (!finished.get() && deadline - System.nanoTime() > 0 && connectionsStillToOpen.getAndDecrement() > 0
+                    && !Thread.currentThread().isInterrupted()) {
+                try {
+                    openedConnections.add(dataSource.openValidatedConnection(validationQuery,
+                            validationTimeoutSeconds));
+                    if (finished.get()) {
+                        // warm up gave up while this connection was being opened
+                        closeOpenedConnections();
+                        return;
+                    }
+                } catch (final SQLException e) {
+                    connectionsStillToOpen.set(0);
+                    ServicesLogger.warn(getClass().getName(), "run", "Could not open warm up connection for data source "
+                            + dataSource.getPoolName() + ", finishing the warm up early", e);
+                }
+            }
+        }
+    }
+}
@@ -8,7 +8,10 @@ package com.ericsson.eniq.events.server.datasource;
 import javax.sql.DataSource;
 
 /**
- * Wrapper on the javax.sql.DataSource interface - adds one extra method for ENIQ Events specific use
+ * Wrapper on the javax.sql.DataSource interface - adds extra methods for ENIQ Events specific use
+ * 
+ * The load reporting methods have defaults, so implementations that don't track their load still compile - they're
+ * treated as idle, always available, and limited only by their weight
  * @author eemecoy
  *
  */
@@ -27,4 +30,50 @@ public interface EniqDataSource extends DataSource {
      */
 	String getPoolName();
 
+    /**
+     * Get the number of connections currently leased from this DataSource, ie handed out and not yet closed
+     * This is used in load balancing policies that route on the live load of each DataSource
+     * @return 0 by default
+     */
+    default int getLeasedConnectionCount() {
+        return 0;
+    }
+
+    /**
+     * Get the number of connections this DataSource can currently have leased at once - its adaptive concurrency
+     * limit if it has one, otherwise its weight (the pool's MaxPoolSize)
+     * This is used in load balancing policies that route on the live load of each DataSource
+     * @return the weight by default
+     */
+    default int getConcurrencyLimit() {
+        return getWeight();
+    }
+
+    /**
+     * Get the moving average of the time taken to get a connection from this DataSource
+     * @return average in milliseconds, or 0 if no connection has been requested yet - always 0 by default
+     */
+    default double getAverageAcquireTimeMillis() {
+        return 0;
+    }
+
+    /**
+     * Get the moving average of the time connections from this DataSource are held before being closed
+     * ie the time taken by the query run on the connection
+     * @return average in milliseconds, or 0 if no connection has been closed yet - always 0 by default
+     */
+    default double getAverageLeaseTimeMillis() {
+        return 0;
+    }
+
+    /**
+     * Check if this DataSource may currently be offered to the load balancing policies
+     * A DataSource that has failed its health checks is not available until it passes them again, and a DataSource
+     * whose circuit breaker is open is not available until the breaker lets a trial request through
+     * @return true by default
+     */
+    default boolean isAvailable() {
+        return true;
+    }
+
 }
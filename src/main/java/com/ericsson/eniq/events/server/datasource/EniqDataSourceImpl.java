@@ -15,6 +15,14 @@ import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
@@ -25,6 +33,18 @@ import javax.sql.DataSource;
  */
 public class EniqDataSourceImpl implements EniqDataSource {
 
+    /**
+     * smoothing factor for the moving averages of connection acquire time and lease time
+     */
+    static final double LATENCY_SMOOTHING_FACTOR = 0.1;
+
+    /**
+     * by default the call site of one lease in this many is recorded, see ConnectionLease
+     */
+    static final int DEFAULT_CALL_SITE_SAMPLE_INTERVAL = 20;
+
+    private static final double NANOS_PER_MILLISECOND = 1000000.0;
+
     private final DataSource dataSource;
 
     /**
@@ -38,6 +58,41 @@ public class EniqDataSourceImpl implements EniqDataSource {
      */
     private final String poolName;
 
+    /**
+     * number of connections handed out by this data source that haven't been closed yet
+     */
+    private final AtomicInteger leasedConnections = new AtomicInteger(0);
+
+    /**
+     * connections handed out by this data source that haven't been closed yet, for leak detection
+     */
+    private final Set<ConnectionLease> openLeases = Collections
+            .newSetFromMap(new ConcurrentHashMap<ConnectionLease, Boolean>());
+
+    private final AtomicLong leaseCount = new AtomicLong(0);
+
+    /**
+     * the call site of one lease in this many is recorded - 1 records every call site, 0 none
+     */
+    private volatile int callSiteSampleInterval = DEFAULT_CALL_SITE_SAMPLE_INTERVAL;
+
+    private final ExponentiallyWeightedMovingAverage averageAcquireTime = new ExponentiallyWeightedMovingAverage(
+            LATENCY_SMOOTHING_FACTOR);
+
+    private final ExponentiallyWeightedMovingAverage averageLeaseTime = new ExponentiallyWeightedMovingAverage(
+            LATENCY_SMOOTHING_FACTOR);
+
+    private final DataSourceHealth health = new DataSourceHealth();
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final DataSourceMetrics metrics = new DataSourceMetrics();
+
+    /**
+     * adaptive limit on the connections leased at once - null if the data source has no limit beyond its pool
+     */
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+
     /**
      * 
      * @param dataSource
@@ -48,19 +103,219 @@ public class EniqDataSourceImpl implements EniqDataSource {
      * WeightedRoundRobinLoadBalancingPolicy is in use
      */
     public EniqDataSourceImpl(final DataSource dataSource, final String poolName, final int weightFactor) {
+        this(dataSource, poolName, weightFactor, new CircuitBreaker());
+    }
+
+    /**
+     * 
+     * @param dataSource
+     * @param poolName
+     * name of connection pool used for the current database connection
+     * @param weightFactor
+     * weight that should be applied to the data source
+     * @param circuitBreaker
+     * circuit breaker to wrap around getting connections from the data source
+     */
+    public EniqDataSourceImpl(final DataSource dataSource, final String poolName, final int weightFactor,
+            final CircuitBreaker circuitBreaker) {
+        this(dataSource, poolName, weightFactor, circuitBreaker, null);
+    }
+
+    /**
+     * 
+     * @param dataSource
+     * @param poolName
+     * name of connection pool used for the current database connection
+     * @param weightFactor
+     * weight that should be applied to the data source
+     * @param circuitBreaker
+     * circuit breaker to wrap around getting connections from the data source
+     * @param concurrencyLimit
+     * adaptive limit on the connections leased at once, or null for no limit beyond the pool
+     */
+    public EniqDataSourceImpl(final DataSource dataSource, final String poolName, final int weightFactor,
+            final CircuitBreaker circuitBreaker, final AdaptiveConcurrencyLimit concurrencyLimit) {
         this.dataSource = dataSource;
         this.weightFactor = weightFactor;
         this.poolName = poolName;
+        this.circuitBreaker = circuitBreaker;
+        this.concurrencyLimit = concurrencyLimit;
     }
 
     @Override
     public Connection getConnection() throws SQLException {
-        return dataSource.getConnection();
+        return acquireConnection(false, null, null);
     }
 
     @Override
     public Connection getConnection(final String username, final String password) throws SQLException {
-        return dataSource.getConnection(username, password);
+        return acquireConnection(true, username, password);
+    }
+
+    /**
+     * Get a connection from the underlying data source, through the concurrency limit and the circuit breaker
+     * 
+     * The place under the concurrency limit is taken first, so that the breaker is only asked once the request is
+     * sure to go to the pool - if the breaker's trial were given to a request that the limit then turned away, the
+     * breaker would be left HALF_OPEN with no outcome ever recorded
+     * @param useCredentials true to get the connection with the username and password provided
+     * @param username
+     * @param password
+     * @return leased connection
+     * @throws SQLException if the circuit breaker is open, the concurrency limit has been reached, or the underlying
+     * data source fails
+     */
+    private Connection acquireConnection(final boolean useCredentials, final String username, final String password)
+            throws SQLException {
+        if (!circuitBreaker.isCallPermitted()) {
+            // fail fast, rather than waiting under the concurrency limit first
+            throw rejectedByCircuitBreaker();
+        }
+        acquireUnderConcurrencyLimit();
+        final long permission = circuitBreaker.tryAcquirePermission();
+        if (permission == CircuitBreaker.NOT_PERMITTED) {
+            cancelUnderConcurrencyLimit();
+            throw rejectedByCircuitBreaker();
+        }
+        final long startTime = System.nanoTime();
+        final Connection connection;
+        try {
+            connection = useCredentials ? dataSource.getConnection(username, password) : dataSource.getConnection();
+        } catch (final SQLException e) {
+            recordFailedAcquire(permission, startTime);
+            throw e;
+        } catch (final RuntimeException e) {
+            recordFailedAcquire(permission, startTime);
+            throw e;
+        } catch (final Error e) {
+            // no outcome to record - but don't leave a trial in progress for good
+            circuitBreaker.releasePermission(permission);
+            cancelUnderConcurrencyLimit();
+            throw e;
+        }
+        final long acquireTime = System.nanoTime() - startTime;
+        circuitBreaker.onSuccess(permission, acquireTime);
+        return leaseConnection(connection, acquireTime);
+    }
+
+    private SQLException rejectedByCircuitBreaker() {
+        metrics.recordRejected();
+        return new ConnectionRejectedException("Circuit breaker is open for data source " + poolName
+                + ", not requesting a connection");
+    }
+
+    private void recordFailedAcquire(final long permission, final long startTime) {
+        circuitBreaker.onFailure(permission);
+        metrics.recordAcquireFailure();
+        releaseUnderConcurrencyLimit(System.nanoTime() - startTime, true);
+    }
+
+    /**
+     * Take a place under the concurrency limit, if there is one, waiting for a connection to be closed if needed
+     * @throws SQLException if no place became free in time
+     */
+    private void acquireUnderConcurrencyLimit() throws SQLException {
+        if (concurrencyLimit == null) {
+            return;
+        }
+        final boolean acquired;
+        try {
+            acquired = concurrencyLimit.tryAcquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection from data source " + poolName, e);
+        }
+        if (!acquired) {
+            metrics.recordRejected();
+            throw new ConnectionRejectedException("Concurrency limit of " + concurrencyLimit.getLimit()
+                    + " reached for data source " + poolName + ", not requesting a connection");
+        }
+    }
+
+    private void cancelUnderConcurrencyLimit() {
+        if (concurrencyLimit != null) {
+            concurrencyLimit.cancel();
+        }
+    }
+
+    private void releaseUnderConcurrencyLimit(final long latencyNanos, final boolean dropped) {
+        if (concurrencyLimit != null) {
+            concurrencyLimit.onRelease(latencyNanos, dropped);
+        }
+    }
+
+    /**
+     * Track the connection as leased until the caller closes it
+     * @param connection connection from the underlying data source
+     * @param acquireTimeNanos time taken to get the connection from the underlying data source
+     * @return connection to hand back to the caller
+     */
+    private Connection leaseConnection(final Connection connection, final long acquireTimeNanos) {
+        averageAcquireTime.update(acquireTimeNanos / NANOS_PER_MILLISECOND);
+        metrics.recordAcquire(acquireTimeNanos);
+        leasedConnections.incrementAndGet();
+        final int sampleInterval = callSiteSampleInterval;
+        final boolean recordCallSite = sampleInterval > 0 && leaseCount.incrementAndGet() % sampleInterval == 0;
+        final ConnectionLease lease = ConnectionLease.lease(connection, this, recordCallSite);
+        openLeases.add(lease);
+        return lease.getConnection();
+    }
+
+    /**
+     * called by the ConnectionLease when the caller closes a connection leased from this data source
+     * @param lease
+     * @param leaseTimeNanos how long the connection was held by the caller
+     */
+    void leaseReleased(final ConnectionLease lease, final long leaseTimeNanos) {
+        openLeases.remove(lease);
+        leasedConnections.decrementAndGet();
+        averageLeaseTime.update(leaseTimeNanos / NANOS_PER_MILLISECOND);
+        metrics.recordLease(leaseTimeNanos);
+        releaseUnderConcurrencyLimit(leaseTimeNanos, false);
+    }
+
+    /**
+     * Find the connections held for longer than the threshold, that haven't been reported already
+     * Each is counted as a suspected leak in the metrics
+     * @param thresholdNanos
+     * @return the leases, for the caller to report
+     */
+    List<ConnectionLease> findSuspectedLeaks(final long thresholdNanos) {
+        final List<ConnectionLease> suspectedLeaks = new ArrayList<ConnectionLease>();
+        final long now = System.nanoTime();
+        for (final ConnectionLease lease : openLeases) {
+            if (lease.getHeldNanos(now) >= thresholdNanos && lease.reportAsLeak()) {
+                metrics.recordSuspectedLeak();
+                suspectedLeaks.add(lease);
+            }
+        }
+        return suspectedLeaks;
+    }
+
+    /**
+     * @return how long the longest held open connection has been held, or 0 if no connections are open
+     */
+    long getLongestHeldLeaseNanos() {
+        final long now = System.nanoTime();
+        long longest = 0;
+        for (final ConnectionLease lease : openLeases) {
+            longest = Math.max(longest, lease.getHeldNanos(now));
+        }
+        return longest;
+    }
+
+    /**
+     * @param callSiteSampleInterval record the call site of one lease in this many - 1 for every lease, 0 for none
+     */
+    void setCallSiteSampleInterval(final int callSiteSampleInterval) {
+        this.callSiteSampleInterval = callSiteSampleInterval;
+    }
+
+    /**
+     * @return a point in time copy of the metrics for this data source
+     */
+    public DataSourceMetricsSnapshot getMetricsSnapshot() {
+        return new DataSourceMetricsSnapshot(this, metrics);
     }
 
     @Override
@@ -104,6 +359,124 @@ public class EniqDataSourceImpl implements EniqDataSource {
         return poolName;
     }
 
+    @Override
+    public int getLeasedConnectionCount() {
+        return leasedConnections.get();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return concurrencyLimit == null ? weightFactor : concurrencyLimit.getLimit();
+    }
+
+    @Override
+    public double getAverageAcquireTimeMillis() {
+        return averageAcquireTime.getAverage();
+    }
+
+    @Override
+    public double getAverageLeaseTimeMillis() {
+        return averageLeaseTime.getAverage();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return health.isReady() && circuitBreaker.isCallPermitted();
+    }
+
+    /**
+     * @return true if as many connections are leased as the adaptive concurrency limit allows, so a request sent here
+     * now would have to wait for one to be closed - never true if there's no limit
+     */
+    boolean isAtConcurrencyLimit() {
+        return concurrencyLimit != null && concurrencyLimit.getInFlight() >= concurrencyLimit.getLimit();
+    }
+
+    /**
+     * @return the circuit breaker around getting connections from this data source
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the live metrics for this data source
+     */
+    DataSourceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the health of this data source, as maintained by the DataSourceHealthMonitor
+     */
+    DataSourceHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * Check the data source is usable by running the validation query on a connection from the underlying data source
+     * The probe connection isn't counted as a lease, so it doesn't affect the load or latency seen by the
+     * load balancing policies
+     *
+     * @param validationQuery
+     * @param timeoutSeconds query timeout for the validation query
+     * @throws SQLException if a connection can't be got, or the validation query fails
+     */
+    void probe(final String validationQuery, final int timeoutSeconds) throws SQLException {
+        openValidatedConnection(validationQuery, timeoutSeconds).close();
+    }
+
+    /**
+     * Get a connection from the underlying data source, and run the validation query on it
+     * As for probe(), the connection isn't counted as a lease
+     *
+     * @param validationQuery
+     * @param timeoutSeconds query timeout for the validation query
+     * @return the connection, which the caller must close
+     * @throws SQLException if a connection can't be got, or the validation query fails - the connection is closed
+     */
+    Connection openValidatedConnection(final String validationQuery, final int timeoutSeconds) throws SQLException {
+        final Connection connection = dataSource.getConnection();
+        boolean validated = false;
+        try {
+            final Statement statement = connection.createStatement();
+            try {
+                statement.setQueryTimeout(timeoutSeconds);
+                statement.execute(validationQuery);
+            } finally {
+                statement.close();
+            }
+            validated = true;
+            return connection;
+        } finally {
+            if (!validated) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Mark the data source as warming up
+     * @return false if a warm up is already in progress
+     */
+    boolean startWarmUp() {
+        return health.startWarmUp();
+    }
+
+    /**
+     * Mark the warm up as finished, making the data source eligible for selection again
+     */
+    void finishWarmUp() {
+        health.finishWarmUp();
+    }
+
+    /**
+     * @return true if the pool is being warmed up
+     */
+    boolean isWarmingUp() {
+        return health.isWarmingUp();
+    }
+
     @Override
     public Logger getParentLogger() throws SQLFeatureNotSupportedException {
         return dataSource.getParentLogger();
@@ -0,0 +1,213 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded cache whose entries expire a fixed time after they're put in the cache
+ *
+ * Each entry has a weight (1 unless given, or eg its size in bytes), and the cache holds entries up to a maximum total
+ * weight. Entries are held in access order - once the cache is full, putting a new entry evicts the least recently
+ * used entries until it fits. An expired entry is removed when it's next looked up, or when it reaches the least
+ * recently used end of the cache
+ *
+ * The cache is guarded by its own lock, which is only held for the map operations - values are never loaded while
+ * holding it
+ *
+ * @param <K> key type
+ * @param <V> value type
+ *
+ * @author eemecoy
+ *
+ */
+class ExpiringLruCache<K, V> {
+
+    private final long maximumWeight;
+
+    private final long timeToLiveNanos;
+
+    private final LinkedHashMap<K, CacheEntry<V>> entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+
+    private long totalWeight;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param maximumWeight most total weight held at once - with the default weight of 1, the most entries
+     * @param timeToLiveMillis how long an entry stays in the cache after it's put there
+     */
+    ExpiringLruCache(final long maximumWeight, final long timeToLiveMillis) {
+        this.maximumWeight = Math.max(maximumWeight, 1);
+        timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+    }
+
+    /**
+     * @param key
+     * @return the value cached for the key, or null if there's none, or it has expired
+     */
+    V get(final K key) {
+        final long now = currentTimeNanos();
+        synchronized (entries) {
+            final CacheEntry<V> entry = entries.get(key);
+            if (entry != null) {
+                if (!entry.hasExpired(now)) {
+                    hitCount.incrementAndGet();
+                    return entry.value;
+                }
+                remove(key);
+            }
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache the value for the key with a weight of 1, replacing any value already cached for it
+     * @param key
+     * @param value
+     */
+    void put(final K key, final V value) {
+        put(key, value, 1);
+    }
+
+    /**
+     * Cache the value for the key, replacing any value already cached for it, and evict the least recently used
+     * entries (and any expired entries at the least recently used end) until the cache is within its maximum weight
+     * A value heavier than the maximum weight isn't cached
+     * @param key
+     * @param value
+     * @param weight
+     */
+    void put(final K key, final V value, final long weight) {
+        final long now = currentTimeNanos();
+        final CacheEntry<V> entry = new CacheEntry<V>(value, now + timeToLiveNanos, weight);
+        synchronized (entries) {
+            remove(key);
+            if (weight > maximumWeight) {
+                return;
+            }
+            entries.put(key, entry);
+            totalWeight += weight;
+            final Iterator<CacheEntry<V>> leastRecentlyUsed = entries.values().iterator();
+            while (leastRecentlyUsed.hasNext()) {
+                final CacheEntry<V> eldest = leastRecentlyUsed.next();
+                if (totalWeight <= maximumWeight && !eldest.hasExpired(now)) {
+                    break;
+                }
+                leastRecentlyUsed.remove();
+                totalWeight -= eldest.weight;
+            }
+        }
+    }
+
+    /**
+     * Remove the value cached for the key, if any
+     * @param key
+     */
+    void invalidate(final K key) {
+        synchronized (entries) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Remove the values cached for all the keys that match
+     * @param keysToInvalidate
+     */
+    void invalidateAll(final Predicate<? super K> keysToInvalidate) {
+        synchronized (entries) {
+            final Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<K, CacheEntry<V>> entry = iterator.next();
+                if (keysToInvalidate.test(entry.getKey())) {
+                    iterator.remove();
+                    totalWeight -= entry.getValue().weight;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all the cached values
+     */
+    void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            totalWeight = 0;
+        }
+    }
+
+    /**
+     * @return total weight of the entries held
+     */
+    long getWeight() {
+        synchronized (entries) {
+            return totalWeight;
+        }
+    }
+
+    /**
+     * @return number of entries held, including any that have expired but haven't been removed yet
+     */
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * must be called holding the lock
+     */
+    private void remove(final K key) {
+        final CacheEntry<V> removed = entries.remove(key);
+        if (removed != null) {
+            totalWeight -= removed.weight;
+        }
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * extracted out to get under unit test
+     * @return
+     */
+    long currentTimeNanos() {
+        return System.nanoTime();
+    }
+
+    private static final class CacheEntry<V> {
+
+        private final V value;
+
+        private final long expiresAtNanos;
+
+        private final long weight;
+
+        CacheEntry(final V value, final long expiresAtNanos, final long weight) {
+            this.value = value;
+            this.expiresAtNanos = expiresAtNanos;
+            this.weight = weight;
+        }
+
+        boolean hasExpired(final long now) {
+            return now - expiresAtNanos >= 0;
+        }
+    }
+}
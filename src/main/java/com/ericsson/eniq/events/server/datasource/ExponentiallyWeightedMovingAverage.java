@@ -0,0 +1,64 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe exponentially weighted moving average
+ * Each new sample moves the average towards it by the smoothing factor, so older samples decay geometrically
+ * and the average follows a change in the underlying values within a few tens of samples
+ *
+ * Updates are lock free - the average is stored as the raw bits of a double in an AtomicLong
+ *
+ * @author eemecoy
+ *
+ */
+public class ExponentiallyWeightedMovingAverage {
+
+    private static final long NO_SAMPLES = Double.doubleToRawLongBits(Double.NaN);
+
+    private final double smoothingFactor;
+
+    private final AtomicLong averageBits = new AtomicLong(NO_SAMPLES);
+
+    /**
+     * @param smoothingFactor weight given to each new sample, between 0 and 1 - the higher the value, the faster the
+     * average reacts to change
+     */
+    public ExponentiallyWeightedMovingAverage(final double smoothingFactor) {
+        if (smoothingFactor <= 0 || smoothingFactor > 1) {
+            throw new IllegalArgumentException("Smoothing factor must be greater than 0 and at most 1, was "
+                    + smoothingFactor);
+        }
+        this.smoothingFactor = smoothingFactor;
+    }
+
+    /**
+     * Add a sample to the average - the first sample becomes the average
+     * @param sample
+     */
+    public void update(final double sample) {
+        while (true) {
+            final long currentBits = averageBits.get();
+            final double currentAverage = Double.longBitsToDouble(currentBits);
+            final double newAverage = Double.isNaN(currentAverage) ? sample : currentAverage
+                    + smoothingFactor * (sample - currentAverage);
+            if (averageBits.compareAndSet(currentBits, Double.doubleToRawLongBits(newAverage))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the current average
+     * @return the average, or 0 if no samples have been added yet
+     */
+    public double getAverage() {
+        final double average = Double.longBitsToDouble(averageBits.get());
+        return Double.isNaN(average) ? 0 : average;
+    }
+}
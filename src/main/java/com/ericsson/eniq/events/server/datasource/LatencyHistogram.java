@@ -0,0 +1,114 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies, in power of two buckets of nanoseconds
+ *
+ * Bucket 0 holds latencies of 0, and bucket n holds latencies from 2^(n-1) to 2^n - 1 nanoseconds - so a
+ * percentile read from the histogram is accurate to within a factor of two, which is plenty to see a pool
+ * saturating. Recording a latency is a single atomic increment
+ *
+ * @author eemecoy
+ *
+ */
+public final class LatencyHistogram {
+
+    static final int NUMBER_OF_BUCKETS = 64;
+
+    private static final double NANOS_PER_MILLISECOND = 1000000.0;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+
+    /**
+     * @param latencyNanos
+     */
+    public void record(final long latencyNanos) {
+        buckets.incrementAndGet(getBucket(latencyNanos));
+    }
+
+    /**
+     * @return copy of the count in each bucket - the copy isn't atomic across buckets, so latencies recorded while
+     * copying may or may not be included
+     */
+    public long[] getBucketCounts() {
+        final long[] counts = new long[NUMBER_OF_BUCKETS];
+        for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * @return number of latencies recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound, in nanoseconds, of the bucket holding this percentile, or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        return getValueAtPercentile(getBucketCounts(), percentile);
+    }
+
+    /**
+     * As getValueAtPercentile(double), for bucket counts already copied from a histogram
+     * @param bucketCounts
+     * @param percentile between 0 and 100
+     * @return
+     */
+    static long getValueAtPercentile(final long[] bucketCounts, final double percentile) {
+        long count = 0;
+        for (final long bucketCount : bucketCounts) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max((long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100), 1);
+        long countSoFar = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            countSoFar += bucketCounts[i];
+            if (countSoFar >= rank) {
+                return getBucketUpperBound(i);
+            }
+        }
+        return getBucketUpperBound(bucketCounts.length - 1);
+    }
+
+    /**
+     * As getValueAtPercentile(long[], double), in milliseconds
+     * @param bucketCounts
+     * @param percentile
+     * @return
+     */
+    static double getMillisAtPercentile(final long[] bucketCounts, final double percentile) {
+        return getValueAtPercentile(bucketCounts, percentile) / NANOS_PER_MILLISECOND;
+    }
+
+    static int getBucket(final long latencyNanos) {
+        if (latencyNanos <= 0) {
+            return 0;
+        }
+        return Math.min(Long.SIZE - Long.numberOfLeadingZeros(latencyNanos), NUMBER_OF_BUCKETS - 1);
+    }
+
+    static long getBucketUpperBound(final int bucket) {
+        if (bucket >= NUMBER_OF_BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+/**
+ * Classes of query, each with its own concurrency limit in the DataSourceManager's bulkhead - so a burst of one
+ * class (eg CSV exports) can't take every connection, and starve the others
+ *
+ * The limit for each class is the optional property ENIQ_EVENTS_DATA_SOURCE_BULKHEAD_&lt;class&gt;_LIMIT, eg
+ * ENIQ_EVENTS_DATA_SOURCE_BULKHEAD_CSV_EXPORT_LIMIT - if not set, the class has no limit
+ *
+ * @author eemecoy
+ *
+ */
+public enum QueryClass {
+
+    /**
+     * queries from the UI, such as drill downs - the default
+     */
+    INTERACTIVE,
+
+    /**
+     * CSV exports
+     */
+    CSV_EXPORT,
+
+    /**
+     * ranking queries
+     */
+    RANKING,
+
+    /**
+     * KPI queries
+     */
+    KPI;
+
+    private static final String LIMIT_PROPERTY_NAME_PREFIX = "ENIQ_EVENTS_DATA_SOURCE_BULKHEAD_";
+
+    private static final String LIMIT_PROPERTY_NAME_SUFFIX = "_LIMIT";
+
+    /**
+     * @return name of the property holding the concurrency limit for this class
+     */
+    public String getLimitPropertyName() {
+        return LIMIT_PROPERTY_NAME_PREFIX + name() + LIMIT_PROPERTY_NAME_SUFFIX;
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical queries that run at the same time (single flight)
+ *
+ * The first caller to run a query leads a run of it, and any caller that asks for the same query (see QueryKey) while
+ * the run is open joins it - it waits for the leader to share a copy of the result, and reads that, rather than
+ * taking a connection of its own. So a burst of users opening the same view at once costs one IQ query rather than
+ * one each. If the run fails, every caller that joined it gets the failure. A caller waits for the run no longer than
+ * the query's timeout, so a hung run can't hold its followers forever
+ *
+ * Copying the result is only worth it if someone will read the copy, so once its result set is open the leader may
+ * close the run to followers if nobody has joined (see Run.closeToFollowers()), and read the result set directly.
+ * Callers that come along after that, or after the run has finished, start a new run
+ *
+ * @author eemecoy
+ *
+ */
+final class QueryCoalescer {
+
+    /**
+     * A query run by the leader of a run - it either shares a copy of the result with Run.share(), or closes the run
+     * to followers first
+     */
+    interface SharedQuery<T> {
+
+        T run(Run run) throws SQLException, DataSourceConfigurationException;
+    }
+
+    /**
+     * One run of a query, shared by the callers that join it while it's open
+     */
+    static final class Run {
+
+        private static final int CLOSED = -1;
+
+        private final CompletableFuture<ColumnarResult> result = new CompletableFuture<ColumnarResult>();
+
+        /**
+         * number of callers that have joined, or CLOSED
+         */
+        private final AtomicInteger followers = new AtomicInteger();
+
+        /**
+         * Stop any more callers joining the run, if none have joined yet - then nobody else will read the result,
+         * so it needn't be copied
+         * @return true if the run is closed, false if callers have joined - the result must be shared with them
+         */
+        boolean closeToFollowers() {
+            return followers.compareAndSet(0, CLOSED);
+        }
+
+        /**
+         * Hand a copy of the result to the callers that have joined the run, and any that join it from now on
+         * @param copy
+         */
+        void share(final ColumnarResult copy) {
+            result.complete(copy);
+        }
+
+        private boolean join() {
+            while (true) {
+                final int currentFollowers = followers.get();
+                if (currentFollowers == CLOSED) {
+                    return false;
+                }
+                if (followers.compareAndSet(currentFollowers, currentFollowers + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private final ConcurrentMap<QueryKey, Run> queriesInFlight = new ConcurrentHashMap<QueryKey, Run>();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Run the query, or join the identical query already running and read its result
+     * @param key identifies the query
+     * @param query runs the query, if no identical query is running
+     * @param extractor reads the result shared by the identical query
+     * @param timeout longest time to wait for the identical query
+     * @param unit unit of timeout
+     * @return the result read by the extractor, or returned by the query
+     * @throws SQLException if the run failed, or this thread was interrupted while waiting for it
+     * @throws SQLTimeoutException if the identical query didn't share its result within the timeout
+     * @throws DataSourceConfigurationException if the run failed to set up the data sources
+     */
+    <T> T run(final QueryKey key, final SharedQuery<T> query, final ResultSetExtractor<T> extractor,
+            final long timeout, final TimeUnit unit) throws SQLException, DataSourceConfigurationException {
+        final Run ourRun = new Run();
+        Run runInFlight = queriesInFlight.putIfAbsent(key, ourRun);
+        while (runInFlight != null) {
+            if (runInFlight.join()) {
+                coalescedCount.incrementAndGet();
+                return awaitRun(key, runInFlight, timeout, unit).read(extractor);
+            }
+            // closed to followers - start a run of our own
+            queriesInFlight.remove(key, runInFlight);
+            runInFlight = queriesInFlight.putIfAbsent(key, ourRun);
+        }
+        try {
+            return query.run(ourRun);
+        } catch (final SQLException e) {
+            ourRun.result.completeExceptionally(e);
+            throw e;
+        } catch (final DataSourceConfigurationException e) {
+            ourRun.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            if (!ourRun.result.isDone()) {
+                // an unchecked exception or error, or the run was closed - anyone waiting mustn't hang
+                ourRun.result.completeExceptionally(new SQLException("Query " + key + " failed"));
+            }
+            queriesInFlight.remove(key, ourRun);
+        }
+    }
+
+    /**
+     * @return number of callers that shared the result of an identical query instead of running their own
+     */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return number of distinct queries running at the moment
+     */
+    int getQueriesInFlight() {
+        return queriesInFlight.size();
+    }
+
+    /**
+     * The failure is rethrown as a new exception, with the run's failure as its cause, so that it has this caller's
+     * stack trace
+     */
+    private ColumnarResult awaitRun(final QueryKey key, final Run run, final long timeout, final TimeUnit unit)
+            throws SQLException, DataSourceConfigurationException {
+        try {
+            return run.result.get(timeout, unit);
+        } catch (final TimeoutException e) {
+            throw new SQLTimeoutException("Timed out after " + unit.toMillis(timeout)
+                    + "ms waiting for identical query " + key, e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for identical query " + key, e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof DataSourceConfigurationException) {
+                throw new DataSourceConfigurationException(cause.getMessage(), cause);
+            }
+            if (cause instanceof SQLException) {
+                final SQLException sqlException = (SQLException) cause;
+                throw new SQLException(sqlException.getMessage(), sqlException.getSQLState(),
+                        sqlException.getErrorCode(), sqlException);
+            }
+            throw new SQLException("Identical query " + key + " failed", cause);
+        }
+    }
+}
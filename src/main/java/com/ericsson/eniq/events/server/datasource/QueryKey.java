@@ -0,0 +1,91 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Identifies a query by its SQL and bind parameters - used to find identical queries in the query result cache and
+ * the dwhrep cache, and among the queries in flight
+ *
+ * The SQL's whitespace is normalised, outside of quoted literals and identifiers, so that the same query formatted
+ * differently by different services is seen as the same query
+ *
+ * @author eemecoy
+ *
+ */
+final class QueryKey {
+
+    private final String sql;
+
+    private final List<Object> parameters;
+
+    /**
+     * @param sql
+     * @param parameters bind parameters, in order - the array is copied
+     */
+    QueryKey(final String sql, final Object... parameters) {
+        this.sql = normalise(sql);
+        this.parameters = Arrays.asList(parameters.clone());
+    }
+
+    /**
+     * @param parameterValue
+     * @return true if this value is one of the query's bind parameters
+     */
+    boolean hasParameter(final Object parameterValue) {
+        return parameters.contains(parameterValue);
+    }
+
+    @Override
+    public boolean equals(final Object object) {
+        if (!(object instanceof QueryKey)) {
+            return false;
+        }
+        final QueryKey other = (QueryKey) object;
+        return sql.equals(other.sql) && parameters.equals(other.parameters);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * sql.hashCode() + parameters.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return sql + " " + parameters;
+    }
+
+    /**
+     * Collapse each run of whitespace outside of quoted literals and identifiers to a single space
+     * @param sql
+     * @return
+     */
+    static String normalise(final String sql) {
+        final StringBuilder normalised = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < sql.length(); i++) {
+            final char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                pendingSpace = normalised.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                normalised.append(' ');
+                pendingSpace = false;
+            }
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            normalised.append(c);
+        }
+        return normalised.toString();
+    }
+}
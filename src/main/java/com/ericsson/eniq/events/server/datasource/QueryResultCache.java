@@ -0,0 +1,168 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Cache of query results shared by all callers of DataSourceManager.query() - for the KPI and ranking queries that
+ * dashboards refresh for many users at once
+ *
+ * Results are held as ColumnarResult copies, keyed by the SQL and the bind parameters (see QueryKey). The cache holds
+ * up to ENIQ_EVENTS_QUERY_RESULT_CACHE_MAXIMUM_BYTES of results, evicting the least recently used first, and each
+ * result expires ENIQ_EVENTS_QUERY_RESULT_CACHE_TTL_SECONDS after it was read from IQ. A result bigger than
+ * ENIQ_EVENTS_QUERY_RESULT_CACHE_MAXIMUM_ENTRY_BYTES (by default a sixteenth of the cache) isn't cached, so one large
+ * result can't flush the cache
+ *
+ * The cache is off unless ENIQ_EVENTS_QUERY_RESULT_CACHE_MAXIMUM_BYTES is set. The settings are read once, when the
+ * cache is created
+ *
+ * Each invalidation moves the cache on a generation. A caller reads getGeneration() before running a query, and
+ * passes it to put() - if anything was invalidated while the query ran, its result may predate the change that
+ * caused the invalidation, so it isn't cached
+ *
+ * @author eemecoy
+ *
+ */
+final class QueryResultCache {
+
+    static final String MAXIMUM_BYTES_PROPERTY_NAME = "ENIQ_EVENTS_QUERY_RESULT_CACHE_MAXIMUM_BYTES";
+
+    static final String MAXIMUM_ENTRY_BYTES_PROPERTY_NAME = "ENIQ_EVENTS_QUERY_RESULT_CACHE_MAXIMUM_ENTRY_BYTES";
+
+    static final String TTL_SECONDS_PROPERTY_NAME = "ENIQ_EVENTS_QUERY_RESULT_CACHE_TTL_SECONDS";
+
+    static final long DEFAULT_MAXIMUM_BYTES = 0;
+
+    static final int DEFAULT_TTL_SECONDS = 60;
+
+    private static final int DEFAULT_ENTRIES_PER_CACHE = 16;
+
+    private final ExpiringLruCache<QueryKey, ColumnarResult> results;
+
+    private final long maximumEntryBytes;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param properties ENIQ Events properties holding the cache settings
+     */
+    QueryResultCache(final Properties properties) {
+        final long maximumBytes = DataSourceProperties.getLong(properties, MAXIMUM_BYTES_PROPERTY_NAME,
+                DEFAULT_MAXIMUM_BYTES);
+        final int timeToLiveSeconds = DataSourceProperties.getInt(properties, TTL_SECONDS_PROPERTY_NAME,
+                DEFAULT_TTL_SECONDS);
+        if (maximumBytes > 0 && timeToLiveSeconds > 0) {
+            results = new ExpiringLruCache<QueryKey, ColumnarResult>(maximumBytes,
+                    TimeUnit.SECONDS.toMillis(timeToLiveSeconds));
+            maximumEntryBytes = DataSourceProperties.getLong(properties, MAXIMUM_ENTRY_BYTES_PROPERTY_NAME,
+                    maximumBytes / DEFAULT_ENTRIES_PER_CACHE);
+        } else {
+            results = null;
+            maximumEntryBytes = 0;
+        }
+    }
+
+    /**
+     * @return false if the cache is turned off - nothing is cached, and get() always returns null
+     */
+    boolean isEnabled() {
+        return results != null;
+    }
+
+    /**
+     * @param query
+     * @return the cached result of the query, or null if it isn't cached, or has expired
+     */
+    ColumnarResult get(final QueryKey query) {
+        return results == null ? null : results.get(query);
+    }
+
+    /**
+     * @return the largest result that is cached - 0 if the cache is turned off
+     */
+    long getMaximumEntryBytes() {
+        return maximumEntryBytes;
+    }
+
+    /**
+     * @return the number of invalidations so far - read before running a query, and pass to put()
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Cache the result of the query, unless it's too big, or anything was invalidated since the query was run
+     * @param query
+     * @param result
+     * @param generationBeforeQuery getGeneration(), read before running the query
+     */
+    void put(final QueryKey query, final ColumnarResult result, final long generationBeforeQuery) {
+        if (results == null || result.getSizeInBytes() > maximumEntryBytes
+                || generation.get() != generationBeforeQuery) {
+            return;
+        }
+        results.put(query, result, result.getSizeInBytes());
+        if (generation.get() != generationBeforeQuery) {
+            // invalidated while it was being put - the invalidation may have missed it
+            results.invalidate(query);
+        }
+    }
+
+    /**
+     * Remove the cached result of one query
+     * @param query
+     */
+    void invalidate(final QueryKey query) {
+        if (results != null) {
+            generation.incrementAndGet();
+            results.invalidate(query);
+        }
+    }
+
+    /**
+     * Remove the cached results of every query that has this value as one of its bind parameters - eg all the
+     * results for one IMSI, once new events for that subscriber have been loaded
+     * @param parameterValue
+     */
+    void invalidateQueriesWithParameter(final Object parameterValue) {
+        if (results != null) {
+            generation.incrementAndGet();
+            results.invalidateAll(new Predicate<QueryKey>() {
+                @Override
+                public boolean test(final QueryKey key) {
+                    return key.hasParameter(parameterValue);
+                }
+            });
+        }
+    }
+
+    void invalidateAll() {
+        if (results != null) {
+            generation.incrementAndGet();
+            results.invalidateAll();
+        }
+    }
+
+    long getHitCount() {
+        return results == null ? 0 : results.getHitCount();
+    }
+
+    long getMissCount() {
+        return results == null ? 0 : results.getMissCount();
+    }
+
+    /**
+     * @return estimated memory held by the cached results
+     */
+    long getSizeInBytes() {
+        return results == null ? 0 : results.getWeight();
+    }
+}
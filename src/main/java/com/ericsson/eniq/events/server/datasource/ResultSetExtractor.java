@@ -0,0 +1,32 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads the result set of a query run on one data source
+ *
+ * For scatter-gather queries the extractor is called on each data source's own thread, as soon as that data source's
+ * query returns - so it can stream rows into a shared, thread safe, structure, or return a per data source result
+ * for the caller to merge
+ *
+ * @param <T> type of the result read from the result set
+ *
+ * @author eemecoy
+ *
+ */
+public interface ResultSetExtractor<T> {
+
+    /**
+     * Read the result set - the result set is closed by the caller
+     * @param resultSet
+     * @return result read from the result set
+     * @throws SQLException
+     */
+    T extractData(ResultSet resultSet) throws SQLException;
+}
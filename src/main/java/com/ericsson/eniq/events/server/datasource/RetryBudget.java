@@ -0,0 +1,154 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the retries made when a data source fails to give a connection, and spaces them out
+ *
+ * A failed request for a connection is retried on another data source, up to ENIQ_EVENTS_DATA_SOURCE_RETRY_ATTEMPTS
+ * times. Retries are paid for from a token bucket shared by all queries, refilled at
+ * ENIQ_EVENTS_DATA_SOURCE_RETRY_BUDGET_PER_SECOND and holding at most one second's worth - so a few transient
+ * failures are retried, but when IQ is failing across the board the retries can't pile more load on it than that
+ *
+ * Before each retry the caller backs off for a random time between 0 and ENIQ_EVENTS_DATA_SOURCE_RETRY_BACKOFF_MILLIS,
+ * doubled for each further retry up to ENIQ_EVENTS_DATA_SOURCE_RETRY_MAXIMUM_BACKOFF_MILLIS ("full jitter"), so
+ * queries that failed together don't retry together
+ *
+ * The settings are read when the budget is created, and again whenever it's reconfigured - the tokens in the bucket
+ * are kept, up to the new capacity. The bucket is only touched when a connection request has failed, so it's
+ * synchronized
+ *
+ * @author eemecoy
+ *
+ */
+class RetryBudget {
+
+    static final String ATTEMPTS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_RETRY_ATTEMPTS";
+
+    static final String BUDGET_PER_SECOND_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_RETRY_BUDGET_PER_SECOND";
+
+    static final String BACKOFF_MILLIS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_RETRY_BACKOFF_MILLIS";
+
+    static final String MAXIMUM_BACKOFF_MILLIS_PROPERTY_NAME = "ENIQ_EVENTS_DATA_SOURCE_RETRY_MAXIMUM_BACKOFF_MILLIS";
+
+    static final int DEFAULT_ATTEMPTS = 2;
+
+    static final double DEFAULT_BUDGET_PER_SECOND = 10;
+
+    static final long DEFAULT_BACKOFF_MILLIS = 10;
+
+    static final long DEFAULT_MAXIMUM_BACKOFF_MILLIS = 200;
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile int maximumRetries;
+
+    private double capacity;
+
+    private double tokensPerNano;
+
+    private volatile Backoff backoff;
+
+    private double tokens;
+
+    private long lastRefillNanos;
+
+    /**
+     * @param properties ENIQ Events properties holding the retry settings
+     */
+    RetryBudget(final Properties properties) {
+        lastRefillNanos = currentTimeNanos();
+        configure(properties);
+        tokens = capacity;
+    }
+
+    /**
+     * Apply the retry settings in these properties
+     * @param properties ENIQ Events properties holding the retry settings
+     */
+    synchronized void configure(final Properties properties) {
+        refill();
+        maximumRetries = Math.max(DataSourceProperties.getInt(properties, ATTEMPTS_PROPERTY_NAME, DEFAULT_ATTEMPTS),
+                0);
+        capacity = Math.max(DataSourceProperties.getDouble(properties, BUDGET_PER_SECOND_PROPERTY_NAME,
+                DEFAULT_BUDGET_PER_SECOND), 0);
+        tokensPerNano = capacity / NANOS_PER_SECOND;
+        tokens = Math.min(tokens, capacity);
+        final long backoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(DataSourceProperties.getLong(properties,
+                BACKOFF_MILLIS_PROPERTY_NAME, DEFAULT_BACKOFF_MILLIS), 0));
+        backoff = new Backoff(backoffNanos, Math.max(TimeUnit.MILLISECONDS.toNanos(DataSourceProperties.getLong(
+                properties, MAXIMUM_BACKOFF_MILLIS_PROPERTY_NAME, DEFAULT_MAXIMUM_BACKOFF_MILLIS)), backoffNanos));
+    }
+
+    /**
+     * @return most retries to make after a failed request - 0 if retrying is off
+     */
+    int getMaximumRetries() {
+        return maximumRetries;
+    }
+
+    /**
+     * Take a token for one retry
+     * @return false if the budget is used up - don't retry
+     */
+    synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * @param retry retry number, from 1
+     * @return random time to back off before this retry
+     */
+    long getBackoffNanos(final int retry) {
+        final Backoff currentBackoff = backoff;
+        if (currentBackoff.backoffNanos == 0) {
+            return 0;
+        }
+        final int doublings = Math.min(retry - 1, Long.numberOfLeadingZeros(currentBackoff.backoffNanos) - 1);
+        final long ceiling = Math.min(currentBackoff.backoffNanos << doublings, currentBackoff.maximumBackoffNanos);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Top up the bucket for the time since it was last topped up - call holding the lock
+     */
+    private void refill() {
+        final long now = currentTimeNanos();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * overridden in unit tests
+     */
+    long currentTimeNanos() {
+        return System.nanoTime();
+    }
+
+    /**
+     * The backoff settings - replaced as a whole when the budget is reconfigured
+     */
+    private static final class Backoff {
+
+        private final long backoffNanos;
+
+        private final long maximumBackoffNanos;
+
+        Backoff(final long backoffNanos, final long maximumBackoffNanos) {
+            this.backoffNanos = backoffNanos;
+            this.maximumBackoffNanos = maximumBackoffNanos;
+        }
+    }
+}
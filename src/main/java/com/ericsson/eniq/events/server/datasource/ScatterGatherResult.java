@@ -0,0 +1,58 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a query run on several data sources by DataSourceManager.scatterGather()
+ *
+ * Results may be partial - each data source either returned a result, or failed (couldn't give a connection, the
+ * query failed, or it didn't finish within the timeout). Callers decide whether a partial result is good enough
+ *
+ * @param <T> type of the result read from each data source
+ *
+ * @author eemecoy
+ *
+ */
+public final class ScatterGatherResult<T> {
+
+    private final Map<String, T> results;
+
+    private final Map<String, Exception> failures;
+
+    /**
+     * @param results result from each data source that succeeded, by pool name
+     * @param failures cause of failure for each data source that failed, by pool name
+     */
+    ScatterGatherResult(final Map<String, T> results, final Map<String, Exception> failures) {
+        this.results = Collections.unmodifiableMap(new LinkedHashMap<String, T>(results));
+        this.failures = Collections.unmodifiableMap(new LinkedHashMap<String, Exception>(failures));
+    }
+
+    /**
+     * @return result from each data source that succeeded, by pool name, in data source order
+     */
+    public Map<String, T> getResults() {
+        return results;
+    }
+
+    /**
+     * @return cause of failure for each data source that failed, by pool name
+     */
+    public Map<String, Exception> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return true if every data source the query was sent to returned a result
+     */
+    public boolean isComplete() {
+        return failures.isEmpty();
+    }
+}
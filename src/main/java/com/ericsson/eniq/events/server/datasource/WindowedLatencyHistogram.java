@@ -0,0 +1,110 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latency histogram of the recent past only - so percentiles read from it follow the data source as it speeds up or
+ * slows down, rather than being anchored by everything it has done since start up
+ *
+ * Latencies are recorded into the current window's LatencyHistogram. When a window ends it becomes the previous
+ * window, and a new one is started - reads cover the current and previous windows, so they always see between one
+ * and two windows' worth of latencies. A window that ends with nothing recorded after it drops out altogether
+ *
+ * @author eemecoy
+ *
+ */
+class WindowedLatencyHistogram {
+
+    private final long windowNanos;
+
+    private final AtomicReference<Windows> windows;
+
+    /**
+     * @param windowNanos length of each window
+     */
+    WindowedLatencyHistogram(final long windowNanos) {
+        this.windowNanos = windowNanos;
+        windows = new AtomicReference<Windows>(new Windows(new LatencyHistogram(), new LatencyHistogram(),
+                currentTimeNanos()));
+    }
+
+    /**
+     * @param latencyNanos
+     */
+    void record(final long latencyNanos) {
+        getWindows().current.record(latencyNanos);
+    }
+
+    /**
+     * @return number of latencies recorded in the current and previous windows
+     */
+    long getCount() {
+        final Windows currentWindows = getWindows();
+        return currentWindows.current.getCount() + currentWindows.previous.getCount();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound, in nanoseconds, of the bucket holding this percentile of the current and previous windows,
+     * or 0 if nothing has been recorded in them
+     */
+    long getValueAtPercentile(final double percentile) {
+        final Windows currentWindows = getWindows();
+        final long[] bucketCounts = currentWindows.current.getBucketCounts();
+        final long[] previousBucketCounts = currentWindows.previous.getBucketCounts();
+        for (int i = 0; i < bucketCounts.length; i++) {
+            bucketCounts[i] += previousBucketCounts[i];
+        }
+        return LatencyHistogram.getValueAtPercentile(bucketCounts, percentile);
+    }
+
+    /**
+     * Get the windows, starting a new window first if the current one has ended
+     */
+    private Windows getWindows() {
+        while (true) {
+            final Windows currentWindows = windows.get();
+            final long now = currentTimeNanos();
+            final long elapsed = now - currentWindows.startNanos;
+            if (elapsed < windowNanos) {
+                return currentWindows;
+            }
+            final Windows nextWindows = elapsed < 2 * windowNanos ? new Windows(new LatencyHistogram(),
+                    currentWindows.current, currentWindows.startNanos + windowNanos) : new Windows(
+                    new LatencyHistogram(), new LatencyHistogram(), now);
+            if (windows.compareAndSet(currentWindows, nextWindows)) {
+                return nextWindows;
+            }
+        }
+    }
+
+    /**
+     * overridden in unit tests
+     */
+    long currentTimeNanos() {
+        return System.nanoTime();
+    }
+
+    /**
+     * The current and previous windows - replaced as a whole when a window ends
+     */
+    private static final class Windows {
+
+        private final LatencyHistogram current;
+
+        private final LatencyHistogram previous;
+
+        private final long startNanos;
+
+        Windows(final LatencyHistogram current, final LatencyHistogram previous, final long startNanos) {
+            this.current = current;
+            this.previous = previous;
+            this.startNanos = startNanos;
+        }
+    }
+}
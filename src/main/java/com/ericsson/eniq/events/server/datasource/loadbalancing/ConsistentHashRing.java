@@ -0,0 +1,131 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+
+/**
+ * Immutable consistent hash ring over a list of data sources
+ *
+ * Each data source is placed on the ring at a number of points (virtual nodes) in proportion to its weight, the
+ * position of each point depending only on the data source's pool name. A key is served by the data source owning
+ * the first point at or after the key's hash. Adding or removing a data source therefore only moves the keys
+ * on that data source's points, about 1/N of all keys, and leaves the rest on the same IQ reader
+ *
+ * Selection is a binary search over a sorted array, and doesn't allocate
+ *
+ * @author eemecoy
+ *
+ */
+public class ConsistentHashRing {
+
+    static final int VIRTUAL_NODES_PER_UNIT_OF_WEIGHT = 16;
+
+    static final int MAXIMUM_VIRTUAL_NODES_PER_DATA_SOURCE = 4096;
+
+    private static final long VIRTUAL_NODE_STRIDE = 0x9e3779b97f4a7c15L;
+
+    private final List<EniqDataSource> dataSources;
+
+    private final long[] points;
+
+    private final EniqDataSource[] owners;
+
+    /**
+     * @param dataSources data sources to place on the ring - must not be empty
+     */
+    public ConsistentHashRing(final List<EniqDataSource> dataSources) {
+        this.dataSources = dataSources;
+        final List<VirtualNode> virtualNodes = new ArrayList<VirtualNode>();
+        for (final EniqDataSource dataSource : dataSources) {
+            final long seed = LoadBalancingHash.hash(dataSource.getPoolName());
+            final int numberOfVirtualNodes = getNumberOfVirtualNodes(dataSource.getWeight());
+            for (int i = 0; i < numberOfVirtualNodes; i++) {
+                virtualNodes.add(new VirtualNode(LoadBalancingHash.mix(seed + i * VIRTUAL_NODE_STRIDE), dataSource));
+            }
+        }
+        final VirtualNode[] sortedVirtualNodes = virtualNodes.toArray(new VirtualNode[virtualNodes.size()]);
+        Arrays.sort(sortedVirtualNodes);
+        points = new long[sortedVirtualNodes.length];
+        owners = new EniqDataSource[sortedVirtualNodes.length];
+        for (int i = 0; i < sortedVirtualNodes.length; i++) {
+            points[i] = sortedVirtualNodes[i].point;
+            owners[i] = sortedVirtualNodes[i].dataSource;
+        }
+    }
+
+    /**
+     * Number of points a data source gets on the ring - depends only on its own weight, so that adding a data source
+     * doesn't move the points of the others
+     * @param weight
+     * @return
+     */
+    static int getNumberOfVirtualNodes(final int weight) {
+        final long virtualNodes = (long) Math.max(weight, 1) * VIRTUAL_NODES_PER_UNIT_OF_WEIGHT;
+        return (int) Math.min(virtualNodes, MAXIMUM_VIRTUAL_NODES_PER_DATA_SOURCE);
+    }
+
+    /**
+     * Get the data source that serves this key
+     * @param keyHash well mixed 64 bit hash of the key
+     * @return
+     */
+    public EniqDataSource getDataSource(final long keyHash) {
+        int index = Arrays.binarySearch(points, keyHash);
+        if (index < 0) {
+            index = -index - 1;
+            if (index == points.length) {
+                index = 0;
+            }
+        }
+        return owners[index];
+    }
+
+    /**
+     * Check if this ring was built from the same data sources, in the same order, as the list provided
+     * @param availableDataSources
+     * @return
+     */
+    public boolean isBuiltFrom(final List<EniqDataSource> availableDataSources) {
+        if (availableDataSources == dataSources) {
+            return true;
+        }
+        final int listSize = availableDataSources.size();
+        if (listSize != dataSources.size()) {
+            return false;
+        }
+        for (int i = 0; i < listSize; i++) {
+            if (availableDataSources.get(i) != dataSources.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A point on the ring owned by a data source
+     */
+    private static class VirtualNode implements Comparable<VirtualNode> {
+
+        final long point;
+
+        final EniqDataSource dataSource;
+
+        VirtualNode(final long point, final EniqDataSource dataSource) {
+            this.point = point;
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        public int compareTo(final VirtualNode other) {
+            return point < other.point ? -1 : (point == other.point ? 0 : 1);
+        }
+    }
+}
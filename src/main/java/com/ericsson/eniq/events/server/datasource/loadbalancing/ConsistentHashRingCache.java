@@ -0,0 +1,43 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ericsson.eniq.events.server.datasource.DataSourceTopology;
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+
+/**
+ * Holds the ConsistentHashRing for the current list of data sources
+ * The ring is only rebuilt when the list of data sources changes, so on the query path getting the ring
+ * costs a comparison of the list against the one the ring was built from
+ * If the list is a DataSourceTopology snapshot, the ring held by the snapshot is used
+ *
+ * @author eemecoy
+ *
+ */
+public class ConsistentHashRingCache {
+
+    private volatile ConsistentHashRing ring;
+
+    /**
+     * Get the ring for this list of data sources, building it if the data sources have changed since the last call
+     * @param availableDataSources
+     * @return
+     */
+    public ConsistentHashRing getRing(final List<EniqDataSource> availableDataSources) {
+        if (availableDataSources instanceof DataSourceTopology) {
+            return ((DataSourceTopology) availableDataSources).getHashRing();
+        }
+        ConsistentHashRing currentRing = ring;
+        if (currentRing == null || !currentRing.isBuiltFrom(availableDataSources)) {
+            currentRing = new ConsistentHashRing(new ArrayList<EniqDataSource>(availableDataSources));
+            ring = currentRing;
+        }
+        return currentRing;
+    }
+}
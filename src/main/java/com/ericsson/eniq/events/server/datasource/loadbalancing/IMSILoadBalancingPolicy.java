@@ -16,6 +16,10 @@ import com.ericsson.eniq.events.server.datasource.EniqDataSource;
  * Main requirement is that the same IQ reader is used for the same IMSI
  * Current algorithm is running modulo on the IMSI number against the number of data sources to get an integer, and using that integer 
  * as the index to access the data source list
+ * 
+ * If created with a ConsistentHashRingCache, the policy runs in consistent hashing mode instead - the IMSI is looked up
+ * on a hash ring of the data sources, so adding or removing a data source only moves about 1/N of the IMSIs to a
+ * different IQ reader (with the modulo algorithm, almost every IMSI moves)
  * @author eemecoy
  *
  */
@@ -23,8 +27,19 @@ public class IMSILoadBalancingPolicy implements LoadBalancingPolicy {
 
     private final long queryNumber;
 
+    private final ConsistentHashRingCache hashRingCache;
+
     public IMSILoadBalancingPolicy(final String imsi) {
+        this(imsi, null);
+    }
+
+    /**
+     * @param imsi
+     * @param hashRingCache ring to use in consistent hashing mode, or null to use the modulo algorithm
+     */
+    public IMSILoadBalancingPolicy(final String imsi, final ConsistentHashRingCache hashRingCache) {
         queryNumber = Long.parseLong(imsi);
+        this.hashRingCache = hashRingCache;
     }
 
     @Override
@@ -34,6 +49,9 @@ public class IMSILoadBalancingPolicy implements LoadBalancingPolicy {
      * of type long
      */
     public DataSource selectDataSource(final List<EniqDataSource> availableDataSources) {
+        if (hashRingCache != null) {
+            return hashRingCache.getRing(availableDataSources).getDataSource(LoadBalancingHash.mix(queryNumber));
+        }
         final int indexToUse = (int) (queryNumber % availableDataSources.size());
         return availableDataSources.get(indexToUse);
     }
@@ -0,0 +1,103 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import com.ericsson.eniq.events.server.datasource.DataSourceTopology;
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+
+/**
+ * Key affinity load balancing - selects the same IQ reader for all queries for the same routing key
+ * The routing key can be any string identifying the subject of the query - an IMSI, MSISDN, cell ID, APN etc
+ *
+ * Uses weighted rendezvous (highest random weight) hashing: every data source is scored against the key, and the
+ * data source with the highest score is used. The scores are scaled so that each data source wins a share of the keys
+ * in proportion to its weight, and removing a data source only moves the keys that it was serving
+ *
+ * The selector holds no state, so one instance is shared (see LoadBalancingPolicyFactory) and the key is passed to
+ * selectDataSource() - DataSourceManager.getConnection(KeyAffinitySelector, String) selects this way, so nothing is
+ * allocated per query. forRoutingKey() binds a key for the APIs that take a LoadBalancingPolicy - the bound policy
+ * only holds the key's hash
+ *
+ * The pool names are hashed once per data source snapshot (see DataSourceTopology.getRendezvousHashTable()), so
+ * selecting a data source from a snapshot only hashes the key; other lists have their pool names hashed on each
+ * selection
+ *
+ * @author eemecoy
+ *
+ */
+public class KeyAffinitySelector {
+
+    /**
+     * Select the data source for a routing key
+     * @param availableDataSources data sources to select from
+     * @param routingKey key identifying the subject of the query, eg IMSI, MSISDN, cell ID or APN
+     * @return
+     * @throws IllegalArgumentException if routingKey is null
+     */
+    public DataSource selectDataSource(final List<EniqDataSource> availableDataSources, final String routingKey) {
+        return select(availableDataSources, hashRoutingKey(routingKey));
+    }
+
+    /**
+     * @param routingKey key identifying the subject of the query, eg IMSI, MSISDN, cell ID or APN
+     * @return policy selecting the data source for this key
+     * @throws IllegalArgumentException if routingKey is null
+     */
+    public LoadBalancingPolicy forRoutingKey(final String routingKey) {
+        return new KeyAffinity(hashRoutingKey(routingKey));
+    }
+
+    private static long hashRoutingKey(final String routingKey) {
+        if (routingKey == null) {
+            throw new IllegalArgumentException("A routing key is needed for key affinity load balancing");
+        }
+        return LoadBalancingHash.hash(routingKey);
+    }
+
+    private static EniqDataSource select(final List<EniqDataSource> availableDataSources, final long keyHash) {
+        if (availableDataSources instanceof DataSourceTopology) {
+            return ((DataSourceTopology) availableDataSources).getRendezvousHashTable().select(keyHash);
+        }
+        final int listSize = availableDataSources.size();
+        EniqDataSource selectedDataSource = availableDataSources.get(0);
+        double highestScore = getScore(keyHash, selectedDataSource);
+        for (int i = 1; i < listSize; i++) {
+            final EniqDataSource dataSource = availableDataSources.get(i);
+            final double score = getScore(keyHash, dataSource);
+            if (score > highestScore) {
+                highestScore = score;
+                selectedDataSource = dataSource;
+            }
+        }
+        return selectedDataSource;
+    }
+
+    private static double getScore(final long keyHash, final EniqDataSource dataSource) {
+        return RendezvousHashTable.getScore(keyHash, LoadBalancingHash.hash(dataSource.getPoolName()),
+                dataSource.getWeight());
+    }
+
+    /**
+     * Key affinity policy bound to one routing key - named for the selection metrics
+     */
+    private static final class KeyAffinity implements LoadBalancingPolicy {
+
+        private final long keyHash;
+
+        KeyAffinity(final long keyHash) {
+            this.keyHash = keyHash;
+        }
+
+        @Override
+        public DataSource selectDataSource(final List<EniqDataSource> availableDataSources) {
+            return select(availableDataSources, keyHash);
+        }
+    }
+}
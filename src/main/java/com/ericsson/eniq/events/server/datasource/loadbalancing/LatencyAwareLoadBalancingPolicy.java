@@ -0,0 +1,60 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionManagement;
+import javax.ejb.TransactionManagementType;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+
+/**
+ * Latency aware load balancing policy
+ * Each data source keeps a moving average of the time taken to get a connection from it and of the time its
+ * connections are held for (ie the query time) - this policy biases selection towards the fastest data sources
+ *
+ * Two data sources are sampled at random (as in the PowerOfTwoChoicesLoadBalancingPolicy), and the one with the lower
+ * expected cost is used. The expected cost is the average latency scaled by the number of leased connections, relative
+ * to the data source's concurrency limit, so a reader node that slows down (eg during a merge or load) quickly
+ * receives less work, without all queries herding onto whichever node is currently fastest
+ *
+ * @author eemecoy
+ *
+ */
+@Singleton
+@Startup
+/*Reason to use @TransactionManagement(TransactionManagementType.BEAN)
+ * Avoid two exceptions:
+ * 1.Local transaction already has 1 non-XA Resource: cannot add more resources.
+ * 2.This Managed Connection is not valid as the physical connection is not usable
+ */
+@TransactionManagement(TransactionManagementType.BEAN)
+/*Reason to use @ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+ * selectDataSource() holds no mutable state, so there's no need for the container's default write lock
+ * to serialise every request thread through this bean
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class LatencyAwareLoadBalancingPolicy extends PowerOfTwoChoicesLoadBalancingPolicy implements
+        LoadBalancingPolicy {
+
+    /**
+     * Expected cost of sending the next query to this data source
+     * The average latency is multiplied by the number of leased connections (plus the new one), and divided
+     * by the data source's concurrency limit
+     *
+     * @see com.ericsson.eniq.events.server.datasource.loadbalancing.PowerOfTwoChoicesLoadBalancingPolicy#getLoad(com.ericsson.eniq.events.server.datasource.EniqDataSource)
+     */
+    @Override
+    double getLoad(final EniqDataSource dataSource) {
+        final double averageLatency = dataSource.getAverageAcquireTimeMillis() + dataSource.getAverageLeaseTimeMillis();
+        return averageLatency * (dataSource.getLeasedConnectionCount() + 1)
+                / Math.max(dataSource.getConcurrencyLimit(), 1);
+    }
+
+}
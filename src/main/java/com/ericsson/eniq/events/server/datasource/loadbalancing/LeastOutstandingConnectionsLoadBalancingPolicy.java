@@ -0,0 +1,66 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionManagement;
+import javax.ejb.TransactionManagementType;
+import javax.sql.DataSource;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+
+/**
+ * Load balancing policy that routes each query to the data source with the fewest connections currently leased
+ * ie the IQ reader with the least work in flight
+ *
+ * Where more than one data source has the fewest leased connections, the scan starts at a random position in the
+ * list so that ties are spread across the data sources rather than always going to the default data source
+ *
+ * @author eemecoy
+ *
+ */
+@Singleton
+@Startup
+/*Reason to use @TransactionManagement(TransactionManagementType.BEAN)
+ * Avoid two exceptions:
+ * 1.Local transaction already has 1 non-XA Resource: cannot add more resources.
+ * 2.This Managed Connection is not valid as the physical connection is not usable
+ */
+@TransactionManagement(TransactionManagementType.BEAN)
+/*Reason to use @ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+ * selectDataSource() holds no mutable state, so there's no need for the container's default write lock
+ * to serialise every request thread through this bean
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class LeastOutstandingConnectionsLoadBalancingPolicy implements LoadBalancingPolicy {
+
+    /* (non-Javadoc)
+     * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicy#selectDataSource(java.util.List)
+     */
+    @Override
+    public DataSource selectDataSource(final List<EniqDataSource> availableDataSources) {
+        final int listSize = availableDataSources.size();
+        final int startIndex = ThreadLocalRandom.current().nextInt(listSize);
+        EniqDataSource leastLoadedDataSource = null;
+        int fewestLeasedConnections = Integer.MAX_VALUE;
+        for (int i = 0; i < listSize; i++) {
+            final EniqDataSource dataSource = availableDataSources.get((startIndex + i) % listSize);
+            final int leasedConnections = dataSource.getLeasedConnectionCount();
+            if (leasedConnections < fewestLeasedConnections) {
+                fewestLeasedConnections = leasedConnections;
+                leastLoadedDataSource = dataSource;
+            }
+        }
+        return leastLoadedDataSource;
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+/**
+ * 64 bit hash functions used by the key affinity load balancing policies
+ * None of these allocate, so they are safe to use on the query path
+ *
+ * @author eemecoy
+ *
+ */
+final class LoadBalancingHash {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private LoadBalancingHash() {
+    }
+
+    /**
+     * Scramble the bits of a value so that values that differ by one bit map to unrelated hashes
+     * (the finaliser from MurmurHash3)
+     *
+     * @param value
+     * @return
+     */
+    static long mix(final long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * 64 bit hash of a string (FNV-1a over the characters, then mixed)
+     *
+     * @param value
+     * @return
+     */
+    static long hash(final CharSequence value) {
+        long hash = FNV_OFFSET_BASIS;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return mix(hash);
+    }
+}
@@ -34,6 +34,32 @@ public interface LoadBalancingPolicyFactory {
      */
     LoadBalancingPolicy getImsiLoadBalancingPolicy(String imsi);
 
+    /**
+     * Create an IMSI load balancing policy in consistent hashing mode - the same IMSI keeps going to the same
+     * IQ reader when other data sources are added or removed
+     * 
+     * @param imsi
+     * @return
+     */
+    LoadBalancingPolicy getConsistentHashImsiLoadBalancingPolicy(String imsi);
+
+    /**
+     * Create a key affinity load balancing policy - all queries for the same routing key go to the
+     * same IQ reader
+     * If there is no routing key (null), the default load balancing policy is returned instead
+     * 
+     * @param routingKey any key identifying the subject of the query, eg IMSI, MSISDN, cell ID or APN
+     * @return
+     */
+    LoadBalancingPolicy getKeyAffinityLoadBalancingPolicy(String routingKey);
+
+    /**
+     * Get the (shared) key affinity selector, which takes the routing key with each selection - see
+     * DataSourceManager.getConnection(KeyAffinitySelector, String)
+     * @return
+     */
+    KeyAffinitySelector getKeyAffinitySelector();
+
     /**
      * Create a No load Balancing Policy
      * @return
@@ -46,4 +72,22 @@ public interface LoadBalancingPolicyFactory {
      */
     LoadBalancingPolicy getWeightedRoundRobinLoadBalancingPolicy();
 
+    /**
+     * Get the (singleton) least outstanding connections load balancing policy
+     * @return
+     */
+    LoadBalancingPolicy getLeastOutstandingConnectionsLoadBalancingPolicy();
+
+    /**
+     * Get the (singleton) power of two choices load balancing policy
+     * @return
+     */
+    LoadBalancingPolicy getPowerOfTwoChoicesLoadBalancingPolicy();
+
+    /**
+     * Get the (singleton) latency aware load balancing policy
+     * @return
+     */
+    LoadBalancingPolicy getLatencyAwareLoadBalancingPolicy();
+
 }
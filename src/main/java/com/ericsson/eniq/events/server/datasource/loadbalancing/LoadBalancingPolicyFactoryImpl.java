@@ -35,6 +35,19 @@ public class LoadBalancingPolicyFactoryImpl implements LoadBalancingPolicyFactor
     @EJB(beanName = "WeightedRoundRobinLoadBalancingPolicy")
     private LoadBalancingPolicy weightedRoundRobinLoadBalancingPolicy;
 
+    @EJB(beanName = "LeastOutstandingConnectionsLoadBalancingPolicy")
+    private LoadBalancingPolicy leastOutstandingConnectionsLoadBalancingPolicy;
+
+    @EJB(beanName = "PowerOfTwoChoicesLoadBalancingPolicy")
+    private LoadBalancingPolicy powerOfTwoChoicesLoadBalancingPolicy;
+
+    @EJB(beanName = "LatencyAwareLoadBalancingPolicy")
+    private LoadBalancingPolicy latencyAwareLoadBalancingPolicy;
+
+    private final ConsistentHashRingCache imsiHashRingCache = new ConsistentHashRingCache();
+
+    private final KeyAffinitySelector keyAffinitySelector = new KeyAffinitySelector();
+
     /* (non-Javadoc)
      * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicyFactory#getDefaultLoadBalancingPolicy()
      */
@@ -51,6 +64,33 @@ public class LoadBalancingPolicyFactoryImpl implements LoadBalancingPolicyFactor
         return new IMSILoadBalancingPolicy(imsi);
     }
 
+    /* (non-Javadoc)
+     * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicyFactory#getConsistentHashImsiLoadBalancingPolicy(java.lang.String)
+     */
+    @Override
+    public LoadBalancingPolicy getConsistentHashImsiLoadBalancingPolicy(final String imsi) {
+        return new IMSILoadBalancingPolicy(imsi, imsiHashRingCache);
+    }
+
+    /* (non-Javadoc)
+     * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicyFactory#getKeyAffinityLoadBalancingPolicy(java.lang.String)
+     */
+    @Override
+    public LoadBalancingPolicy getKeyAffinityLoadBalancingPolicy(final String routingKey) {
+        if (routingKey == null) {
+            return getDefaultLoadBalancingPolicy();
+        }
+        return keyAffinitySelector.forRoutingKey(routingKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicyFactory#getKeyAffinitySelector()
+     */
+    @Override
+    public KeyAffinitySelector getKeyAffinitySelector() {
+        return keyAffinitySelector;
+    }
+
     /* (non-Javadoc)
      * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicyFactory#getRoundRobinLoadBalancingPolicy()
      */
@@ -75,6 +115,30 @@ public class LoadBalancingPolicyFactoryImpl implements LoadBalancingPolicyFactor
         return weightedRoundRobinLoadBalancingPolicy;
     }
 
+    /* (non-Javadoc)
+     * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicyFactory#getLeastOutstandingConnectionsLoadBalancingPolicy()
+     */
+    @Override
+    public LoadBalancingPolicy getLeastOutstandingConnectionsLoadBalancingPolicy() {
+        return leastOutstandingConnectionsLoadBalancingPolicy;
+    }
+
+    /* (non-Javadoc)
+     * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicyFactory#getPowerOfTwoChoicesLoadBalancingPolicy()
+     */
+    @Override
+    public LoadBalancingPolicy getPowerOfTwoChoicesLoadBalancingPolicy() {
+        return powerOfTwoChoicesLoadBalancingPolicy;
+    }
+
+    /* (non-Javadoc)
+     * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicyFactory#getLatencyAwareLoadBalancingPolicy()
+     */
+    @Override
+    public LoadBalancingPolicy getLatencyAwareLoadBalancingPolicy() {
+        return latencyAwareLoadBalancingPolicy;
+    }
+
     /**
      * exposed to get under test
      *
@@ -100,4 +164,32 @@ public class LoadBalancingPolicyFactoryImpl implements LoadBalancingPolicyFactor
     public void setWeightedRoundRobinLoadBalancingPolicy(final LoadBalancingPolicy weightedRoundRobinLoadBalancingPolicy) {
         this.weightedRoundRobinLoadBalancingPolicy = weightedRoundRobinLoadBalancingPolicy;
     }
+
+    /**
+     * exposed to get under test
+     *
+     * @param leastOutstandingConnectionsLoadBalancingPolicy the leastOutstandingConnectionsLoadBalancingPolicy to set
+     */
+    public void setLeastOutstandingConnectionsLoadBalancingPolicy(
+            final LoadBalancingPolicy leastOutstandingConnectionsLoadBalancingPolicy) {
+        this.leastOutstandingConnectionsLoadBalancingPolicy = leastOutstandingConnectionsLoadBalancingPolicy;
+    }
+
+    /**
+     * exposed to get under test
+     *
+     * @param powerOfTwoChoicesLoadBalancingPolicy the powerOfTwoChoicesLoadBalancingPolicy to set
+     */
+    public void setPowerOfTwoChoicesLoadBalancingPolicy(final LoadBalancingPolicy powerOfTwoChoicesLoadBalancingPolicy) {
+        this.powerOfTwoChoicesLoadBalancingPolicy = powerOfTwoChoicesLoadBalancingPolicy;
+    }
+
+    /**
+     * exposed to get under test
+     *
+     * @param latencyAwareLoadBalancingPolicy the latencyAwareLoadBalancingPolicy to set
+     */
+    public void setLatencyAwareLoadBalancingPolicy(final LoadBalancingPolicy latencyAwareLoadBalancingPolicy) {
+        this.latencyAwareLoadBalancingPolicy = latencyAwareLoadBalancingPolicy;
+    }
 }
@@ -0,0 +1,83 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionManagement;
+import javax.ejb.TransactionManagementType;
+import javax.sql.DataSource;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+
+/**
+ * Power of two choices load balancing policy
+ * Two different data sources are sampled at random from the available list, and the one with the lower load is used
+ * The load of a data source is the number of connections currently leased from it, divided by its weight
+ *
+ * Unlike the round robin policies, no counter is shared between request threads, and the choice follows the
+ * live load on each IQ reader
+ *
+ * @author eemecoy
+ *
+ */
+@Singleton
+@Startup
+/*Reason to use @TransactionManagement(TransactionManagementType.BEAN)
+ * Avoid two exceptions:
+ * 1.Local transaction already has 1 non-XA Resource: cannot add more resources.
+ * 2.This Managed Connection is not valid as the physical connection is not usable
+ */
+@TransactionManagement(TransactionManagementType.BEAN)
+/*Reason to use @ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+ * selectDataSource() holds no mutable state, so there's no need for the container's default write lock
+ * to serialise every request thread through this bean
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class PowerOfTwoChoicesLoadBalancingPolicy implements LoadBalancingPolicy {
+
+    /* (non-Javadoc)
+     * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicy#selectDataSource(java.util.List)
+     */
+    @Override
+    public DataSource selectDataSource(final List<EniqDataSource> availableDataSources) {
+        final int listSize = availableDataSources.size();
+        if (listSize == 1) {
+            return availableDataSources.get(0);
+        }
+        final Random random = ThreadLocalRandom.current();
+        final int firstIndex = random.nextInt(listSize);
+        int secondIndex = random.nextInt(listSize - 1);
+        if (secondIndex >= firstIndex) {
+            secondIndex++;
+        }
+        final EniqDataSource firstChoice = availableDataSources.get(firstIndex);
+        final EniqDataSource secondChoice = availableDataSources.get(secondIndex);
+        if (getLoad(secondChoice) < getLoad(firstChoice)) {
+            return secondChoice;
+        }
+        return firstChoice;
+    }
+
+    /**
+     * Get the load on a data source - the number of leased connections relative to the data source's concurrency
+     * limit (its weight, unless it has an adaptive limit)
+     * A data source with no weight configured is treated as having a limit of one
+     *
+     * @param dataSource
+     * @return
+     */
+    double getLoad(final EniqDataSource dataSource) {
+        return (double) dataSource.getLeasedConnectionCount() / Math.max(dataSource.getConcurrencyLimit(), 1);
+    }
+
+}
@@ -0,0 +1,78 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import java.util.List;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+
+/**
+ * Immutable table of the pool name hashes and weights of a list of data sources, for the weighted rendezvous hashing
+ * in KeyAffinitySelector
+ *
+ * Built once per data source snapshot (see DataSourceTopology.getRendezvousHashTable()), so that selecting a data
+ * source for a key only mixes the key's hash with each precomputed pool name hash, rather than hashing every pool
+ * name again on every query
+ *
+ * @author eemecoy
+ *
+ */
+public final class RendezvousHashTable {
+
+    private static final double UNIT_INTERVAL_SCALE = 0x1.0p-53;
+
+    private final List<EniqDataSource> dataSources;
+
+    private final long[] poolNameHashes;
+
+    private final int[] weights;
+
+    /**
+     * @param dataSources data sources to select from - must not be empty
+     */
+    public RendezvousHashTable(final List<EniqDataSource> dataSources) {
+        this.dataSources = dataSources;
+        poolNameHashes = new long[dataSources.size()];
+        weights = new int[dataSources.size()];
+        for (int i = 0; i < poolNameHashes.length; i++) {
+            poolNameHashes[i] = LoadBalancingHash.hash(dataSources.get(i).getPoolName());
+            weights[i] = dataSources.get(i).getWeight();
+        }
+    }
+
+    /**
+     * @param keyHash hash of the routing key (see LoadBalancingHash.hash())
+     * @return the data source with the highest score for the key
+     */
+    EniqDataSource select(final long keyHash) {
+        int selected = 0;
+        double highestScore = getScore(keyHash, poolNameHashes[0], weights[0]);
+        for (int i = 1; i < poolNameHashes.length; i++) {
+            final double score = getScore(keyHash, poolNameHashes[i], weights[i]);
+            if (score > highestScore) {
+                highestScore = score;
+                selected = i;
+            }
+        }
+        return dataSources.get(selected);
+    }
+
+    /**
+     * Score of a data source for a key
+     * The hash of key and data source is mapped to a uniform value u in (0, 1), and the score is weight / -ln(u) -
+     * this makes the chance of a data source having the highest score proportional to its weight
+     *
+     * @param keyHash
+     * @param poolNameHash
+     * @param weight
+     * @return
+     */
+    static double getScore(final long keyHash, final long poolNameHash, final int weight) {
+        final long hash = LoadBalancingHash.mix(keyHash ^ poolNameHash);
+        final double uniform = ((hash >>> 11) + 0.5) * UNIT_INTERVAL_SCALE;
+        return Math.max(weight, 1) / -Math.log(uniform);
+    }
+}
@@ -5,15 +5,20 @@
  */
 package com.ericsson.eniq.events.server.datasource.loadbalancing;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 import javax.ejb.TransactionManagement;
 import javax.ejb.TransactionManagementType;
 import javax.sql.DataSource;
 
+import com.ericsson.eniq.events.server.datasource.DataSourceTopology;
 import com.ericsson.eniq.events.server.datasource.EniqDataSource;
 
 /**
@@ -21,6 +26,13 @@ import com.ericsson.eniq.events.server.datasource.EniqDataSource;
  * Each data source is associated with a weight
  * Data sources with higher weights are chosen more often
  * 
+ * The data sources are taken in the order of a precomputed WeightedSchedule, so selecting a data source is one
+ * atomic increment and an array lookup, and concurrent queries can't disturb the weighting
+ * 
+ * A DataSourceTopology holds its own schedule. The schedules of other lists - the data sources still available
+ * while one is ejected, and that list less the data source already tried when a request is hedged or fails over -
+ * are kept in a small cache, so switching between a few such lists doesn't rebuild a schedule on every query
+ * 
  * @author eemecoy
  *
  */
@@ -32,51 +44,58 @@ import com.ericsson.eniq.events.server.datasource.EniqDataSource;
  * 2.This Managed Connection is not valid as the physical connection is not usable
  */
 @TransactionManagement(TransactionManagementType.BEAN)
+/*Reason to use @ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+ * selectDataSource() only uses atomics (the position and the cached schedules), so there's no need for the
+ * container's default write lock to serialise every request thread through this bean
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class WeightedRoundRobinLoadBalancingPolicy implements LoadBalancingPolicy {
 
-    AtomicInteger index = new AtomicInteger(-1);
+    /**
+     * number of schedules cached for lists other than a DataSourceTopology
+     */
+    static final int CACHED_SCHEDULES = 16;
+
+    private final AtomicInteger position = new AtomicInteger(0);
 
-    AtomicInteger currentWeight = new AtomicInteger(0);
+    private final AtomicReferenceArray<WeightedSchedule> cachedSchedules = new AtomicReferenceArray<WeightedSchedule>(
+            CACHED_SCHEDULES);
+
+    /**
+     * the cached schedule replaced next - the cache is replaced in turn, oldest first
+     */
+    private final AtomicInteger nextScheduleReplaced = new AtomicInteger(0);
 
     /* (non-Javadoc)
      * @see com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicy#selectDataSource(java.util.List)
      */
     @Override
     public DataSource selectDataSource(final List<EniqDataSource> availableDataSources) {
-
-        final int greatestCommonDivisor = calculateGreatestCommonDivisor(availableDataSources);
-        final int maximumWeight = getMaximumWeight(availableDataSources);
-        final int listSize = availableDataSources.size();
-        while (true) {
-            index.set((index.incrementAndGet()) % listSize);
-            if (index.get() == 0) {
-                currentWeight.addAndGet(-greatestCommonDivisor);
-                if (currentWeight.get() <= 0) {
-                    currentWeight.set(maximumWeight);
-                }
-            }
-            final EniqDataSource dataSource = availableDataSources.get(index.get());
-            final int weightOfThisDataSource = dataSource.getWeight();
-            if (weightOfThisDataSource >= currentWeight.get()) {
-                return dataSource;
-            }
-        }
+        final WeightedSchedule schedule = getSchedule(availableDataSources);
+        return schedule.getDataSource(Math.floorMod(position.getAndIncrement(), schedule.getLength()));
     }
 
     /**
-     * Get the maximum weight in the list of data sources
+     * Get the schedule for this list of data sources - a DataSourceTopology holds its own schedule, any other list
+     * has its schedule looked up in the cache, and is only built if it isn't there
+     * exposed for unit test
      * @param availableDataSources
      * @return
      */
-    int getMaximumWeight(final List<EniqDataSource> availableDataSources) {
-        int maximumWeight = 0;
-        for (final EniqDataSource dataSource : availableDataSources) {
-            final int dataSourceWeight = dataSource.getWeight();
-            if (dataSourceWeight > maximumWeight) {
-                maximumWeight = dataSourceWeight;
+    WeightedSchedule getSchedule(final List<EniqDataSource> availableDataSources) {
+        if (availableDataSources instanceof DataSourceTopology) {
+            return ((DataSourceTopology) availableDataSources).getWeightedSchedule();
+        }
+        for (int i = 0; i < CACHED_SCHEDULES; i++) {
+            final WeightedSchedule schedule = cachedSchedules.get(i);
+            if (schedule != null && schedule.isBuiltFrom(availableDataSources)) {
+                return schedule;
             }
         }
-        return maximumWeight;
+        final WeightedSchedule schedule = new WeightedSchedule(new ArrayList<EniqDataSource>(availableDataSources),
+                calculateGreatestCommonDivisor(availableDataSources));
+        cachedSchedules.set(Math.floorMod(nextScheduleReplaced.getAndIncrement(), CACHED_SCHEDULES), schedule);
+        return schedule;
     }
 
     /**
@@ -106,4 +125,5 @@ public class WeightedRoundRobinLoadBalancingPolicy implements LoadBalancingPolic
         }
         return calculateGreatestCommonDivisor(b, a % b);
     }
+
 }
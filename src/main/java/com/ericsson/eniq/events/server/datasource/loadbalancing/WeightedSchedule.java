@@ -0,0 +1,119 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import java.util.List;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+
+/**
+ * Immutable weighted round robin schedule over a list of data sources
+ *
+ * The schedule is one full cycle of smooth weighted round robin (as used by nginx), flattened into an array - each
+ * data source appears in proportion to its weight, and its appearances are spread through the cycle rather than
+ * bunched together. Selecting the next data source is then just an index into the array
+ *
+ * Weights are divided by their greatest common divisor to keep the cycle short, and scaled down if the cycle would
+ * still be longer than MAXIMUM_SCHEDULE_LENGTH. Data sources with a weight of 0 or less are left out, unless all
+ * data sources have such a weight, in which case they are all given equal weight
+ *
+ * @author eemecoy
+ *
+ */
+public final class WeightedSchedule {
+
+    static final int MAXIMUM_SCHEDULE_LENGTH = 4096;
+
+    private final List<EniqDataSource> dataSources;
+
+    private final EniqDataSource[] schedule;
+
+    /**
+     * @param dataSources data sources to schedule - must not be empty
+     * @param greatestCommonDivisor greatest common divisor of the weights of the data sources
+     */
+    public WeightedSchedule(final List<EniqDataSource> dataSources, final int greatestCommonDivisor) {
+        this.dataSources = dataSources;
+        final int[] weights = getScheduleWeights(dataSources, greatestCommonDivisor);
+        int totalWeight = 0;
+        for (final int weight : weights) {
+            totalWeight += weight;
+        }
+        schedule = new EniqDataSource[totalWeight];
+        final int[] currentWeights = new int[weights.length];
+        for (int slot = 0; slot < totalWeight; slot++) {
+            int selected = 0;
+            for (int i = 0; i < weights.length; i++) {
+                currentWeights[i] += weights[i];
+                if (currentWeights[i] > currentWeights[selected]) {
+                    selected = i;
+                }
+            }
+            currentWeights[selected] -= totalWeight;
+            schedule[slot] = dataSources.get(selected);
+        }
+    }
+
+    private static int[] getScheduleWeights(final List<EniqDataSource> dataSources, final int greatestCommonDivisor) {
+        final int[] weights = new int[dataSources.size()];
+        final int divisor = Math.max(greatestCommonDivisor, 1);
+        long totalWeight = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = Math.max(dataSources.get(i).getWeight(), 0) / divisor;
+            totalWeight += weights[i];
+        }
+        if (totalWeight == 0) {
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = 1;
+            }
+        } else if (totalWeight > MAXIMUM_SCHEDULE_LENGTH) {
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] > 0) {
+                    weights[i] = (int) Math.max(Math.round((double) weights[i] * MAXIMUM_SCHEDULE_LENGTH
+                            / totalWeight), 1);
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Get the data source at this position in the schedule
+     * @param position any non negative number - the schedule repeats every getLength() positions
+     * @return
+     */
+    public EniqDataSource getDataSource(final int position) {
+        return schedule[position % schedule.length];
+    }
+
+    /**
+     * @return number of positions in one cycle of the schedule
+     */
+    public int getLength() {
+        return schedule.length;
+    }
+
+    /**
+     * Check if this schedule was built from the same data sources, in the same order, as the list provided
+     * @param availableDataSources
+     * @return
+     */
+    public boolean isBuiltFrom(final List<EniqDataSource> availableDataSources) {
+        if (availableDataSources == dataSources) {
+            return true;
+        }
+        final int listSize = availableDataSources.size();
+        if (listSize != dataSources.size()) {
+            return false;
+        }
+        for (int i = 0; i < listSize; i++) {
+            if (availableDataSources.get(i) != dataSources.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
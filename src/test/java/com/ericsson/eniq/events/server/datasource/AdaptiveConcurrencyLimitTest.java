@@ -0,0 +1,128 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class AdaptiveConcurrencyLimitTest {
+
+    private static final long NORMAL_QUERY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long SLOW_QUERY_NANOS = TimeUnit.MILLISECONDS.toNanos(1000);
+
+    @Test
+    public void testLimitStartsAtMaximum() {
+        final AdaptiveConcurrencyLimit objToTest = new AdaptiveConcurrencyLimit(10, 1, 0.5, 2.0, 0);
+        assertThat(objToTest.getLimit(), is(10));
+    }
+
+    @Test
+    public void testSlowQueryCutsLimitOnlyOncePerWindow() throws Exception {
+        final AdaptiveConcurrencyLimit objToTest = new AdaptiveConcurrencyLimit(10, 1, 0.5, 2.0, 0);
+        runQuery(objToTest, NORMAL_QUERY_NANOS);
+        runQuery(objToTest, SLOW_QUERY_NANOS);
+        assertThat(objToTest.getLimit(), is(5));
+        runQuery(objToTest, SLOW_QUERY_NANOS);
+        assertThat(objToTest.getLimit(), is(5));
+    }
+
+    @Test
+    public void testFailureToGetConnectionCutsLimit() throws Exception {
+        final AdaptiveConcurrencyLimit objToTest = new AdaptiveConcurrencyLimit(10, 1, 0.5, 2.0, 0);
+        assertThat(objToTest.tryAcquire(), is(true));
+        objToTest.onRelease(0, true);
+        assertThat(objToTest.getLimit(), is(5));
+    }
+
+    @Test
+    public void testLimitDoesNotGoBelowMinimum() throws Exception {
+        final AdaptiveConcurrencyLimit objToTest = new AdaptiveConcurrencyLimit(10, 4, 0.1, 2.0, 0);
+        for (int i = 0; i < 100; i++) {
+            assertThat(objToTest.tryAcquire(), is(true));
+            objToTest.onRelease(0, true);
+        }
+        assertThat(objToTest.getLimit(), is(4));
+    }
+
+    @Test
+    public void testLimitGrowsBackToMaximumWhenBusyAndQueriesAreFast() throws Exception {
+        final AdaptiveConcurrencyLimit objToTest = new AdaptiveConcurrencyLimit(10, 1, 0.5, 2.0, 0);
+        runQuery(objToTest, NORMAL_QUERY_NANOS);
+        runQuery(objToTest, SLOW_QUERY_NANOS);
+        assertThat(objToTest.getLimit(), is(5));
+        for (int round = 0; round < 100; round++) {
+            final int limit = objToTest.getLimit();
+            for (int i = 0; i < limit; i++) {
+                assertThat(objToTest.tryAcquire(), is(true));
+            }
+            for (int i = 0; i < limit; i++) {
+                objToTest.onRelease(NORMAL_QUERY_NANOS, false);
+            }
+        }
+        assertThat(objToTest.getLimit(), is(10));
+    }
+
+    @Test
+    public void testLimitDoesNotGrowWhenMostOfItIsUnused() throws Exception {
+        final AdaptiveConcurrencyLimit objToTest = new AdaptiveConcurrencyLimit(10, 1, 0.5, 2.0, 0);
+        runQuery(objToTest, NORMAL_QUERY_NANOS);
+        runQuery(objToTest, SLOW_QUERY_NANOS);
+        for (int i = 0; i < 100; i++) {
+            runQuery(objToTest, NORMAL_QUERY_NANOS);
+        }
+        assertThat(objToTest.getLimit(), is(5));
+    }
+
+    @Test
+    public void testRequestOverLimitIsRejectedWithoutQueueTimeout() throws Exception {
+        final AdaptiveConcurrencyLimit objToTest = new AdaptiveConcurrencyLimit(2, 1, 0.5, 2.0, 0);
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(false));
+        assertThat(objToTest.getInFlight(), is(2));
+    }
+
+    @Test
+    public void testRequestOverLimitWaitsForAPlaceToBeFreed() throws Exception {
+        final AdaptiveConcurrencyLimit objToTest = new AdaptiveConcurrencyLimit(1, 1, 0.5, 2.0, 10000);
+        assertThat(objToTest.tryAcquire(), is(true));
+        final CountDownLatch waiterStarted = new CountDownLatch(1);
+        final AtomicBoolean waiterAcquired = new AtomicBoolean(false);
+        final Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                waiterStarted.countDown();
+                try {
+                    waiterAcquired.set(objToTest.tryAcquire());
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+        };
+        waiter.start();
+        waiterStarted.await();
+        objToTest.onRelease(NORMAL_QUERY_NANOS, false);
+        waiter.join(10000);
+        assertThat(waiterAcquired.get(), is(true));
+        assertThat(objToTest.getInFlight(), is(1));
+    }
+
+    private void runQuery(final AdaptiveConcurrencyLimit limit, final long queryTimeNanos) throws Exception {
+        assertThat(limit.tryAcquire(), is(true));
+        limit.onRelease(queryTimeNanos, false);
+    }
+}
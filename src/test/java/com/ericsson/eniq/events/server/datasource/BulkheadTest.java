@@ -0,0 +1,131 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class BulkheadTest {
+
+    @Test
+    public void testQueryClassWithoutLimitIsNeverRejected() throws Exception {
+        final Bulkhead objToTest = new Bulkhead(new Properties());
+        for (int i = 0; i < 100; i++) {
+            assertThat(objToTest.acquire(QueryClass.INTERACTIVE), is(nullValue()));
+        }
+        assertThat(objToTest.getAvailablePermits(QueryClass.INTERACTIVE), is(-1));
+    }
+
+    @Test
+    public void testQueryClassOverLimitIsRejectedUntilPermitIsReleased() throws Exception {
+        final Bulkhead objToTest = new Bulkhead(createProperties(QueryClass.CSV_EXPORT, "2"));
+        final Runnable firstPermit = objToTest.acquire(QueryClass.CSV_EXPORT);
+        objToTest.acquire(QueryClass.CSV_EXPORT);
+        assertRejected(objToTest, QueryClass.CSV_EXPORT);
+
+        firstPermit.run();
+        assertThat(objToTest.getAvailablePermits(QueryClass.CSV_EXPORT), is(1));
+        assertThat(objToTest.acquire(QueryClass.CSV_EXPORT), is(notNullValue()));
+    }
+
+    @Test
+    public void testReleasingPermitTwiceOnlyReleasesItOnce() throws Exception {
+        final Bulkhead objToTest = new Bulkhead(createProperties(QueryClass.RANKING, "1"));
+        final Runnable permit = objToTest.acquire(QueryClass.RANKING);
+        permit.run();
+        permit.run();
+        assertThat(objToTest.getAvailablePermits(QueryClass.RANKING), is(1));
+    }
+
+    @Test
+    public void testQueryClassesHaveSeparateLimits() throws Exception {
+        final Properties properties = createProperties(QueryClass.CSV_EXPORT, "1");
+        properties.put(QueryClass.KPI.getLimitPropertyName(), "1");
+        final Bulkhead objToTest = new Bulkhead(properties);
+        objToTest.acquire(QueryClass.CSV_EXPORT);
+        assertRejected(objToTest, QueryClass.CSV_EXPORT);
+        assertThat(objToTest.acquire(QueryClass.KPI), is(notNullValue()));
+        assertThat(objToTest.acquire(QueryClass.INTERACTIVE), is(nullValue()));
+    }
+
+    @Test
+    public void testQueryWaitsForPermitUpToQueueTimeout() throws Exception {
+        final Properties properties = createProperties(QueryClass.CSV_EXPORT, "1");
+        properties.put(Bulkhead.QUEUE_TIMEOUT_MILLIS_PROPERTY_NAME, "5000");
+        final Bulkhead objToTest = new Bulkhead(properties);
+        final Runnable permit = objToTest.acquire(QueryClass.CSV_EXPORT);
+        final Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                permit.run();
+            }
+        };
+        releaser.start();
+        assertThat(objToTest.acquire(QueryClass.CSV_EXPORT), is(notNullValue()));
+        releaser.join();
+    }
+
+    @Test
+    public void testResizingKeepsThePermitsHeld() throws Exception {
+        final Bulkhead objToTest = new Bulkhead(createProperties(QueryClass.CSV_EXPORT, "2"));
+        final Runnable firstPermit = objToTest.acquire(QueryClass.CSV_EXPORT);
+        final Runnable secondPermit = objToTest.acquire(QueryClass.CSV_EXPORT);
+
+        objToTest.resize(createProperties(QueryClass.CSV_EXPORT, "3"));
+        assertThat(objToTest.getAvailablePermits(QueryClass.CSV_EXPORT), is(1));
+
+        objToTest.resize(createProperties(QueryClass.CSV_EXPORT, "1"));
+        assertRejected(objToTest, QueryClass.CSV_EXPORT);
+        firstPermit.run();
+        assertRejected(objToTest, QueryClass.CSV_EXPORT);
+        secondPermit.run();
+        assertThat(objToTest.getAvailablePermits(QueryClass.CSV_EXPORT), is(1));
+    }
+
+    @Test
+    public void testPermitsHeldWhenTheLimitIsRemovedCountAgainstALimitSetLater() throws Exception {
+        final Bulkhead objToTest = new Bulkhead(createProperties(QueryClass.RANKING, "1"));
+        final Runnable permit = objToTest.acquire(QueryClass.RANKING);
+
+        objToTest.resize(new Properties());
+        assertThat(objToTest.acquire(QueryClass.RANKING), is(nullValue()));
+        assertThat(objToTest.getAvailablePermits(QueryClass.RANKING), is(-1));
+
+        objToTest.resize(createProperties(QueryClass.RANKING, "1"));
+        assertRejected(objToTest, QueryClass.RANKING);
+        permit.run();
+        assertThat(objToTest.acquire(QueryClass.RANKING), is(notNullValue()));
+    }
+
+    private void assertRejected(final Bulkhead bulkhead, final QueryClass queryClass) {
+        try {
+            bulkhead.acquire(queryClass);
+            fail("Expected the " + queryClass + " query to be rejected");
+        } catch (final SQLException e) {
+            assertThat(e.getMessage(), containsString(queryClass.toString()));
+        }
+    }
+
+    private Properties createProperties(final QueryClass queryClass, final String limit) {
+        final Properties properties = new Properties();
+        properties.put(queryClass.getLimitPropertyName(), limit);
+        return properties;
+    }
+}
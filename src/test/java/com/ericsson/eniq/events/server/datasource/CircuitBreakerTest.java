@@ -0,0 +1,131 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.datasource.CircuitBreaker.State;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class CircuitBreakerTest {
+
+    private static final long FAST_CALL_NANOS = 1000;
+
+    private long now;
+
+    @Test
+    public void testBreakerTripsWhenFailureRateIsReached() {
+        final CircuitBreaker objToTest = new CircuitBreaker(10, 0.5, 1000, 60000);
+        for (int i = 0; i < 4; i++) {
+            objToTest.onFailure(objToTest.tryAcquirePermission());
+            objToTest.onSuccess(objToTest.tryAcquirePermission(), FAST_CALL_NANOS);
+        }
+        assertThat(objToTest.getState(), is(State.CLOSED));
+        objToTest.onFailure(objToTest.tryAcquirePermission());
+        assertThat(objToTest.getState(), is(State.OPEN));
+        assertThat(objToTest.tryAcquirePermission(), is(CircuitBreaker.NOT_PERMITTED));
+        assertThat(objToTest.isCallPermitted(), is(false));
+    }
+
+    @Test
+    public void testFailuresInEarlierWindowsAreForgotten() {
+        final CircuitBreaker objToTest = new CircuitBreaker(10, 0.5, 1000, 60000);
+        for (int window = 0; window < 3; window++) {
+            for (int i = 0; i < 4; i++) {
+                objToTest.onFailure(objToTest.tryAcquirePermission());
+            }
+            for (int i = 0; i < 6; i++) {
+                objToTest.onSuccess(objToTest.tryAcquirePermission(), FAST_CALL_NANOS);
+            }
+        }
+        assertThat(objToTest.getState(), is(State.CLOSED));
+    }
+
+    @Test
+    public void testSlowCallsCountAsFailures() {
+        final CircuitBreaker objToTest = new CircuitBreaker(2, 0.5, 1, 60000);
+        objToTest.onSuccess(objToTest.tryAcquirePermission(), 5000000);
+        assertThat(objToTest.getState(), is(State.OPEN));
+    }
+
+    @Test
+    public void testOneTrialRequestIsLetThroughAfterOpenDurationAndClosesBreakerOnSuccess() {
+        final CircuitBreaker objToTest = new CircuitBreaker(1, 1.0, 1000, 0);
+        objToTest.onFailure(objToTest.tryAcquirePermission());
+        assertThat(objToTest.getState(), is(State.OPEN));
+        assertThat(objToTest.isCallPermitted(), is(true));
+        final long trial = objToTest.tryAcquirePermission();
+        assertThat(trial, is(not(CircuitBreaker.NOT_PERMITTED)));
+        assertThat(objToTest.getState(), is(State.HALF_OPEN));
+        assertThat(objToTest.isCallPermitted(), is(false));
+        assertThat(objToTest.tryAcquirePermission(), is(CircuitBreaker.NOT_PERMITTED));
+        objToTest.onSuccess(trial, FAST_CALL_NANOS);
+        assertThat(objToTest.getState(), is(State.CLOSED));
+        assertThat(objToTest.tryAcquirePermission(), is(not(CircuitBreaker.NOT_PERMITTED)));
+    }
+
+    @Test
+    public void testFailedTrialRequestOpensBreakerAgain() {
+        final CircuitBreaker objToTest = new CircuitBreaker(1, 1.0, 1000, 0);
+        objToTest.onFailure(objToTest.tryAcquirePermission());
+        objToTest.onFailure(objToTest.tryAcquirePermission());
+        assertThat(objToTest.getState(), is(State.OPEN));
+    }
+
+    @Test
+    public void testFailuresFromRequestsStartedBeforeTheTripDoNotExtendTheOpenDuration() {
+        final CircuitBreaker objToTest = createCircuitBreakerWithFakeClock(1, 1.0, 1000, 50);
+        final long straggler = objToTest.tryAcquirePermission();
+        objToTest.onFailure(objToTest.tryAcquirePermission());
+        assertThat(objToTest.getState(), is(State.OPEN));
+        assertThat(objToTest.isCallPermitted(), is(false));
+        now += TimeUnit.MILLISECONDS.toNanos(50);
+        objToTest.onFailure(straggler);
+        assertThat(objToTest.isCallPermitted(), is(true));
+    }
+
+    @Test
+    public void testSuccessFromARequestStartedBeforeTheTripDoesNotCloseTheBreakerDuringTheTrial() {
+        final CircuitBreaker objToTest = new CircuitBreaker(1, 1.0, 1000, 0);
+        final long straggler = objToTest.tryAcquirePermission();
+        objToTest.onFailure(objToTest.tryAcquirePermission());
+        final long trial = objToTest.tryAcquirePermission();
+        objToTest.onSuccess(straggler, FAST_CALL_NANOS);
+        assertThat(objToTest.getState(), is(State.HALF_OPEN));
+        objToTest.onSuccess(trial, FAST_CALL_NANOS);
+        assertThat(objToTest.getState(), is(State.CLOSED));
+    }
+
+    @Test
+    public void testReleasedTrialIsOfferedToTheNextRequest() {
+        final CircuitBreaker objToTest = new CircuitBreaker(1, 1.0, 1000, 0);
+        objToTest.onFailure(objToTest.tryAcquirePermission());
+        objToTest.releasePermission(objToTest.tryAcquirePermission());
+        assertThat(objToTest.getState(), is(State.OPEN));
+        assertThat(objToTest.isCallPermitted(), is(true));
+        objToTest.onSuccess(objToTest.tryAcquirePermission(), FAST_CALL_NANOS);
+        assertThat(objToTest.getState(), is(State.CLOSED));
+    }
+
+    private CircuitBreaker createCircuitBreakerWithFakeClock(final int windowSize, final double failureRateThreshold,
+            final long slowCallThresholdMillis, final long openDurationMillis) {
+        return new CircuitBreaker(windowSize, failureRateThreshold, slowCallThresholdMillis, openDurationMillis) {
+            @Override
+            long currentTimeNanos() {
+                return now;
+            }
+        };
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import org.jmock.Expectations;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.test.common.BaseJMockUnitTest;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class ColumnarResultTest extends BaseJMockUnitTest {
+
+    private ColumnarResult objToTest;
+
+    @Before
+    public void setup() throws Exception {
+        // the mocks can be finalized off the test thread
+        mockery.setThreadingPolicy(new Synchroniser());
+        final ResultSet mockedResultSet = mockery.mock(ResultSet.class);
+        final ResultSetMetaData mockedMetaData = mockery.mock(ResultSetMetaData.class);
+        mockery.checking(new Expectations() {
+            {
+                one(mockedResultSet).getMetaData();
+                will(returnValue(mockedMetaData));
+                allowing(mockedMetaData).getColumnCount();
+                will(returnValue(3));
+                allowing(mockedMetaData).getColumnLabel(1);
+                will(returnValue("IMSI"));
+                allowing(mockedMetaData).getColumnType(1);
+                will(returnValue(Types.VARCHAR));
+                allowing(mockedMetaData).getColumnLabel(2);
+                will(returnValue("NO_OF_ERRORS"));
+                allowing(mockedMetaData).getColumnType(2);
+                will(returnValue(Types.INTEGER));
+                allowing(mockedMetaData).getColumnLabel(3);
+                will(returnValue("FAILURE_RATIO"));
+                allowing(mockedMetaData).getColumnType(3);
+                will(returnValue(Types.DOUBLE));
+
+                exactly(2).of(mockedResultSet).next();
+                will(returnValue(true));
+                one(mockedResultSet).next();
+                will(returnValue(false));
+
+                one(mockedResultSet).getObject(1);
+                will(returnValue("460000123456789"));
+                one(mockedResultSet).getInt(2);
+                will(returnValue(12));
+                one(mockedResultSet).getDouble(3);
+                will(returnValue(0.25));
+
+                one(mockedResultSet).getObject(1);
+                will(returnValue(null));
+                one(mockedResultSet).getInt(2);
+                will(returnValue(0));
+                one(mockedResultSet).getDouble(3);
+                will(returnValue(0.0));
+                exactly(4).of(mockedResultSet).wasNull();
+                will(onConsecutiveCalls(returnValue(false), returnValue(false), returnValue(true),
+                        returnValue(false)));
+            }
+        });
+        objToTest = ColumnarResult.copyOf(mockedResultSet);
+    }
+
+    @Test
+    public void testCopyIsReadBackByIndexAndLabel() throws Exception {
+        assertThat(objToTest.getRowCount(), is(2));
+        final ResultSet resultSet = objToTest.createResultSet();
+        assertThat(resultSet.next(), is(true));
+        assertThat(resultSet.getString("IMSI"), is("460000123456789"));
+        assertThat(resultSet.getInt(2), is(12));
+        assertThat(resultSet.getLong("no_of_errors"), is(12L));
+        assertThat(resultSet.getDouble(3), is(0.25));
+        assertThat(resultSet.getBigDecimal(3), is(new BigDecimal("0.25")));
+
+        assertThat(resultSet.next(), is(true));
+        assertThat(resultSet.getString(1), is(nullValue()));
+        assertThat(resultSet.wasNull(), is(true));
+        assertThat(resultSet.getInt(2), is(0));
+        assertThat(resultSet.wasNull(), is(true));
+        assertThat(resultSet.getObject(3), is((Object) 0.0));
+        assertThat(resultSet.wasNull(), is(false));
+        assertThat(resultSet.next(), is(false));
+        assertThat(resultSet.getMetaData().getColumnLabel(3), is("FAILURE_RATIO"));
+    }
+
+    @Test
+    public void testEachResultSetIsAnIndependentCursor() throws Exception {
+        final ResultSet first = objToTest.createResultSet();
+        final ResultSet second = objToTest.createResultSet();
+        first.next();
+        first.next();
+        assertThat(second.next(), is(true));
+        assertThat(second.getInt(2), is(12));
+        assertThat(first.getRow(), is(2));
+    }
+
+    @Test
+    public void testValuesAreConvertedAsAJDBCDriverWould() throws Exception {
+        final ResultSet resultSet = copyOneRow(Types.TIMESTAMP, Timestamp.valueOf("2011-01-01 10:15:30"))
+                .createResultSet();
+        resultSet.next();
+        assertThat(resultSet.getDate(1), is(Date.valueOf("2011-01-01")));
+        assertThat(resultSet.getTime(1), is(Time.valueOf("10:15:30")));
+        assertThat(resultSet.getString(1), is("2011-01-01 10:15:30.0"));
+
+        final ResultSet numericText = copyOneRow(Types.VARCHAR, " 42 ").createResultSet();
+        numericText.next();
+        assertThat(numericText.getInt(1), is(42));
+        assertThat(numericText.getBigDecimal(1), is(new BigDecimal("42")));
+    }
+
+    @Test
+    public void testCopyGivenUpPartWayIsReadOnFromTheResultSet() throws Exception {
+        final ResultSet mockedResultSet = mockery.mock(ResultSet.class, "partlyCopied");
+        final ResultSetMetaData mockedMetaData = mockery.mock(ResultSetMetaData.class, "partlyCopiedMetaData");
+        mockery.checking(new Expectations() {
+            {
+                one(mockedResultSet).getMetaData();
+                will(returnValue(mockedMetaData));
+                allowing(mockedMetaData).getColumnCount();
+                will(returnValue(1));
+                allowing(mockedMetaData).getColumnLabel(1);
+                will(returnValue("NO_OF_ERRORS"));
+                allowing(mockedMetaData).getColumnType(1);
+                will(returnValue(Types.INTEGER));
+                exactly(2).of(mockedResultSet).next();
+                will(returnValue(true));
+                one(mockedResultSet).next();
+                will(returnValue(false));
+                exactly(2).of(mockedResultSet).getInt(1);
+                will(onConsecutiveCalls(returnValue(1), returnValue(2)));
+                one(mockedResultSet).wasNull();
+                will(returnValue(false));
+            }
+        });
+        final ColumnarResult.Copier copier = new ColumnarResult.Copier(mockedResultSet);
+        assertThat(copier.copyRows(copier.getSizeInBytes()), is(false));
+
+        final ResultSet resultSet = copier.getResult().createResultSet(mockedResultSet);
+        assertThat(resultSet.next(), is(true));
+        assertThat(resultSet.getInt(1), is(1));
+        assertThat(resultSet.next(), is(true));
+        assertThat(resultSet.getInt(1), is(2));
+        assertThat(resultSet.next(), is(false));
+    }
+
+    @Test(expected = SQLException.class)
+    public void testClosedResultSetCannotBeRead() throws Exception {
+        final ResultSet resultSet = objToTest.createResultSet();
+        resultSet.close();
+        resultSet.next();
+    }
+
+    private ColumnarResult copyOneRow(final int columnType, final Object value) throws SQLException {
+        final String name = "oneRowOf" + value.getClass().getSimpleName();
+        final ResultSet mockedResultSet = mockery.mock(ResultSet.class, name);
+        final ResultSetMetaData mockedMetaData = mockery.mock(ResultSetMetaData.class, name + "MetaData");
+        mockery.checking(new Expectations() {
+            {
+                one(mockedResultSet).getMetaData();
+                will(returnValue(mockedMetaData));
+                allowing(mockedMetaData).getColumnCount();
+                will(returnValue(1));
+                allowing(mockedMetaData).getColumnLabel(1);
+                will(returnValue("VALUE"));
+                allowing(mockedMetaData).getColumnType(1);
+                will(returnValue(columnType));
+                one(mockedResultSet).next();
+                will(returnValue(true));
+                one(mockedResultSet).getObject(1);
+                will(returnValue(value));
+                one(mockedResultSet).next();
+                will(returnValue(false));
+            }
+        });
+        return ColumnarResult.copyOf(mockedResultSet);
+    }
+}
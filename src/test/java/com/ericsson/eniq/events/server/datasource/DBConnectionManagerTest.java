@@ -0,0 +1,178 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.jmock.Expectations;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.test.common.BaseJMockUnitTest;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class DBConnectionManagerTest extends BaseJMockUnitTest {
+
+    private static final String NAMESPACE = "activeTechPacks";
+
+    private static final String SQL = "SELECT TECHPACK_NAME FROM TPActivation WHERE TYPE = ?";
+
+    private DBConnectionManager objToTest;
+
+    private DataSource mockedDwhrepDataSource;
+
+    private int queriesRun;
+
+    @Before
+    public void setup() {
+        // the cached results hold on to mocks, which can be finalized off the test thread
+        mockery.setThreadingPolicy(new Synchroniser());
+        objToTest = new DBConnectionManager();
+        objToTest.setEniqEventsProperties(new Properties());
+        mockedDwhrepDataSource = mockery.mock(DataSource.class);
+        objToTest.setDwhrepDataSource(mockedDwhrepDataSource);
+    }
+
+    @Test
+    public void testRepeatedDwhrepQueryIsServedFromTheCache() throws Exception {
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        assertThat(objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS"),
+                is("EVENT_E_SGEH"));
+        assertThat(objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS"),
+                is("EVENT_E_SGEH"));
+        assertThat(queriesRun, is(1));
+
+        expectDwhrepQuery("ENIQ_STATS", "DC_E_MGW");
+        assertThat(objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_STATS"), is("DC_E_MGW"));
+        assertThat(queriesRun, is(2));
+    }
+
+    @Test
+    public void testInvalidatedDwhrepQueryIsRunAgain() throws Exception {
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS");
+        objToTest.invalidateDwhrepCache(NAMESPACE, SQL, "ENIQ_EVENTS");
+
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_LTE");
+        assertThat(objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS"), is("EVENT_E_LTE"));
+        objToTest.invalidateDwhrepCache();
+
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        assertThat(objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS"),
+                is("EVENT_E_SGEH"));
+        assertThat(queriesRun, is(3));
+    }
+
+    @Test
+    public void testResultOfDwhrepQueryInvalidatedWhileItRanIsNotCached() throws Exception {
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor() {
+            @Override
+            public String extractData(final ResultSet resultSet) throws SQLException {
+                // eg a techpack upgraded while the query ran
+                objToTest.invalidateDwhrepCache(NAMESPACE, SQL, "ENIQ_EVENTS");
+                return super.extractData(resultSet);
+            }
+        }, "ENIQ_EVENTS");
+
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_LTE");
+        assertThat(objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS"), is("EVENT_E_LTE"));
+        assertThat(queriesRun, is(2));
+    }
+
+    @Test
+    public void testSameDwhrepQueryInAnotherNamespaceIsRunAgain() throws Exception {
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS");
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        assertThat(objToTest.queryDwhrep("otherTechPacks", SQL, new FirstColumnExtractor(), "ENIQ_EVENTS"),
+                is("EVENT_E_SGEH"));
+        assertThat(queriesRun, is(2));
+    }
+
+    @Test
+    public void testDwhrepQueryIsAlwaysRunWhenCacheIsTurnedOff() throws Exception {
+        final Properties eniqEventsProperties = new Properties();
+        eniqEventsProperties.put(DBConnectionManager.DWHREP_CACHE_TTL_SECONDS_PROPERTY_NAME, "0");
+        objToTest.setEniqEventsProperties(eniqEventsProperties);
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS");
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS");
+        assertThat(queriesRun, is(2));
+    }
+
+    @Test
+    public void testDwhrepCacheIsRecreatedWhenThePropertiesAreReloaded() throws Exception {
+        final AtomicReference<Properties> publishedProperties = new AtomicReference<Properties>(new Properties());
+        objToTest.setDataSourceManager(new DataSourceManager() {
+            @Override
+            public Properties getEniqEventsProperties() {
+                return publishedProperties.get();
+            }
+        });
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS");
+        objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS");
+        assertThat(queriesRun, is(1));
+
+        final Properties reloadedProperties = new Properties();
+        reloadedProperties.put(DBConnectionManager.DWHREP_CACHE_TTL_SECONDS_PROPERTY_NAME, "0");
+        publishedProperties.set(reloadedProperties);
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS");
+        expectDwhrepQuery("ENIQ_EVENTS", "EVENT_E_SGEH");
+        objToTest.queryDwhrep(NAMESPACE, SQL, new FirstColumnExtractor(), "ENIQ_EVENTS");
+        assertThat(queriesRun, is(3));
+    }
+
+    private void expectDwhrepQuery(final String parameter, final String result) throws SQLException {
+        final String suffix = Integer.toString(queriesRun++);
+        final Connection mockedConnection = mockery.mock(Connection.class, "connection" + suffix);
+        final PreparedStatement mockedStatement = mockery.mock(PreparedStatement.class, "statement" + suffix);
+        final ResultSet mockedResultSet = mockery.mock(ResultSet.class, "resultSet" + suffix);
+        mockery.checking(new Expectations() {
+            {
+                one(mockedDwhrepDataSource).getConnection();
+                will(returnValue(mockedConnection));
+                one(mockedConnection).prepareStatement(SQL);
+                will(returnValue(mockedStatement));
+                one(mockedStatement).setObject(1, parameter);
+                one(mockedStatement).executeQuery();
+                will(returnValue(mockedResultSet));
+                one(mockedResultSet).next();
+                will(returnValue(true));
+                one(mockedResultSet).getString(1);
+                will(returnValue(result));
+                one(mockedResultSet).close();
+                one(mockedStatement).close();
+                one(mockedConnection).close();
+            }
+        });
+    }
+
+    private static class FirstColumnExtractor implements ResultSetExtractor<String> {
+
+        @Override
+        public String extractData(final ResultSet resultSet) throws SQLException {
+            return resultSet.next() ? resultSet.getString(1) : null;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ejb.Timer;
+import javax.sql.DataSource;
+
+import org.jmock.Expectations;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.test.common.BaseJMockUnitTest;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class DataSourceHealthMonitorTest extends BaseJMockUnitTest {
+
+    private DataSourceHealthMonitor objToTest;
+
+    private DataSource mockedDataSource;
+
+    private EniqDataSourceImpl dataSource;
+
+    @Before
+    public void setup() {
+        // some probes run on threads of their own
+        mockery.setThreadingPolicy(new Synchroniser());
+        objToTest = new DataSourceHealthMonitor();
+        objToTest.setProbeExecutor(new SameThreadExecutorService());
+        objToTest.setWarmUpExecutor(new SameThreadExecutorService());
+        mockedDataSource = mockery.mock(DataSource.class);
+        dataSource = new EniqDataSourceImpl(mockedDataSource, "eniqPool", 10);
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        dataSources.add(dataSource);
+        objToTest.monitor(DataSourceMBeans.QUERY_GROUP, dataSources, createPropertiesWithoutWarmUp());
+    }
+
+    @Test
+    public void testDataSourceIsEjectedAfterConsecutiveFailedProbes() throws Exception {
+        expectFailedProbes(DataSourceHealthMonitor.DEFAULT_FAILURES_TO_EJECT);
+        for (int i = 1; i < DataSourceHealthMonitor.DEFAULT_FAILURES_TO_EJECT; i++) {
+            objToTest.probeDataSources();
+            assertThat(dataSource.isAvailable(), is(true));
+        }
+        objToTest.probeDataSources();
+        assertThat(dataSource.isAvailable(), is(false));
+    }
+
+    @Test
+    public void testEjectedDataSourceIsReadmittedAfterConsecutiveSuccessfulProbes() throws Exception {
+        expectFailedProbes(DataSourceHealthMonitor.DEFAULT_FAILURES_TO_EJECT);
+        for (int i = 0; i < DataSourceHealthMonitor.DEFAULT_FAILURES_TO_EJECT; i++) {
+            objToTest.probeDataSources();
+        }
+        assertThat(dataSource.isAvailable(), is(false));
+
+        expectSuccessfulProbes(DataSourceHealthMonitor.DEFAULT_SUCCESSES_TO_READMIT);
+        for (int i = 1; i < DataSourceHealthMonitor.DEFAULT_SUCCESSES_TO_READMIT; i++) {
+            objToTest.probeDataSources();
+            assertThat(dataSource.isAvailable(), is(false));
+        }
+        objToTest.probeDataSources();
+        assertThat(dataSource.isAvailable(), is(true));
+    }
+
+    @Test
+    public void testReadmittedDataSourceIsWarmingUpAsSoonAsItIsReadmitted() throws Exception {
+        expectFailedProbes(DataSourceHealthMonitor.DEFAULT_FAILURES_TO_EJECT);
+        for (int i = 0; i < DataSourceHealthMonitor.DEFAULT_FAILURES_TO_EJECT; i++) {
+            objToTest.probeDataSources();
+        }
+        final List<Runnable> warmUps = new ArrayList<Runnable>();
+        objToTest.setWarmUpExecutor(new SameThreadExecutorService() {
+            @Override
+            public void execute(final Runnable command) {
+                // hold back the warm up itself, but run the connection openers it submits
+                if (warmUps.isEmpty()) {
+                    warmUps.add(command);
+                } else {
+                    command.run();
+                }
+            }
+        });
+        objToTest.setEniqEventsProperties(new Properties());
+
+        // default share of 0.25 of a pool size of 10
+        expectSuccessfulProbes(DataSourceHealthMonitor.DEFAULT_SUCCESSES_TO_READMIT + 3);
+        for (int i = 0; i < DataSourceHealthMonitor.DEFAULT_SUCCESSES_TO_READMIT; i++) {
+            objToTest.probeDataSources();
+        }
+        assertThat(dataSource.getHealth().isHealthy(), is(true));
+        assertThat(dataSource.isWarmingUp(), is(true));
+        assertThat(dataSource.isAvailable(), is(false));
+
+        warmUps.get(0).run();
+        assertThat(dataSource.isAvailable(), is(true));
+    }
+
+    @Test
+    public void testSettingsArePickedUpFromThePropertiesTheDataSourcesArePublishedWith() throws Exception {
+        final Properties reloadedProperties = createPropertiesWithoutWarmUp();
+        reloadedProperties.put(DataSourceHealthMonitor.FAILURES_TO_EJECT_PROPERTY_NAME, "1");
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        dataSources.add(dataSource);
+        objToTest.monitor(DataSourceMBeans.QUERY_GROUP, dataSources, reloadedProperties);
+
+        expectFailedProbes(1);
+        objToTest.probeDataSources();
+        assertThat(dataSource.isAvailable(), is(false));
+    }
+
+    @Test
+    public void testCSVDataSourcesAreMonitoredAlongsideTheQueryDataSources() throws Exception {
+        final EniqDataSourceImpl csvDataSource = new EniqDataSourceImpl(mockedDataSource, "eniqCSVPool", 10);
+        final List<EniqDataSource> csvDataSources = new ArrayList<EniqDataSource>();
+        csvDataSources.add(csvDataSource);
+        objToTest.monitor(DataSourceMBeans.CSV_GROUP, csvDataSources, createPropertiesWithoutWarmUp());
+
+        expectFailedProbes(2 * DataSourceHealthMonitor.DEFAULT_FAILURES_TO_EJECT);
+        for (int i = 0; i < DataSourceHealthMonitor.DEFAULT_FAILURES_TO_EJECT; i++) {
+            objToTest.probeDataSources();
+        }
+        assertThat(dataSource.isAvailable(), is(false));
+        assertThat(csvDataSource.isAvailable(), is(false));
+    }
+
+    @Test
+    public void testProbeConnectionsAreNotCountedAsLeases() throws Exception {
+        expectSuccessfulProbes(1);
+        objToTest.probeDataSources();
+        assertThat(dataSource.getLeasedConnectionCount(), is(0));
+        assertThat(dataSource.isAvailable(), is(true));
+    }
+
+    @Test
+    public void testLeakScanTimerDoesNotProbeTheDataSources() throws Exception {
+        final Timer mockedTimer = mockery.mock(Timer.class);
+        mockery.checking(new Expectations() {
+            {
+                allowing(mockedTimer).getInfo();
+                will(returnValue(DataSourceHealthMonitor.LEAK_SCAN_TIMER));
+            }
+        });
+        objToTest.timeout(mockedTimer);
+        assertThat(dataSource.isAvailable(), is(true));
+    }
+
+    @Test
+    public void testNewDataSourceIsNotAvailableUntilWarmedUp() throws Exception {
+        final EniqDataSourceImpl newDataSource = new EniqDataSourceImpl(mockedDataSource, "newPool", 8);
+        final List<Runnable> warmUps = new ArrayList<Runnable>();
+        objToTest.setWarmUpExecutor(new SameThreadExecutorService() {
+            @Override
+            public void execute(final Runnable command) {
+                // hold back the warm up itself, but run the connection openers it submits
+                if (warmUps.isEmpty()) {
+                    warmUps.add(command);
+                } else {
+                    command.run();
+                }
+            }
+        });
+        // default share of 0.25 of a pool size of 8
+        expectSuccessfulProbes(2);
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        dataSources.add(dataSource);
+        dataSources.add(newDataSource);
+        objToTest.monitor(DataSourceMBeans.QUERY_GROUP, dataSources, new Properties());
+
+        assertThat(warmUps.size(), is(1));
+        assertThat(newDataSource.isAvailable(), is(false));
+        assertThat(dataSource.isAvailable(), is(true));
+
+        warmUps.get(0).run();
+        assertThat(newDataSource.isAvailable(), is(true));
+        assertThat(newDataSource.isWarmingUp(), is(false));
+    }
+
+    @Test
+    public void testWarmUpHoldsConnectionsOpenInParallel() throws Exception {
+        final int poolSize = 4;
+        final CountDownLatch allConnectionsOpen = new CountDownLatch(poolSize);
+        final AtomicInteger connectionsClosed = new AtomicInteger(0);
+        // jmock isn't thread safe, so the connections are stubbed
+        final EniqDataSourceImpl newDataSource = new EniqDataSourceImpl(mockedDataSource, "newPool", poolSize) {
+            @Override
+            Connection openValidatedConnection(final String validationQuery, final int timeoutSeconds) {
+                allConnectionsOpen.countDown();
+                try {
+                    // only returns once every opener has a connection open at the same time
+                    allConnectionsOpen.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return createConnectionCountingCloses(connectionsClosed);
+            }
+        };
+        assertThat(newDataSource.startWarmUp(), is(true));
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            new DataSourceWarmUp(newDataSource, poolSize, poolSize, DataSourceHealthMonitor.DEFAULT_HEALTH_CHECK_QUERY,
+                    DataSourceHealthMonitor.DEFAULT_HEALTH_CHECK_TIMEOUT_SECONDS, 10, executor).run();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(allConnectionsOpen.getCount(), is(0L));
+        assertThat(connectionsClosed.get(), is(poolSize));
+        assertThat(newDataSource.isAvailable(), is(true));
+        assertThat(newDataSource.getLeasedConnectionCount(), is(0));
+    }
+
+    @Test
+    public void testWarmUpFinishesEarlyIfConnectionCannotBeOpened() throws Exception {
+        final EniqDataSourceImpl newDataSource = new EniqDataSourceImpl(mockedDataSource, "newPool", 8);
+        expectFailedProbes(1);
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        dataSources.add(dataSource);
+        dataSources.add(newDataSource);
+        objToTest.monitor(DataSourceMBeans.QUERY_GROUP, dataSources, new Properties());
+        assertThat(newDataSource.isWarmingUp(), is(false));
+        assertThat(newDataSource.isAvailable(), is(true));
+    }
+
+    private static Properties createPropertiesWithoutWarmUp() {
+        final Properties eniqEventsProperties = new Properties();
+        eniqEventsProperties.put(DataSourceHealthMonitor.WARM_UP_SHARE_PROPERTY_NAME, "0");
+        return eniqEventsProperties;
+    }
+
+    private Connection createConnectionCountingCloses(final AtomicInteger connectionsClosed) {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("close".equals(method.getName())) {
+                            connectionsClosed.incrementAndGet();
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private void expectFailedProbes(final int numberOfProbes) throws SQLException {
+        mockery.checking(new Expectations() {
+            {
+                exactly(numberOfProbes).of(mockedDataSource).getConnection();
+                will(throwException(new SQLException("IQ reader down")));
+            }
+        });
+    }
+
+    private void expectSuccessfulProbes(final int numberOfProbes) throws SQLException {
+        final Connection mockedConnection = mockery.mock(Connection.class);
+        final Statement mockedStatement = mockery.mock(Statement.class);
+        mockery.checking(new Expectations() {
+            {
+                exactly(numberOfProbes).of(mockedDataSource).getConnection();
+                will(returnValue(mockedConnection));
+                exactly(numberOfProbes).of(mockedConnection).createStatement();
+                will(returnValue(mockedStatement));
+                exactly(numberOfProbes).of(mockedStatement).setQueryTimeout(
+                        DataSourceHealthMonitor.DEFAULT_HEALTH_CHECK_TIMEOUT_SECONDS);
+                exactly(numberOfProbes).of(mockedStatement).execute(DataSourceHealthMonitor.DEFAULT_HEALTH_CHECK_QUERY);
+                will(returnValue(true));
+                exactly(numberOfProbes).of(mockedStatement).close();
+                exactly(numberOfProbes).of(mockedConnection).close();
+            }
+        });
+    }
+}
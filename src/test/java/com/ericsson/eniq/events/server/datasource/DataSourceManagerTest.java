@@ -8,19 +8,44 @@ package com.ericsson.eniq.events.server.datasource;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 
 import org.jmock.Expectations;
+import org.jmock.lib.concurrent.Synchroniser;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.ericsson.eniq.events.server.common.ApplicationConfigConstants;
+import com.ericsson.eniq.events.server.datasource.loadbalancing.KeyAffinitySelector;
 import com.ericsson.eniq.events.server.datasource.loadbalancing.LoadBalancingPolicy;
 import com.ericsson.eniq.events.server.datasource.loadbalancing.RoundRobinLoadBalancingPolicy;
 import com.ericsson.eniq.events.server.test.common.BaseJMockUnitTest;
@@ -37,6 +62,12 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
 
     private static final String DEFAULT_ENIQ_DATA_SOURCE_NAME = "dwhrep/jdbc/eniqPool";
 
+    private static final String SCATTER_GATHER_QUERY = "select count(*) from EVENT_E_SGEH_RAW";
+
+    private static final String PREPARED_QUERY = "select NO_OF_ERRORS from EVENT_E_SGEH_ERR_RAW where IMSI = ?";
+
+    private static final String STUB_FAILURE = "stub data source failed";
+
     private DataSourceManager objToTest;
 
     InitialContext mockedInitialContext;
@@ -47,11 +78,14 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
 
     @Before
     public void setup() {
+        // the data sources are called on the acquisition and scatter-gather threads as well as the test thread
+        mockery.setThreadingPolicy(new Synchroniser());
         mockedInitialContext = mockery.mock(InitialContext.class);
         roundRobinLoadBalancingPolicy = new RoundRobinLoadBalancingPolicy();
         objToTest = new StubbedDataSourceManager();
         mockedAMXPropertyReader = mockery.mock(AMXPropertyReader.class);
         objToTest.setAmxPropertyReader(mockedAMXPropertyReader);
+        objToTest.setDataSourceHealthMonitor(createHealthMonitorWithoutWarmUp());
     }
 
     @Test
@@ -60,8 +94,8 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
         throwExceptionOnGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
         expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
         objToTest.setUpDataSources();
-        validateDataSourcesSetUpCorrectly(objToTest.availableDataSources, DEFAULT_ENIQ_DATA_SOURCE_NAME);
-        assertThat(Integer.toString(objToTest.availableDataSources.get(0).getWeight()),
+        validateDataSourcesSetUpCorrectly(objToTest.getTopology(), DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        assertThat(Integer.toString(objToTest.getTopology().get(0).getWeight()),
                 is(DataSourceManager.DEFAULT_DATA_SOURCE_WEIGHT));
     }
 
@@ -84,7 +118,7 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
         final DataSource defaultDataSource = expectLookupInJNDIForOneDataSourceAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
         expectLookupInJDNIForDataSourcesAndAllowGetConnection(extraJdbcResource1, extraJdbcResource2);
         objToTest.setUpDataSources();
-        assertThat(objToTest.availableDataSources.get(0).getConnection(), is(defaultDataSource.getConnection()));
+        assertThat(objToTest.getTopology().get(0).getConnection(), is(defaultDataSource.getConnection()));
     }
 
     private void expectGetAttributesOnAMXFor(final String... dataSources) throws CannotReadAMXPropertyException {
@@ -109,7 +143,7 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
         expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
         throwExceptionOnLookupInJNDIFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
         objToTest.setUpDataSources();
-        validateDataSourcesSetUpCorrectly(objToTest.availableDataSources, DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        validateDataSourcesSetUpCorrectly(objToTest.getTopology(), DEFAULT_ENIQ_DATA_SOURCE_NAME);
     }
 
     private void validateDataSourcesSetUpCorrectly(final List<EniqDataSource> availableDataSources,
@@ -139,7 +173,7 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
         expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
         throwExceptionOnLookupInJNDIFor(extraDataSource);
         objToTest.setUpDataSources();
-        validateDataSourcesSetUpCorrectly(objToTest.availableDataSources, DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        validateDataSourcesSetUpCorrectly(objToTest.getTopology(), DEFAULT_ENIQ_DATA_SOURCE_NAME);
     }
 
     private void throwExceptionOnLookupInJNDIFor(final String defaultEniqDataSource) throws NamingException {
@@ -158,7 +192,7 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
         expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
         expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
         objToTest.setUpDataSources();
-        validateDataSourcesSetUpCorrectly(objToTest.availableDataSources, DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        validateDataSourcesSetUpCorrectly(objToTest.getTopology(), DEFAULT_ENIQ_DATA_SOURCE_NAME);
     }
 
     @Test
@@ -169,7 +203,7 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
         expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
         expectLookupInJDNIForDataSourcesAndAllowGetConnection(extraPoolName);
         objToTest.setUpDataSources();
-        validateDataSourcesSetUpCorrectly(objToTest.availableDataSources, DEFAULT_ENIQ_DATA_SOURCE_NAME, extraPoolName);
+        validateDataSourcesSetUpCorrectly(objToTest.getTopology(), DEFAULT_ENIQ_DATA_SOURCE_NAME, extraPoolName);
     }
 
     private void expectLookupInJDNIForDataSourcesAndAllowGetConnection(final String... poolNames)
@@ -203,6 +237,854 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
         assertNotNull(connection);
     }
 
+    @Test
+    public void testGetConnectionAsyncCompletesWithConnection() throws Exception {
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties();
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        final CompletableFuture<Connection> connection = objToTest.getConnectionAsync(roundRobinLoadBalancingPolicy);
+        assertThat(connection.isDone(), is(true));
+        assertThat(connection.get().toString(), is(CONNECTION_PREFIX + DEFAULT_ENIQ_DATA_SOURCE_NAME));
+    }
+
+    @Test
+    public void testGetConnectionAsyncCompletesExceptionallyWhenDefaultDataSourceDoesntExist() throws Exception {
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties();
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        throwExceptionOnLookupInJNDIFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        final CompletableFuture<Connection> connection = objToTest.getConnectionAsync(roundRobinLoadBalancingPolicy);
+        try {
+            connection.get();
+            fail("Expected the connection request to fail");
+        } catch (final ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(DataSourceConfigurationException.class)));
+        }
+    }
+
+    @Test
+    public void testGetConnectionAsyncRejectsRequestsWhenTooManyAreWaiting() throws Exception {
+        final DataSourceManager dataSourceManager = new StubbedDataSourceManager() {
+            @Override
+            ExecutorService createAcquisitionExecutor(final int threads, final int queueSize) {
+                return new SameThreadExecutorService() {
+                    @Override
+                    public void execute(final Runnable command) {
+                        throw new RejectedExecutionException("queue full");
+                    }
+                };
+            }
+        };
+        final CompletableFuture<Connection> connection = dataSourceManager
+                .getConnectionAsync(roundRobinLoadBalancingPolicy);
+        assertThat(connection.isCompletedExceptionally(), is(true));
+        try {
+            connection.get();
+            fail("Expected the connection request to be rejected");
+        } catch (final ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(SQLException.class)));
+        }
+    }
+
+    @Test
+    public void testScatterGatherRunsQueryOnEveryDataSourceAndReturnsPartialResults() throws Exception {
+        final String resource1 = "eniqPool1";
+        final String resource2 = "eniqPool2";
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties(resource1, resource2);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1, resource2);
+        expectLookupInJNDIAndQuery(DEFAULT_ENIQ_DATA_SOURCE_NAME, 2);
+        expectLookupInJNDIAndQuery(resource1, 3);
+        final SQLException nodeDown = new SQLException("IQ reader down");
+        expectLookupInJNDIAndFailToGetConnection(resource2, nodeDown);
+
+        final ScatterGatherResult<Integer> result = objToTest.scatterGather(SCATTER_GATHER_QUERY, new RowCounter());
+        assertThat(result.isComplete(), is(false));
+        assertThat(new ArrayList<String>(result.getResults().keySet()), is(Arrays.asList(DEFAULT_ENIQ_DATA_SOURCE_NAME,
+                resource1)));
+        assertThat(result.getResults().get(DEFAULT_ENIQ_DATA_SOURCE_NAME), is(2));
+        assertThat(result.getResults().get(resource1), is(3));
+        assertThat(result.getFailures().get(resource2), is((Exception) nodeDown));
+    }
+
+    @Test
+    public void testScatterGatherRunsQueryOnChosenDataSourcesOnly() throws Exception {
+        final String resource1 = "eniqPool1";
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties(resource1);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        expectLookupInJNDIAndQuery(resource1, 1);
+
+        final ScatterGatherResult<Integer> result = objToTest.scatterGather(SCATTER_GATHER_QUERY, new RowCounter(),
+                Arrays.asList(resource1, "unknownPool"));
+        assertThat(result.getResults().keySet(), is(Collections.singleton(resource1)));
+        assertThat(result.getFailures().keySet(), is(Collections.singleton("unknownPool")));
+        assertThat(result.getFailures().get("unknownPool"), is(instanceOf(DataSourceConfigurationException.class)));
+    }
+
+    @Test
+    public void testRepeatedQueryIsServedFromTheResultCacheUnlessBypassed() throws Exception {
+        final Properties eniqEventsProperties = createEniqEventsProperties();
+        eniqEventsProperties.put(QueryResultCache.MAXIMUM_BYTES_PROPERTY_NAME, "1000000");
+        objToTest.setEniqEventsProperties(eniqEventsProperties);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        final Connection mockedConnection = expectLookupInJNDIAndGetConnections(DEFAULT_ENIQ_DATA_SOURCE_NAME, 2);
+        expectPreparedQuery(mockedConnection, "1");
+        expectPreparedQuery(mockedConnection, "2");
+
+        assertThat(objToTest.query(roundRobinLoadBalancingPolicy, QueryClass.KPI, PREPARED_QUERY, new RowCounter(),
+                true, 460000123456789L), is(3));
+        assertThat(objToTest.query(roundRobinLoadBalancingPolicy, QueryClass.KPI, PREPARED_QUERY, new RowCounter(),
+                true, 460000123456789L), is(3));
+        assertThat(objToTest.query(roundRobinLoadBalancingPolicy, QueryClass.KPI, PREPARED_QUERY, new RowCounter(),
+                false, 460000123456789L), is(3));
+    }
+
+    @Test
+    public void testSharedQueryIsReadStraightFromIQWhenTheCacheIsOffAndNobodyJoinsIt() throws Exception {
+        objToTest.setEniqEventsProperties(createEniqEventsProperties());
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        final Connection mockedConnection = expectLookupInJNDIAndGetConnections(DEFAULT_ENIQ_DATA_SOURCE_NAME, 2);
+        expectPreparedQuery(mockedConnection, "1");
+        expectPreparedQuery(mockedConnection, "2");
+
+        for (int i = 0; i < 2; i++) {
+            assertThat(objToTest.query(roundRobinLoadBalancingPolicy, QueryClass.KPI, PREPARED_QUERY, new RowCounter(),
+                    true, 460000123456789L), is(3));
+        }
+    }
+
+    @Test
+    public void testEachScatterGatherQueryHoldsABulkheadPermitWhileItRuns() throws Exception {
+        final Properties eniqEventsProperties = createEniqEventsProperties();
+        eniqEventsProperties.put(QueryClass.KPI.getLimitPropertyName(), "1");
+        objToTest.setEniqEventsProperties(eniqEventsProperties);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        expectLookupInJNDIAndQuery(DEFAULT_ENIQ_DATA_SOURCE_NAME, 2);
+
+        final ScatterGatherResult<Integer> result = objToTest.scatterGather(SCATTER_GATHER_QUERY,
+                new ResultSetExtractor<Integer>() {
+                    @Override
+                    public Integer extractData(final ResultSet resultSet) throws SQLException {
+                        try {
+                            objToTest.getConnection(roundRobinLoadBalancingPolicy, QueryClass.KPI);
+                            fail("Expected the KPI limit to be reached");
+                        } catch (final DataSourceConfigurationException e) {
+                            fail(e.getMessage());
+                        } catch (final SQLException e) {
+                            assertThat(e.getMessage(), containsString("Too many KPI queries"));
+                        }
+                        return new RowCounter().extractData(resultSet);
+                    }
+                }, null, QueryClass.KPI);
+        assertThat(result.getResults().get(DEFAULT_ENIQ_DATA_SOURCE_NAME), is(2));
+        assertThat(result.isComplete(), is(true));
+    }
+
+    private Connection expectLookupInJNDIAndGetConnections(final String poolName, final int numberOfConnections)
+            throws Exception {
+        final DataSource mockedDataSource = mockery.mock(DataSource.class, poolName);
+        final Connection mockedConnection = mockery.mock(Connection.class, CONNECTION_PREFIX + poolName);
+        mockery.checking(new Expectations() {
+            {
+                one(mockedInitialContext).lookup(poolName);
+                will(returnValue(mockedDataSource));
+                exactly(numberOfConnections).of(mockedDataSource).getConnection();
+                will(returnValue(mockedConnection));
+                exactly(numberOfConnections).of(mockedConnection).close();
+            }
+        });
+        return mockedConnection;
+    }
+
+    /**
+     * expect one run of PREPARED_QUERY, returning three rows of one integer column - a shared run has a timeout
+     */
+    private void expectPreparedQuery(final Connection mockedConnection, final String suffix) throws Exception {
+        final PreparedStatement mockedStatement = mockery.mock(PreparedStatement.class, "statement" + suffix);
+        final ResultSet mockedResultSet = mockery.mock(ResultSet.class, "result set" + suffix);
+        final ResultSetMetaData mockedMetaData = mockery.mock(ResultSetMetaData.class, "meta data" + suffix);
+        mockery.checking(new Expectations() {
+            {
+                one(mockedConnection).prepareStatement(PREPARED_QUERY);
+                will(returnValue(mockedStatement));
+                allowing(mockedStatement).setQueryTimeout(DataSourceManager.DEFAULT_SHARED_QUERY_TIMEOUT_SECONDS);
+                one(mockedStatement).setObject(1, 460000123456789L);
+                one(mockedStatement).executeQuery();
+                will(returnValue(mockedResultSet));
+                allowing(mockedResultSet).getMetaData();
+                will(returnValue(mockedMetaData));
+                allowing(mockedMetaData).getColumnCount();
+                will(returnValue(1));
+                allowing(mockedMetaData).getColumnLabel(1);
+                will(returnValue("NO_OF_ERRORS"));
+                allowing(mockedMetaData).getColumnType(1);
+                will(returnValue(Types.INTEGER));
+                allowing(mockedResultSet).getInt(1);
+                will(returnValue(7));
+                allowing(mockedResultSet).wasNull();
+                will(returnValue(false));
+                exactly(3).of(mockedResultSet).next();
+                will(returnValue(true));
+                one(mockedResultSet).next();
+                will(returnValue(false));
+                one(mockedResultSet).close();
+                one(mockedStatement).close();
+            }
+        });
+    }
+
+    private void expectLookupInJNDIAndQuery(final String poolName, final int numberOfRows) throws Exception {
+        final DataSource mockedDataSource = mockery.mock(DataSource.class, poolName);
+        final Connection mockedConnection = mockery.mock(Connection.class, CONNECTION_PREFIX + poolName);
+        final Statement mockedStatement = mockery.mock(Statement.class, "statement for " + poolName);
+        final ResultSet mockedResultSet = mockery.mock(ResultSet.class, "result set for " + poolName);
+        mockery.checking(new Expectations() {
+            {
+                one(mockedInitialContext).lookup(poolName);
+                will(returnValue(mockedDataSource));
+                one(mockedDataSource).getConnection();
+                will(returnValue(mockedConnection));
+                one(mockedConnection).createStatement();
+                will(returnValue(mockedStatement));
+                one(mockedStatement).setQueryTimeout(DataSourceManager.DEFAULT_SCATTER_GATHER_TIMEOUT_SECONDS);
+                one(mockedStatement).executeQuery(SCATTER_GATHER_QUERY);
+                will(returnValue(mockedResultSet));
+                exactly(numberOfRows).of(mockedResultSet).next();
+                will(returnValue(true));
+                one(mockedResultSet).next();
+                will(returnValue(false));
+                one(mockedResultSet).close();
+                one(mockedStatement).close();
+                one(mockedConnection).close();
+            }
+        });
+    }
+
+    private void expectLookupInJNDIAndFailToGetConnection(final String poolName, final SQLException exception)
+            throws Exception {
+        final DataSource mockedDataSource = mockery.mock(DataSource.class, poolName);
+        mockery.checking(new Expectations() {
+            {
+                one(mockedInitialContext).lookup(poolName);
+                will(returnValue(mockedDataSource));
+                one(mockedDataSource).getConnection();
+                will(throwException(exception));
+            }
+        });
+    }
+
+    /**
+     * counts the rows in the result set
+     */
+    private static class RowCounter implements ResultSetExtractor<Integer> {
+
+        @Override
+        public Integer extractData(final ResultSet resultSet) throws SQLException {
+            int rows = 0;
+            while (resultSet.next()) {
+                rows++;
+            }
+            return rows;
+        }
+    }
+
+    @Test
+    public void testSlowConnectionRequestIsHedgedToAnotherDataSource() throws Exception {
+        final CountDownLatch slowDataSourceReleased = new CountDownLatch(1);
+        final AtomicInteger slowConnectionsClosed = new AtomicInteger(0);
+        final AtomicInteger fastConnectionsClosed = new AtomicInteger(0);
+        final DataSourceManager dataSourceManager = createDataSourceManagerForHedging(
+                createStubDataSource(slowDataSourceReleased, slowConnectionsClosed),
+                createStubDataSource(null, fastConnectionsClosed), "1");
+        try {
+            final EniqDataSourceImpl slowDataSource = (EniqDataSourceImpl) dataSourceManager.getTopology().get(0);
+            slowDataSource.getMetrics().recordAcquire(TimeUnit.MILLISECONDS.toNanos(1));
+
+            final Connection connection = dataSourceManager.getConnection(new FirstDataSourcePolicy());
+            connection.close();
+            assertThat(fastConnectionsClosed.get(), is(1));
+            assertThat(Thread.currentThread().isInterrupted(), is(false));
+
+            // the slow data source's connection is closed when it arrives, and doesn't count against it
+            slowDataSourceReleased.countDown();
+            awaitConnectionsClosed(slowConnectionsClosed, 1, slowDataSource);
+            assertThat(slowDataSource.getMetricsSnapshot().getAcquireFailureCount(), is(0L));
+        } finally {
+            slowDataSourceReleased.countDown();
+            dataSourceManager.shutDown();
+        }
+    }
+
+    @Test
+    public void testHedgedRequestGivesUpAtTheHedgeTimeout() throws Exception {
+        final CountDownLatch dataSourcesReleased = new CountDownLatch(1);
+        final AtomicInteger connectionsClosed = new AtomicInteger(0);
+        final Properties eniqEventsProperties = createEniqEventsPropertiesForHedging("1");
+        eniqEventsProperties.put(DataSourceManager.HEDGE_TIMEOUT_SECONDS_PROPERTY_NAME, "1");
+        eniqEventsProperties.put(RetryBudget.ATTEMPTS_PROPERTY_NAME, "0");
+        final DataSourceManager dataSourceManager = createDataSourceManagerForHedging(createStubDataSource(
+                dataSourcesReleased, connectionsClosed), createStubDataSource(dataSourcesReleased, connectionsClosed),
+                eniqEventsProperties);
+        try {
+            final EniqDataSourceImpl firstDataSource = (EniqDataSourceImpl) dataSourceManager.getTopology().get(0);
+            firstDataSource.getMetrics().recordAcquire(TimeUnit.MILLISECONDS.toNanos(1));
+            try {
+                dataSourceManager.getConnection(new FirstDataSourcePolicy());
+                fail("Expected the hedged request to time out");
+            } catch (final SQLTimeoutException e) {
+                assertThat(e.getMessage(), containsString("Timed out after 1 seconds"));
+            }
+
+            // both connections arrive after the caller has given up, and are closed
+            dataSourcesReleased.countDown();
+            awaitConnectionsClosed(connectionsClosed, 2, firstDataSource);
+            assertThat(((EniqDataSourceImpl) dataSourceManager.getTopology().get(1)).getLeasedConnectionCount(),
+                    is(0));
+        } finally {
+            dataSourcesReleased.countDown();
+            dataSourceManager.shutDown();
+        }
+    }
+
+    @Test
+    public void testDataSourceHedgedToIsNotRetriedWhenTheHedgedRequestFails() throws Exception {
+        final CountDownLatch hedgeFailed = new CountDownLatch(1);
+        final AtomicInteger firstAttempts = new AtomicInteger(0);
+        final AtomicInteger hedgeAttempts = new AtomicInteger(0);
+        final DataSourceManager dataSourceManager = createDataSourceManagerForHedging(
+                createFailingStubDataSource(hedgeFailed, null, firstAttempts),
+                createFailingStubDataSource(null, hedgeFailed, hedgeAttempts), "1");
+        try {
+            final EniqDataSourceImpl firstDataSource = (EniqDataSourceImpl) dataSourceManager.getTopology().get(0);
+            firstDataSource.getMetrics().recordAcquire(TimeUnit.MILLISECONDS.toNanos(1));
+            try {
+                dataSourceManager.getConnection(new FirstDataSourcePolicy());
+                fail("Expected the hedged request to fail");
+            } catch (final SQLException e) {
+                assertThat(e.getMessage(), is(STUB_FAILURE));
+            }
+            assertThat(firstAttempts.get(), is(1));
+            assertThat(hedgeAttempts.get(), is(1));
+        } finally {
+            hedgeFailed.countDown();
+            dataSourceManager.shutDown();
+        }
+    }
+
+    @Test
+    public void testConnectionRequestIsNotHedgedUntilEnoughAcquireTimesAreRecorded() throws Exception {
+        final AtomicInteger connectionsClosed = new AtomicInteger(0);
+        final DataSourceManager dataSourceManager = createDataSourceManagerForHedging(createStubDataSource(null,
+                connectionsClosed), createStubDataSource(null, connectionsClosed), "2");
+        try {
+            final EniqDataSourceImpl firstDataSource = (EniqDataSourceImpl) dataSourceManager.getTopology().get(0);
+            firstDataSource.getMetrics().recordAcquire(0);
+            dataSourceManager.getConnection(new FirstDataSourcePolicy()).close();
+            assertThat(firstDataSource.getMetricsSnapshot().getSelectionCounts().get(FirstDataSourcePolicy.NAME),
+                    is(1L));
+            assertThat(dataSourceManager.getTopology().get(1).isAvailable(), is(true));
+            assertThat(((EniqDataSourceImpl) dataSourceManager.getTopology().get(1)).getMetricsSnapshot()
+                    .getSelectionCounts().isEmpty(), is(true));
+        } finally {
+            dataSourceManager.shutDown();
+        }
+    }
+
+    private static void awaitConnectionsClosed(final AtomicInteger connectionsClosed, final int expectedCloses,
+            final EniqDataSourceImpl dataSource) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((connectionsClosed.get() < expectedCloses || dataSource.getLeasedConnectionCount() > 0)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(connectionsClosed.get(), is(expectedCloses));
+        assertThat(dataSource.getLeasedConnectionCount(), is(0));
+    }
+
+    private DataSourceManager createDataSourceManagerForHedging(final DataSource firstDataSource,
+            final DataSource secondDataSource, final String hedgeMinimumSamples) {
+        return createDataSourceManagerForHedging(firstDataSource, secondDataSource,
+                createEniqEventsPropertiesForHedging(hedgeMinimumSamples));
+    }
+
+    /**
+     * jmock isn't thread safe, so the data sources for the hedging tests are stubbed
+     */
+    private DataSourceManager createDataSourceManagerForHedging(final DataSource firstDataSource,
+            final DataSource secondDataSource, final Properties eniqEventsProperties) {
+        final DataSourceManager dataSourceManager = new DataSourceManager() {
+            @Override
+            InitialContext createInitialContext() throws NamingException {
+                return new InitialContext(true) {
+                    @Override
+                    public Object lookup(final String name) {
+                        return DEFAULT_ENIQ_DATA_SOURCE_NAME.equals(name) ? firstDataSource : secondDataSource;
+                    }
+                };
+            }
+        };
+        dataSourceManager.setAmxPropertyReader(new AMXPropertyReader() {
+            @Override
+            public String getAttribute(final String type, final String name, final String attribute) {
+                return "3";
+            }
+        });
+        dataSourceManager.setDataSourceHealthMonitor(createHealthMonitorWithoutWarmUp());
+        dataSourceManager.setEniqEventsProperties(eniqEventsProperties);
+        dataSourceManager.discoverDataSourcesAtStartup();
+        return dataSourceManager;
+    }
+
+    private Properties createEniqEventsPropertiesForHedging(final String hedgeMinimumSamples) {
+        final Properties eniqEventsProperties = createEniqEventsProperties("eniqPool1");
+        eniqEventsProperties.put(DataSourceManager.HEDGE_PERCENTILE_PROPERTY_NAME, "50");
+        eniqEventsProperties.put(DataSourceManager.HEDGE_MINIMUM_SAMPLES_PROPERTY_NAME, hedgeMinimumSamples);
+        return eniqEventsProperties;
+    }
+
+    /**
+     * @param released if not null, getConnection() waits for this latch
+     * @param connectionsClosed counts the connections closed
+     */
+    private static DataSource createStubDataSource(final CountDownLatch released,
+            final AtomicInteger connectionsClosed) {
+        final Connection connection = (Connection) Proxy.newProxyInstance(DataSourceManagerTest.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("close".equals(method.getName())) {
+                            connectionsClosed.incrementAndGet();
+                        }
+                        return "toString".equals(method.getName()) ? "stub connection" : null;
+                    }
+                });
+        return (DataSource) Proxy.newProxyInstance(DataSourceManagerTest.class.getClassLoader(),
+                new Class<?>[] { DataSource.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args)
+                            throws SQLException {
+                        if ("getConnection".equals(method.getName())) {
+                            if (released != null) {
+                                awaitRelease(released);
+                            }
+                            return connection;
+                        }
+                        return "toString".equals(method.getName()) ? "stub data source" : null;
+                    }
+                });
+    }
+
+    /**
+     * @param released if not null, getConnection() waits for this latch before failing
+     * @param failed if not null, counted down as getConnection() fails
+     * @param attempts counts the calls to getConnection()
+     */
+    private static DataSource createFailingStubDataSource(final CountDownLatch released, final CountDownLatch failed,
+            final AtomicInteger attempts) {
+        return (DataSource) Proxy.newProxyInstance(DataSourceManagerTest.class.getClassLoader(),
+                new Class<?>[] { DataSource.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args)
+                            throws SQLException {
+                        if ("getConnection".equals(method.getName())) {
+                            attempts.incrementAndGet();
+                            if (released != null) {
+                                awaitRelease(released);
+                            }
+                            if (failed != null) {
+                                failed.countDown();
+                            }
+                            throw new SQLException(STUB_FAILURE);
+                        }
+                        return "toString".equals(method.getName()) ? "stub data source" : null;
+                    }
+                });
+    }
+
+    private static void awaitRelease(final CountDownLatch released) throws SQLException {
+        try {
+            released.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+    }
+
+    /**
+     * always selects the first data source offered
+     */
+    private static class FirstDataSourcePolicy implements LoadBalancingPolicy {
+
+        static final String NAME = "FirstDataSourcePolicy";
+
+        @Override
+        public DataSource selectDataSource(final List<EniqDataSource> availableDataSources) {
+            return availableDataSources.get(0);
+        }
+    }
+
+    @Test
+    public void testCSVExportsOverTheirLimitAreRejectedWithoutStarvingInteractiveQueries() throws Exception {
+        final String csvResource = "eniqCSVPool";
+        final Properties eniqEventsProperties = createEniqEventsProperties();
+        eniqEventsProperties.put(DataSourceManager.EXPORT_CSV_ENIQ_DATA_SOURCE_PROPERTY_NAME, csvResource);
+        eniqEventsProperties.put(QueryClass.CSV_EXPORT.getLimitPropertyName(), "1");
+        objToTest.setEniqEventsProperties(eniqEventsProperties);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, csvResource);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, csvResource);
+        mockery.checking(new Expectations() {
+            {
+                allowing(any(Connection.class)).method("close");
+            }
+        });
+
+        final Connection csvConnection = objToTest.getCSVConnection(roundRobinLoadBalancingPolicy);
+        try {
+            objToTest.getCSVConnection(roundRobinLoadBalancingPolicy);
+            fail("Expected the second CSV export to be rejected");
+        } catch (final SQLException e) {
+            assertThat(e.getMessage(), containsString(QueryClass.CSV_EXPORT.toString()));
+        }
+        assertNotNull(objToTest.getConnection(roundRobinLoadBalancingPolicy));
+
+        csvConnection.close();
+        assertNotNull(objToTest.getCSVConnection(roundRobinLoadBalancingPolicy));
+    }
+
+    @Test
+    public void testCSVDataSourcesAreDiscoveredAtStartup() throws Exception {
+        final String csvResource1 = "eniqCSVPool1";
+        final String csvResource2 = "eniqCSVPool2";
+        final Properties eniqEventsProperties = createEniqEventsProperties();
+        eniqEventsProperties.put(DataSourceManager.EXPORT_CSV_ENIQ_DATA_SOURCE_PROPERTY_NAME, csvResource1 + ","
+                + csvResource2);
+        objToTest.setEniqEventsProperties(eniqEventsProperties);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, csvResource1, csvResource2);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, csvResource1,
+                csvResource2);
+
+        objToTest.discoverDataSourcesAtStartup();
+        validateDataSourcesSetUpCorrectly(objToTest.getTopology(), DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        validateDataSourcesSetUpCorrectly(objToTest.getCSVTopology(), csvResource1, csvResource2);
+    }
+
+    @Test
+    public void testCSVExportsAreNotSentToCSVDataSourcesEjectedByHealthMonitor() throws Exception {
+        final String csvResource1 = "eniqCSVPool1";
+        final String csvResource2 = "eniqCSVPool2";
+        final Properties eniqEventsProperties = createEniqEventsProperties();
+        eniqEventsProperties.put(DataSourceManager.EXPORT_CSV_ENIQ_DATA_SOURCE_PROPERTY_NAME, csvResource1 + ","
+                + csvResource2);
+        objToTest.setEniqEventsProperties(eniqEventsProperties);
+        objToTest.setCsvLoadBalancingPolicy(new FirstDataSourcePolicy());
+        expectGetAttributesOnAMXFor(csvResource1, csvResource2);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(csvResource1, csvResource2);
+
+        assertNotNull(objToTest.getCSVConnection());
+        final List<EniqDataSource> csvDataSources = objToTest.getCSVTopology();
+        assertThat(csvDataSources.get(0).getLeasedConnectionCount(), is(1));
+
+        ((EniqDataSourceImpl) csvDataSources.get(0)).getHealth().recordProbeFailure(1);
+        assertNotNull(objToTest.getCSVConnection());
+        assertThat(csvDataSources.get(0).getLeasedConnectionCount(), is(1));
+        assertThat(csvDataSources.get(1).getLeasedConnectionCount(), is(1));
+    }
+
+    @Test
+    public void testDataSourcesAreOnlySetUpOnceOverSeveralQueries() throws Exception {
+        final String resource1 = "eniqPool1";
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties(resource1);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        objToTest.getConnection(roundRobinLoadBalancingPolicy);
+        final DataSourceTopology topologyAfterFirstQuery = objToTest.getTopology();
+        objToTest.getConnection(roundRobinLoadBalancingPolicy);
+        objToTest.getConnection(roundRobinLoadBalancingPolicy);
+        assertThat(objToTest.getTopology(), is(sameInstance(topologyAfterFirstQuery)));
+        validateDataSourcesSetUpCorrectly(objToTest.getTopology(), DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+    }
+
+    @Test
+    public void testMetricsAreRecordedAndPublishedForEachDataSource() throws Exception {
+        final String resource1 = "eniqPool1";
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties(resource1);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        assertThat(objToTest.getMetricsSnapshots().isEmpty(), is(true));
+        for (int i = 0; i < 4; i++) {
+            objToTest.getConnection(roundRobinLoadBalancingPolicy);
+        }
+
+        final List<DataSourceMetricsSnapshot> snapshots = objToTest.getMetricsSnapshots();
+        assertThat(snapshots.size(), is(2));
+        long selections = 0;
+        for (final DataSourceMetricsSnapshot snapshot : snapshots) {
+            assertThat(snapshot.getSelectionCounts().get("RoundRobin"), is(2L));
+            assertThat(snapshot.getAcquireCount(), is(2L));
+            assertThat(snapshot.getLeasedConnectionCount(), is(2));
+            selections += snapshot.getSelectionCounts().get("RoundRobin");
+        }
+        assertThat(selections, is(4L));
+
+        final ObjectName name = DataSourceMBeans.getObjectName(DataSourceMBeans.QUERY_GROUP, resource1);
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        assertThat((Long) mBeanServer.getAttribute(name, "AcquireCount"), is(2L));
+        objToTest.shutDown();
+        assertThat(mBeanServer.isRegistered(name), is(false));
+    }
+
+    @Test
+    public void testKeyedConnectionsForTheSameKeyComeFromTheSameDataSource() throws Exception {
+        final String resource1 = "eniqPool1";
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties(resource1);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        final KeyAffinitySelector keyAffinitySelector = new KeyAffinitySelector();
+        for (int i = 0; i < 4; i++) {
+            objToTest.getConnection(keyAffinitySelector, "internet.apn");
+        }
+
+        final EniqDataSource expectedDataSource = (EniqDataSource) keyAffinitySelector.selectDataSource(
+                objToTest.getTopology(), "internet.apn");
+        for (final DataSourceMetricsSnapshot snapshot : objToTest.getMetricsSnapshots()) {
+            final Long selections = snapshot.getSelectionCounts().get(DataSourceManager.KEY_AFFINITY_POLICY_NAME);
+            if (snapshot.getPoolName().equals(expectedDataSource.getPoolName())) {
+                assertThat(selections, is(4L));
+            } else {
+                assertThat(selections, is(nullValue()));
+            }
+        }
+    }
+
+    @Test
+    public void testNoPolicyIsNeededWhenThereIsOnlyOneDataSource() throws Exception {
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties();
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        final Connection connection = objToTest.getConnection(null);
+        assertThat(connection.toString(), containsString(CONNECTION_PREFIX + DEFAULT_ENIQ_DATA_SOURCE_NAME));
+        assertThat(objToTest.getMetricsSnapshots().get(0).getSelectionCounts().get(DataSourceManager.NO_POLICY_NAME),
+                is(1L));
+    }
+
+    @Test
+    public void testDataSourcesAreDiscoveredAtStartup() throws Exception {
+        final String resource1 = "eniqPool1";
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties(resource1);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        objToTest.discoverDataSourcesAtStartup();
+        validateDataSourcesSetUpCorrectly(objToTest.getTopology(), DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        objToTest.getConnection(roundRobinLoadBalancingPolicy);
+    }
+
+    @Test
+    public void testDataSourcesAreLeftForTheFirstQueryIfAMXIsNotAvailableAtStartup() throws Exception {
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties();
+        throwExceptionOnGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        objToTest.discoverDataSourcesAtStartup();
+        assertThat(objToTest.getTopology(), is(nullValue()));
+    }
+
+    @Test
+    public void testSlowAdditionalDataSourceDoesNotHoldUpTheOthers() throws Exception {
+        final String fastResource = "eniqPool1";
+        final String slowResource = "eniqPool2";
+        final CountDownLatch slowLookupReleased = new CountDownLatch(1);
+        final DataSource defaultDataSource = mockery.mock(DataSource.class, DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        final DataSource fastDataSource = mockery.mock(DataSource.class, fastResource);
+        final DataSourceManager dataSourceManager = new DataSourceManager() {
+            @Override
+            InitialContext createInitialContext() throws NamingException {
+                return new InitialContext(true) {
+                    @Override
+                    public Object lookup(final String name) throws NamingException {
+                        if (slowResource.equals(name)) {
+                            try {
+                                slowLookupReleased.await();
+                            } catch (final InterruptedException e) {
+                                throw new NamingException("interrupted");
+                            }
+                        }
+                        return DEFAULT_ENIQ_DATA_SOURCE_NAME.equals(name) ? defaultDataSource : fastDataSource;
+                    }
+                };
+            }
+        };
+        dataSourceManager.setAmxPropertyReader(new AMXPropertyReader() {
+            @Override
+            public String getAttribute(final String type, final String name, final String attribute) {
+                return "3";
+            }
+        });
+        dataSourceManager.setDataSourceHealthMonitor(createHealthMonitorWithoutWarmUp());
+        final Properties eniqEventsProperties = new Properties();
+        eniqEventsProperties.put(DataSourceManager.DEFAULT_ENIQ_DATA_SOURCE_PROPERTY_NAME,
+                DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        eniqEventsProperties.put(DataSourceManager.ENIQ_EVENTS_ADDITIONAL_DATA_SOURCES_PROPERTY_NAME, slowResource
+                + DataSourceManager.DATA_SOURCES_LIST_DELIMITER + fastResource);
+        eniqEventsProperties.put(DataSourceManager.DISCOVERY_TIMEOUT_SECONDS_PROPERTY_NAME, "1");
+        dataSourceManager.setEniqEventsProperties(eniqEventsProperties);
+        try {
+            dataSourceManager.discoverDataSourcesAtStartup();
+        } finally {
+            slowLookupReleased.countDown();
+            dataSourceManager.shutDown();
+        }
+        final DataSourceTopology topology = dataSourceManager.getTopology();
+        assertThat(topology.size(), is(2));
+        assertThat(topology.get(0).getPoolName(), is(DEFAULT_ENIQ_DATA_SOURCE_NAME));
+        assertThat(topology.get(1).getPoolName(), is(fastResource));
+    }
+
+    @Test
+    public void testReloadCarriesOverUnchangedDataSourcesAndPicksUpNewOnes() throws Exception {
+        final String resource1 = "eniqPool1";
+        final String resource2 = "eniqPool2";
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties(resource1);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        objToTest.setUpDataSources();
+        final DataSourceTopology topologyBeforeReload = objToTest.getTopology();
+
+        expectLookupOfEniqEventsPropertiesInJNDI(createEniqEventsProperties(resource1, resource2));
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1, resource2);
+        expectLookupInJNDIOnReload(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1, resource2);
+        objToTest.reloadDataSources();
+
+        final DataSourceTopology topologyAfterReload = objToTest.getTopology();
+        assertThat(topologyAfterReload.size(), is(3));
+        assertThat(topologyAfterReload.get(0), is(sameInstance(topologyBeforeReload.get(0))));
+        assertThat(topologyAfterReload.get(1), is(sameInstance(topologyBeforeReload.get(1))));
+        assertThat(topologyAfterReload.get(2).getPoolName(), is(resource2));
+    }
+
+    @Test
+    public void testReloadPublishesTheReloadedPropertiesWithTheDataSources() throws Exception {
+        final Properties injectedProperties = createEniqEventsProperties();
+        objToTest.setEniqEventsProperties(injectedProperties);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        objToTest.setUpDataSources();
+        assertThat(objToTest.getTopology().getProperties(), is(sameInstance(injectedProperties)));
+
+        final Properties reloadedProperties = createEniqEventsProperties();
+        expectLookupOfEniqEventsPropertiesInJNDI(reloadedProperties);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        expectLookupInJNDIOnReload(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        objToTest.reloadDataSources();
+
+        assertThat(objToTest.getTopology().getProperties(), is(sameInstance(reloadedProperties)));
+    }
+
+    @Test
+    public void testReloadReplacesDataSourceWhosePoolHasBeenResized() throws Exception {
+        final String resource1 = "eniqPool1";
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties(resource1);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        objToTest.setUpDataSources();
+        final DataSourceTopology topologyBeforeReload = objToTest.getTopology();
+
+        expectLookupOfEniqEventsPropertiesInJNDI(createEniqEventsProperties(resource1));
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        mockery.checking(new Expectations() {
+            {
+                one(mockedAMXPropertyReader).getAttribute("jdbc-resource", resource1, "PoolName");
+                will(returnValue("resizedPool"));
+                one(mockedAMXPropertyReader).getAttribute("jdbc-connection-pool", "resizedPool", "MaxPoolSize");
+                will(returnValue("10"));
+            }
+        });
+        expectLookupInJNDIOnReload(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        objToTest.reloadDataSources();
+
+        final DataSourceTopology topologyAfterReload = objToTest.getTopology();
+        assertThat(topologyAfterReload.get(0), is(sameInstance(topologyBeforeReload.get(0))));
+        assertThat(topologyAfterReload.get(1), is(not(sameInstance(topologyBeforeReload.get(1)))));
+        assertThat(topologyAfterReload.get(1).getWeight(), is(10));
+    }
+
+    @Test
+    public void testFailedReloadLeavesCurrentDataSourcesInUse() throws Exception {
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties();
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        objToTest.setUpDataSources();
+        final DataSourceTopology topologyBeforeReload = objToTest.getTopology();
+
+        expectLookupOfEniqEventsPropertiesInJNDI(createEniqEventsProperties());
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        throwExceptionOnLookupInJNDIFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        try {
+            objToTest.reloadDataSources();
+            fail("Expected DataSourceConfigurationException");
+        } catch (final DataSourceConfigurationException e) {
+            assertThat(objToTest.getTopology(), is(sameInstance(topologyBeforeReload)));
+        }
+    }
+
+    @Test
+    public void testDataSourcesCanBeListedAndReloadedOverJMX() throws Exception {
+        setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties();
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+        objToTest.startUp();
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(DataSourceMBeans.DOMAIN + ":type=DataSourceManager");
+        try {
+            assertThat(Arrays.asList((String[]) mBeanServer.getAttribute(name, "DataSourceNames")),
+                    is(Arrays.asList(DEFAULT_ENIQ_DATA_SOURCE_NAME)));
+
+            expectLookupOfEniqEventsPropertiesInJNDI(createEniqEventsProperties());
+            expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+            expectLookupInJNDIOnReload(DEFAULT_ENIQ_DATA_SOURCE_NAME);
+            mBeanServer.invoke(name, "reloadDataSources", null, null);
+        } finally {
+            objToTest.shutDown();
+        }
+        assertThat(mBeanServer.isRegistered(name), is(false));
+    }
+
+    /**
+     * the health monitor isn't started in these tests, so there's nothing to warm the pools up on
+     */
+    private DataSourceHealthMonitor createHealthMonitorWithoutWarmUp() {
+        return new DataSourceHealthMonitor() {
+            @Override
+            public void monitor(final String group, final List<EniqDataSource> dataSources,
+                    final Properties properties) {
+                final Properties healthMonitorProperties = new Properties();
+                if (properties != null) {
+                    healthMonitorProperties.putAll(properties);
+                }
+                healthMonitorProperties.put(DataSourceHealthMonitor.WARM_UP_SHARE_PROPERTY_NAME, "0");
+                super.monitor(group, dataSources, healthMonitorProperties);
+            }
+        };
+    }
+
+    private void expectLookupOfEniqEventsPropertiesInJNDI(final Properties eniqEventsProperties)
+            throws NamingException {
+        mockery.checking(new Expectations() {
+            {
+                one(mockedInitialContext).lookup(ApplicationConfigConstants.ENIQ_EVENT_PROPERTIES);
+                will(returnValue(eniqEventsProperties));
+            }
+        });
+    }
+
+    private void expectLookupInJNDIOnReload(final String... poolNames) throws NamingException {
+        for (final String poolName : poolNames) {
+            final DataSource mockedDataSource = mockery.mock(DataSource.class, "reloaded " + poolName);
+            mockery.checking(new Expectations() {
+                {
+                    one(mockedInitialContext).lookup(poolName);
+                    will(returnValue(mockedDataSource));
+                }
+            });
+        }
+    }
+
     @Test
     public void testGetConnectionWhenTwoConnectionsExist() throws Exception {
         final String resource1 = "eniqPool1";
@@ -231,7 +1113,129 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
         assertNotNull(connection);
     }
 
+    @Test
+    public void testFailedConnectionRequestFailsOverToAnotherDataSource() throws Exception {
+        final String resource1 = "eniqPool1";
+        final Properties eniqEventsProperties = createEniqEventsProperties(resource1);
+        eniqEventsProperties.put(RetryBudget.BACKOFF_MILLIS_PROPERTY_NAME, "0");
+        objToTest.setEniqEventsProperties(eniqEventsProperties);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        expectLookupInJNDIAndFailToGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, new SQLException("pool timed out"));
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(resource1);
+
+        final Connection connection = objToTest.getConnection(new FirstDataSourcePolicy());
+        assertThat(connection.toString(), containsString(CONNECTION_PREFIX + resource1));
+    }
+
+    @Test
+    public void testFailedConnectionRequestIsNotRetriedWhenRetryingIsOff() throws Exception {
+        final String resource1 = "eniqPool1";
+        final Properties eniqEventsProperties = createEniqEventsProperties(resource1);
+        eniqEventsProperties.put(RetryBudget.ATTEMPTS_PROPERTY_NAME, "0");
+        objToTest.setEniqEventsProperties(eniqEventsProperties);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        final SQLException poolTimedOut = new SQLException("pool timed out");
+        expectLookupInJNDIAndFailToGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, poolTimedOut);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(resource1);
+        try {
+            objToTest.getConnection(new FirstDataSourcePolicy());
+            fail("Expected SQLException");
+        } catch (final SQLException e) {
+            assertThat(e, is(sameInstance(poolTimedOut)));
+        }
+    }
+
+    @Test
+    public void testRequestThatLosesTheCircuitBreakerTrialGoesStraightToAnotherDataSource() throws Exception {
+        final String resource1 = "eniqPool1";
+        final Properties eniqEventsProperties = createEniqEventsProperties(resource1);
+        eniqEventsProperties.put(RetryBudget.ATTEMPTS_PROPERTY_NAME, "0");
+        eniqEventsProperties.put(DataSourceManager.CIRCUIT_BREAKER_WINDOW_SIZE_PROPERTY_NAME, "1");
+        eniqEventsProperties.put(DataSourceManager.CIRCUIT_BREAKER_OPEN_MILLIS_PROPERTY_NAME, "0");
+        objToTest.setEniqEventsProperties(eniqEventsProperties);
+        expectGetAttributesOnAMXFor(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+        expectLookupInJDNIForDataSourcesAndAllowGetConnection(DEFAULT_ENIQ_DATA_SOURCE_NAME, resource1);
+
+        final Connection connection = objToTest.getConnection(new LoadBalancingPolicy() {
+            @Override
+            public DataSource selectDataSource(final List<EniqDataSource> availableDataSources) {
+                final EniqDataSource selected = availableDataSources.get(0);
+                if (selected.getPoolName().equals(DEFAULT_ENIQ_DATA_SOURCE_NAME)) {
+                    // another request trips the breaker and takes its trial between selection and the request
+                    final CircuitBreaker circuitBreaker = ((EniqDataSourceImpl) selected).getCircuitBreaker();
+                    circuitBreaker.onFailure(circuitBreaker.tryAcquirePermission());
+                    circuitBreaker.tryAcquirePermission();
+                }
+                return selected;
+            }
+        });
+        assertThat(connection.toString(), containsString(CONNECTION_PREFIX + resource1));
+    }
+
+    @Test
+    public void testDataSourcesEjectedByHealthMonitorAreNotOfferedForSelection() throws Exception {
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSourceImpl healthyDataSource = new EniqDataSourceImpl(null, "eniqPool1", 0);
+        dataSources.add(healthyDataSource);
+        final EniqDataSourceImpl ejectedDataSource = new EniqDataSourceImpl(null, "eniqPool2", 0);
+        ejectedDataSource.getHealth().recordProbeFailure(1);
+        dataSources.add(ejectedDataSource);
+        final EniqDataSourceImpl otherHealthyDataSource = new EniqDataSourceImpl(null, "eniqPool3", 0);
+        dataSources.add(otherHealthyDataSource);
+
+        final List<EniqDataSource> result = objToTest.getDataSourcesAvailableForSelection(dataSources);
+        assertThat(result, is(Arrays.asList((EniqDataSource) healthyDataSource, otherHealthyDataSource)));
+    }
+
+    @Test
+    public void testAllDataSourcesOfferedForSelectionWhenNoneAreHealthy() throws Exception {
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSourceImpl ejectedDataSource = new EniqDataSourceImpl(null, "eniqPool1", 0);
+        ejectedDataSource.getHealth().recordProbeFailure(1);
+        dataSources.add(ejectedDataSource);
+        assertThat(objToTest.getDataSourcesAvailableForSelection(dataSources), is(dataSources));
+    }
+
+    @Test
+    public void testDataSourcesBeingWarmedUpAreNotOfferedWhenNoneAreAvailable() throws Exception {
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSourceImpl ejectedDataSource = new EniqDataSourceImpl(null, "eniqPool1", 0);
+        ejectedDataSource.getHealth().recordProbeFailure(1);
+        dataSources.add(ejectedDataSource);
+        final EniqDataSourceImpl warmingDataSource = new EniqDataSourceImpl(null, "eniqPool2", 0);
+        warmingDataSource.startWarmUp();
+        dataSources.add(warmingDataSource);
+
+        assertThat(objToTest.getDataSourcesAvailableForSelection(dataSources),
+                is(Arrays.asList((EniqDataSource) ejectedDataSource)));
+        assertThat(objToTest.getDataSourcesAvailableForSelection(Arrays.asList((EniqDataSource) warmingDataSource))
+                .isEmpty(), is(true));
+    }
+
+    @Test
+    public void testDataSourcesAtTheirConcurrencyLimitAreNotOfferedWhileOthersHaveRoom() throws Exception {
+        final AdaptiveConcurrencyLimit fullLimit = new AdaptiveConcurrencyLimit(1, 1, 0.5, 2.0, 0);
+        assertThat(fullLimit.tryAcquire(), is(true));
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSourceImpl fullDataSource = new EniqDataSourceImpl(null, "eniqPool1", 0, new CircuitBreaker(),
+                fullLimit);
+        dataSources.add(fullDataSource);
+        final EniqDataSourceImpl dataSourceWithRoom = new EniqDataSourceImpl(null, "eniqPool2", 0,
+                new CircuitBreaker(), new AdaptiveConcurrencyLimit(1, 1, 0.5, 2.0, 0));
+        dataSources.add(dataSourceWithRoom);
+
+        assertThat(objToTest.getDataSourcesAvailableForSelection(dataSources),
+                is(Arrays.asList((EniqDataSource) dataSourceWithRoom)));
+        dataSourceWithRoom.getHealth().recordProbeFailure(1);
+        assertThat(objToTest.getDataSourcesAvailableForSelection(dataSources),
+                is(Arrays.asList((EniqDataSource) fullDataSource)));
+    }
+
     private void setUpTheJDBCResourcePropertiesInEniqEventsJNDIProperties(final String... jdbcResources) {
+        objToTest.setEniqEventsProperties(createEniqEventsProperties(jdbcResources));
+    }
+
+    private Properties createEniqEventsProperties(final String... jdbcResources) {
         final StringBuilder listOfJDBCResourcesSB = new StringBuilder();
         for (final String resource : jdbcResources) {
             listOfJDBCResourcesSB.append(resource);
@@ -249,7 +1253,7 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
         }
         eniqEventsProperties.put(DataSourceManager.DEFAULT_ENIQ_DATA_SOURCE_PROPERTY_NAME,
                 DEFAULT_ENIQ_DATA_SOURCE_NAME);
-        objToTest.setEniqEventsProperties(eniqEventsProperties);
+        return eniqEventsProperties;
     }
 
     class StubbedDataSourceManager extends DataSourceManager {
@@ -262,5 +1266,20 @@ public class DataSourceManagerTest extends BaseJMockUnitTest {
             return mockedInitialContext;
         }
 
+        @Override
+        ExecutorService createDiscoveryExecutor(final int numberOfLookups) {
+            return new SameThreadExecutorService();
+        }
+
+        @Override
+        ExecutorService createAcquisitionExecutor(final int threads, final int queueSize) {
+            return new SameThreadExecutorService();
+        }
+
+        @Override
+        ExecutorService createScatterGatherExecutor(final int threads, final int queueSize) {
+            return new SameThreadExecutorService();
+        }
+
     }
 }
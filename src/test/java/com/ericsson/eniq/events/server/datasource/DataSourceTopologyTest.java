@@ -0,0 +1,63 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class DataSourceTopologyTest {
+
+    @Test
+    public void testTopologyIsACopyOfTheDataSourcesInOrder() {
+        final List<EniqDataSource> dataSources = createDataSources(24, 12, 36, 52);
+        final DataSourceTopology objToTest = new DataSourceTopology(dataSources);
+        final List<EniqDataSource> expected = new ArrayList<EniqDataSource>(dataSources);
+        dataSources.clear();
+        assertThat(objToTest, is((List<EniqDataSource>) expected));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testTopologyCannotBeModified() {
+        new DataSourceTopology(createDataSources(3)).add(new EniqDataSourceImpl(null, "extraPool", 3));
+    }
+
+    @Test
+    public void testWeightsArePrecomputed() {
+        final DataSourceTopology objToTest = new DataSourceTopology(createDataSources(24, 12, 36, 52));
+        assertThat(objToTest.getMaximumWeight(), is(52));
+        assertThat(objToTest.getGreatestCommonDivisor(), is(4));
+    }
+
+    @Test
+    public void testHashRingIsBuiltOnceFromThisTopology() {
+        final DataSourceTopology objToTest = new DataSourceTopology(createDataSources(3, 3));
+        assertThat(objToTest.getHashRing(), is(sameInstance(objToTest.getHashRing())));
+        assertThat(objToTest.getHashRing().isBuiltFrom(objToTest), is(true));
+    }
+
+    @Test
+    public void testRendezvousHashTableIsBuiltOnce() {
+        final DataSourceTopology objToTest = new DataSourceTopology(createDataSources(3, 3));
+        assertThat(objToTest.getRendezvousHashTable(), is(sameInstance(objToTest.getRendezvousHashTable())));
+    }
+
+    private List<EniqDataSource> createDataSources(final int... weights) {
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        for (int i = 0; i < weights.length; i++) {
+            dataSources.add(new EniqDataSourceImpl(null, "eniqPool" + i, weights[i]));
+        }
+        return dataSources;
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.jmock.Expectations;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.test.common.BaseJMockUnitTest;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class EniqDataSourceImplTest extends BaseJMockUnitTest {
+
+    private DataSource mockedDataSource;
+
+    private EniqDataSourceImpl objToTest;
+
+    @Before
+    public void setup() {
+        mockedDataSource = mockery.mock(DataSource.class);
+        objToTest = new EniqDataSourceImpl(mockedDataSource, "eniqPool", 10, new CircuitBreaker(2, 1.0, 10000, 60000));
+    }
+
+    @Test
+    public void testConnectionIsLeasedUntilClosed() throws Exception {
+        final Connection mockedConnection = mockery.mock(Connection.class);
+        mockery.checking(new Expectations() {
+            {
+                one(mockedDataSource).getConnection();
+                will(returnValue(mockedConnection));
+                one(mockedConnection).close();
+            }
+        });
+        final Connection connection = objToTest.getConnection();
+        assertThat(objToTest.getLeasedConnectionCount(), is(1));
+        assertThat(connection, is(mockedConnection));
+        connection.close();
+        assertThat(objToTest.getLeasedConnectionCount(), is(0));
+    }
+
+    @Test
+    public void testConcurrencyLimitRejectsRequestsOverTheLimitWithoutUsingThePool() throws Exception {
+        final Connection mockedConnection = mockery.mock(Connection.class);
+        mockery.checking(new Expectations() {
+            {
+                exactly(2).of(mockedDataSource).getConnection();
+                will(returnValue(mockedConnection));
+                one(mockedConnection).close();
+            }
+        });
+        final EniqDataSourceImpl limitedDataSource = new EniqDataSourceImpl(mockedDataSource, "eniqPool", 1,
+                new CircuitBreaker(), new AdaptiveConcurrencyLimit(1, 1, 0.5, 2.0, 0));
+        assertThat(limitedDataSource.getConcurrencyLimit(), is(1));
+        final Connection connection = limitedDataSource.getConnection();
+        try {
+            limitedDataSource.getConnection();
+            fail("Expected the request over the concurrency limit to be rejected");
+        } catch (final SQLException e) {
+            assertThat(limitedDataSource.getMetricsSnapshot().getRejectedCount(), is(1L));
+        }
+        connection.close();
+        assertNotNull(limitedDataSource.getConnection());
+    }
+
+    @Test
+    public void testConcurrencyLimitIsWeightWithoutAdaptiveLimit() {
+        assertThat(objToTest.getConcurrencyLimit(), is(10));
+    }
+
+    @Test
+    public void testCircuitBreakerFailsFastWithoutUsingThePoolOnceTripped() throws Exception {
+        mockery.checking(new Expectations() {
+            {
+                exactly(2).of(mockedDataSource).getConnection();
+                will(throwException(new SQLException("pool timed out")));
+            }
+        });
+        for (int i = 0; i < 2; i++) {
+            try {
+                objToTest.getConnection();
+                fail("Expected SQLException");
+            } catch (final SQLException e) {
+                assertThat(e.getMessage(), is("pool timed out"));
+            }
+        }
+        assertThat(objToTest.isAvailable(), is(false));
+        try {
+            objToTest.getConnection();
+            fail("Expected SQLException");
+        } catch (final SQLException e) {
+            assertThat(e.getMessage(), containsString("Circuit breaker is open"));
+        }
+        assertThat(objToTest.getLeasedConnectionCount(), is(0));
+    }
+
+    @Test
+    public void testMetricsCountAcquiresLeasesFailuresAndRejections() throws Exception {
+        final Connection mockedConnection = mockery.mock(Connection.class);
+        mockery.checking(new Expectations() {
+            {
+                one(mockedDataSource).getConnection();
+                will(returnValue(mockedConnection));
+                one(mockedConnection).close();
+                exactly(3).of(mockedDataSource).getConnection();
+                will(throwException(new SQLException("pool timed out")));
+            }
+        });
+        objToTest.getConnection().close();
+        for (int i = 0; i < 4; i++) {
+            try {
+                objToTest.getConnection();
+                fail("Expected SQLException");
+            } catch (final SQLException e) {
+                // expected
+            }
+        }
+        objToTest.getMetrics().recordSelection("RoundRobin");
+
+        final DataSourceMetricsSnapshot snapshot = objToTest.getMetricsSnapshot();
+        assertThat(snapshot.getPoolName(), is("eniqPool"));
+        assertThat(snapshot.getAcquireCount(), is(1L));
+        assertThat(snapshot.getLeaseCount(), is(1L));
+        assertThat(snapshot.getLeasedConnectionCount(), is(0));
+        assertThat(snapshot.getAcquireFailureCount(), is(3L));
+        assertThat(snapshot.getRejectedCount(), is(1L));
+        assertThat(snapshot.getSelectionCounts().get("RoundRobin"), is(1L));
+    }
+
+    @Test
+    public void testConnectionHeldPastTheThresholdIsReportedOnceAsASuspectedLeak() throws Exception {
+        final Connection leakedConnection = mockery.mock(Connection.class, "leakedConnection");
+        final Connection closedConnection = mockery.mock(Connection.class, "closedConnection");
+        mockery.checking(new Expectations() {
+            {
+                exactly(2).of(mockedDataSource).getConnection();
+                will(onConsecutiveCalls(returnValue(leakedConnection), returnValue(closedConnection)));
+                one(closedConnection).close();
+            }
+        });
+        objToTest.setCallSiteSampleInterval(1);
+        objToTest.getConnection();
+        objToTest.getConnection().close();
+
+        final List<ConnectionLease> suspectedLeaks = objToTest.findSuspectedLeaks(0);
+        assertThat(suspectedLeaks.size(), is(1));
+        assertThat(suspectedLeaks.get(0).getThreadName(), is(Thread.currentThread().getName()));
+        boolean callSiteRecorded = false;
+        for (final StackTraceElement element : suspectedLeaks.get(0).getCallSite().getStackTrace()) {
+            callSiteRecorded |= element.getMethodName().equals(
+                    "testConnectionHeldPastTheThresholdIsReportedOnceAsASuspectedLeak");
+        }
+        assertThat(callSiteRecorded, is(true));
+        assertThat(objToTest.findSuspectedLeaks(0).isEmpty(), is(true));
+        assertThat(objToTest.findSuspectedLeaks(Long.MAX_VALUE).isEmpty(), is(true));
+
+        final DataSourceMetricsSnapshot snapshot = objToTest.getMetricsSnapshot();
+        assertThat(snapshot.getSuspectedLeakCount(), is(1L));
+        assertThat(snapshot.getLongestHeldLeaseMillis() > 0, is(true));
+    }
+
+    @Test
+    public void testDataSourceRecoversWhenItsCircuitBreakerTrialIsTurnedAwayByTheConcurrencyLimit() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1.0, 10000, 0);
+        objToTest = new EniqDataSourceImpl(mockedDataSource, "eniqPool", 1, circuitBreaker,
+                new AdaptiveConcurrencyLimit(1, 1, 0.5, 2.0, 0));
+        final Connection heldConnection = mockery.mock(Connection.class, "heldConnection");
+        final Connection trialConnection = mockery.mock(Connection.class, "trialConnection");
+        mockery.checking(new Expectations() {
+            {
+                exactly(2).of(mockedDataSource).getConnection();
+                will(onConsecutiveCalls(returnValue(heldConnection), returnValue(trialConnection)));
+                one(heldConnection).close();
+            }
+        });
+        final Connection connection = objToTest.getConnection();
+        circuitBreaker.onFailure(circuitBreaker.tryAcquirePermission());
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+
+        try {
+            objToTest.getConnection();
+            fail("Expected SQLException");
+        } catch (final ConnectionRejectedException e) {
+            assertThat(e.getMessage(), containsString("Concurrency limit"));
+        }
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat(objToTest.isAvailable(), is(true));
+
+        connection.close();
+        objToTest.getConnection();
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class ExpiringLruCacheTest {
+
+    private long now;
+
+    @Test
+    public void testCachedValueIsReturnedUntilItExpires() throws Exception {
+        final ExpiringLruCache<String, String> objToTest = createCache(10, 1000);
+        objToTest.put("techpack", "EVENT_E_SGEH");
+        now += TimeUnit.MILLISECONDS.toNanos(999);
+        assertThat(objToTest.get("techpack"), is("EVENT_E_SGEH"));
+
+        now += TimeUnit.MILLISECONDS.toNanos(1);
+        assertThat(objToTest.get("techpack"), is(nullValue()));
+        assertThat(objToTest.size(), is(0));
+        assertThat(objToTest.getHitCount(), is(1L));
+        assertThat(objToTest.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedValueIsEvictedWhenFull() throws Exception {
+        final ExpiringLruCache<String, String> objToTest = createCache(2, 1000);
+        objToTest.put("a", "1");
+        objToTest.put("b", "2");
+        objToTest.get("a");
+        objToTest.put("c", "3");
+        assertThat(objToTest.size(), is(2));
+        assertThat(objToTest.get("a"), is("1"));
+        assertThat(objToTest.get("b"), is(nullValue()));
+        assertThat(objToTest.get("c"), is("3"));
+    }
+
+    @Test
+    public void testEntriesAreEvictedUntilTheNewEntryFitsTheMaximumWeight() throws Exception {
+        final ExpiringLruCache<String, String> objToTest = createCache(100, 1000);
+        objToTest.put("a", "1", 40);
+        objToTest.put("b", "2", 40);
+        objToTest.put("c", "3", 50);
+        assertThat(objToTest.get("a"), is(nullValue()));
+        assertThat(objToTest.get("b"), is("2"));
+        assertThat(objToTest.getWeight(), is(90L));
+
+        objToTest.put("d", "4", 101);
+        assertThat(objToTest.get("d"), is(nullValue()));
+        assertThat(objToTest.getWeight(), is(90L));
+    }
+
+    @Test
+    public void testInvalidatedValuesAreNoLongerReturned() throws Exception {
+        final ExpiringLruCache<String, String> objToTest = createCache(10, 1000);
+        objToTest.put("a", "1");
+        objToTest.put("b", "2");
+        objToTest.invalidate("a");
+        assertThat(objToTest.get("a"), is(nullValue()));
+        assertThat(objToTest.get("b"), is("2"));
+
+        objToTest.invalidateAll();
+        assertThat(objToTest.get("b"), is(nullValue()));
+    }
+
+    private ExpiringLruCache<String, String> createCache(final int maximumSize, final long timeToLiveMillis) {
+        return new ExpiringLruCache<String, String>(maximumSize, timeToLiveMillis) {
+            @Override
+            long currentTimeNanos() {
+                return now;
+            }
+        };
+    }
+}
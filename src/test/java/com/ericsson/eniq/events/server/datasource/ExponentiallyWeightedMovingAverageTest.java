@@ -0,0 +1,45 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class ExponentiallyWeightedMovingAverageTest {
+
+    @Test
+    public void testAverageIsZeroBeforeAnySamples() {
+        assertThat(new ExponentiallyWeightedMovingAverage(0.5).getAverage(), is(0.0));
+    }
+
+    @Test
+    public void testFirstSampleBecomesTheAverage() {
+        final ExponentiallyWeightedMovingAverage objToTest = new ExponentiallyWeightedMovingAverage(0.5);
+        objToTest.update(40.0);
+        assertThat(objToTest.getAverage(), is(40.0));
+    }
+
+    @Test
+    public void testAverageMovesTowardsNewSamples() {
+        final ExponentiallyWeightedMovingAverage objToTest = new ExponentiallyWeightedMovingAverage(0.5);
+        objToTest.update(40.0);
+        objToTest.update(80.0);
+        assertThat(objToTest.getAverage(), is(60.0));
+        objToTest.update(20.0);
+        assertThat(objToTest.getAverage(), is(40.0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSmoothingFactorIsRejected() {
+        new ExponentiallyWeightedMovingAverage(0);
+    }
+}
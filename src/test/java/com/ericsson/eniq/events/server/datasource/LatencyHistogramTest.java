@@ -0,0 +1,52 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram objToTest = new LatencyHistogram();
+
+    @Test
+    public void testLatenciesGoInPowerOfTwoBuckets() {
+        assertThat(LatencyHistogram.getBucket(0), is(0));
+        assertThat(LatencyHistogram.getBucket(1), is(1));
+        assertThat(LatencyHistogram.getBucket(2), is(2));
+        assertThat(LatencyHistogram.getBucket(3), is(2));
+        assertThat(LatencyHistogram.getBucket(4), is(3));
+        assertThat(LatencyHistogram.getBucket(1023), is(10));
+        assertThat(LatencyHistogram.getBucket(1024), is(11));
+        assertThat(LatencyHistogram.getBucket(Long.MAX_VALUE), is(LatencyHistogram.NUMBER_OF_BUCKETS - 1));
+    }
+
+    @Test
+    public void testPercentileIsTheUpperBoundOfItsBucket() {
+        for (int i = 0; i < 90; i++) {
+            objToTest.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            objToTest.record(1000000);
+        }
+        assertThat(objToTest.getCount(), is(100L));
+        assertThat(objToTest.getValueAtPercentile(50), is(1023L));
+        assertThat(objToTest.getValueAtPercentile(90), is(1023L));
+        assertThat(objToTest.getValueAtPercentile(91), is(1048575L));
+        assertThat(objToTest.getValueAtPercentile(100), is(1048575L));
+    }
+
+    @Test
+    public void testPercentileOfEmptyHistogramIsZero() {
+        assertThat(objToTest.getValueAtPercentile(99), is(0L));
+    }
+}
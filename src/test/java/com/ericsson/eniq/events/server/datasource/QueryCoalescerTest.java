@@ -0,0 +1,255 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class QueryCoalescerTest {
+
+    private static final QueryKey KEY = new QueryKey("SELECT COUNT(*) FROM EVENT_E_SGEH_ERR_RAW WHERE IMSI = ?", 1L);
+
+    private static final int CALLERS = 4;
+
+    private static final int ROWS = 3;
+
+    private static final ResultSetExtractor<Integer> ROW_COUNTER = new ResultSetExtractor<Integer>() {
+        @Override
+        public Integer extractData(final ResultSet resultSet) throws SQLException {
+            int rows = 0;
+            while (resultSet.next()) {
+                rows++;
+            }
+            return rows;
+        }
+    };
+
+    private final QueryCoalescer objToTest = new QueryCoalescer();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+
+    private final AtomicInteger runs = new AtomicInteger();
+
+    private final CountDownLatch queryStarted = new CountDownLatch(1);
+
+    private final CountDownLatch releaseQuery = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testIdenticalQueriesRunningTogetherShareOneRun() throws Exception {
+        final List<Future<Integer>> callers = startCallers(new QueryCoalescer.SharedQuery<Integer>() {
+            @Override
+            public Integer run(final QueryCoalescer.Run run) throws SQLException {
+                awaitRelease();
+                assertThat(run.closeToFollowers(), is(false));
+                final ColumnarResult result = createResult(ROWS);
+                run.share(result);
+                return result.read(ROW_COUNTER);
+            }
+        });
+        waitForFollowers();
+        releaseQuery.countDown();
+
+        for (final Future<Integer> caller : callers) {
+            assertThat(caller.get(5, TimeUnit.SECONDS), is(ROWS));
+        }
+        assertThat(runs.get(), is(1));
+        assertThat(objToTest.getCoalescedCount(), is((long) CALLERS - 1));
+        assertThat(objToTest.getQueriesInFlight(), is(0));
+    }
+
+    @Test
+    public void testEveryCallerSharingARunGetsItsFailure() throws Exception {
+        final List<Future<Integer>> callers = startCallers(new QueryCoalescer.SharedQuery<Integer>() {
+            @Override
+            public Integer run(final QueryCoalescer.Run run) throws SQLException {
+                awaitRelease();
+                throw new SQLException("Connection reset", "08S01");
+            }
+        });
+        waitForFollowers();
+        releaseQuery.countDown();
+
+        for (final Future<Integer> caller : callers) {
+            try {
+                caller.get(5, TimeUnit.SECONDS);
+                fail("Expected the query to fail");
+            } catch (final ExecutionException e) {
+                assertThat(e.getCause(), is(instanceOf(SQLException.class)));
+                assertThat(((SQLException) e.getCause()).getSQLState(), is("08S01"));
+            }
+        }
+        assertThat(runs.get(), is(1));
+        assertThat(objToTest.getQueriesInFlight(), is(0));
+    }
+
+    @Test
+    public void testQueryIsRunAgainOnceTheSharedRunHasFinished() throws Exception {
+        releaseQuery.countDown();
+        final QueryCoalescer.SharedQuery<Integer> query = new QueryCoalescer.SharedQuery<Integer>() {
+            @Override
+            public Integer run(final QueryCoalescer.Run run) throws SQLException {
+                awaitRelease();
+                final ColumnarResult result = createResult(ROWS);
+                run.share(result);
+                return result.read(ROW_COUNTER);
+            }
+        };
+        assertThat(objToTest.run(KEY, query, ROW_COUNTER, 5, TimeUnit.SECONDS), is(ROWS));
+        assertThat(objToTest.run(KEY, query, ROW_COUNTER, 5, TimeUnit.SECONDS), is(ROWS));
+        assertThat(runs.get(), is(2));
+        assertThat(objToTest.getCoalescedCount(), is(0L));
+    }
+
+    @Test
+    public void testCallerArrivingAfterTheRunIsClosedToFollowersRunsItsOwnQuery() throws Exception {
+        final List<Future<Integer>> callers = new ArrayList<Future<Integer>>();
+        callers.add(executor.submit(createCaller(new QueryCoalescer.SharedQuery<Integer>() {
+            @Override
+            public Integer run(final QueryCoalescer.Run run) throws SQLException {
+                // nobody has joined yet, so the leader reads IQ's result set itself
+                assertThat(run.closeToFollowers(), is(true));
+                awaitRelease();
+                return ROWS;
+            }
+        })));
+        assertThat(queryStarted.await(5, TimeUnit.SECONDS), is(true));
+        final Integer latecomersResult = objToTest.run(KEY, new QueryCoalescer.SharedQuery<Integer>() {
+            @Override
+            public Integer run(final QueryCoalescer.Run run) {
+                runs.incrementAndGet();
+                return 1;
+            }
+        }, ROW_COUNTER, 5, TimeUnit.SECONDS);
+        releaseQuery.countDown();
+
+        assertThat(latecomersResult, is(1));
+        assertThat(callers.get(0).get(5, TimeUnit.SECONDS), is(ROWS));
+        assertThat(runs.get(), is(2));
+        assertThat(objToTest.getCoalescedCount(), is(0L));
+    }
+
+    @Test
+    public void testCallerWaitingForAHungRunGivesUpAtTheTimeout() throws Exception {
+        startCallers(new QueryCoalescer.SharedQuery<Integer>() {
+            @Override
+            public Integer run(final QueryCoalescer.Run run) throws SQLException {
+                awaitRelease();
+                return ROWS;
+            }
+        });
+        try {
+            objToTest.run(KEY, new QueryCoalescer.SharedQuery<Integer>() {
+                @Override
+                public Integer run(final QueryCoalescer.Run run) {
+                    fail("Expected to join the run in flight");
+                    return null;
+                }
+            }, ROW_COUNTER, 50, TimeUnit.MILLISECONDS);
+            fail("Expected the wait to time out");
+        } catch (final SQLTimeoutException e) {
+            assertThat(e.getMessage(), containsString("waiting for identical query"));
+        } finally {
+            releaseQuery.countDown();
+        }
+        assertThat(runs.get(), is(1));
+    }
+
+    /**
+     * the first caller starts the run and holds it open until releaseQuery, the others then join it
+     */
+    private List<Future<Integer>> startCallers(final QueryCoalescer.SharedQuery<Integer> query) throws Exception {
+        final List<Future<Integer>> callers = new ArrayList<Future<Integer>>();
+        final Callable<Integer> caller = createCaller(query);
+        callers.add(executor.submit(caller));
+        assertThat(queryStarted.await(5, TimeUnit.SECONDS), is(true));
+        for (int i = 1; i < CALLERS; i++) {
+            callers.add(executor.submit(caller));
+        }
+        return callers;
+    }
+
+    private Callable<Integer> createCaller(final QueryCoalescer.SharedQuery<Integer> query) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return objToTest.run(KEY, query, ROW_COUNTER, 5, TimeUnit.SECONDS);
+            }
+        };
+    }
+
+    private void waitForFollowers() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (objToTest.getCoalescedCount() < CALLERS - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private void awaitRelease() throws SQLException {
+        runs.incrementAndGet();
+        queryStarted.countDown();
+        try {
+            releaseQuery.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    /**
+     * the results are built on the worker threads, so they're read from a proxy rather than from JMock mocks
+     */
+    private static ColumnarResult createResult(final int rows) throws SQLException {
+        final InvocationHandler rowsWithNoColumns = new InvocationHandler() {
+
+            private int rowsLeft = rows;
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("getMetaData")) {
+                    return proxy;
+                }
+                if (method.getName().equals("getColumnCount")) {
+                    return 0;
+                }
+                if (method.getName().equals("next")) {
+                    return rowsLeft-- > 0;
+                }
+                return false;
+            }
+        };
+        return ColumnarResult.copyOf((ResultSet) Proxy.newProxyInstance(QueryCoalescerTest.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class, ResultSetMetaData.class }, rowsWithNoColumns));
+    }
+}
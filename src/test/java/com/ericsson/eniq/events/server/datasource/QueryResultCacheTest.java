@@ -0,0 +1,122 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.Properties;
+
+import org.jmock.Expectations;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.test.common.BaseJMockUnitTest;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class QueryResultCacheTest extends BaseJMockUnitTest {
+
+    private static final String SQL = "SELECT COUNT(*) FROM EVENT_E_SGEH_ERR_RAW WHERE IMSI = ?";
+
+    private int resultsCreated;
+
+    @Before
+    public void setup() {
+        // the mocks can be finalized off the test thread
+        mockery.setThreadingPolicy(new Synchroniser());
+    }
+
+    @Test
+    public void testCacheIsOffByDefault() throws Exception {
+        final QueryResultCache objToTest = new QueryResultCache(new Properties());
+        assertThat(objToTest.isEnabled(), is(false));
+        objToTest.put(new QueryKey(SQL, 1L), createEmptyResult(), objToTest.getGeneration());
+        assertThat(objToTest.get(new QueryKey(SQL, 1L)), is(nullValue()));
+    }
+
+    @Test
+    public void testQueriesDifferingOnlyInWhitespaceShareAnEntry() throws Exception {
+        final QueryResultCache objToTest = createCache("100000");
+        final ColumnarResult result = createEmptyResult();
+        objToTest.put(new QueryKey(SQL, 1L), result, objToTest.getGeneration());
+        final String reformattedSQL = "  SELECT COUNT(*)\n\tFROM EVENT_E_SGEH_ERR_RAW   WHERE IMSI = ?";
+        assertThat(objToTest.get(new QueryKey(reformattedSQL, 1L)), is(sameInstance(result)));
+        assertThat(objToTest.get(new QueryKey(SQL, 2L)), is(nullValue()));
+        assertThat(objToTest.getHitCount(), is(1L));
+        assertThat(objToTest.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void testWhitespaceInsideLiteralsIsKept() throws Exception {
+        assertThat(QueryKey.normalise(" SELECT  'a  b'  FROM\nT "), is("SELECT 'a  b' FROM T"));
+    }
+
+    @Test
+    public void testResultBiggerThanTheEntryLimitIsNotCached() throws Exception {
+        final ColumnarResult result = createEmptyResult();
+        final QueryResultCache objToTest = createCache(Long.toString(result.getSizeInBytes() * 8));
+        objToTest.put(new QueryKey(SQL, 1L), result, objToTest.getGeneration());
+        assertThat(objToTest.get(new QueryKey(SQL, 1L)), is(nullValue()));
+        assertThat(objToTest.getSizeInBytes(), is(0L));
+    }
+
+    @Test
+    public void testResultsForAnIMSIAreInvalidatedTogether() throws Exception {
+        final QueryResultCache objToTest = createCache("100000");
+        final Long imsi = 460000123456789L;
+        objToTest.put(new QueryKey(SQL, imsi), createEmptyResult(), objToTest.getGeneration());
+        objToTest.put(new QueryKey("SELECT * FROM EVENT_E_LTE_ERR_RAW WHERE IMSI = ? AND DATETIME_ID > ?", imsi,
+                "2011-01-01"), createEmptyResult(), objToTest.getGeneration());
+        objToTest.put(new QueryKey(SQL, 1L), createEmptyResult(), objToTest.getGeneration());
+
+        objToTest.invalidateQueriesWithParameter(imsi);
+        assertThat(objToTest.get(new QueryKey(SQL, imsi)), is(nullValue()));
+        assertThat(objToTest.get(new QueryKey("SELECT * FROM EVENT_E_LTE_ERR_RAW WHERE IMSI = ? AND DATETIME_ID > ?",
+                imsi, "2011-01-01")), is(nullValue()));
+        assertThat(objToTest.get(new QueryKey(SQL, 1L)), is(notNullValue()));
+    }
+
+    @Test
+    public void testResultOfAQueryRunningWhenItsParameterWasInvalidatedIsNotCached() throws Exception {
+        final QueryResultCache objToTest = createCache("100000");
+        final Long imsi = 460000123456789L;
+        final long generationBeforeQuery = objToTest.getGeneration();
+        objToTest.invalidateQueriesWithParameter(imsi);
+        objToTest.put(new QueryKey(SQL, imsi), createEmptyResult(), generationBeforeQuery);
+        assertThat(objToTest.get(new QueryKey(SQL, imsi)), is(nullValue()));
+        objToTest.put(new QueryKey(SQL, imsi), createEmptyResult(), objToTest.getGeneration());
+        assertThat(objToTest.get(new QueryKey(SQL, imsi)), is(notNullValue()));
+    }
+
+    private QueryResultCache createCache(final String maximumBytes) {
+        final Properties properties = new Properties();
+        properties.put(QueryResultCache.MAXIMUM_BYTES_PROPERTY_NAME, maximumBytes);
+        return new QueryResultCache(properties);
+    }
+
+    private ColumnarResult createEmptyResult() throws Exception {
+        resultsCreated++;
+        final ResultSet mockedResultSet = mockery.mock(ResultSet.class, "resultSet" + resultsCreated);
+        final ResultSetMetaData mockedMetaData = mockery.mock(ResultSetMetaData.class, "metaData" + resultsCreated);
+        mockery.checking(new Expectations() {
+            {
+                one(mockedResultSet).getMetaData();
+                will(returnValue(mockedMetaData));
+                one(mockedMetaData).getColumnCount();
+                will(returnValue(0));
+                one(mockedResultSet).next();
+                will(returnValue(false));
+            }
+        });
+        return ColumnarResult.copyOf(mockedResultSet);
+    }
+}
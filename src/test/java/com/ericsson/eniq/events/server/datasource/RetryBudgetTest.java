@@ -0,0 +1,92 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class RetryBudgetTest {
+
+    private long now;
+
+    @Test
+    public void testRetriesAreRefusedOnceTheBudgetIsUsedUpUntilItRefills() throws Exception {
+        final RetryBudget objToTest = createRetryBudget("2");
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(false));
+
+        now += TimeUnit.MILLISECONDS.toNanos(500);
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(false));
+
+        // the bucket holds no more than a second's worth
+        now += TimeUnit.MINUTES.toNanos(1);
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(false));
+    }
+
+    @Test
+    public void testBackoffIsJitteredAndDoublesUpToTheMaximum() throws Exception {
+        final RetryBudget objToTest = createRetryBudget("10");
+        long longestFirstBackoff = 0;
+        long longestFourthBackoff = 0;
+        for (int i = 0; i < 1000; i++) {
+            longestFirstBackoff = Math.max(longestFirstBackoff, objToTest.getBackoffNanos(1));
+            longestFourthBackoff = Math.max(longestFourthBackoff, objToTest.getBackoffNanos(4));
+        }
+        assertThat(longestFirstBackoff <= TimeUnit.MILLISECONDS.toNanos(RetryBudget.DEFAULT_BACKOFF_MILLIS),
+                is(true));
+        assertThat(longestFourthBackoff > TimeUnit.MILLISECONDS.toNanos(RetryBudget.DEFAULT_BACKOFF_MILLIS),
+                is(true));
+        assertThat(longestFourthBackoff <= TimeUnit.MILLISECONDS.toNanos(RetryBudget.DEFAULT_BACKOFF_MILLIS * 8),
+                is(true));
+        assertThat(objToTest.getBackoffNanos(Integer.MAX_VALUE) <= TimeUnit.MILLISECONDS
+                .toNanos(RetryBudget.DEFAULT_MAXIMUM_BACKOFF_MILLIS), is(true));
+    }
+
+    @Test
+    public void testReconfiguringKeepsTheTokensLeftUpToTheNewCapacity() throws Exception {
+        final RetryBudget objToTest = createRetryBudget("4");
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(true));
+
+        objToTest.configure(createProperties("10"));
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(false));
+
+        now += TimeUnit.SECONDS.toNanos(1);
+        objToTest.configure(createProperties("1"));
+        assertThat(objToTest.tryAcquire(), is(true));
+        assertThat(objToTest.tryAcquire(), is(false));
+    }
+
+    private RetryBudget createRetryBudget(final String budgetPerSecond) {
+        return new RetryBudget(createProperties(budgetPerSecond)) {
+            @Override
+            long currentTimeNanos() {
+                return now;
+            }
+        };
+    }
+
+    private Properties createProperties(final String budgetPerSecond) {
+        final Properties properties = new Properties();
+        properties.put(RetryBudget.BUDGET_PER_SECOND_PROPERTY_NAME, budgetPerSecond);
+        return properties;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class WindowedLatencyHistogramTest {
+
+    private static final long WINDOW_NANOS = 1000;
+
+    private long now;
+
+    private final WindowedLatencyHistogram objToTest = new WindowedLatencyHistogram(WINDOW_NANOS) {
+        @Override
+        long currentTimeNanos() {
+            return now;
+        }
+    };
+
+    @Test
+    public void testLatenciesOfThePreviousWindowAreStillRead() {
+        objToTest.record(1000000);
+        now = WINDOW_NANOS;
+        objToTest.record(1000);
+        assertThat(objToTest.getCount(), is(2L));
+        assertThat(objToTest.getValueAtPercentile(100), is(1048575L));
+    }
+
+    @Test
+    public void testLatenciesOlderThanThePreviousWindowAreForgotten() {
+        objToTest.record(1000000);
+        now = WINDOW_NANOS;
+        objToTest.record(1000);
+        now = 2 * WINDOW_NANOS;
+        assertThat(objToTest.getCount(), is(1L));
+        assertThat(objToTest.getValueAtPercentile(100), is(1023L));
+    }
+
+    @Test
+    public void testEverythingIsForgottenAfterTwoQuietWindows() {
+        objToTest.record(1000);
+        now = 2 * WINDOW_NANOS + 1;
+        assertThat(objToTest.getCount(), is(0L));
+        assertThat(objToTest.getValueAtPercentile(99), is(0L));
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+import com.ericsson.eniq.events.server.datasource.EniqDataSourceImpl;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class ConsistentHashRingTest {
+
+    private static final int NUMBER_OF_KEYS = 10000;
+
+    @Test
+    public void testAddingADataSourceOnlyMovesKeysToTheNewDataSource() {
+        final List<EniqDataSource> dataSources = createDataSources(3, 10);
+        final ConsistentHashRing originalRing = new ConsistentHashRing(dataSources);
+        final List<EniqDataSource> dataSourcesWithExtraNode = new ArrayList<EniqDataSource>(dataSources);
+        final EniqDataSource newDataSource = new EniqDataSourceImpl(null, "newPool", 10);
+        dataSourcesWithExtraNode.add(newDataSource);
+        final ConsistentHashRing newRing = new ConsistentHashRing(dataSourcesWithExtraNode);
+
+        int keysMoved = 0;
+        for (long key = 0; key < NUMBER_OF_KEYS; key++) {
+            final long keyHash = LoadBalancingHash.mix(key);
+            final EniqDataSource before = originalRing.getDataSource(keyHash);
+            final EniqDataSource after = newRing.getDataSource(keyHash);
+            if (before != after) {
+                assertThat(after, is(newDataSource));
+                keysMoved++;
+            }
+        }
+        assertTrue("moved " + keysMoved, keysMoved > NUMBER_OF_KEYS / 8 && keysMoved < NUMBER_OF_KEYS * 3 / 8);
+    }
+
+    @Test
+    public void testRemovingADataSourceOnlyMovesItsOwnKeys() {
+        final List<EniqDataSource> dataSources = createDataSources(4, 10);
+        final ConsistentHashRing originalRing = new ConsistentHashRing(dataSources);
+        final List<EniqDataSource> remainingDataSources = new ArrayList<EniqDataSource>(dataSources);
+        final EniqDataSource removedDataSource = remainingDataSources.remove(1);
+        final ConsistentHashRing newRing = new ConsistentHashRing(remainingDataSources);
+
+        for (long key = 0; key < NUMBER_OF_KEYS; key++) {
+            final long keyHash = LoadBalancingHash.mix(key);
+            final EniqDataSource before = originalRing.getDataSource(keyHash);
+            if (before != removedDataSource) {
+                assertThat(newRing.getDataSource(keyHash), is(before));
+            }
+        }
+    }
+
+    @Test
+    public void testKeysAreSpreadAccordingToWeight() {
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSource heavyDataSource = new EniqDataSourceImpl(null, "heavyPool", 20);
+        dataSources.add(heavyDataSource);
+        dataSources.add(new EniqDataSourceImpl(null, "lightPool", 10));
+        final ConsistentHashRing objToTest = new ConsistentHashRing(dataSources);
+
+        int keysOnHeavyDataSource = 0;
+        for (long key = 0; key < NUMBER_OF_KEYS; key++) {
+            if (objToTest.getDataSource(LoadBalancingHash.mix(key)) == heavyDataSource) {
+                keysOnHeavyDataSource++;
+            }
+        }
+        assertTrue("heavy data source got " + keysOnHeavyDataSource, keysOnHeavyDataSource > NUMBER_OF_KEYS * 55 / 100
+                && keysOnHeavyDataSource < NUMBER_OF_KEYS * 78 / 100);
+    }
+
+    @Test
+    public void testIsBuiltFrom() {
+        final List<EniqDataSource> dataSources = createDataSources(2, 3);
+        final ConsistentHashRing objToTest = new ConsistentHashRing(dataSources);
+        assertThat(objToTest.isBuiltFrom(dataSources), is(true));
+        assertThat(objToTest.isBuiltFrom(new ArrayList<EniqDataSource>(dataSources)), is(true));
+        assertThat(objToTest.isBuiltFrom(dataSources.subList(0, 1)), is(false));
+        assertThat(objToTest.isBuiltFrom(createDataSources(2, 3)), is(false));
+    }
+
+    @Test
+    public void testGetNumberOfVirtualNodes() {
+        assertThat(ConsistentHashRing.getNumberOfVirtualNodes(0), is(ConsistentHashRing.VIRTUAL_NODES_PER_UNIT_OF_WEIGHT));
+        assertThat(ConsistentHashRing.getNumberOfVirtualNodes(10),
+                is(10 * ConsistentHashRing.VIRTUAL_NODES_PER_UNIT_OF_WEIGHT));
+        assertThat(ConsistentHashRing.getNumberOfVirtualNodes(Integer.MAX_VALUE),
+                is(ConsistentHashRing.MAXIMUM_VIRTUAL_NODES_PER_DATA_SOURCE));
+    }
+
+    private List<EniqDataSource> createDataSources(final int numberOfDataSources, final int weight) {
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        for (int i = 0; i < numberOfDataSources; i++) {
+            dataSources.add(new EniqDataSourceImpl(null, "eniqPool" + i, weight));
+        }
+        return dataSources;
+    }
+}
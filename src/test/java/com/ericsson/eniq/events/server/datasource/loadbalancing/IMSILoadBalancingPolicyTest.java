@@ -103,4 +103,25 @@ public class IMSILoadBalancingPolicyTest extends BaseJMockUnitTest {
         assertThat(thirdSuggestedDataSource, is((DataSource) eniqDataSource));
     }
 
+    @Test
+    public void testConsistentHashModeKeepsIMSIOnSameDataSourceWhenADataSourceIsAdded() {
+        final ConsistentHashRingCache hashRingCache = new ConsistentHashRingCache();
+        final List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+        availableDataSources.add(new EniqDataSourceImpl(null, "eniqPool1", 10));
+        availableDataSources.add(new EniqDataSourceImpl(null, "eniqPool2", 10));
+        availableDataSources.add(new EniqDataSourceImpl(null, "eniqPool3", 10));
+        final String imsi = "208070019558076";
+        final DataSource firstSuggestedDataSource = new IMSILoadBalancingPolicy(imsi, hashRingCache)
+                .selectDataSource(availableDataSources);
+        assertThat(new IMSILoadBalancingPolicy(imsi, hashRingCache).selectDataSource(availableDataSources),
+                is(firstSuggestedDataSource));
+
+        final EniqDataSource newDataSource = new EniqDataSourceImpl(null, "eniqPool4", 10);
+        availableDataSources.add(newDataSource);
+        final DataSource suggestedDataSourceAfterAdding = new IMSILoadBalancingPolicy(imsi, hashRingCache)
+                .selectDataSource(availableDataSources);
+        assertThat(suggestedDataSourceAfterAdding,
+                anyOf(is(firstSuggestedDataSource), is((DataSource) newDataSource)));
+    }
+
 }
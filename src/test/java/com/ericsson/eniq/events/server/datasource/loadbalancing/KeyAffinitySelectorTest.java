@@ -0,0 +1,106 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.datasource.DataSourceTopology;
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+import com.ericsson.eniq.events.server.datasource.EniqDataSourceImpl;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class KeyAffinitySelectorTest {
+
+    private static final int NUMBER_OF_KEYS = 10000;
+
+    private final KeyAffinitySelector objToTest = new KeyAffinitySelector();
+
+    private List<EniqDataSource> availableDataSources;
+
+    @Before
+    public void setup() {
+        availableDataSources = new ArrayList<EniqDataSource>();
+        availableDataSources.add(new EniqDataSourceImpl(null, "eniqPool1", 10));
+        availableDataSources.add(new EniqDataSourceImpl(null, "eniqPool2", 10));
+        availableDataSources.add(new EniqDataSourceImpl(null, "eniqPool3", 10));
+    }
+
+    @Test
+    public void testSameKeyAlwaysGoesToSameDataSource() {
+        for (final String routingKey : new String[] { "208070019558076", "447700900123", "internet.apn", "cell-4711" }) {
+            final DataSource firstSuggestedDataSource = objToTest.selectDataSource(availableDataSources, routingKey);
+            for (int i = 0; i < 3; i++) {
+                assertThat(objToTest.forRoutingKey(routingKey).selectDataSource(availableDataSources),
+                        is(firstSuggestedDataSource));
+            }
+        }
+    }
+
+    @Test
+    public void testRemovingADataSourceOnlyMovesItsOwnKeys() {
+        final List<EniqDataSource> remainingDataSources = new ArrayList<EniqDataSource>(availableDataSources);
+        final EniqDataSource removedDataSource = remainingDataSources.remove(0);
+        int keysOnRemovedDataSource = 0;
+        for (int key = 0; key < NUMBER_OF_KEYS; key++) {
+            final DataSource before = objToTest.selectDataSource(availableDataSources, "key" + key);
+            if (before == removedDataSource) {
+                keysOnRemovedDataSource++;
+            } else {
+                assertThat(objToTest.selectDataSource(remainingDataSources, "key" + key), is(before));
+            }
+        }
+        assertTrue("removed data source had " + keysOnRemovedDataSource, keysOnRemovedDataSource > NUMBER_OF_KEYS / 4
+                && keysOnRemovedDataSource < NUMBER_OF_KEYS * 5 / 12);
+    }
+
+    @Test
+    public void testKeysAreSpreadAccordingToWeight() {
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSource heavyDataSource = new EniqDataSourceImpl(null, "heavyPool", 30);
+        dataSources.add(heavyDataSource);
+        dataSources.add(new EniqDataSourceImpl(null, "lightPool", 10));
+        int keysOnHeavyDataSource = 0;
+        for (int key = 0; key < NUMBER_OF_KEYS; key++) {
+            if (objToTest.selectDataSource(dataSources, "key" + key) == heavyDataSource) {
+                keysOnHeavyDataSource++;
+            }
+        }
+        assertTrue("heavy data source got " + keysOnHeavyDataSource, keysOnHeavyDataSource > NUMBER_OF_KEYS * 70 / 100
+                && keysOnHeavyDataSource < NUMBER_OF_KEYS * 80 / 100);
+    }
+
+    @Test
+    public void testOneDataSourceAvailable() {
+        final List<EniqDataSource> dataSources = availableDataSources.subList(0, 1);
+        assertThat(objToTest.selectDataSource(dataSources, "internet.apn"), is((DataSource) dataSources.get(0)));
+    }
+
+    @Test
+    public void testTopologySelectsTheSameDataSourceAsAPlainList() {
+        final DataSourceTopology topology = new DataSourceTopology(availableDataSources);
+        for (int key = 0; key < NUMBER_OF_KEYS; key++) {
+            assertThat(objToTest.selectDataSource(topology, "key" + key),
+                    is(objToTest.selectDataSource(availableDataSources, "key" + key)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRoutingKeyIsNeeded() {
+        objToTest.forRoutingKey(null);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.jmock.Expectations;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+import com.ericsson.eniq.events.server.test.common.BaseJMockUnitTest;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class LatencyAwareLoadBalancingPolicyTest extends BaseJMockUnitTest {
+
+    private LatencyAwareLoadBalancingPolicy objToTest;
+
+    @Before
+    public void setup() {
+        objToTest = new LatencyAwareLoadBalancingPolicy();
+    }
+
+    @Test
+    public void testSelectDataSourceWithLowerLatency() {
+        final List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSource slowDataSource = createDataSource("slowDataSource", 10, 5.0, 400.0, 1);
+        availableDataSources.add(slowDataSource);
+        final EniqDataSource fastDataSource = createDataSource("fastDataSource", 10, 1.0, 50.0, 1);
+        availableDataSources.add(fastDataSource);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(objToTest.selectDataSource(availableDataSources), is((DataSource) fastDataSource));
+        }
+    }
+
+    @Test
+    public void testFastDataSourceIsAvoidedWhenItHasTooManyLeasedConnections() {
+        final List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSource slowIdleDataSource = createDataSource("slowIdleDataSource", 10, 5.0, 100.0, 0);
+        availableDataSources.add(slowIdleDataSource);
+        final EniqDataSource fastBusyDataSource = createDataSource("fastBusyDataSource", 10, 1.0, 50.0, 9);
+        availableDataSources.add(fastBusyDataSource);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(objToTest.selectDataSource(availableDataSources), is((DataSource) slowIdleDataSource));
+        }
+    }
+
+    @Test
+    public void testGetLoad() {
+        final EniqDataSource dataSource = createDataSource("dataSource", 4, 2.0, 18.0, 1);
+        assertThat(objToTest.getLoad(dataSource), is(10.0));
+    }
+
+    private EniqDataSource createDataSource(final String mockName, final int weight, final double acquireTime,
+            final double leaseTime, final int leasedConnections) {
+        final EniqDataSource dataSource = mockery.mock(EniqDataSource.class, mockName);
+        mockery.checking(new Expectations() {
+            {
+                allowing(dataSource).getWeight();
+                will(returnValue(weight));
+                allowing(dataSource).getConcurrencyLimit();
+                will(returnValue(weight));
+                allowing(dataSource).getAverageAcquireTimeMillis();
+                will(returnValue(acquireTime));
+                allowing(dataSource).getAverageLeaseTimeMillis();
+                will(returnValue(leaseTime));
+                allowing(dataSource).getLeasedConnectionCount();
+                will(returnValue(leasedConnections));
+            }
+        });
+        return dataSource;
+    }
+}
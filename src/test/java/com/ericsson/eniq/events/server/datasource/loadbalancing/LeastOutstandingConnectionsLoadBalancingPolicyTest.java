@@ -0,0 +1,100 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.jmock.Expectations;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+import com.ericsson.eniq.events.server.datasource.EniqDataSourceImpl;
+import com.ericsson.eniq.events.server.test.common.BaseJMockUnitTest;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class LeastOutstandingConnectionsLoadBalancingPolicyTest extends BaseJMockUnitTest {
+
+    private LeastOutstandingConnectionsLoadBalancingPolicy objToTest;
+
+    @Before
+    public void setup() {
+        objToTest = new LeastOutstandingConnectionsLoadBalancingPolicy();
+    }
+
+    @Test
+    public void testSelectDataSourceWithFewestLeasedConnections() throws Exception {
+        final List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSource busyDataSource = createDataSource("busyDataSource");
+        availableDataSources.add(busyDataSource);
+        final EniqDataSource idleDataSource = createDataSource("idleDataSource");
+        availableDataSources.add(idleDataSource);
+        final EniqDataSource quietDataSource = createDataSource("quietDataSource");
+        availableDataSources.add(quietDataSource);
+
+        busyDataSource.getConnection();
+        busyDataSource.getConnection();
+        quietDataSource.getConnection();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(objToTest.selectDataSource(availableDataSources), is((DataSource) idleDataSource));
+        }
+    }
+
+    @Test
+    public void testSelectDataSourceFollowsConnectionsBeingClosed() throws Exception {
+        final List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSource dataSource1 = createDataSource("dataSource1");
+        availableDataSources.add(dataSource1);
+        final EniqDataSource dataSource2 = createDataSource("dataSource2");
+        availableDataSources.add(dataSource2);
+
+        final Connection firstConnectionOnDataSource1 = dataSource1.getConnection();
+        final Connection secondConnectionOnDataSource1 = dataSource1.getConnection();
+        dataSource2.getConnection();
+        assertThat(objToTest.selectDataSource(availableDataSources), is((DataSource) dataSource2));
+
+        firstConnectionOnDataSource1.close();
+        firstConnectionOnDataSource1.close();
+        assertThat(dataSource1.getLeasedConnectionCount(), is(1));
+
+        secondConnectionOnDataSource1.close();
+        assertThat(dataSource1.getLeasedConnectionCount(), is(0));
+        assertThat(objToTest.selectDataSource(availableDataSources), is((DataSource) dataSource1));
+    }
+
+    @Test
+    public void testSelectDataSourceToUseOneDataSourceAvailable() throws Exception {
+        final List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSource dataSource = createDataSource("dataSource");
+        availableDataSources.add(dataSource);
+        assertThat(objToTest.selectDataSource(availableDataSources), is((DataSource) dataSource));
+    }
+
+    private EniqDataSource createDataSource(final String mockName) throws SQLException {
+        final DataSource mockedDataSource = mockery.mock(DataSource.class, mockName);
+        final Connection mockedConnection = mockery.mock(Connection.class, "connection for " + mockName);
+        mockery.checking(new Expectations() {
+            {
+                allowing(mockedDataSource).getConnection();
+                will(returnValue(mockedConnection));
+                allowing(mockedConnection).close();
+            }
+        });
+        return new EniqDataSourceImpl(mockedDataSource, mockName, 0);
+    }
+}
@@ -23,6 +23,12 @@ public class LoadBalancingPolicyFactoryImplTest {
 
     private NoLoadBalancingPolicy noLoadBalancingPolicy;
 
+    private LeastOutstandingConnectionsLoadBalancingPolicy leastOutstandingConnectionsLoadBalancingPolicy;
+
+    private PowerOfTwoChoicesLoadBalancingPolicy powerOfTwoChoicesLoadBalancingPolicy;
+
+    private LatencyAwareLoadBalancingPolicy latencyAwareLoadBalancingPolicy;
+
     @Before
     public void setup() {
         objToTest = new LoadBalancingPolicyFactoryImpl();
@@ -30,6 +36,12 @@ public class LoadBalancingPolicyFactoryImplTest {
         objToTest.setRoundRobinLoadBalancingPolicy(roundRobinLoadBalancingPolicy);
         noLoadBalancingPolicy = new NoLoadBalancingPolicy();
         objToTest.setNoLoadBalancingPolicy(noLoadBalancingPolicy);
+        leastOutstandingConnectionsLoadBalancingPolicy = new LeastOutstandingConnectionsLoadBalancingPolicy();
+        objToTest.setLeastOutstandingConnectionsLoadBalancingPolicy(leastOutstandingConnectionsLoadBalancingPolicy);
+        powerOfTwoChoicesLoadBalancingPolicy = new PowerOfTwoChoicesLoadBalancingPolicy();
+        objToTest.setPowerOfTwoChoicesLoadBalancingPolicy(powerOfTwoChoicesLoadBalancingPolicy);
+        latencyAwareLoadBalancingPolicy = new LatencyAwareLoadBalancingPolicy();
+        objToTest.setLatencyAwareLoadBalancingPolicy(latencyAwareLoadBalancingPolicy);
     }
 
     @Test
@@ -43,9 +55,49 @@ public class LoadBalancingPolicyFactoryImplTest {
         assertNotNull(objToTest.getImsiLoadBalancingPolicy("1234"));
     }
 
+    @Test
+    public void testGetConsistentHashImsiLoadBalancingPolicy() {
+        assertNotNull(objToTest.getConsistentHashImsiLoadBalancingPolicy("1234"));
+    }
+
+    @Test
+    public void testGetKeyAffinityLoadBalancingPolicyAcceptsNonNumericKeys() {
+        assertNotNull(objToTest.getKeyAffinityLoadBalancingPolicy("internet.apn"));
+    }
+
+    @Test
+    public void testGetKeyAffinityLoadBalancingPolicyFallsBackToTheDefaultPolicyWithoutAKey() {
+        assertThat(objToTest.getKeyAffinityLoadBalancingPolicy(null),
+                is((LoadBalancingPolicy) roundRobinLoadBalancingPolicy));
+    }
+
+    @Test
+    public void testKeyAffinitySelectorIsShared() {
+        assertThat(objToTest.getKeyAffinitySelector(),
+                is(sameInstance(objToTest.getKeyAffinitySelector())));
+    }
+
     @Test
     public void testGetNoLoadBalancingPolicy() {
         assertThat(objToTest.getNoLoadBalancingPolicy(), is((LoadBalancingPolicy) noLoadBalancingPolicy));
     }
 
+    @Test
+    public void testGetLeastOutstandingConnectionsLoadBalancingPolicy() {
+        assertThat(objToTest.getLeastOutstandingConnectionsLoadBalancingPolicy(),
+                is((LoadBalancingPolicy) leastOutstandingConnectionsLoadBalancingPolicy));
+    }
+
+    @Test
+    public void testGetPowerOfTwoChoicesLoadBalancingPolicy() {
+        assertThat(objToTest.getPowerOfTwoChoicesLoadBalancingPolicy(),
+                is((LoadBalancingPolicy) powerOfTwoChoicesLoadBalancingPolicy));
+    }
+
+    @Test
+    public void testGetLatencyAwareLoadBalancingPolicy() {
+        assertThat(objToTest.getLatencyAwareLoadBalancingPolicy(),
+                is((LoadBalancingPolicy) latencyAwareLoadBalancingPolicy));
+    }
+
 }
@@ -0,0 +1,95 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.jmock.Expectations;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+import com.ericsson.eniq.events.server.datasource.EniqDataSourceImpl;
+import com.ericsson.eniq.events.server.test.common.BaseJMockUnitTest;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class PowerOfTwoChoicesLoadBalancingPolicyTest extends BaseJMockUnitTest {
+
+    private PowerOfTwoChoicesLoadBalancingPolicy objToTest;
+
+    @Before
+    public void setup() {
+        objToTest = new PowerOfTwoChoicesLoadBalancingPolicy();
+    }
+
+    @Test
+    public void testSelectDataSourceWithLowerLoadRelativeToWeight() throws Exception {
+        final List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSource heavyDataSource = createDataSourceWithLeasedConnections("heavyDataSource", 10, 4);
+        availableDataSources.add(heavyDataSource);
+        final EniqDataSource lightDataSource = createDataSourceWithLeasedConnections("lightDataSource", 2, 1);
+        availableDataSources.add(lightDataSource);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(objToTest.selectDataSource(availableDataSources), is((DataSource) heavyDataSource));
+        }
+    }
+
+    @Test
+    public void testMostLoadedDataSourceIsNeverSelected() throws Exception {
+        final List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+        availableDataSources.add(createDataSourceWithLeasedConnections("dataSource1", 3, 1));
+        final EniqDataSource mostLoadedDataSource = createDataSourceWithLeasedConnections("dataSource2", 3, 3);
+        availableDataSources.add(mostLoadedDataSource);
+        availableDataSources.add(createDataSourceWithLeasedConnections("dataSource3", 3, 2));
+
+        for (int i = 0; i < 50; i++) {
+            assertThat(objToTest.selectDataSource(availableDataSources), not((DataSource) mostLoadedDataSource));
+        }
+    }
+
+    @Test
+    public void testSelectDataSourceToUseOneDataSourceAvailable() throws Exception {
+        final List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+        final EniqDataSource dataSource = createDataSourceWithLeasedConnections("dataSource", 0, 0);
+        availableDataSources.add(dataSource);
+        assertThat(objToTest.selectDataSource(availableDataSources), is((DataSource) dataSource));
+    }
+
+    @Test
+    public void testGetLoadTreatsZeroWeightAsOne() throws Exception {
+        final EniqDataSource dataSource = createDataSourceWithLeasedConnections("dataSource", 0, 2);
+        assertThat(objToTest.getLoad(dataSource), is(2.0));
+    }
+
+    private EniqDataSource createDataSourceWithLeasedConnections(final String mockName, final int weight,
+            final int leasedConnections) throws SQLException {
+        final DataSource mockedDataSource = mockery.mock(DataSource.class, mockName);
+        final Connection mockedConnection = mockery.mock(Connection.class, "connection for " + mockName);
+        mockery.checking(new Expectations() {
+            {
+                allowing(mockedDataSource).getConnection();
+                will(returnValue(mockedConnection));
+            }
+        });
+        final EniqDataSource dataSource = new EniqDataSourceImpl(mockedDataSource, mockName, weight);
+        for (int i = 0; i < leasedConnections; i++) {
+            dataSource.getConnection();
+        }
+        return dataSource;
+    }
+}
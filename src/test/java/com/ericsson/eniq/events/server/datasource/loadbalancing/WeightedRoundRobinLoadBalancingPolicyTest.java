@@ -6,16 +6,21 @@
 package com.ericsson.eniq.events.server.datasource.loadbalancing;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.ericsson.eniq.events.server.datasource.DataSourceTopology;
 import com.ericsson.eniq.events.server.datasource.EniqDataSource;
 import com.ericsson.eniq.events.server.datasource.EniqDataSourceImpl;
 import com.ericsson.eniq.events.server.test.common.BaseJMockUnitTest;
@@ -60,17 +65,50 @@ public class WeightedRoundRobinLoadBalancingPolicyTest extends BaseJMockUnitTest
 
         final List<DataSource> expectedResult = new ArrayList<DataSource>();
         expectedResult.add(mockedDataSourceWeight4);
-        expectedResult.add(mockedDataSourceWeight4);
         expectedResult.add(mockedDataSourceWeight3);
+        expectedResult.add(mockedDataSourceWeight2);
         expectedResult.add(mockedDataSourceWeight4);
         expectedResult.add(mockedDataSourceWeight3);
-        expectedResult.add(mockedDataSourceWeight2);
         expectedResult.add(mockedDataSourceWeight4);
+        expectedResult.add(mockedDataSourceWeight2);
 
         assertThat(suggestedDataSources, is(expectedResult));
 
     }
 
+    @Test
+    public void testConcurrentSelectionsKeepToTheWeights() throws Exception {
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        dataSources.add(new EniqDataSourceImpl(null, "poolName4", 4));
+        dataSources.add(new EniqDataSourceImpl(null, "poolName3", 3));
+        dataSources.add(new EniqDataSourceImpl(null, "poolName2", 2));
+        final DataSourceTopology topology = new DataSourceTopology(dataSources);
+        final int numberOfThreads = 4;
+        final int selectionsPerThread = 9 * 1000;
+        final Map<DataSource, AtomicInteger> selections = new ConcurrentHashMap<DataSource, AtomicInteger>();
+        for (final EniqDataSource dataSource : dataSources) {
+            selections.put(dataSource, new AtomicInteger(0));
+        }
+        final Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < selectionsPerThread; j++) {
+                        selections.get(objToTest.selectDataSource(topology)).incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(selections.get(dataSources.get(0)).get(), is(numberOfThreads * 4000));
+        assertThat(selections.get(dataSources.get(1)).get(), is(numberOfThreads * 3000));
+        assertThat(selections.get(dataSources.get(2)).get(), is(numberOfThreads * 2000));
+    }
+
     @Test
     public void testcalculateGreatestCommonDivisorForAList() {
         final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
@@ -82,12 +120,20 @@ public class WeightedRoundRobinLoadBalancingPolicyTest extends BaseJMockUnitTest
     }
 
     @Test
-    public void testCalculateMaxWeight() {
-        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
-        dataSources.add(new EniqDataSourceImpl(null,"poolName1",24));
-        dataSources.add(new EniqDataSourceImpl(null,"poolName2",12));
-        dataSources.add(new EniqDataSourceImpl(null,"poolName3",36));
-        dataSources.add(new EniqDataSourceImpl(null,"poolName4",52));
-        assertThat(objToTest.getMaximumWeight(dataSources), is(52));
+    public void testSchedulesOfListsTakenInTurnAreNotRebuilt() {
+        final List<EniqDataSource> availableDataSources = new ArrayList<EniqDataSource>();
+        availableDataSources.add(new EniqDataSourceImpl(null, "poolName1", 4));
+        availableDataSources.add(new EniqDataSourceImpl(null, "poolName2", 3));
+        availableDataSources.add(new EniqDataSourceImpl(null, "poolName3", 2));
+        // eg the data sources left for a hedge, once the first has been selected
+        final List<EniqDataSource> otherDataSources = new ArrayList<EniqDataSource>(availableDataSources);
+        otherDataSources.remove(0);
+
+        final WeightedSchedule schedule = objToTest.getSchedule(availableDataSources);
+        final WeightedSchedule otherSchedule = objToTest.getSchedule(otherDataSources);
+        assertThat(objToTest.getSchedule(new ArrayList<EniqDataSource>(availableDataSources)),
+                is(sameInstance(schedule)));
+        assertThat(objToTest.getSchedule(new ArrayList<EniqDataSource>(otherDataSources)),
+                is(sameInstance(otherSchedule)));
     }
 }
@@ -0,0 +1,108 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.datasource.loadbalancing;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.datasource.EniqDataSource;
+import com.ericsson.eniq.events.server.datasource.EniqDataSourceImpl;
+
+/**
+ * @author eemecoy
+ *
+ */
+public class WeightedScheduleTest {
+
+    @Test
+    public void testScheduleIsReducedByTheGreatestCommonDivisor() {
+        final List<EniqDataSource> dataSources = createDataSources(24, 12, 36, 52);
+        final WeightedSchedule objToTest = new WeightedSchedule(dataSources, 4);
+        assertThat(objToTest.getLength(), is(31));
+        assertThat(countAppearances(objToTest, dataSources.get(0)), is(6));
+        assertThat(countAppearances(objToTest, dataSources.get(1)), is(3));
+        assertThat(countAppearances(objToTest, dataSources.get(2)), is(9));
+        assertThat(countAppearances(objToTest, dataSources.get(3)), is(13));
+    }
+
+    @Test
+    public void testLighterDataSourcesAreSpreadThroughTheCycleOfTheHeaviest() {
+        final List<EniqDataSource> dataSources = createDataSources(5, 1, 1);
+        final WeightedSchedule objToTest = new WeightedSchedule(dataSources, 1);
+        final List<EniqDataSource> expected = new ArrayList<EniqDataSource>();
+        expected.add(dataSources.get(0));
+        expected.add(dataSources.get(0));
+        expected.add(dataSources.get(1));
+        expected.add(dataSources.get(0));
+        expected.add(dataSources.get(2));
+        expected.add(dataSources.get(0));
+        expected.add(dataSources.get(0));
+        assertThat(getCycle(objToTest), is(expected));
+    }
+
+    @Test
+    public void testDataSourcesWithNoWeightAreLeftOut() {
+        final List<EniqDataSource> dataSources = createDataSources(0, 2);
+        final WeightedSchedule objToTest = new WeightedSchedule(dataSources, 2);
+        assertThat(objToTest.getLength(), is(1));
+        assertThat(objToTest.getDataSource(0), is(dataSources.get(1)));
+    }
+
+    @Test
+    public void testDataSourcesAreScheduledEquallyWhenNoneHaveWeight() {
+        final List<EniqDataSource> dataSources = createDataSources(0, 0, 0);
+        final WeightedSchedule objToTest = new WeightedSchedule(dataSources, 0);
+        assertThat(getCycle(objToTest), is(dataSources));
+    }
+
+    @Test
+    public void testScheduleLengthIsCapped() {
+        final List<EniqDataSource> dataSources = createDataSources(100003, 99991, 1);
+        final WeightedSchedule objToTest = new WeightedSchedule(dataSources, 1);
+        assertThat(objToTest.getLength() <= WeightedSchedule.MAXIMUM_SCHEDULE_LENGTH + dataSources.size(), is(true));
+        assertThat(countAppearances(objToTest, dataSources.get(2)), is(1));
+    }
+
+    @Test
+    public void testScheduleRepeats() {
+        final List<EniqDataSource> dataSources = createDataSources(3, 2);
+        final WeightedSchedule objToTest = new WeightedSchedule(dataSources, 1);
+        for (int i = 0; i < objToTest.getLength(); i++) {
+            assertThat(objToTest.getDataSource(i + objToTest.getLength()), is(objToTest.getDataSource(i)));
+        }
+    }
+
+    private List<EniqDataSource> getCycle(final WeightedSchedule schedule) {
+        final List<EniqDataSource> cycle = new ArrayList<EniqDataSource>();
+        for (int i = 0; i < schedule.getLength(); i++) {
+            cycle.add(schedule.getDataSource(i));
+        }
+        return cycle;
+    }
+
+    private int countAppearances(final WeightedSchedule schedule, final EniqDataSource dataSource) {
+        int appearances = 0;
+        for (final EniqDataSource scheduled : getCycle(schedule)) {
+            if (scheduled == dataSource) {
+                appearances++;
+            }
+        }
+        return appearances;
+    }
+
+    private List<EniqDataSource> createDataSources(final int... weights) {
+        final List<EniqDataSource> dataSources = new ArrayList<EniqDataSource>();
+        for (int i = 0; i < weights.length; i++) {
+            dataSources.add(new EniqDataSourceImpl(null, "eniqPool" + i, weights[i]));
+        }
+        return dataSources;
+    }
+}